@@ -8,20 +8,17 @@ import org.apache.commons.lang3.ArrayUtils;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static edu.macalester.wpsemsim.utils.ConfigurationFile.*;
-import static java.util.concurrent.TimeUnit.HOURS;
 
 
 /**
  * Parses a Wikipedia dump and constructs one or more lucene indexes.
  * The dump should be one or more files in standard Wikipedia XML format in a single directory.
- * Each file in the directory is processed in parallel.
+ * Pages are parsed, converted to documents, and written by separate pools of threads.
+ * @see IngestPipeline
  */
 public class AllIndexBuilder {
     private static final Logger LOG = Logger.getLogger(AllIndexBuilder.class.getName());
@@ -32,7 +29,16 @@ public class AllIndexBuilder {
     private ConfigurationFile conf;
     private List<IndexGenerator> generators = new ArrayList<IndexGenerator>();
     private PageInfo info = new PageInfo();
-    private AtomicInteger numDocs = new AtomicInteger();
+    private List<Page> additionalPages = new ArrayList<Page>();
+
+    /**
+     * Thread counts for the stages of the ingest pipeline. Zero means derive from numThreads.
+     */
+    private int parserThreads = 0;
+    private int builderThreads = 0;
+    private int writerThreads = 0;
+    private int queueSize = IngestPipeline.DEFAULT_QUEUE_SIZE;
+    private IngestPipeline pipeline;
 
 
     public AllIndexBuilder(ConfigurationFile conf, List<String> keys) throws ConfigurationException {
@@ -63,28 +69,28 @@ public class AllIndexBuilder {
     }
 
     protected void process(int numThreads) throws InterruptedException {
-        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
-
-        try {
-            for (final File path : getInputFiles()) {
-                String ext = FilenameUtils.getExtension(path.toString());
-                if (!ext.equals("bz2") && !ext.equals("xml")) {
-                    LOG.info("skipping non-dump file " + path);
-                    continue;
-                }
-                exec.submit(new Runnable() {
-                    public void run() {
-                        try {
-                            processOneFile(path);
-                        } catch (IOException e) {
-                            LOG.log(Level.SEVERE, "error processing " + path, e);
-                        }
-                    }
-                });
+        List<File> dumps = new ArrayList<File>();
+        for (File path : getInputFiles()) {
+            String ext = FilenameUtils.getExtension(path.toString());
+            if (ext.equals("bz2") || ext.equals("xml")) {
+                dumps.add(path);
+            } else {
+                LOG.info("skipping non-dump file " + path);
             }
-        } finally {
-            exec.shutdown();
-            exec.awaitTermination(60, HOURS);
+        }
+        int parsers = parserThreads > 0 ? parserThreads : Math.max(1, Math.min(numThreads, dumps.size()));
+        // spare threads decompress bzip2 blocks, so a single large dump does not become the long pole
+        int decompressThreads = Math.max(1, numThreads / Math.max(1, dumps.size()));
+        pipeline = new IngestPipeline(info, generators)
+                .setParserThreads(parsers)
+                .setDecompressThreads(decompressThreads)
+                .setBuilderThreads(builderThreads > 0 ? builderThreads : numThreads)
+                .setWriterThreads(writerThreads > 0 ? writerThreads : Math.max(1, numThreads / generators.size()))
+                .setQueueSize(queueSize);
+        try {
+            pipeline.run(dumps, additionalPages);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "error processing " + inputPath, e);
         }
     }
 
@@ -121,28 +127,46 @@ public class AllIndexBuilder {
     }
 
     /**
-     * Process a single XML dump file.
-     * @param path
-     * @throws IOException
+     * Adds pages that are not in the dump, such as synthetic category pages.
+     * They are indexed with the dump's pages by the next call to write().
      */
-    public void processOneFile(File path) throws IOException {
-        LOG.info("reading input file " + path);
-        for (Page p : new PageReader(path)) {
-            storePage(p);
-            if (numDocs.incrementAndGet() % 10000 == 0) {
-                LOG.info("read doc " + numDocs + " from " + path + ": " + p.getTitle());
-            }
-//            if (numDocs.get() > 5000) {
-//                break;
-//            }
-        }
+    public void addPages(Collection<Page> pages) {
+        additionalPages.addAll(pages);
     }
 
-    public void storePage(Page p) throws IOException {
-        info.update(p);
-        for (IndexGenerator g : generators) {
-            g.storePage(p);
-        }
+    /**
+     * Sets the number of threads that parse dump files. By default there is one per dump, up to numThreads.
+     */
+    public void setParserThreads(int parserThreads) {
+        this.parserThreads = parserThreads;
+    }
+
+    /**
+     * Sets the number of threads that strip markup and build documents. Defaults to numThreads.
+     */
+    public void setBuilderThreads(int builderThreads) {
+        this.builderThreads = builderThreads;
+    }
+
+    /**
+     * Sets the number of writer threads for each index. Defaults to numThreads divided among the indexes.
+     */
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Sets the capacity of each queue between pipeline stages.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @return The pipeline of the current or last call to process(), or null.
+     */
+    public IngestPipeline getPipeline() {
+        return pipeline;
     }
 
     public List<IndexGenerator> getGenerators() {
@@ -83,6 +83,12 @@ public class IndexGenerator {
      */
     private boolean addInLinksToText = false;
 
+    /**
+     * Fields whose term vectors are stored, so MoreLikeThis reads a document's
+     * terms from the index instead of re-analyzing its stored text.
+     */
+    private Set<String> termVectorFields = new HashSet<String>();
+
     /**
      * Accumulated text of inbound links.
      */
@@ -148,6 +154,11 @@ public class IndexGenerator {
     }
 
 
+    public IndexGenerator setTermVectorFields(String... fields) {
+        this.termVectorFields = new HashSet<String>(Arrays.asList(fields));
+        return this;
+    }
+
     public String getName() {
         return name;
     }
@@ -213,22 +224,36 @@ public class IndexGenerator {
      * @throws IOException
      */
     public void storePage(Page p) throws IOException {
+        Document d = buildLuceneDoc(p);
+        if (d != null) {
+            storeLuceneDoc(d);
+        }
+    }
+
+    /**
+     * Builds the document that storePage() would add for a page.
+     * The document has its own field instances, so documents built from the same
+     * page can be added to different indexes concurrently.
+     * @param p
+     * @return The document, or null if the page should not be stored.
+     */
+    public Document buildLuceneDoc(Page p) {
         if (!shouldInclude(p)) {
-            return;
+            return null;
         }
         Document source = p.toLuceneDoc();
         Document pruned = new Document();  // only contains relevant fields
 
         for (String fieldName : fields) {
             for (IndexableField f : source.getFields(fieldName)) {
-                pruned.add(f);
+                pruned.add(copyField(f));
             }
         }
 
         // add linktext to outbound pages.
         if (addInLinksToText && !doField(Page.FIELD_LINKTEXT)) {
             for (IndexableField f : source.getFields(Page.FIELD_LINKTEXT)) {
-                pruned.add(f);
+                pruned.add(copyField(f));
             }
         }
 
@@ -242,7 +267,20 @@ public class IndexGenerator {
             pruned.add(new TextField(Page.FIELD_TEXT, text, Field.Store.YES));
         }
 
-        storeLuceneDoc(pruned);
+        return pruned;
+    }
+
+    /**
+     * Copies a field of a page's cached document.
+     * Untokenized fields reuse a token stream, so one instance must not be indexed by two writers at once.
+     */
+    private static IndexableField copyField(IndexableField f) {
+        if (!(f.fieldType() instanceof FieldType) || f.stringValue() == null) {
+            return f;
+        }
+        Field f2 = new Field(f.name(), f.stringValue(), (FieldType) f.fieldType());
+        f2.setBoost(f.boost());
+        return f2;
     }
 
     /**
@@ -405,7 +443,7 @@ public class IndexGenerator {
                     }
                 }
             }
-            writer.updateDocument(new Term("id", d.get("id")), Page.correctMetadata(d));
+            writer.updateDocument(new Term("id", d.get("id")), addTermVectors(Page.correctMetadata(d)));
         }
         LOG.info("finished updating fields in " + n + " docs");
         writer.commit();
@@ -418,7 +456,33 @@ public class IndexGenerator {
 
     protected void storeLuceneDoc(Document d) throws IOException {
         numDocs.incrementAndGet();
-        this.writer.addDocument(d);
+        this.writer.addDocument(addTermVectors(d));
+    }
+
+    /**
+     * Rewrites the indexed fields named in termVectorFields so they store term vectors.
+     */
+    private Document addTermVectors(Document d) {
+        if (termVectorFields.isEmpty()) {
+            return d;
+        }
+        Document d2 = new Document();
+        for (IndexableField f : d.getFields()) {
+            if (termVectorFields.contains(f.name())
+            &&  f.fieldType() instanceof FieldType
+            &&  f.fieldType().indexed()
+            &&  !f.fieldType().storeTermVectors()
+            &&  f.stringValue() != null) {
+                FieldType type = new FieldType((FieldType) f.fieldType());
+                type.setStoreTermVectors(true);
+                Field f2 = new Field(f.name(), f.stringValue(), type);
+                f2.setBoost(f.boost());
+                d2.add(f2);
+            } else {
+                d2.add(f);
+            }
+        }
+        return d2;
     }
 
     public IndexWriter getWriter() {
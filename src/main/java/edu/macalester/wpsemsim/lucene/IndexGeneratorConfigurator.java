@@ -83,6 +83,10 @@ public class IndexGeneratorConfigurator {
         if (params.containsKey("skipRedirects")) {
             fg.setSkipRedirects(requireBoolean(params, "skipRedirects"));
         }
+        if (params.containsKey("termVectors")) {
+            List<String> tvFields = requireListOfStrings(params, "termVectors");
+            fg.setTermVectorFields(tvFields.toArray(new String[tvFields.size()]));
+        }
         if (params.containsKey("namespaces")) {
             List<Integer> nss = requireListOfIntegers(params, "namespaces");
             fg.setNamespaces(ArrayUtils.toPrimitive(nss.toArray(new Integer[0])));
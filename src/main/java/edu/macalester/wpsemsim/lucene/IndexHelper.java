@@ -1,8 +1,12 @@
 package edu.macalester.wpsemsim.lucene;
 
+import edu.macalester.wpsemsim.utils.FrozenIntSet;
+import edu.macalester.wpsemsim.utils.Function;
+import edu.macalester.wpsemsim.utils.LruCache;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
@@ -15,7 +19,6 @@ import org.apache.lucene.util.BytesRef;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,14 +28,14 @@ import java.util.logging.Logger;
 public class IndexHelper {
     private static final Logger LOG = Logger.getLogger(IndexHelper.class.getName());
 
-    // TODO: make the concurrenthashmap LRU
-    private static final int FILTER_CACHE_SIZE = 50;
+    public static final int DEFAULT_FILTER_CACHE_MB = 64;
 
     private DirectoryReader reader;
     private IndexSearcher searcher;
     private File indexDir;
+    private WpIdTable wpIdTable;
 
-    private final Map<TIntSet, WpIdFilter> filterCache = new ConcurrentHashMap<TIntSet, WpIdFilter>(16, 0.75f, 1);
+    private LruCache<IdSetKey, WpIdFilter> filterCache = createFilterCache(DEFAULT_FILTER_CACHE_MB);
 
     private Analyzer analyzer;
 
@@ -51,19 +54,17 @@ public class IndexHelper {
         );
         LOG.info("opening index helper for " + indexDir + " with " + reader.numDocs() + " docs");
         this.searcher = new IndexSearcher(this.reader);
+        this.wpIdTable = WpIdTable.get(this);
     }
 
     /**
      * Converts a lucene id to a wikipedia id
      * @param luceneId
-     * @return lucene id, or -1 if the WP id does not exist.
+     * @return WP id, or -1 if the lucene doc is deleted or has no id.
      * @throws IOException
      */
     public int luceneIdToWpId(int luceneId) throws IOException {
-        Set<String> fields = new HashSet<String>();
-        fields.add("id");
-        Document d = reader.document(luceneId, fields);
-        return Integer.valueOf(d.getField("id").stringValue());
+        return wpIdTable.getWpId(luceneId);
     }
 
     /**
@@ -76,9 +77,8 @@ public class IndexHelper {
             Query query = new TermQuery(new Term("type", "normal"));
             ScoreDoc[] hits = searcher.search(query, null, Integer.MAX_VALUE).scoreDocs;
             int wpIds[] = new int[hits.length];
-            Set<String> fields = new HashSet<String>(Arrays.asList("id"));
             for (int i = 0; i < hits.length; i++) {
-                wpIds[i] = Integer.valueOf(reader.document(hits[i].doc, fields).get("id"));
+                wpIds[i] = wpIdTable.getWpId(hits[i].doc);
             }
             return wpIds;
         } else {
@@ -112,18 +112,7 @@ public class IndexHelper {
      * @return lucene id, or -1 if it does not exist.
      */
     public int wpIdToLuceneId(int wpId) {
-        Query query = new TermQuery(new Term("id", "" + wpId));
-        try {
-            ScoreDoc[] hits = searcher.search(query, null, 1).scoreDocs;
-            if (hits.length == 0) {
-                return -1;
-            } else {
-                return hits[0].doc;
-            }
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, "fetching lucene doc for wp id " + wpId + " failed:", e);
-            return -1;
-        }
+        return wpIdTable.getLuceneId(wpId);
     }
 
     /**
@@ -132,17 +121,8 @@ public class IndexHelper {
      * @return Wikipedia ID, or -1 if it does not exist.
      */
     public int titleToWpId(String title) {
-        try {
-            int luceneId = titleToLuceneId(title);
-            if (luceneId < 0) {
-                return -1;
-            }
-            Document d = reader.document(luceneId);
-            return Integer.valueOf(d.getField("id").stringValue());
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, "fetching wp id for " + title + " failed:", e);
-            return -1;
-        }
+        int luceneId = titleToLuceneId(title);
+        return (luceneId < 0) ? -1 : wpIdTable.getWpId(luceneId);
     }
 
     /**
@@ -152,14 +132,15 @@ public class IndexHelper {
      */
     public int titleToLuceneId(String title) {
         title = title.replaceAll("_", " ");
-        Query query = new TermQuery(new Term("title", title));
         try {
-            ScoreDoc[] hits = searcher.search(query, null, 1).scoreDocs;
-            if (hits.length == 0) {
+            // the first live doc with the title, read from the postings without scoring
+            DocsEnum docs = MultiFields.getTermDocsEnum(
+                    reader, MultiFields.getLiveDocs(reader), "title", new BytesRef(title), DocsEnum.FLAG_NONE);
+            if (docs == null) {
                 return -1;
-            } else {
-                return hits[0].doc;
             }
+            int doc = docs.nextDoc();
+            return (doc == DocIdSetIterator.NO_MORE_DOCS) ? -1 : doc;
         } catch (IOException e) {
             LOG.log(Level.SEVERE, "fetching wp id for " + title + " failed:", e);
             return -1;
@@ -203,14 +184,12 @@ public class IndexHelper {
      * @throws IOException
      */
     public String wpIdToTitle(int wpId) {
-        Query query = new TermQuery(new Term("id", "" + wpId));
+        int luceneId = wpIdTable.getLuceneId(wpId);
+        if (luceneId < 0) {
+            return null;
+        }
         try {
-            ScoreDoc[] hits = searcher.search(query, null, 1).scoreDocs;
-            if (hits.length == 0) {
-                return null;
-            } else {
-                return searcher.doc(hits[0].doc).get("title");
-            }
+            return reader.document(luceneId, new HashSet<String>(Arrays.asList("title"))).get("title");
         } catch (IOException e) {
             LOG.log(Level.SEVERE, "fetching title for wp id " + wpId + " failed:", e);
             return "unknown";
@@ -250,7 +229,7 @@ public class IndexHelper {
      */
     public TIntList getLinkedLuceneIdsForLuceneId(int luceneId) throws IOException {
         TIntArrayList result = new TIntArrayList();
-        Set<Integer> finished = new HashSet<Integer>();
+        TIntSet finished = new TIntHashSet();
         for (IndexableField f : reader.document(luceneId).getFields(Page.FIELD_LINKS)) {
             int wpId = Integer.valueOf(f.stringValue());
             if (finished.contains(wpId)) { continue; }
@@ -325,28 +304,80 @@ public class IndexHelper {
     }
 
     /**
-     * Since this is synchronized, if there are many different id sets, they'll
-     * queue up serially during initialization. We presume that there will generally
-     * only be a single wpid set.
+     * Returns a filter for a set of wpIds. Filters are cached by the contents of the set,
+     * so callers may reuse or modify their sets. Concurrent requests for the same missing
+     * set wait for a single filter to be built.
+     *
+     * Looking up a set hashes and compares its contents, unless it is a FrozenIntSet:
+     * frozen sets are cached as they are and found again in constant time, so callers
+     * that pass the same large set with every query should freeze it.
      *
      * @param wpIds
-     * @return
+     * @return The filter, or null if wpIds is null.
      * @throws IOException
      */
     public Filter getWpIdFilter(TIntSet wpIds) throws IOException {
         if (wpIds == null) {
             return null;
         }
-        Filter f = filterCache.get(wpIds);
+        WpIdFilter f = filterCache.get(new IdSetKey(wpIds));
         if (f != null) {
             return f;
         }
-        // avoid concurrent creations by making a synchronized check.
-        synchronized (filterCache) {
-            if (!filterCache.containsKey(wpIds)) {
-                filterCache.put(wpIds, new WpIdFilter(this, wpIds.toArray()));
+        // the cached key holds an immutable set, so later changes to the caller's set cannot corrupt it
+        return filterCache.get(new IdSetKey(FrozenIntSet.freeze(wpIds)), new Function<IdSetKey, WpIdFilter>() {
+            public WpIdFilter call(IdSetKey key) throws IOException {
+                return new WpIdFilter(IndexHelper.this, key.ids);
+            }
+        });
+    }
+
+    /**
+     * Replaces the filter cache with an empty one of the given capacity.
+     * @param mb The maximum heap used by cached filters.
+     */
+    public void setFilterCacheMb(int mb) {
+        filterCache = createFilterCache(mb);
+    }
+
+    public LruCache<IdSetKey, WpIdFilter> getFilterCache() {
+        return filterCache;
+    }
+
+    private static LruCache<IdSetKey, WpIdFilter> createFilterCache(int mb) {
+        // few, large entries, so few stripes
+        return new LruCache<IdSetKey, WpIdFilter>(mb * 1024L * 1024L, 4) {
+            @Override
+            protected long sizeOf(IdSetKey key, WpIdFilter filter) {
+                return filter.getSizeInBytes();     // the filter shares the key's ids
+            }
+        };
+    }
+
+    /**
+     * A filter cache key that compares id sets by their contents.
+     */
+    public static final class IdSetKey {
+        private final TIntSet ids;
+        private final int hash;
+
+        IdSetKey(TIntSet ids) {
+            this.ids = ids;
+            this.hash = 31 * ids.size() + ids.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IdSetKey)) {
+                return false;
             }
-            return filterCache.get(wpIds);
+            IdSetKey other = (IdSetKey) o;
+            return ids == other.ids || (hash == other.hash && ids.equals(other.ids));
         }
     }
 
@@ -0,0 +1,309 @@
+package edu.macalester.wpsemsim.lucene;
+
+import org.apache.lucene.document.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+/**
+ * Feeds the pages of Wikipedia dumps to index generators in three stages connected by
+ * bounded queues, so that the stages can run at different rates:
+ * <ol>
+ *     <li>Parser threads read the XML dumps, one dump per thread, and queue pages.</li>
+ *     <li>Builder threads strip markup, update the page info, and build a document for
+ *     every index, queueing each document for its index.</li>
+ *     <li>Writer threads add the documents to their index. Each index has its own threads.</li>
+ * </ol>
+ * Markup stripping and document building do not depend on the number of dumps, so a
+ * single dump can keep every core busy.
+ *
+ * The queue depths show which stage is the bottleneck: full page queues mean the builders
+ * are behind, and full document queues mean an index's writers are behind.
+ */
+public class IngestPipeline {
+    private static final Logger LOG = Logger.getLogger(IngestPipeline.class.getName());
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * Marks the end of a queue. Each consuming thread takes one.
+     */
+    private static final Page END_PAGE = new Page(-1, -1, null, "", "");
+    private static final Document END_DOC = new Document();
+
+    private final PageInfo info;
+    private final List<IndexGenerator> generators;
+
+    private int parserThreads = 1;
+    private int decompressThreads = 1;
+    private int builderThreads = 1;
+    private int writerThreads = 1;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    private BlockingQueue<Page> pages;
+    private Map<IndexGenerator, BlockingQueue<Document>> docs;
+    private final AtomicInteger numPages = new AtomicInteger();
+    private volatile Throwable failure;
+
+    public IngestPipeline(PageInfo info, List<IndexGenerator> generators) {
+        this.info = info;
+        this.generators = generators;
+    }
+
+    /**
+     * Reads all the dumps and stores their pages in every index.
+     * @see #run(List, Collection)
+     */
+    public void run(List<File> dumps) throws IOException, InterruptedException {
+        run(dumps, Collections.<Page>emptyList());
+    }
+
+    /**
+     * Reads all the dumps and stores their pages, and some additional pages, in every index.
+     * Errors are logged as they happen, and the first one is rethrown once the
+     * remaining pages have been processed.
+     * @param dumps
+     * @param additional Pages that are not in the dumps, such as synthetic category pages.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run(List<File> dumps, final Collection<Page> additional) throws IOException, InterruptedException {
+        pages = new ArrayBlockingQueue<Page>(queueSize);
+        docs = new LinkedHashMap<IndexGenerator, BlockingQueue<Document>>();
+        for (IndexGenerator g : generators) {
+            docs.put(g, new ArrayBlockingQueue<Document>(queueSize));
+        }
+        numPages.set(0);
+        failure = null;
+        LOG.info("ingesting " + dumps.size() + " dumps with " + parserThreads + " parser threads ("
+                + decompressThreads + " decompression threads each), " + builderThreads
+                + " builder threads, and " + writerThreads + " writer threads per index");
+
+        ExecutorService writers = newPool("ingest-writer", writerThreads * generators.size());
+        for (final IndexGenerator g : generators) {
+            for (int i = 0; i < writerThreads; i++) {
+                writers.submit(new Runnable() {
+                    public void run() {
+                        write(g);
+                    }
+                });
+            }
+        }
+        ExecutorService builders = newPool("ingest-builder", builderThreads);
+        for (int i = 0; i < builderThreads; i++) {
+            builders.submit(new Runnable() {
+                public void run() {
+                    build();
+                }
+            });
+        }
+        ExecutorService parsers = newPool("ingest-parser", parserThreads);
+        for (final File path : dumps) {
+            parsers.submit(new Runnable() {
+                public void run() {
+                    parse(path);
+                }
+            });
+        }
+        if (!additional.isEmpty()) {
+            parsers.submit(new Runnable() {
+                public void run() {
+                    try {
+                        for (Page p : additional) {
+                            pages.put(p);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        // each stage ends once the stage before it is done
+        try {
+            parsers.shutdown();
+            parsers.awaitTermination(60, HOURS);
+            for (int i = 0; i < builderThreads; i++) {
+                pages.put(END_PAGE);
+            }
+            builders.shutdown();
+            builders.awaitTermination(60, HOURS);
+            for (BlockingQueue<Document> queue : docs.values()) {
+                for (int i = 0; i < writerThreads; i++) {
+                    queue.put(END_DOC);
+                }
+            }
+            writers.shutdown();
+            writers.awaitTermination(60, HOURS);
+        } finally {
+            parsers.shutdownNow();
+            builders.shutdownNow();
+            writers.shutdownNow();
+        }
+        LOG.info("ingested " + numPages + " pages");
+        if (failure != null) {
+            throw new IOException("ingesting dumps failed", failure);
+        }
+    }
+
+    private void parse(File path) {
+        LOG.info("reading input file " + path);
+        try {
+            for (Page p : new PageReader(path, decompressThreads)) {
+                pages.put(p);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            fail("error processing " + path, e);
+        }
+    }
+
+    private void build() {
+        try {
+            while (true) {
+                Page p = pages.take();
+                if (p == END_PAGE) {
+                    break;
+                }
+                try {
+                    info.update(p);
+                    for (IndexGenerator g : generators) {
+                        Document d = g.buildLuceneDoc(p);
+                        if (d != null) {
+                            docs.get(g).put(d);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    fail("error building documents for " + p.getTitle(), e);
+                }
+                if (numPages.incrementAndGet() % 10000 == 0) {
+                    LOG.info("read doc " + numPages + ": " + p.getTitle() + " (queue depths: " + getQueueDepths() + ")");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(IndexGenerator g) {
+        BlockingQueue<Document> queue = docs.get(g);
+        try {
+            while (true) {
+                Document d = queue.take();
+                if (d == END_DOC) {
+                    break;
+                }
+                // keep draining after a failure so the builders never block on a full queue
+                try {
+                    g.storeLuceneDoc(d);
+                } catch (Exception e) {
+                    fail("error writing to index " + g.getName(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fail(String message, Throwable e) {
+        LOG.log(Level.SEVERE, message, e);
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private static ExecutorService newPool(final String name, int numThreads) {
+        return Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return The number of parsed pages waiting for a builder thread.
+     */
+    public int getPageQueueDepth() {
+        return pages == null ? 0 : pages.size();
+    }
+
+    /**
+     * @return The number of built documents waiting for one of the generator's writer threads.
+     */
+    public int getDocQueueDepth(IndexGenerator g) {
+        return (docs == null || !docs.containsKey(g)) ? 0 : docs.get(g).size();
+    }
+
+    /**
+     * @return A summary of the queue depths, such as "pages=12, main=3, text=0".
+     */
+    public String getQueueDepths() {
+        StringBuilder sb = new StringBuilder("pages=" + getPageQueueDepth());
+        for (IndexGenerator g : generators) {
+            sb.append(", ").append(g.getName()).append("=").append(getDocQueueDepth(g));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The number of pages that have passed through the builder stage.
+     */
+    public int getNumPages() {
+        return numPages.get();
+    }
+
+    public IngestPipeline setParserThreads(int parserThreads) {
+        this.parserThreads = parserThreads;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads that decompress each bzip2 dump.
+     */
+    public IngestPipeline setDecompressThreads(int decompressThreads) {
+        this.decompressThreads = decompressThreads;
+        return this;
+    }
+
+    public IngestPipeline setBuilderThreads(int builderThreads) {
+        this.builderThreads = builderThreads;
+        return this;
+    }
+
+    /**
+     * Sets the number of writer threads for each index.
+     */
+    public IngestPipeline setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+        return this;
+    }
+
+    /**
+     * Sets the capacity of the page queue and of each index's document queue.
+     */
+    public IngestPipeline setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+        return this;
+    }
+}
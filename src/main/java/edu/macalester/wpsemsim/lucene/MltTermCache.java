@@ -0,0 +1,240 @@
+package edu.macalester.wpsemsim.lucene;
+
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
+import edu.macalester.wpsemsim.matrix.SparseRowCursor;
+import edu.macalester.wpsemsim.matrix.ValueConf;
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.mlt.MoreLikeThis;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The MoreLikeThis query terms of every document in an index, chosen once and
+ * stored in a memory-mapped sparse matrix so that finding similar documents does
+ * not reload and re-analyze the stored text of the query document.
+ *
+ * Rows are wpIds, and a row's columns are term ids in the order MoreLikeThis ranks
+ * the terms, with its score for the term as the value. The terms are written one
+ * per line, in id order, to the terms file next to the matrix.
+ *
+ * The first line of the terms file records the index's maxDoc and last modification
+ * time and the MoreLikeThis settings the cache was built with. isCurrent() compares
+ * it with the index and settings in use, so callers can rebuild a stale cache.
+ */
+public class MltTermCache {
+    private static final Logger LOG = Logger.getLogger(MltTermCache.class.getName());
+
+    public static final String TERMS_SUFFIX = ".terms";
+    private static final String HEADER_PREFIX = "#mlt-term-cache\t";
+
+    /**
+     * MoreLikeThis scores are unbounded, so they are stored as raw floats.
+     */
+    public static final ValueConf VALUE_CONF = new ValueConf(0, Float.MAX_VALUE, ValueConf.Codec.FLOAT32);
+
+    private SparseMatrix matrix;
+    private String field;
+    private String terms[];
+
+    /**
+     * @param path A cache written by build().
+     * @param field The field queried for the cached terms.
+     * @throws IOException
+     */
+    public MltTermCache(File path, String field) throws IOException {
+        this.matrix = new SparseMatrix(path);
+        this.field = field;
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(getTermsFile(path)), "UTF-8"));
+        try {
+            String line = in.readLine();
+            if (line == null || !line.startsWith(HEADER_PREFIX)) {
+                throw new IOException("term cache " + path + " is in an older format and must be rebuilt");
+            }
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        this.terms = lines.toArray(new String[lines.size()]);
+    }
+
+    public static File getTermsFile(File matrixPath) {
+        return new File(matrixPath.getPath() + TERMS_SUFFIX);
+    }
+
+    /**
+     * @return The header line identifying the index and MoreLikeThis settings a cache is built from.
+     */
+    static String getHeader(IndexHelper helper, MoreLikeThis mlt) {
+        return HEADER_PREFIX + describe(helper, mlt);
+    }
+
+    /**
+     * @return A tab separated description of the state of an index and the settings of a
+     * MoreLikeThis querying it, for stamping files derived from the MoreLikeThis terms.
+     */
+    public static String describe(IndexHelper helper, MoreLikeThis mlt) {
+        return helper.getReader().maxDoc()
+                + "\t" + helper.getLastModified()
+                + "\t" + StringUtils.join(mlt.getFieldNames(), ",")
+                + "\t" + mlt.getMaxQueryTerms()
+                + "\t" + mlt.getMinDocFreq()
+                + "\t" + mlt.getMaxDocFreq()
+                + "\t" + mlt.getMinTermFreq()
+                + "\t" + mlt.getMinWordLen()
+                + "\t" + mlt.getMaxWordLen()
+                + "\t" + mlt.isBoost();
+    }
+
+    /**
+     * @return True if a cache exists at the path and was built from the current state of
+     * the index with the same MoreLikeThis settings.
+     * @throws IOException
+     */
+    public static boolean isCurrent(File path, IndexHelper helper, MoreLikeThis mlt) throws IOException {
+        File termsFile = getTermsFile(path);
+        if (!path.isFile() || !termsFile.isFile()) {
+            return false;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(termsFile), "UTF-8"));
+        try {
+            return getHeader(helper, mlt).equals(in.readLine());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the query terms that a MoreLikeThis picks for each document in an index.
+     * The MoreLikeThis must query a single field.
+     * @param helper
+     * @param mlt
+     * @param path
+     * @param numThreads
+     * @throws IOException
+     */
+    public static void build(final IndexHelper helper, final MoreLikeThis mlt, File path, int numThreads) throws IOException {
+        if (mlt.getFieldNames().length != 1) {
+            throw new IllegalArgumentException("MoreLikeThis must query exactly one field");
+        }
+        DirectoryReader reader = helper.getReader();
+        String header = getHeader(helper, mlt);
+        final Bits live = MultiFields.getLiveDocs(reader);
+        final TObjectIntHashMap<String> termIds = new TObjectIntHashMap<String>();
+        final List<String> terms = new ArrayList<String>();
+        final SparseMatrixWriter writer = new SparseMatrixWriter(path, VALUE_CONF, false, false, false);
+        ParallelForEach.range(0, reader.maxDoc(), numThreads, new Procedure<Integer>() {
+            public void call(Integer luceneId) throws Exception {
+                if (live != null && !live.get(luceneId)) {
+                    return;
+                }
+                PriorityQueue<Object[]> queue = mlt.retrieveTerms(luceneId);
+                TIntArrayList ids = new TIntArrayList();
+                TFloatArrayList scores = new TFloatArrayList();
+                Object entry[];
+                while (ids.size() < mlt.getMaxQueryTerms() && (entry = queue.pop()) != null) {
+                    ids.add(getTermId(termIds, terms, (String) entry[0]));
+                    scores.add((Float) entry[2]);
+                }
+                writer.writeRow(new SparseMatrixRow(VALUE_CONF,
+                        helper.luceneIdToWpId(luceneId), ids.toArray(), scores.toArray()));
+            }
+        });
+        writer.finish();
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(getTermsFile(path)), "UTF-8"));
+        try {
+            out.write(header);
+            out.write('\n');
+            for (String term : terms) {
+                out.write(term);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        LOG.info("wrote query terms for " + reader.numDocs() + " docs using " + terms.size() + " distinct terms");
+    }
+
+    private static int getTermId(TObjectIntHashMap<String> termIds, List<String> terms, String term) {
+        synchronized (termIds) {
+            if (termIds.containsKey(term)) {
+                return termIds.get(term);
+            }
+            termIds.put(term, terms.size());
+            terms.add(term);
+            return terms.size() - 1;
+        }
+    }
+
+    public boolean contains(int wpId) throws IOException {
+        return matrix.readRow(wpId, null) != null;
+    }
+
+    /**
+     * @return The query mlt.like() builds for the document, or null if the document is not
+     * in the cache. If mlt boosts terms, each term is boosted by boostFactor times its score
+     * over the best score, as MoreLikeThis does.
+     * @throws IOException
+     */
+    public Query like(int wpId, MoreLikeThis mlt) throws IOException {
+        SparseRowCursor row = matrix.readRow(wpId, null);
+        if (row == null) {
+            return null;
+        }
+        BooleanQuery query = new BooleanQuery();
+        float bestScore = (row.getNumCols() == 0) ? 0 : row.getColValue(0);
+        for (int i = 0; i < row.getNumCols(); i++) {
+            TermQuery tq = new TermQuery(new Term(field, terms[row.getColIndex(i)]));
+            if (mlt.isBoost()) {
+                tq.setBoost(mlt.getBoostFactor() * row.getColValue(i) / bestScore);
+            }
+            query.add(tq, BooleanClause.Occur.SHOULD);
+        }
+        return query;
+    }
+
+    /**
+     * @return The cached terms of the document in decreasing order of score,
+     * or null if the document is not in the cache.
+     * @throws IOException
+     */
+    public String[] getTerms(int wpId) throws IOException {
+        SparseRowCursor row = matrix.readRow(wpId, null);
+        if (row == null) {
+            return null;
+        }
+        String result[] = new String[row.getNumCols()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = terms[row.getColIndex(i)];
+        }
+        return result;
+    }
+
+    public String getField() {
+        return field;
+    }
+}
@@ -1,5 +1,6 @@
 package edu.macalester.wpsemsim.lucene;
 
+import edu.macalester.wpsemsim.utils.ParallelBZip2InputStream;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.io.FilenameUtils;
@@ -22,10 +23,20 @@ import static javax.xml.stream.XMLStreamConstants.END_DOCUMENT;
 public class PageReader implements Iterable<Page> {
     private static final Logger LOG = Logger.getLogger(PageReader.class.getName());
     private File path;
+    private int numThreads;
 
 
     public PageReader(File path) {
+        this(path, 1);
+    }
+
+    /**
+     * @param path
+     * @param numThreads The number of threads that decompress a bzip2 file.
+     */
+    public PageReader(File path, int numThreads) {
         this.path = path;
+        this.numThreads = numThreads;
     }
 
     @Override
@@ -41,13 +52,16 @@ public class PageReader implements Iterable<Page> {
 
     public class DocIterator implements Iterator<Page> {
 
+        private InputStream input;
         private XMLStreamReader reader;
         private Page buffer = null;
 
         public DocIterator(File path) throws IOException, ArchiveException, XMLStreamException {
-            InputStream input = new BufferedInputStream(new FileInputStream(path));
+            input = new BufferedInputStream(new FileInputStream(path));
             if (FilenameUtils.getExtension(path.toString()).toLowerCase().startsWith("bz")) {
-                input = new BZip2CompressorInputStream(input);
+                input = (numThreads > 1)
+                        ? new ParallelBZip2InputStream(input, numThreads)
+                        : new BZip2CompressorInputStream(input);
             } else if (FilenameUtils.getExtension(path.toString()).equalsIgnoreCase("gz")) {
                 input = new GZIPInputStream(input);
             }
@@ -64,11 +78,12 @@ public class PageReader implements Iterable<Page> {
         }
 
         private void fillBuffer() {
-            if (buffer != null) {
+            if (buffer != null || input == null) {
                 return;
             }
             try {
                 if (!searchElement("page", false)) {
+                    close();
                     return;
                 }
                 String title = matchTextElement("title", true);
@@ -83,7 +98,32 @@ public class PageReader implements Iterable<Page> {
             } catch (XMLStreamException e) {
                 LOG.severe("parsing page failed");
                 e.printStackTrace();
+                close();
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Closes the input, which stops the threads of a parallel bzip2 stream.
+         * Called at the end of the input and after an error.
+         */
+        public void close() {
+            if (input == null) {
+                return;
+            }
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                LOG.log(Level.WARNING, "closing xml reader failed", e);
+            }
+            try {
+                input.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "closing input failed", e);
             }
+            input = null;
         }
 
         @Override
@@ -1,72 +1,115 @@
 package edu.macalester.wpsemsim.lucene;
 
+import gnu.trove.iterator.TIntIterator;
 import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
 import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.util.Bits;
-import org.apache.lucene.util.DocIdBitSet;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 
 /**
  * A lucene filter that only includes a specific set of Wikipedia ids.
- * The constructor is EXPENSIVE, so they should be reused.
- * TODO: Perform a search when there are relatively few wpIds.
+ *
+ * The constructor resolves the ids through the helper's id table into one immutable
+ * bitset per segment of the helper's index, so searches only wrap a cached bitset.
+ * Filters are cached by IndexHelper.getWpIdFilter() and should be reused.
  */
 public class WpIdFilter extends Filter {
     private static final Logger LOG = Logger.getLogger(WpIdFilter.class.getName());
-    private int[] wpIds;
-//    private int luceneIds[];
-    private Map<AtomicReader, int[]> allowedLuceneIds = new HashMap<AtomicReader, int[]>();
 
-    public WpIdFilter(IndexHelper helper, int wpIds[]) throws IOException {
+    private final TIntSet wpIds;
+
+    /**
+     * Bitsets of allowed docs, keyed by segment core cache key.
+     */
+    private final Map<Object, FixedBitSet> segmentBits = new ConcurrentHashMap<Object, FixedBitSet>();
+
+    private final long sizeInBytes;
+
+    /**
+     * @param helper
+     * @param wpIds The ids to include. The set is not copied, so it must not change.
+     * @throws IOException
+     */
+    public WpIdFilter(IndexHelper helper, TIntSet wpIds) throws IOException {
         this.wpIds = wpIds;
+        List<AtomicReaderContext> leaves = helper.getReader().leaves();
+        FixedBitSet bits[] = new FixedBitSet[leaves.size()];
+        long size = 0;
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = new FixedBitSet(Math.max(leaves.get(i).reader().maxDoc(), 1));
+            segmentBits.put(leaves.get(i).reader().getCoreCacheKey(), bits[i]);
+            size += 8L * bits[i].getBits().length;
+        }
+        int n = 0;
+        TIntIterator iter = wpIds.iterator();
+        while (iter.hasNext()) {
+            int luceneId = helper.wpIdToLuceneId(iter.next());
+            if (luceneId >= 0) {
+                int i = ReaderUtil.subIndex(luceneId, leaves);
+                bits[i].set(luceneId - leaves.get(i).docBase);
+                n++;
+            }
+        }
+        this.sizeInBytes = size;
+        LOG.fine("WpId filter matched " + n + " of " + wpIds.size() + " ids");
     }
 
     @Override
     public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-        BitSet bits = new BitSet();
-        int i = 0;
-        for (int id : getAllowedLuceneIds(context)) {
-            if (acceptDocs == null || acceptDocs.get(id)) {
-                bits.set(id);
-                i++;
-            }
-        }
-        int n = 0;
-        for (int id = 0; id < bits.length(); id++) {
-            if (bits.get(id)) n++;
+        FixedBitSet bits = segmentBits.get(context.reader().getCoreCacheKey());
+        if (bits == null) {
+            bits = readSegmentBits(context.reader());
+            segmentBits.put(context.reader().getCoreCacheKey(), bits);
         }
-//        LOG.info("bit size=" + bits.size() + " set=" + n + " compared to " + luceneIds.length);
-        return new DocIdBitSet(bits);
+        return BitsFilteredDocIdSet.wrap(bits, acceptDocs);
     }
 
-    private synchronized int[] getAllowedLuceneIds(AtomicReaderContext context) throws IOException {
-        AtomicReader reader = context.reader();
-        if (allowedLuceneIds.containsKey(reader)) {
-            return allowedLuceneIds.get(reader);
+    /**
+     * Builds the bitset of a segment outside the helper's index from its id postings.
+     */
+    private FixedBitSet readSegmentBits(AtomicReader reader) throws IOException {
+        LOG.info("building WpId filter for a segment with " + reader.maxDoc() + " docs");
+        FixedBitSet bits = new FixedBitSet(Math.max(reader.maxDoc(), 1));
+        Terms terms = reader.terms(Page.FIELD_WPID);
+        if (terms == null) {
+            return bits;
         }
-        LOG.info("building WpId filter for " + wpIds.length + " ids with hash " + Arrays.hashCode(wpIds));
-        TIntSet wpIdSet = new TIntHashSet(wpIds);
-        TIntSet luceneIdSet = new TIntHashSet();
-        Set<String> fields = new HashSet<String>(Arrays.asList(Page.FIELD_WPID));
-        for (int i = 0; i < reader.numDocs(); i++) {
-            Document d = reader.document(i, fields);
-            int wpId = Integer.valueOf(d.get(Page.FIELD_WPID));
-            if (wpIdSet.contains(wpId)) {
-                luceneIdSet.add(i);
+        TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docs = null;
+        BytesRef ref;
+        while ((ref = termsEnum.next()) != null) {
+            if (wpIds.contains(Integer.valueOf(ref.utf8ToString()))) {
+                docs = termsEnum.docs(null, docs, DocsEnum.FLAG_NONE);
+                int doc;
+                while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    bits.set(doc);
+                }
             }
         }
-        int luceneIds[] = luceneIdSet.toArray();
-        LOG.info("WpId filter matched " + luceneIds.length + " ids.");
-        allowedLuceneIds.put(reader, luceneIds);
-        return luceneIds;
+        return bits;
+    }
+
+    /**
+     * @return An estimate of the heap used by the filter's ids and bitsets.
+     */
+    public long getSizeInBytes() {
+        return 10L * wpIds.size() + sizeInBytes;
     }
 }
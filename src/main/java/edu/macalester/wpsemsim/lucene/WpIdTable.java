@@ -0,0 +1,170 @@
+package edu.macalester.wpsemsim.lucene;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lookup tables between the lucene ids of an index and the Wikipedia ids in its "id" field.
+ *
+ * The table is stored in a sidecar file next to the index directory (dir + ".ids")
+ * and is memory mapped when it is opened, so helpers do not have to scan the index.
+ * The sidecar records the index's maxDoc and last modification time and is rebuilt
+ * if either no longer matches.
+ *
+ * Sidecar layout: magic, maxDoc, last modified (long), then the wpId of every lucene
+ * id, or -1 for deleted docs and docs without an id.
+ */
+final class WpIdTable {
+    private static final Logger LOG = Logger.getLogger(WpIdTable.class.getName());
+
+    public static final String SUFFIX = ".ids";
+    public static final int FILE_HEADER = 0xabcd04;
+    private static final int HEADER_SIZE = 16;
+
+    private final IntBuffer wpIds;
+    private final TIntIntHashMap luceneIds;
+
+    private WpIdTable(IntBuffer wpIds) {
+        this.wpIds = wpIds;
+        this.luceneIds = new TIntIntHashMap(
+                Math.max(wpIds.limit(), Constants.DEFAULT_CAPACITY),
+                Constants.DEFAULT_LOAD_FACTOR, -1, -1);
+        // iterate backwards so the first lucene id wins, as it does for a search
+        for (int i = wpIds.limit() - 1; i >= 0; i--) {
+            int wpId = wpIds.get(i);
+            if (wpId >= 0) {
+                luceneIds.put(wpId, i);
+            }
+        }
+    }
+
+    /**
+     * @return The Wikipedia id, or -1 if the lucene doc is deleted or has no id.
+     */
+    public int getWpId(int luceneId) {
+        return wpIds.get(luceneId);
+    }
+
+    /**
+     * @return The lucene id, or -1 if no live doc has the Wikipedia id.
+     */
+    public int getLuceneId(int wpId) {
+        return luceneIds.get(wpId);
+    }
+
+    public static File getFile(File indexDir) {
+        return new File(indexDir.getPath() + SUFFIX);
+    }
+
+    /**
+     * Maps the sidecar of an index, or builds the table and its sidecar if there is no valid sidecar.
+     */
+    public static WpIdTable get(IndexHelper helper) throws IOException {
+        WpIdTable table = read(helper);
+        if (table == null) {
+            LOG.log(Level.INFO, "building wp id table for " + helper.getIndexDir());
+            int wpIds[] = compute(helper.getReader());
+            try {
+                write(helper, wpIds);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "writing wp id table for " + helper.getIndexDir() + " failed:", e);
+            }
+            table = new WpIdTable(IntBuffer.wrap(wpIds));
+        }
+        return table;
+    }
+
+    /**
+     * Maps the sidecar of an index.
+     * @return The table, or null if the sidecar is missing or stale.
+     */
+    public static WpIdTable read(IndexHelper helper) throws IOException {
+        File file = getFile(helper.getIndexDir());
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != FILE_HEADER) {
+                LOG.log(Level.WARNING, "ignoring invalid wp id table " + file);
+                return null;
+            }
+            int maxDoc = buffer.getInt(4);
+            long lastModified = buffer.getLong(8);
+            if (maxDoc != helper.getReader().maxDoc()
+            ||  lastModified != helper.getLastModified()
+            ||  buffer.limit() != HEADER_SIZE + 4L * maxDoc) {
+                LOG.log(Level.INFO, "ignoring stale wp id table " + file);
+                return null;
+            }
+            buffer.position(HEADER_SIZE);
+            return new WpIdTable(buffer.slice().asIntBuffer());
+        } finally {
+            raf.close();    // the mapping stays valid
+        }
+    }
+
+    /**
+     * Reads the wpId of every lucene id from the postings of the "id" field.
+     */
+    static int[] compute(DirectoryReader reader) throws IOException {
+        int wpIds[] = new int[reader.maxDoc()];
+        Arrays.fill(wpIds, -1);
+        Terms terms = MultiFields.getTerms(reader, "id");
+        if (terms == null) {
+            return wpIds;
+        }
+        Bits live = MultiFields.getLiveDocs(reader);
+        TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docs = null;
+        BytesRef ref;
+        while ((ref = termsEnum.next()) != null) {
+            int wpId = Integer.valueOf(ref.utf8ToString());
+            docs = termsEnum.docs(live, docs, DocsEnum.FLAG_NONE);
+            int doc;
+            while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                wpIds[doc] = wpId;
+            }
+        }
+        return wpIds;
+    }
+
+    private static void write(IndexHelper helper, int wpIds[]) throws IOException {
+        File file = getFile(helper.getIndexDir());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1024 * 1024));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(wpIds.length);
+            out.writeLong(helper.getLastModified());
+            for (int wpId : wpIds) {
+                out.writeInt(wpId);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -6,6 +6,8 @@ import java.util.LinkedHashMap;
 
 /**
  * A base class for matrix rows.
+ * If a row's column ids are sorted, id lookups use binary search and dot products
+ * use an allocation-free merge of the two rows. Otherwise they fall back to scans and hashing.
  * TODO: rename index to id. Indices are dense, ids are sparse.
  */
 public abstract class BaseMatrixRow implements MatrixRow {
@@ -42,14 +44,32 @@ public abstract class BaseMatrixRow implements MatrixRow {
     @Override
     public double getNorm() {
         double length = 0.0;
-        for (int i = 0; i < getNumCols(); i++) {
-            length += getColValue(i) * getColValue(i);
+        int n = getNumCols();
+        for (int i = 0; i < n; i++) {
+            float val = getColValue(i);
+            length += val * val;
         }
         return Math.sqrt(length);
     }
 
     @Override
     public int getIndexForId(int id) {
+        if (hasSortedIds()) {
+            int lo = 0;
+            int hi = getNumCols() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int midId = getColIndex(mid);
+                if (midId < id) {
+                    lo = mid + 1;
+                } else if (midId > id) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
         for (int i = 0; i < getNumCols(); i++) {
             if (getColIndex(i) == id) {
                 return i;
@@ -60,11 +80,68 @@ public abstract class BaseMatrixRow implements MatrixRow {
 
     @Override
     public float getValueForId(int id) {
-        for (int i = 0; i < getNumCols(); i++) {
-            if (getColIndex(i) == id) {
-                return getColValue(i);
+        int i = getIndexForId(id);
+        return (i < 0) ? Float.NaN : getColValue(i);
+    }
+
+    @Override
+    public boolean hasSortedIds() {
+        return false;
+    }
+
+    @Override
+    public double dot(MatrixRow other) {
+        if (hasSortedIds() && other.hasSortedIds()) {
+            return mergeDot(this, other);
+        }
+        // hash the shorter row, probe with the longer one
+        MatrixRow small = (getNumCols() <= other.getNumCols()) ? this : other;
+        MatrixRow large = (small == this) ? other : this;
+        TIntFloatHashMap map = small.asTroveMap();
+        double dot = 0.0;
+        for (int i = 0; i < large.getNumCols(); i++) {
+            int id = large.getColIndex(i);
+            if (map.containsKey(id)) {
+                dot += map.get(id) * large.getColValue(i);
+            }
+        }
+        return dot;
+    }
+
+    /**
+     * Computes a dot product by walking two rows with sorted ids in step.
+     */
+    static double mergeDot(MatrixRow row1, MatrixRow row2) {
+        int n1 = row1.getNumCols();
+        int n2 = row2.getNumCols();
+        if (n1 == 0 || n2 == 0) {
+            return 0.0;
+        }
+        double dot = 0.0;
+        int i = 0;
+        int j = 0;
+        int id1 = row1.getColIndex(0);
+        int id2 = row2.getColIndex(0);
+        while (true) {
+            if (id1 < id2) {
+                if (++i == n1) break;
+                id1 = row1.getColIndex(i);
+            } else if (id1 > id2) {
+                if (++j == n2) break;
+                id2 = row2.getColIndex(j);
+            } else {
+                dot += row1.getColValue(i) * row2.getColValue(j);
+                if (++i == n1 || ++j == n2) break;
+                id1 = row1.getColIndex(i);
+                id2 = row2.getColIndex(j);
             }
         }
-        return Float.NaN;
+        return dot;
+    }
+
+    @Override
+    public double cosine(MatrixRow other) {
+        double norms = getNorm() * other.getNorm();
+        return (norms == 0.0) ? 0.0 : dot(other) / norms;
     }
 }
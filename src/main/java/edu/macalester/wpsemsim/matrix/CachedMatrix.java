@@ -0,0 +1,101 @@
+package edu.macalester.wpsemsim.matrix;
+
+import edu.macalester.wpsemsim.utils.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wraps a matrix with a size-bounded cache of decoded rows.
+ * Hot rows are unpacked once and then served from primitive arrays.
+ *
+ * getRow() goes through the cache. Iteration decodes rows without caching them,
+ * so a full scan does not flush the hot rows.
+ */
+public class CachedMatrix implements Matrix<DecodedMatrixRow> {
+    private static final Logger LOG = Logger.getLogger(CachedMatrix.class.getName());
+
+    private final Matrix<? extends MatrixRow> matrix;
+    private final LruCache<Integer, DecodedMatrixRow> cache;
+
+    /**
+     * @param matrix The matrix to wrap.
+     * @param maxBytes The maximum heap used by cached rows.
+     */
+    public CachedMatrix(Matrix<? extends MatrixRow> matrix, long maxBytes) {
+        this.matrix = matrix;
+        this.cache = new LruCache<Integer, DecodedMatrixRow>(maxBytes) {
+            @Override
+            protected long sizeOf(Integer rowId, DecodedMatrixRow row) {
+                return row.getSizeInBytes();
+            }
+        };
+        LOG.log(Level.INFO, "caching up to " + maxBytes + " bytes of rows of " + matrix.getPath());
+    }
+
+    @Override
+    public DecodedMatrixRow getRow(int rowId) throws IOException {
+        DecodedMatrixRow row = cache.get(rowId);
+        if (row == null) {
+            MatrixRow raw = matrix.getRow(rowId);
+            if (raw == null) {
+                return null;
+            }
+            row = DecodedMatrixRow.decode(raw);
+            cache.put(rowId, row);
+        }
+        return row;
+    }
+
+    /**
+     * @return The cache, which has hit, miss and eviction counters.
+     */
+    public LruCache<Integer, DecodedMatrixRow> getCache() {
+        return cache;
+    }
+
+    /**
+     * @return The wrapped matrix.
+     */
+    public Matrix<? extends MatrixRow> getMatrix() {
+        return matrix;
+    }
+
+    @Override
+    public int[] getRowIds() {
+        return matrix.getRowIds();
+    }
+
+    @Override
+    public int getNumRows() {
+        return matrix.getNumRows();
+    }
+
+    @Override
+    public File getPath() {
+        return matrix.getPath();
+    }
+
+    @Override
+    public Iterator<DecodedMatrixRow> iterator() {
+        final Iterator<? extends MatrixRow> iter = matrix.iterator();
+        return new Iterator<DecodedMatrixRow>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+            @Override
+            public DecodedMatrixRow next() {
+                MatrixRow row = iter.next();
+                return (row == null) ? null : DecodedMatrixRow.decode(row);
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
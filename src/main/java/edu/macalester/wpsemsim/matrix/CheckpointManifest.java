@@ -0,0 +1,195 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The durable record of the rows a checkpointed SparseMatrixWriter has completed.
+ *
+ * The manifest starts with the format of the matrix and is followed by one record
+ * per shard checkpoint: the shard name, the length of the shard that is durable,
+ * and the id, offset, norm and length of each row added since the shard's last
+ * checkpoint. Each record is appended and synced after the shard itself is synced,
+ * so every row in the manifest is on disk. A record cut short by a crash is dropped.
+ */
+final class CheckpointManifest {
+    private static final Logger LOG = Logger.getLogger(CheckpointManifest.class.getName());
+
+    public static final String SUFFIX = ".manifest";
+    private static final int FILE_HEADER = 0xabcd02;
+    private static final int RECORD_START = 0x7ec0de01;
+    private static final int RECORD_END = 0x7ec0de02;
+
+    /**
+     * The rows added to a shard between two checkpoints.
+     */
+    static final class Record {
+        final String shardName;
+        final long shardLength;
+        final int rowIds[];
+        final long rowOffsets[];
+        final float rowNorms[];
+        final int rowLengths[];
+
+        Record(String shardName, long shardLength, int rowIds[], long rowOffsets[], float rowNorms[], int rowLengths[]) {
+            this.shardName = shardName;
+            this.shardLength = shardLength;
+            this.rowIds = rowIds;
+            this.rowOffsets = rowOffsets;
+            this.rowNorms = rowNorms;
+            this.rowLengths = rowLengths;
+        }
+    }
+
+    private final File file;
+    private final FileOutputStream out;
+    private final List<Record> records;
+
+    private CheckpointManifest(File file, List<Record> records) throws IOException {
+        this.file = file;
+        this.records = records;
+        this.out = new FileOutputStream(file, true);
+    }
+
+    static File getFile(File matrixPath) {
+        return new File(matrixPath.getPath() + SUFFIX);
+    }
+
+    /**
+     * Opens the manifest of a matrix, reading the records of an earlier run if there are any.
+     * @param flags The format flags of the matrix.
+     * @param vconfHeader The header bytes of the matrix's ValueConf.
+     * @throws IllegalArgumentException If an existing manifest was written for a different format.
+     */
+    static CheckpointManifest open(File matrixPath, int flags, byte vconfHeader[]) throws IOException {
+        File file = getFile(matrixPath);
+        List<Record> records = new ArrayList<Record>();
+        if (file.isFile() && file.length() > 0) {
+            long end = read(file, flags, vconfHeader, records);
+            if (end < file.length()) {
+                LOG.log(Level.WARNING, "dropping " + (file.length() - end) + " bytes of an incomplete checkpoint in " + file);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.setLength(end);
+                raf.close();
+            }
+            LOG.log(Level.INFO, "resuming from " + records.size() + " checkpoints in " + file);
+        } else {
+            FileOutputStream headerOut = new FileOutputStream(file);
+            DataOutputStream header = new DataOutputStream(headerOut);
+            header.writeInt(FILE_HEADER);
+            header.writeInt(flags);
+            header.writeInt(vconfHeader.length);
+            header.write(vconfHeader);
+            header.flush();
+            headerOut.getFD().sync();
+            header.close();
+        }
+        return new CheckpointManifest(file, records);
+    }
+
+    /**
+     * Reads the complete records of a manifest.
+     * @return The length of the manifest up to the end of the last complete record.
+     */
+    private static long read(File file, int flags, byte vconfHeader[], List<Record> records) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_HEADER) {
+                throw new IOException("invalid checkpoint manifest " + file);
+            }
+            int oldFlags = in.readInt();
+            byte oldHeader[] = new byte[in.readInt()];
+            in.readFully(oldHeader);
+            if (oldFlags != flags || !Arrays.equals(oldHeader, vconfHeader)) {
+                throw new IllegalArgumentException("checkpoint manifest " + file +
+                        " was written for a matrix with a different format; delete it to start over");
+            }
+            long end = 12 + oldHeader.length;
+            while (true) {
+                try {
+                    if (in.readInt() != RECORD_START) {
+                        return end;
+                    }
+                    String name = in.readUTF();
+                    long shardLength = in.readLong();
+                    int n = in.readInt();
+                    int ids[] = new int[n];
+                    long offsets[] = new long[n];
+                    float norms[] = new float[n];
+                    int lengths[] = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        ids[i] = in.readInt();
+                        offsets[i] = in.readLong();
+                        norms[i] = in.readFloat();
+                        lengths[i] = in.readInt();
+                    }
+                    if (in.readInt() != RECORD_END) {
+                        return end;
+                    }
+                    records.add(new Record(name, shardLength, ids, offsets, norms, lengths));
+                    end += getRecordSize(name, n);
+                } catch (EOFException e) {
+                    return end;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long getRecordSize(String name, int numRows) throws IOException {
+        return 4 + 2 + name.getBytes("UTF-8").length + 8 + 4 + 20L * numRows + 4;
+    }
+
+    /**
+     * @return The records read when the manifest was opened.
+     */
+    List<Record> getRecords() {
+        return records;
+    }
+
+    /**
+     * Durably appends a record. The shard it describes must already be synced.
+     */
+    synchronized void append(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(RECORD_START);
+        data.writeUTF(record.shardName);
+        data.writeLong(record.shardLength);
+        data.writeInt(record.rowIds.length);
+        for (int i = 0; i < record.rowIds.length; i++) {
+            data.writeInt(record.rowIds[i]);
+            data.writeLong(record.rowOffsets[i]);
+            data.writeFloat(record.rowNorms[i]);
+            data.writeInt(record.rowLengths[i]);
+        }
+        data.writeInt(RECORD_END);
+        data.flush();
+        out.write(bytes.toByteArray());
+        out.getFD().sync();
+    }
+
+    /**
+     * Closes and deletes the manifest once the matrix is complete.
+     */
+    synchronized void delete() throws IOException {
+        out.close();
+        if (!file.delete()) {
+            LOG.log(Level.WARNING, "could not delete checkpoint manifest " + file);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package edu.macalester.wpsemsim.matrix;
+
+/**
+ * A matrix row whose values have been unpacked into primitive arrays.
+ * Reading a decoded row costs an array access rather than a buffer read and ValueConf.unpack().
+ */
+public final class DecodedMatrixRow extends BaseMatrixRow implements MatrixRow {
+    private final int rowIndex;
+    private final int colIds[];
+    private final float colVals[];
+
+    /**
+     * True if colIds belongs to the matrix (as in a dense matrix) rather than to this row.
+     */
+    private final boolean sharedColIds;
+
+    private final boolean sortedIds;
+
+    public DecodedMatrixRow(int rowIndex, int colIds[], float colVals[]) {
+        this(rowIndex, colIds, colVals, false);
+    }
+
+    private DecodedMatrixRow(int rowIndex, int colIds[], float colVals[], boolean sharedColIds) {
+        if (colIds.length != colVals.length) {
+            throw new IllegalArgumentException("colIds and colVals have different lengths");
+        }
+        this.rowIndex = rowIndex;
+        this.colIds = colIds;
+        this.colVals = colVals;
+        this.sharedColIds = sharedColIds;
+        boolean sorted = true;
+        for (int i = 1; i < colIds.length && sorted; i++) {
+            sorted = (colIds[i - 1] <= colIds[i]);
+        }
+        this.sortedIds = sorted;
+    }
+
+    /**
+     * Decodes a row. Dense rows share the column ids of their matrix.
+     */
+    public static DecodedMatrixRow decode(MatrixRow row) {
+        int n = row.getNumCols();
+        float vals[] = new float[n];
+        for (int i = 0; i < n; i++) {
+            vals[i] = row.getColValue(i);
+        }
+        if (row instanceof DenseMatrixRow) {
+            return new DecodedMatrixRow(row.getRowIndex(), ((DenseMatrixRow) row).getColIds(), vals, true);
+        }
+        int ids[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = row.getColIndex(i);
+        }
+        return new DecodedMatrixRow(row.getRowIndex(), ids, vals, false);
+    }
+
+    @Override
+    public int getColIndex(int i) {
+        return colIds[i];
+    }
+
+    @Override
+    public float getColValue(int i) {
+        return colVals[i];
+    }
+
+    @Override
+    public int getRowIndex() {
+        return rowIndex;
+    }
+
+    @Override
+    public int getNumCols() {
+        return colIds.length;
+    }
+
+    @Override
+    public boolean hasSortedIds() {
+        return sortedIds;
+    }
+
+    /**
+     * @return The column ids. Callers must not modify the array.
+     */
+    public int[] getColIds() {
+        return colIds;
+    }
+
+    /**
+     * @return The column values. Callers must not modify the array.
+     */
+    public float[] getColValues() {
+        return colVals;
+    }
+
+    /**
+     * @return An estimate of the heap used by the row, not counting shared column ids.
+     */
+    public long getSizeInBytes() {
+        return 64 + 4L * colVals.length + (sharedColIds ? 0 : 4L * colIds.length);
+    }
+}
@@ -1,6 +1,5 @@
 package edu.macalester.wpsemsim.matrix;
 
-import gnu.trove.map.hash.TIntLongHashMap;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
@@ -24,11 +23,19 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
 
     public static int DEFAULT_MAX_PAGE_SIZE = Integer.MAX_VALUE;
 
+    /**
+     * Header for files written before the header had flags.
+     */
     public static final int FILE_HEADER = 0xabccba;
 
+    /**
+     * Header for files with a flags field, which records the value codec.
+     */
+    public static final int FILE_HEADER_V2 = 0xabccbb;
+
     public int maxPageSize = DEFAULT_MAX_PAGE_SIZE;
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
-    private int rowIds[];
+    private RowIndex rowIndex;
+    private volatile int rowIds[];
     private int colIds[];
     private FileChannel channel;
     private File path;
@@ -56,46 +63,38 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
         readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowOffsets, maxOpenPages, maxPageSize);
+        rowBuffers = new MemoryMappedMatrix(path, channel, rowIndex, maxOpenPages, maxPageSize);
     }
 
     private void readHeaders() throws IOException {
         int pos = 0;
-        long size = Math.min(channel.size(), maxPageSize);
-        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long maxHeaderSize = 12 + ValueConf.MAX_HEADER_BYTES;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(maxHeaderSize, channel.size()));
 
         // read header
-        if (buffer.getInt(pos) != FILE_HEADER) {
-            throw new IOException("invalid file header: " + buffer.getInt(pos));
-        }
+        int header = buffer.getInt(pos);
+        int flags = 0;
         pos += 4;
-        this.vconf = new ValueConf(buffer.getFloat(pos), buffer.getFloat(pos + 4));
-        pos += 8;
+        if (header == FILE_HEADER_V2) {
+            flags = buffer.getInt(pos);
+            pos += 4;
+        } else if (header != FILE_HEADER) {
+            throw new IOException("invalid file header: " + header);
+        }
+        this.vconf = ValueConf.readHeader(flags, buffer, pos);
+        pos += vconf.getHeaderSize();
         int numRows = buffer.getInt(pos);
         pos += 4;
 
-        // read row ids and offsets
-        info("reading offsets for " + numRows + " rows");
-        rowIds = new int[numRows];
-        for (int i = 0; i < numRows; i++) {
-            int rowIndex = buffer.getInt(pos);
-            long rowOffset = buffer.getLong(pos + 4);
-            rowOffsets.put(rowIndex, rowOffset);
-//            debug("adding row index " + rowIndex + " at offset " + rowOffset);
-            rowIds[i] = rowIndex;
-            pos += 12;
-        }
-        info("read " + numRows + " offsets");
+        rowIndex = RowIndex.read(channel, pos, numRows, flags);
+        info("mapped offsets for " + numRows + " rows");
 
         // read column ids
-        int numCols = buffer.getInt(pos);
+        long colPos = rowIndex.getEnd();
+        int numCols = channel.map(FileChannel.MapMode.READ_ONLY, colPos, 4).getInt(0);
         info("reading ids for " + numCols + " cols");
-        pos += 4;
         colIds = new int[numCols];
-        for (int i = 0; i < numCols; i++) {
-            colIds[i] = buffer.getInt(pos);
-            pos += 4;
-        }
+        channel.map(FileChannel.MapMode.READ_ONLY, colPos + 4, 4L * numCols).asIntBuffer().get(colIds);
         info("read " + colIds.length + " column ids");
     }
 
@@ -111,6 +110,9 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
 
     @Override
     public int[] getRowIds() {
+        if (rowIds == null) {
+            rowIds = rowIndex.getRowIds();
+        }
         return rowIds;
     }
 
@@ -120,7 +122,7 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
 
     @Override
     public int getNumRows() {
-        return rowIds.length;
+        return rowIndex.size();
     }
 
     public ValueConf getValueConf() {
@@ -128,7 +130,7 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
     }
 
     public void dump() throws IOException {
-        for (int id : rowIds) {
+        for (int id : getRowIds()) {
             System.out.print("" + id + ": ");
             MatrixRow row = getRow(id);
             for (int i = 0; i < row.getNumCols(); i++) {
@@ -149,12 +151,12 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         private int i = 0;
         @Override
         public boolean hasNext() {
-            return i < rowIds.length;
+            return i < rowIndex.size();
         }
         @Override
         public DenseMatrixRow next() {
             try {
-                return getRow(rowIds[i++]);
+                return getRow(rowIndex.getRowIdAt(i++));
             } catch (IOException e) {
                 LOG.log(Level.SEVERE, "getRow failed", e);
                 return null;
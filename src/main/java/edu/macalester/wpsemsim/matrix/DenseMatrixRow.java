@@ -4,15 +4,13 @@ import gnu.trove.map.hash.TIntFloatHashMap;
 import org.apache.commons.lang3.ArrayUtils;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 
 /**
  * A single sparse matrix row backed by a byte buffer. The row contains:
  * - a row id (int),
- * - a set of n columns, each with a value (float packed into two bytes)
+ * - a set of n columns, each with a value (float packed by the ValueConf's codec)
  *
  * Since the matrix is dense, the row assumes that a single copy of column ids is
  * stored somewhere in the container matrix.
@@ -21,7 +19,7 @@ import java.util.logging.Logger;
  * This means that the object can wrap data from an mmap'd file in the correct format.
  */
 public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
-    Logger LOG = Logger.getLogger(DenseMatrixRow.class.getName());
+    private static final Logger LOG = Logger.getLogger(DenseMatrixRow.class.getName());
 
     public static final Float MIN_SCORE = -1.1f;
     public static final Float MAX_SCORE = 1.1f;
@@ -37,20 +35,10 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
     private ByteBuffer buffer;
 
     /**
-     * A view buffer that points to the header.
-     */
-    private IntBuffer headerBuffer;
-
-    /**
-     * A view buffer that points to the ids.
+     * The column ids, shared by all rows in the matrix.
      */
     private int[] colIds;
 
-    /**
-     * A view buffer that points to the values.
-     */
-    private ShortBuffer valBuffer;
-
     private ValueConf vconf;
 
     public DenseMatrixRow(ValueConf vconf, int rowIndex, LinkedHashMap<Integer, Float> row) {
@@ -63,39 +51,39 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public DenseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], float colVals[]) {
         this.vconf = vconf;
         this.colIds = colIds;
-        short packed[] = new short[colVals.length];
+        int packed[] = new int[colVals.length];
         for (int i = 0; i < colVals.length; i++) {
             packed[i] = vconf.pack(colVals[i]);
         }
         createBuffer(rowIndex, colIds, packed);
     }
 
-    public DenseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], short colVals[]) {
+    /**
+     * @param vconf
+     * @param rowIndex
+     * @param colIds
+     * @param colVals Values already packed by vconf.
+     */
+    public DenseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], int colVals[]) {
         this.vconf = vconf;
         createBuffer(rowIndex, colIds, colVals);
     }
 
-    public void createBuffer(int rowIndex, int colIds[], short colVals[]) {
+    public void createBuffer(int rowIndex, int colIds[], int colVals[]) {
         assert(colIds.length == colVals.length);
         this.colIds = colIds;
 
         buffer = ByteBuffer.allocate(
                 4 +                 // header
                 4 +                 // row index
-                2 * colVals.length  // col values
+                vconf.getNumBytes() * colVals.length  // col values
         );
-        createViewBuffers(colVals.length);
-
-        headerBuffer.put(0, HEADER);
-        headerBuffer.put(1, rowIndex);
-        valBuffer.put(colVals, 0, colVals.length);
-    }
-
-    private void createViewBuffers(int numColumns) {
-        buffer.position(0);
-        headerBuffer = buffer.asIntBuffer();
-        buffer.position(2 * 4);
-        valBuffer = buffer.asShortBuffer();
+        buffer.putInt(HEADER);
+        buffer.putInt(rowIndex);
+        for (int v : colVals) {
+            vconf.putPacked(buffer, v);
+        }
+        buffer.rewind();
     }
 
     /**
@@ -110,7 +98,6 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
         if (this.buffer.getInt(0) != HEADER) {
             throw new IllegalArgumentException("Invalid header in byte buffer");
         }
-        createViewBuffers(buffer.getInt(8));
     }
 
     @Override
@@ -120,16 +107,16 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
 
     @Override
     public final float getColValue(int i) {
-        return vconf.unpack(valBuffer.get(i));
+        return vconf.unpack(getPackedColValue(i));
     }
 
-    public final short getPackedColValue(int i) {
-        return valBuffer.get(i);
+    public final int getPackedColValue(int i) {
+        return vconf.getPacked(buffer, 8 + vconf.getNumBytes() * i);
     }
 
     @Override
     public final int getRowIndex() {
-        return headerBuffer.get(1);
+        return buffer.getInt(4);
     }
 
     @Override
@@ -50,9 +50,10 @@ public class DenseMatrixWriter {
         if (!Arrays.equals(colIds, row.getColIds())) {
             throw new IllegalArgumentException("Column id mismatch for row " + row.getRowIndex());
         }
-        row.getBuffer().rewind();
-        byte[] bytes = new byte[row.getBuffer().remaining()];
-        row.getBuffer().get(bytes, 0, bytes.length);
+        ByteBuffer src = row.getBuffer().duplicate();
+        src.position(0);
+        byte[] bytes = new byte[8 + vconf.getNumBytes() * colIds.length];
+        src.get(bytes, 0, bytes.length);
 
         rowOffsets.put(row.getRowIndex(), bodyOffset);
         rowIndexes.add(row.getRowIndex());
@@ -73,18 +74,24 @@ public class DenseMatrixWriter {
 
         // write offset file
         info("generating header");
-        int sizeHeader = 16 + rowOffsets.size() * 12 + 4 + colIds.length * 4;
+        int rowIds[] = rowIndexes.toArray();
+        long offsets[] = new long[rowIds.length];
+        int indexFlag = RowIndex.chooseIndexFlag(rowIds);
+        long sizeHeader = 12 + vconf.getHeaderSize() + rowIds.length * 12L +
+                RowIndex.getIndexSize(indexFlag, rowIds) + 4 + colIds.length * 4;
+        for (int i = 0; i < rowIds.length; i++) {
+            offsets[i] = rowOffsets.get(rowIds[i]) + sizeHeader;
+        }
         body = new BufferedOutputStream(new FileOutputStream(path));
-        body.write(intToBytes(DenseMatrix.FILE_HEADER));
-        body.write(floatToBytes(vconf.minScore));
-        body.write(floatToBytes(vconf.maxScore));
-        body.write(intToBytes(rowOffsets.size()));
-        for (int i = 0; i < rowIndexes.size(); i++) {
-            int rowIndex = rowIndexes.get(i);
-            long rowOffset = rowOffsets.get(rowIndex);
-            body.write(intToBytes(rowIndex));
-            body.write(longToBytes(rowOffset + sizeHeader));
+        body.write(intToBytes(DenseMatrix.FILE_HEADER_V2));
+        body.write(intToBytes(vconf.getCodecFlags() | indexFlag));
+        body.write(vconf.getHeaderBytes());
+        body.write(intToBytes(rowIds.length));
+        for (int i = 0; i < rowIds.length; i++) {
+            body.write(intToBytes(rowIds[i]));
+            body.write(longToBytes(offsets[i]));
         }
+        RowIndex.writeIndex(body, indexFlag, rowIds, offsets);
         body.write(intToBytes(colIds.length));
         for (int c : colIds) {
             body.write(intToBytes(c));
@@ -124,7 +131,4 @@ public class DenseMatrixWriter {
     private static byte[] longToBytes(long i) {
         return ByteBuffer.allocate(8).putLong(i).array();
     }
-    private static byte[] floatToBytes(float f) {
-        return ByteBuffer.allocate(4).putFloat(f).array();
-    }
 }
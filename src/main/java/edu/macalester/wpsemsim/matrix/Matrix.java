@@ -12,7 +12,7 @@ import java.util.Iterator;
  * To change this template use File | Settings | File Templates.
  */
 public interface Matrix<T extends MatrixRow> extends Iterable<T> {
-    <T extends MatrixRow> T getRow(int rowId) throws IOException;
+    T getRow(int rowId) throws IOException;
 
     int[] getRowIds();
 
@@ -29,4 +29,19 @@ public interface MatrixRow {
     int getIndexForId(int id);
 
     float getValueForId(int id);
+
+    /**
+     * @return True if the column ids are in increasing order.
+     */
+    boolean hasSortedIds();
+
+    /**
+     * @return The dot product of this row and another row, matching columns by id.
+     */
+    double dot(MatrixRow other);
+
+    /**
+     * @return The cosine similarity of this row and another row, or 0 if either row has no length.
+     */
+    double cosine(MatrixRow other);
 }
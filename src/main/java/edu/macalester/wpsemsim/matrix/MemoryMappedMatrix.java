@@ -1,15 +1,13 @@
 package edu.macalester.wpsemsim.matrix;
 
-import gnu.trove.map.hash.TIntLongHashMap;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.collections.map.LinkedMap;
-
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,121 +15,311 @@ import java.util.logging.Logger;
 /**
  * A wrapper around a file channel that contains a matrix in row major order.
  * Returns rows at a particular offset in the form of ByteBuffers backed by a memory mapped file.
+ *
+ * The matrix may also be split across several segments (e.g. the shards written by
+ * SparseMatrixWriter). Row offsets then address the segments as if they were concatenated,
+ * and no page spans two segments.
+ *
+ * If maxOpenPages is smaller than the number of pages, pages are unmapped using
+ * the CLOCK approximation of LRU. Readers never block each other: a page is only
+ * locked while it is being mapped, and eviction is done by whichever thread wins
+ * a try-lock. Evicting a page only drops the reference to its mapped buffer, so
+ * rows that were already returned remain valid until they are garbage collected.
  */
 public class MemoryMappedMatrix {
     public static final Logger LOG = Logger.getLogger(MemoryMappedMatrix.class.getName());
 
     private int maxPageSize;
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
-    private FileChannel channel;
+    private RowIndex rowIndex;
+
+    /**
+     * The segments and the offset of each segment in the concatenated offset space.
+     */
+    private FileChannel channels[];
+    private long segmentStarts[];
+
     protected List<MappedBufferWrapper> buffers = new ArrayList<MappedBufferWrapper>();
     private File path;
 
-    private LruQueue<MappedBufferWrapper> queue = new LruQueue<MappedBufferWrapper>();
+    /**
+     * Page directory: the start offset of each page in buffers, in increasing order.
+     * Pages are contiguous, so the page for an offset is found by binary search.
+     */
+    private long pageStarts[];
+
     private int maxOpenPages;
+    private AtomicInteger numOpenPages = new AtomicInteger();
+    private AtomicInteger clockHand = new AtomicInteger();
+    private AtomicBoolean evicting = new AtomicBoolean(false);
+
+    public MemoryMappedMatrix(File path, FileChannel channel, RowIndex rowIndex,
+                              int maxOpenPages, int maxPageSize) throws IOException {
+        this(path, new FileChannel[] { channel }, new long[] { 0 }, rowIndex, maxOpenPages, maxPageSize);
+    }
 
-    public MemoryMappedMatrix(File path, FileChannel channel,TIntLongHashMap rowOffsets,
+    /**
+     * @param path
+     * @param channels The segments of the matrix.
+     * @param segmentStarts The offset of each segment in the concatenated offset space, in increasing order.
+     * @param rowIndex
+     * @param maxOpenPages
+     * @param maxPageSize
+     * @throws IOException
+     */
+    public MemoryMappedMatrix(File path, FileChannel channels[], long segmentStarts[], RowIndex rowIndex,
                               int maxOpenPages, int maxPageSize) throws IOException {
         this.path = path;
-        this.channel = channel;
-        this.rowOffsets = rowOffsets;
+        this.channels = channels;
+        this.segmentStarts = segmentStarts;
+        this.rowIndex = rowIndex;
         this.maxOpenPages = maxOpenPages;
         this.maxPageSize = maxPageSize;
         pageInRows();
     }
 
     private void pageInRows() throws IOException {
-        int rowIds[] = getRowIdsInOrder();
+        long offsets[] = getOffsetsInOrder();
 
-        // tricky: pages must align with row boundaries
-        long startPos = rowOffsets.get(rowIds[0]);
-        long lastPos = startPos;
+        // tricky: pages must align with row boundaries and segment boundaries
+        int segment = -1;
+        long startPos = 0;
+        long lastPos = 0;
 
-        for (int i = 1; i < rowIds.length; i++) {
-            long pos = rowOffsets.get(rowIds[i]);
-            if (pos - startPos > maxPageSize) {
+        for (int i = 0; i < rowIndex.size(); i++) {
+            long pos = (offsets == null) ? rowIndex.getOffsetAt(i) : offsets[i];
+            int s = findSegment(pos);
+            if (s != segment) {
+                if (segment >= 0) {
+                    addBuffer(segment, startPos, getSegmentEnd(segment));
+                }
+                segment = s;
+                startPos = pos;
+            } else if (pos - startPos > maxPageSize) {
                 assert(lastPos != startPos);
-                addBuffer(startPos, lastPos);
+                addBuffer(segment, startPos, lastPos);
                 startPos = lastPos;
             }
             lastPos = pos;
         }
-        addBuffer(startPos, channel.size());
+        if (segment >= 0) {
+            addBuffer(segment, startPos, getSegmentEnd(segment));
+        }
+
+        pageStarts = new long[buffers.size()];
+        for (int i = 0; i < buffers.size(); i++) {
+            pageStarts[i] = buffers.get(i).start;
+        }
     }
 
 
-    private void addBuffer(long startPos, long endPos) throws IOException {
+    private void addBuffer(int segment, long startPos, long endPos) throws IOException {
         long length = endPos - startPos;
         debug("adding page at " + startPos + " of length " + length);
-        buffers.add(new MappedBufferWrapper(channel, startPos, endPos));
+        buffers.add(new MappedBufferWrapper(channels[segment], segmentStarts[segment], startPos, endPos));
+    }
+
+    /**
+     * @return The index of the last segment that starts at or before the offset.
+     */
+    private int findSegment(long offset) {
+        int i = Arrays.binarySearch(segmentStarts, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        // skip past empty segments that start at the same offset
+        while (i + 1 < segmentStarts.length && segmentStarts[i + 1] == offset) {
+            i++;
+        }
+        if (i < 0) {
+            throw new IllegalArgumentException("offset " + offset + " precedes the first segment");
+        }
+        return i;
+    }
+
+    private long getSegmentEnd(int segment) throws IOException {
+        return segmentStarts[segment] + channels[segment].size();
     }
 
     public ByteBuffer getRow(int rowId) throws IOException {
-        if (!rowOffsets.containsKey(rowId)) {
+        long targetOffset = rowIndex.getOffset(rowId);
+        if (targetOffset < 0) {
             return null;
         }
-        long targetOffset = rowOffsets.get(rowId);
-        MappedBufferWrapper row = null;
-        for (int i = 0; i < buffers.size(); i++) {
-            MappedBufferWrapper wrapper = buffers.get(i);
-            if (wrapper.start <= targetOffset && targetOffset < wrapper.end) {
-                row = wrapper;
-            }
+        MappedBufferWrapper page = getPage(rowId, targetOffset);
+        ByteBuffer view = openPage(page).duplicate();
+        view.position((int) (targetOffset - page.start));
+        return view.slice();
+    }
+
+    /**
+     * Points the cursor at a row without slicing or copying the page.
+     * @param rowId
+     * @param vconf
+     * @param cursor
+     * @return false if the row does not exist.
+     * @throws IOException
+     */
+    public boolean readRow(int rowId, ValueConf vconf, SparseRowCursor cursor) throws IOException {
+        long targetOffset = rowIndex.getOffset(rowId);
+        if (targetOffset < 0) {
+            return false;
         }
-        if (row == null) {
+        MappedBufferWrapper page = getPage(rowId, targetOffset);
+        cursor.wrap(vconf, openPage(page), (int) (targetOffset - page.start));
+        return true;
+    }
+
+    private MappedBufferWrapper getPage(int rowId, long targetOffset) {
+        MappedBufferWrapper page = findPage(targetOffset);
+        if (page == null) {
             throw new IllegalArgumentException("did not find row " + rowId + " with offset " + targetOffset);
         }
-        // free queued pages if necessary
-        if (rowOffsets.size() > maxOpenPages) {
-            synchronized (queue) {
-                queue.enqueue(row);
-                while (queue.size() > maxOpenPages) {
-                    MappedBufferWrapper last = queue.dequeue();
-//                    info("closing " + last.start);
-                    last.close();
+        return page;
+    }
+
+    /**
+     * Returns the mapped buffer for the page, mapping it and evicting other pages if necessary.
+     * The shared buffer must only be read with absolute gets.
+     * @param page
+     * @return
+     * @throws IOException
+     */
+    private MappedByteBuffer openPage(MappedBufferWrapper page) throws IOException {
+        if (buffers.size() <= maxOpenPages) {
+            return page.getBuffer(numOpenPages);
+        }
+        if (!page.referenced) {
+            page.referenced = true;
+        }
+        MappedByteBuffer buffer = page.getBuffer(numOpenPages);
+        evictIfNecessary(page);
+        return buffer;
+    }
+
+    /**
+     * Unmaps pages until at most maxOpenPages are open.
+     * Only one thread sweeps at a time; other threads do not wait for it.
+     * @param keep The page being read, which must not be evicted.
+     */
+    private void evictIfNecessary(MappedBufferWrapper keep) {
+        while (numOpenPages.get() > maxOpenPages && evicting.compareAndSet(false, true)) {
+            try {
+                // two sweeps are enough to clear every reference bit and evict
+                for (int i = 0; i < 2 * buffers.size() && numOpenPages.get() > maxOpenPages; i++) {
+                    int hand = (clockHand.getAndIncrement() & Integer.MAX_VALUE) % buffers.size();
+                    MappedBufferWrapper page = buffers.get(hand);
+                    if (page == keep || !page.isOpen()) {
+                        continue;
+                    }
+                    if (page.referenced) {
+                        page.referenced = false;
+                    } else {
+                        page.close(numOpenPages);
+                    }
                 }
-//                info("opening " + row.start);
-                // buffer allocation must happen in the synchronized block
-                // so other calls do not simultaneously free the buffer
-                return row.get(targetOffset);
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Returns the page containing the offset, or null if no page contains it.
+     * Runs in O(log #pages).
+     * @param offset
+     * @return
+     */
+    private MappedBufferWrapper findPage(long offset) {
+        int lo = 0;
+        int hi = pageStarts.length - 1;
+
+        // find the last page that starts at or before the offset
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pageStarts[mid] <= offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
             }
-        } else {
-            return row.get(targetOffset);
         }
+        if (hi < 0) {
+            return null;
+        }
+        MappedBufferWrapper page = buffers.get(hi);
+        return (offset < page.end) ? page : null;
     }
 
     static class MappedBufferWrapper {
         FileChannel channel;
-        MappedByteBuffer buffer;
+        volatile MappedByteBuffer buffer;
+        volatile boolean referenced = false;
         long start;
         long end;
 
-        public MappedBufferWrapper(FileChannel channel, long start, long end) {
+        /**
+         * The offset of the channel's first byte in the concatenated offset space.
+         */
+        long channelStart;
+
+        public MappedBufferWrapper(FileChannel channel, long channelStart, long start, long end) {
             this.channel = channel;
+            this.channelStart = channelStart;
             this.start = start;
             this.end = end;
         }
-        public synchronized ByteBuffer get(long position) throws IOException {
-            if (buffer == null) {
-                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+        /**
+         * Returns the mapped page, mapping it if necessary.
+         * The buffer is shared, so its position must never be modified.
+         * @param numOpen Counts the page if it is mapped, under the same lock as close().
+         */
+        public MappedByteBuffer getBuffer(AtomicInteger numOpen) throws IOException {
+            MappedByteBuffer b = buffer;
+            if (b == null) {
+                synchronized (this) {
+                    b = buffer;
+                    if (b == null) {
+                        b = channel.map(FileChannel.MapMode.READ_ONLY, start - channelStart, end - start);
+                        buffer = b;
+                        numOpen.incrementAndGet();
+                    }
+                }
             }
-            buffer.position((int) (position - start));
-            return buffer.slice();
+            return b;
         }
-        public synchronized void close() {
-            buffer = null;
+
+        boolean isOpen() {
+            return buffer != null;
+        }
+
+        /**
+         * Unmaps the page if it is open.
+         * @param numOpen Uncounts the page if it was open.
+         */
+        public synchronized void close(AtomicInteger numOpen) {
+            if (buffer != null) {
+                buffer = null;
+                numOpen.decrementAndGet();
+            }
         }
     }
 
-    private int[] getRowIdsInOrder() {
-        Integer rowIds[] = ArrayUtils.toObject(rowOffsets.keys());
-        Arrays.sort(rowIds, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer r1, Integer r2) {
-                return new Long(rowOffsets.get(r1)).compareTo(rowOffsets.get(r2));
+    /**
+     * Writers append rows in order, so the offsets in the write order table are normally increasing.
+     * @return null if they are, else a sorted copy of the offsets.
+     */
+    private long[] getOffsetsInOrder() {
+        for (int i = 1; i < rowIndex.size(); i++) {
+            if (rowIndex.getOffsetAt(i) < rowIndex.getOffsetAt(i - 1)) {
+                long offsets[] = new long[rowIndex.size()];
+                for (int j = 0; j < offsets.length; j++) {
+                    offsets[j] = rowIndex.getOffsetAt(j);
+                }
+                Arrays.sort(offsets);
+                return offsets;
             }
-        });
-        return ArrayUtils.toPrimitive(rowIds);
+        }
+        return null;
     }
 
     private void info(String message) {
@@ -141,22 +329,4 @@ public class MemoryMappedMatrix {
         LOG.log(Level.FINEST, "sparse matrix " + path + ": " + message);
     }
 
-    static class LruQueue<T> {
-        private LinkedMap lruMap = new LinkedMap();
-
-        public void enqueue(T elem) {
-            lruMap.put(elem, null);
-        }
-
-        public T dequeue() {
-            T first = (T) lruMap.firstKey();
-            lruMap.remove(first);
-            return first;
-        }
-
-        public int size() {
-            return lruMap.size();
-        }
-    }
-
 }
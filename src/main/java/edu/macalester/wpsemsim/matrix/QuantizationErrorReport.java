@@ -0,0 +1,104 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Reports the error each value codec would introduce if it were used to store
+ * the values of an existing matrix. Errors are measured against the values as
+ * they are currently stored, so they include nothing of the matrix's own codec.
+ */
+public class QuantizationErrorReport {
+    public static Logger LOG = Logger.getLogger(QuantizationErrorReport.class.getName());
+
+    /**
+     * Number of values sampled to train the QUANTILE8 codec.
+     */
+    public static final int SAMPLE_SIZE = 100000;
+
+    public QuantizationErrorReport() {}
+
+    public void report(Iterable<? extends MatrixRow> matrix, ValueConf vconf, PrintStream out) {
+        float sample[] = sampleValues(matrix);
+        if (sample.length == 0) {
+            out.println("matrix has no values");
+            return;
+        }
+        for (ValueConf.Codec codec : ValueConf.Codec.values()) {
+            ValueConf candidate;
+            if (codec == ValueConf.Codec.QUANTILE8) {
+                candidate = ValueConf.trainQuantiles(vconf.minScore, vconf.maxScore, sample.clone());
+            } else {
+                candidate = new ValueConf(vconf.minScore, vconf.maxScore, codec);
+            }
+            long n = 0;
+            double sumAbs = 0.0;
+            double sumSquared = 0.0;
+            double maxAbs = 0.0;
+            for (MatrixRow row : matrix) {
+                for (int i = 0; i < row.getNumCols(); i++) {
+                    float v = row.getColValue(i);
+                    double err = Math.abs(candidate.unpack(candidate.pack(v)) - v);
+                    sumAbs += err;
+                    sumSquared += err * err;
+                    maxAbs = Math.max(maxAbs, err);
+                    n++;
+                }
+            }
+            out.println(
+                    codec.name().toLowerCase() +
+                    ": bytes per value=" + codec.numBytes +
+                    ", mean abs error=" + (sumAbs / n) +
+                    ", rmse=" + Math.sqrt(sumSquared / n) +
+                    ", max abs error=" + maxAbs);
+        }
+    }
+
+    /**
+     * Reservoir samples values from the matrix.
+     */
+    private float[] sampleValues(Iterable<? extends MatrixRow> matrix) {
+        Random random = new Random(0);
+        float sample[] = new float[SAMPLE_SIZE];
+        long n = 0;
+        for (MatrixRow row : matrix) {
+            for (int i = 0; i < row.getNumCols(); i++) {
+                if (n < SAMPLE_SIZE) {
+                    sample[(int) n] = row.getColValue(i);
+                } else {
+                    long j = (long) (random.nextDouble() * (n + 1));
+                    if (j < SAMPLE_SIZE) {
+                        sample[(int) j] = row.getColValue(i);
+                    }
+                }
+                n++;
+            }
+        }
+        if (n < SAMPLE_SIZE) {
+            float truncated[] = new float[(int) n];
+            System.arraycopy(sample, 0, truncated, 0, truncated.length);
+            sample = truncated;
+        }
+        LOG.info("sampled " + sample.length + " of " + n + " values");
+        return sample;
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 1 && !(args.length == 2 && args[1].equals("dense"))) {
+            System.err.println("java " + QuantizationErrorReport.class.getName() +
+                                " path_matrix [dense]");
+            System.exit(1);
+        }
+        File path = new File(args[0]);
+        if (args.length == 2) {
+            DenseMatrix matrix = new DenseMatrix(path, 1, 500*1024*1024);
+            new QuantizationErrorReport().report(matrix, matrix.getValueConf(), System.out);
+        } else {
+            SparseMatrix matrix = new SparseMatrix(path, 1, 500*1024*1024);
+            new QuantizationErrorReport().report(matrix.cursors(), matrix.getValueConf(), System.out);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The row directory of a matrix file: maps row ids to row offsets.
+ *
+ * Every matrix header has a table of (row id, offset) pairs in write order. Newer
+ * files also store a lookup index after that table, which is memory mapped rather
+ * than loaded, so opening a matrix takes almost no time or heap:
+ * - a sorted index (FLAG_SORTED_INDEX): m sorted ids followed by their m offsets,
+ *   searched with binary search. Every FENCE_STRIDE'th id is copied to the heap, so
+ *   a lookup searches the fences first and then a single page of mapped ids.
+ * - a dense index (FLAG_DENSE_INDEX): one offset (or -1) per id in [minId, maxId],
+ *   used when the ids are dense.
+ * For older files the sorted index is built on the heap from the write order table.
+ */
+public class RowIndex {
+    private static final Logger LOG = Logger.getLogger(RowIndex.class.getName());
+
+    /**
+     * Header flags for the lookup index. They are shared by sparse and dense matrices.
+     */
+    public static final int FLAG_SORTED_INDEX = 4;
+    public static final int FLAG_DENSE_INDEX = 8;
+
+    /**
+     * Ids are considered dense if the id range is at most this many times the number of rows.
+     */
+    public static final int MAX_DENSE_RATIO = 2;
+
+    /**
+     * Number of sorted ids between fences; 1024 ids fill one 4KB page.
+     */
+    public static final int FENCE_STRIDE = 1024;
+
+    /**
+     * The write order table.
+     */
+    private ByteBuffer table;
+    private int numRows;
+
+    private IntBuffer sortedIds;
+    private LongBuffer sortedOffsets;
+    private int fences[];
+
+    private int minId;
+    private LongBuffer denseOffsets;
+
+    /**
+     * The position in the file just after the table and index.
+     */
+    private long end;
+
+    private RowIndex() {}
+
+    /**
+     * Maps the row directory.
+     * @param channel The matrix header file.
+     * @param pos The position of the write order table.
+     * @param numRows
+     * @param flags The header flags.
+     * @return
+     * @throws IOException
+     */
+    public static RowIndex read(FileChannel channel, long pos, int numRows, int flags) throws IOException {
+        RowIndex index = new RowIndex();
+        index.numRows = numRows;
+        index.table = map(channel, pos, 12L * numRows);
+        pos += 12L * numRows;
+
+        if ((flags & FLAG_DENSE_INDEX) != 0) {
+            ByteBuffer header = map(channel, pos, 8);
+            index.minId = header.getInt(0);
+            int numSlots = header.getInt(4);
+            index.denseOffsets = map(channel, pos + 8, 8L * numSlots).asLongBuffer();
+            pos += 8 + 8L * numSlots;
+        } else if ((flags & FLAG_SORTED_INDEX) != 0) {
+            int numIds = map(channel, pos, 4).getInt(0);
+            index.sortedIds = map(channel, pos + 4, 4L * numIds).asIntBuffer();
+            index.sortedOffsets = map(channel, pos + 4 + 4L * numIds, 8L * numIds).asLongBuffer();
+            pos += 4 + 12L * numIds;
+        } else {
+            index.buildSortedIndex();
+        }
+        if (index.sortedIds != null) {
+            index.buildFences();
+        }
+        index.end = pos;
+        return index;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long pos, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+    }
+
+    /**
+     * Builds a sorted index on the heap for files that do not store one.
+     */
+    private void buildSortedIndex() {
+        LOG.log(Level.INFO, "building sorted row index for " + numRows + " rows");
+        long keys[] = sortKeys(getRowIds());
+        int ids[] = new int[keys.length];
+        long offsets[] = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ids[i] = (int) (keys[i] >> 32);
+            offsets[i] = getOffsetAt((int) keys[i]);
+        }
+        sortedIds = IntBuffer.wrap(ids);
+        sortedOffsets = LongBuffer.wrap(offsets);
+    }
+
+    private void buildFences() {
+        fences = new int[(sortedIds.limit() + FENCE_STRIDE - 1) / FENCE_STRIDE];
+        for (int i = 0; i < fences.length; i++) {
+            fences[i] = sortedIds.get(i * FENCE_STRIDE);
+        }
+    }
+
+    /**
+     * Sorts (id, position) pairs by id. If an id appears more than once, only its last position is kept.
+     * @return The pairs packed as (id << 32) | position.
+     */
+    private static long[] sortKeys(int rowIds[]) {
+        long keys[] = new long[rowIds.length];
+        for (int i = 0; i < rowIds.length; i++) {
+            keys[i] = ((long) rowIds[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i + 1 < keys.length && (int) (keys[i] >> 32) == (int) (keys[i + 1] >> 32)) {
+                continue;
+            }
+            keys[n++] = keys[i];
+        }
+        return (n == keys.length) ? keys : Arrays.copyOf(keys, n);
+    }
+
+    /**
+     * @return The offset of the row, or -1 if the row does not exist.
+     */
+    public long getOffset(int rowId) {
+        if (denseOffsets != null) {
+            long slot = (long) rowId - minId;
+            if (slot < 0 || slot >= denseOffsets.limit()) {
+                return -1;
+            }
+            return denseOffsets.get((int) slot);
+        }
+        // the last fence <= rowId bounds the block that may contain it
+        int f = Arrays.binarySearch(fences, rowId);
+        if (f >= 0) {
+            return sortedOffsets.get(f * FENCE_STRIDE);
+        }
+        f = -f - 2;
+        if (f < 0) {
+            return -1;
+        }
+        int lo = f * FENCE_STRIDE + 1;
+        int hi = Math.min(lo + FENCE_STRIDE - 1, sortedIds.limit()) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = sortedIds.get(mid);
+            if (id < rowId) {
+                lo = mid + 1;
+            } else if (id > rowId) {
+                hi = mid - 1;
+            } else {
+                return sortedOffsets.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    public boolean containsRow(int rowId) {
+        return getOffset(rowId) >= 0;
+    }
+
+    /**
+     * @return The number of entries in the write order table.
+     */
+    public int size() {
+        return numRows;
+    }
+
+    /**
+     * @return The id of the i'th row in write order.
+     */
+    public int getRowIdAt(int i) {
+        return table.getInt(12 * i);
+    }
+
+    /**
+     * @return The offset of the i'th row in write order.
+     */
+    public long getOffsetAt(int i) {
+        return table.getLong(12 * i + 4);
+    }
+
+    /**
+     * @return The row ids in write order.
+     */
+    public int[] getRowIds() {
+        int ids[] = new int[numRows];
+        for (int i = 0; i < numRows; i++) {
+            ids[i] = getRowIdAt(i);
+        }
+        return ids;
+    }
+
+    /**
+     * @return The position in the file just after the row directory.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return The index flag a writer should use for the ids.
+     */
+    public static int chooseIndexFlag(int rowIds[]) {
+        if (rowIds.length == 0) {
+            return FLAG_SORTED_INDEX;
+        }
+        int range[] = getRange(rowIds);
+        long numSlots = (long) range[1] - range[0] + 1;
+        return (numSlots <= (long) MAX_DENSE_RATIO * rowIds.length) ? FLAG_DENSE_INDEX : FLAG_SORTED_INDEX;
+    }
+
+    /**
+     * @return The number of bytes writeIndex() will write.
+     */
+    public static long getIndexSize(int flag, int rowIds[]) {
+        if (flag == FLAG_DENSE_INDEX) {
+            int range[] = getRange(rowIds);
+            return 8 + 8L * (range[1] - range[0] + 1);
+        } else {
+            return 4 + 12L * sortKeys(rowIds).length;
+        }
+    }
+
+    /**
+     * Writes the lookup index that follows the write order table.
+     * @param out
+     * @param flag FLAG_SORTED_INDEX or FLAG_DENSE_INDEX
+     * @param rowIds Row ids in write order.
+     * @param offsets Row offsets in write order.
+     * @throws IOException
+     */
+    public static void writeIndex(OutputStream out, int flag, int rowIds[], long offsets[]) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        if (flag == FLAG_DENSE_INDEX) {
+            int range[] = getRange(rowIds);
+            int numSlots = range[1] - range[0] + 1;
+            long slots[] = new long[numSlots];
+            Arrays.fill(slots, -1);
+            for (int i = 0; i < rowIds.length; i++) {
+                slots[rowIds[i] - range[0]] = offsets[i];
+            }
+            buffer.putInt(range[0]).putInt(numSlots);
+            out.write(buffer.array(), 0, 8);
+            for (long s : slots) {
+                buffer.clear();
+                out.write(buffer.putLong(s).array(), 0, 8);
+            }
+        } else {
+            long keys[] = sortKeys(rowIds);
+            out.write(buffer.putInt(keys.length).array(), 0, 4);
+            for (long k : keys) {
+                buffer.clear();
+                out.write(buffer.putInt((int) (k >> 32)).array(), 0, 4);
+            }
+            for (long k : keys) {
+                buffer.clear();
+                out.write(buffer.putLong(offsets[(int) k]).array(), 0, 8);
+            }
+        }
+    }
+
+    private static int[] getRange(int rowIds[]) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int id : rowIds) {
+            min = Math.min(min, id);
+            max = Math.max(max, id);
+        }
+        return new int[] { min, max };
+    }
+}
@@ -0,0 +1,219 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-row statistics of a sparse matrix: the norm of every row and the longest and
+ * mean row length.
+ *
+ * SparseMatrixWriter stores them in a sidecar file next to the matrix (path + ".norms"),
+ * which is memory mapped when it is opened, so readers do not have to scan the matrix.
+ * The sidecar records the number of rows and the length and modification time of the
+ * matrix file it was written for and is ignored if any of them no longer match.
+ *
+ * Sidecar layout: magic, numRows, maxRowLength, totalLength (long), matrix file length
+ * (long), matrix last modified (long), then numRows row ids in write order followed by
+ * their numRows norms.
+ */
+public final class RowNorms {
+    private static final Logger LOG = Logger.getLogger(RowNorms.class.getName());
+
+    public static final String SUFFIX = ".norms";
+    public static final int FILE_HEADER = 0xabcd06;
+    private static final int OLD_FILE_HEADER = 0xabcd01;
+    private static final int HEADER_SIZE = 36;
+
+    private final IntBuffer rowIds;
+    private final FloatBuffer norms;
+    private final int maxRowLength;
+    private final long totalLength;
+
+    private RowNorms(IntBuffer rowIds, FloatBuffer norms, int maxRowLength, long totalLength) {
+        this.rowIds = rowIds;
+        this.norms = norms;
+        this.maxRowLength = maxRowLength;
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * @return The sidecar file of a matrix.
+     */
+    public static File getFile(File matrixPath) {
+        return new File(matrixPath.getPath() + SUFFIX);
+    }
+
+    /**
+     * Maps the sidecar of a matrix, or scans the matrix if it has no valid sidecar.
+     */
+    public static RowNorms get(SparseMatrix matrix) throws IOException {
+        RowNorms norms = read(matrix);
+        if (norms == null) {
+            LOG.log(Level.INFO, "no row norms for " + matrix.getPath() + "; scanning the matrix");
+            norms = compute(matrix);
+        }
+        return norms;
+    }
+
+    /**
+     * Maps the sidecar of a matrix.
+     * @return The row norms, or null if the sidecar is missing or was written for another file.
+     */
+    public static RowNorms read(SparseMatrix matrix) throws IOException {
+        File file = getFile(matrix.getPath());
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() >= 4 && buffer.getInt(0) == OLD_FILE_HEADER) {
+                LOG.log(Level.INFO, "ignoring row norms file in an older format " + file);
+                return null;
+            }
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != FILE_HEADER) {
+                LOG.log(Level.WARNING, "ignoring invalid row norms file " + file);
+                return null;
+            }
+            int numRows = buffer.getInt(4);
+            int maxRowLength = buffer.getInt(8);
+            long totalLength = buffer.getLong(12);
+            long matrixLength = buffer.getLong(20);
+            long matrixModified = buffer.getLong(28);
+            if (numRows != matrix.getNumRows()
+            ||  matrixLength != matrix.getPath().length()
+            ||  matrixModified != matrix.getPath().lastModified()
+            ||  buffer.limit() != HEADER_SIZE + 8L * numRows) {
+                LOG.log(Level.WARNING, "ignoring stale row norms file " + file);
+                return null;
+            }
+            return new RowNorms(
+                    slice(buffer, HEADER_SIZE, numRows).asIntBuffer(),
+                    slice(buffer, HEADER_SIZE + 4L * numRows, numRows).asFloatBuffer(),
+                    maxRowLength, totalLength);
+        } finally {
+            raf.close();    // the mapping stays valid
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long pos, int numInts) {
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) pos);
+        view.limit((int) pos + 4 * numInts);
+        return view.slice();
+    }
+
+    /**
+     * Computes the row norms of a matrix by scanning every row.
+     */
+    public static RowNorms compute(SparseMatrix matrix) {
+        int n = matrix.getNumRows();
+        int ids[] = new int[n];
+        float norms[] = new float[n];
+        int maxLength = 0;
+        long totalLength = 0;
+        int i = 0;
+        for (SparseRowCursor row : matrix.cursors()) {
+            ids[i] = row.getRowIndex();
+            norms[i] = (float) row.getNorm();
+            maxLength = Math.max(maxLength, row.getNumCols());
+            totalLength += row.getNumCols();
+            i++;
+        }
+        return new RowNorms(IntBuffer.wrap(ids), FloatBuffer.wrap(norms), maxLength, totalLength);
+    }
+
+    /**
+     * Writes the sidecar of a matrix file that has just been written.
+     */
+    static void write(File matrixPath, int rowIds[], float norms[], int maxRowLength, long totalLength)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getFile(matrixPath)), 1024 * 1024));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(rowIds.length);
+            out.writeInt(maxRowLength);
+            out.writeLong(totalLength);
+            out.writeLong(matrixPath.length());
+            out.writeLong(matrixPath.lastModified());
+            for (int id : rowIds) {
+                out.writeInt(id);
+            }
+            for (float norm : norms) {
+                out.writeFloat(norm);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a sidecar for an existing matrix.
+     */
+    public static void write(SparseMatrix matrix) throws IOException {
+        RowNorms norms = compute(matrix);
+        write(matrix.getPath(), norms.rowIds.array(), norms.norms.array(), norms.maxRowLength, norms.totalLength);
+    }
+
+    public int getNumRows() {
+        return rowIds.limit();
+    }
+
+    /**
+     * @return The id of the i'th row in write order.
+     */
+    public int getRowId(int i) {
+        return rowIds.get(i);
+    }
+
+    /**
+     * @return The norm of the i'th row in write order.
+     */
+    public float getNorm(int i) {
+        return norms.get(i);
+    }
+
+    /**
+     * @return The number of columns in the longest row.
+     */
+    public int getMaxRowLength() {
+        return maxRowLength;
+    }
+
+    /**
+     * @return The mean number of columns in a row.
+     */
+    public double getMeanRowLength() {
+        return (getNumRows() == 0) ? 0.0 : 1.0 * totalLength / getNumRows();
+    }
+
+    long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Writes the sidecar of each matrix given on the command line.
+     */
+    public static void main(String args[]) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: java " + RowNorms.class.getName() + " matrix1 [matrix2 ...]");
+            System.exit(1);
+        }
+        for (String path : args) {
+            write(new SparseMatrix(new File(path)));
+            LOG.info("wrote " + getFile(new File(path)));
+        }
+    }
+}
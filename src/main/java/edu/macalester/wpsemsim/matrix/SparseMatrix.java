@@ -1,6 +1,5 @@
 package edu.macalester.wpsemsim.matrix;
 
-import gnu.trove.map.hash.TIntLongHashMap;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
@@ -9,6 +8,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -25,17 +25,53 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
 
     public static int DEFAULT_MAX_PAGE_SIZE = Integer.MAX_VALUE;
 
+    /**
+     * Header for files written before the header had flags.
+     */
     public static final int FILE_HEADER = 0xabcdef;
 
+    /**
+     * Header for files with a flags field.
+     */
+    public static final int FILE_HEADER_V2 = 0xabcdf0;
+
+    /**
+     * Flag: rows are stored in the compressed format.
+     * The value codec is stored in the flags too (see ValueConf.CODEC_FLAG_SHIFT).
+     */
+    public static final int FLAG_COMPRESSED = 1;
+
+    /**
+     * Flag: the file only holds the header, and the rows are in shard files listed after the row index.
+     */
+    public static final int FLAG_SHARDED = 2;
+
+    /**
+     * Flag: the column ids of every row are in increasing order.
+     * Compressed rows are always sorted, so compressed files set it too.
+     */
+    public static final int FLAG_SORTED_COLUMNS = 16;
+
     MemoryMappedMatrix rowBuffers;
 
     public int maxPageSize = DEFAULT_MAX_PAGE_SIZE;
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
-    private int rowIds[];
+    private RowIndex rowIndex;
+
+    /**
+     * Row ids in write order, created the first time they are requested.
+     */
+    private volatile int rowIds[];
     private FileChannel channel;
     private File path;
 
+    /**
+     * The files holding the rows and their offsets in the concatenated offset space.
+     */
+    private FileChannel segments[];
+    private long segmentStarts[];
+
     private ValueConf vconf;
+    private int flags = 0;
 
     public SparseMatrix(File path) throws IOException {
         this(path, Integer.MAX_VALUE, DEFAULT_MAX_PAGE_SIZE);
@@ -47,28 +83,60 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
         readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowOffsets, maxOpenPages, maxPageSize);
+        rowBuffers = new MemoryMappedMatrix(path, segments, segmentStarts, rowIndex, maxOpenPages, maxPageSize);
     }
 
     private void readHeaders() throws IOException {
-        long size = Math.min(channel.size(), maxPageSize);
-        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
-        if (buffer.getInt(0) != FILE_HEADER) {
-            throw new IOException("invalid file header: " + buffer.getInt(0));
+        long maxHeaderSize = 12 + ValueConf.MAX_HEADER_BYTES;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(maxHeaderSize, channel.size()));
+        int pos = 0;
+        int header = buffer.getInt(pos);
+        pos += 4;
+        if (header == FILE_HEADER_V2) {
+            flags = buffer.getInt(pos);
+            pos += 4;
+        } else if (header != FILE_HEADER) {
+            throw new IOException("invalid file header: " + header);
         }
-        this.vconf = new ValueConf(buffer.getFloat(4), buffer.getFloat(8));
-        int numRows = buffer.getInt(12);
-        info("reading offsets for " + numRows + " rows");
-        rowIds = new int[numRows];
-        for (int i = 0; i < numRows; i++) {
-            int pos = 16 + 12 * i;
-            int rowIndex = buffer.getInt(pos);
-            long rowOffset = buffer.getLong(pos + 4);
-            rowOffsets.put(rowIndex, rowOffset);
-//            debug("adding row index " + rowIndex + " at offset " + rowOffset);
-            rowIds[i] = rowIndex;
+        this.vconf = ValueConf.readHeader(flags, buffer, pos);
+        pos += vconf.getHeaderSize();
+        int numRows = buffer.getInt(pos);
+        pos += 4;
+
+        rowIndex = RowIndex.read(channel, pos, numRows, flags);
+        info("mapped offsets for " + numRows + " rows");
+
+        if (isSharded()) {
+            readShards(rowIndex.getEnd());
+        } else {
+            segments = new FileChannel[] { channel };
+            segmentStarts = new long[] { 0 };
         }
-        info("read " + numRows + " offsets");
+    }
+
+    /**
+     * Opens the shards listed at pos in the header file.
+     * Shard names are relative to the directory containing the header file.
+     */
+    private void readShards(long pos) throws IOException {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, channel.size() - pos);
+        int numShards = buffer.getInt();
+        segments = new FileChannel[numShards];
+        segmentStarts = new long[numShards];
+        long start = 0;
+        for (int i = 0; i < numShards; i++) {
+            long length = buffer.getLong();
+            byte name[] = new byte[buffer.getInt()];
+            buffer.get(name);
+            File shard = new File(path.getAbsoluteFile().getParentFile(), new String(name, "UTF-8"));
+            if (!shard.isFile() || shard.length() != length) {
+                throw new IOException("shard " + shard + " is missing or does not have length " + length);
+            }
+            segments[i] = new FileInputStream(shard).getChannel();
+            segmentStarts[i] = start;
+            start += length;
+        }
+        info("opened " + numShards + " shards");
     }
 
 
@@ -78,26 +146,113 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         if (bb == null) {
             return null;
         } else {
-            return new SparseMatrixRow(vconf, bb);
+            SparseMatrixRow row = new SparseMatrixRow(vconf, bb);
+            if (hasSortedColumns()) {
+                row.markSortedIds();
+            }
+            return row;
+        }
+    }
+
+    /**
+     * Points a reusable cursor at a row instead of allocating a new SparseMatrixRow.
+     * @param rowId
+     * @param reuse The cursor to reuse. If null, a new cursor is allocated.
+     * @return The cursor, or null if the row does not exist.
+     * @throws IOException
+     */
+    public SparseRowCursor readRow(int rowId, SparseRowCursor reuse) throws IOException {
+        if (reuse == null) {
+            reuse = new SparseRowCursor();
+        }
+        if (!rowBuffers.readRow(rowId, vconf, reuse)) {
+            return null;
         }
+        if (hasSortedColumns()) {
+            reuse.markSortedIds();
+        }
+        return reuse;
     }
 
     @Override
     public int[] getRowIds() {
+        if (rowIds == null) {
+            rowIds = rowIndex.getRowIds();
+        }
         return rowIds;
     }
 
     @Override
     public int getNumRows() {
-        return rowIds.length;
+        return rowIndex.size();
     }
 
     public ValueConf getValueConf() {
         return vconf;
     }
 
+    /**
+     * @return True if rows are stored in the compressed format.
+     */
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * @return True if the column ids of every row are sorted.
+     */
+    public boolean hasSortedColumns() {
+        return (flags & (FLAG_SORTED_COLUMNS | FLAG_COMPRESSED)) != 0;
+    }
+
+    /**
+     * @return True if rows are stored in shard files next to the header file.
+     */
+    public boolean isSharded() {
+        return (flags & FLAG_SHARDED) != 0;
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    RowIndex getRowIndex() {
+        return rowIndex;
+    }
+
+    /**
+     * @return The offset of the first row byte; row offsets minus this address the bytes copied by transferRows().
+     */
+    long getRowDataStart() {
+        return isSharded() ? 0 : rowIndex.getEnd();
+    }
+
+    /**
+     * @return The number of bytes holding rows, across all shards.
+     */
+    long getRowDataLength() throws IOException {
+        long length = 0;
+        for (FileChannel segment : segments) {
+            length += segment.size();
+        }
+        return length - getRowDataStart();
+    }
+
+    /**
+     * Copies the bytes of every row, as stored, to a channel.
+     */
+    void transferRows(WritableByteChannel out) throws IOException {
+        for (FileChannel segment : segments) {
+            long pos = (segment == channel) ? getRowDataStart() : 0;
+            long end = segment.size();
+            while (pos < end) {
+                pos += segment.transferTo(pos, end - pos, out);
+            }
+        }
+    }
+
     public void dump() throws IOException {
-        for (int id : rowIds) {
+        for (int id : getRowIds()) {
             System.out.print("" + id + ": ");
             MatrixRow row = getRow(id);
             for (int i = 0; i < row.getNumCols(); i++) {
@@ -118,12 +273,12 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         private int i = 0;
         @Override
         public boolean hasNext() {
-            return i < rowIds.length;
+            return i < rowIndex.size();
         }
         @Override
         public SparseMatrixRow next() {
             try {
-                return (SparseMatrixRow)getRow(rowIds[i++]);
+                return getRow(rowIndex.getRowIdAt(i++));
             } catch (IOException e) {
                 LOG.log(Level.SEVERE, "getRow failed", e);
                 return null;
@@ -135,6 +290,42 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         }
     }
 
+    /**
+     * Iterates over the rows using a single cursor, so a full pass allocates nothing per row.
+     * Each row returned by the iterator is only valid until the next call to next().
+     * @return
+     */
+    public Iterable<SparseRowCursor> cursors() {
+        return new Iterable<SparseRowCursor>() {
+            @Override
+            public Iterator<SparseRowCursor> iterator() {
+                return new SparseMatrixCursorIterator();
+            }
+        };
+    }
+
+    public class SparseMatrixCursorIterator implements Iterator<SparseRowCursor> {
+        private int i = 0;
+        private SparseRowCursor cursor = new SparseRowCursor();
+        @Override
+        public boolean hasNext() {
+            return i < rowIndex.size();
+        }
+        @Override
+        public SparseRowCursor next() {
+            try {
+                return readRow(rowIndex.getRowIdAt(i++), cursor);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "readRow failed", e);
+                return null;
+            }
+        }
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     @Override
     public File getPath() {
         return path;
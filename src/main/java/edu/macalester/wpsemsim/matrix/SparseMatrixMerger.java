@@ -0,0 +1,151 @@
+package edu.macalester.wpsemsim.matrix;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Concatenates sparse matrices with disjoint row ids, such as the outputs of a build
+ * split with --partition, into one unsharded matrix.
+ *
+ * Row bodies are not decoded: the merged header is written with each input's row
+ * offsets shifted by the bytes of the inputs before it, and then the row bytes of each
+ * input (the body of an unsharded file, or all the shards of a sharded one) are copied
+ * with FileChannel.transferTo(). Row norm sidecars are concatenated the same way.
+ *
+ * The inputs must use the same value codec and row format.
+ */
+public class SparseMatrixMerger {
+    private static final Logger LOG = Logger.getLogger(SparseMatrixMerger.class.getName());
+
+    private List<SparseMatrix> inputs;
+    private File path;
+
+    /**
+     * @param inputs The matrices to merge. Their rows are written in this order.
+     * @param path The output file.
+     */
+    public SparseMatrixMerger(List<SparseMatrix> inputs, File path) {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("no matrices to merge");
+        }
+        this.inputs = inputs;
+        this.path = path;
+    }
+
+    public void merge() throws IOException {
+        SparseMatrix first = inputs.get(0);
+        ValueConf vconf = first.getValueConf();
+        boolean sortedColumns = true;
+        int numRows = 0;
+        for (SparseMatrix input : inputs) {
+            if (input.getPath().getCanonicalFile().equals(path.getCanonicalFile())) {
+                throw new IllegalArgumentException("output " + path + " is also an input");
+            }
+            // the codec is stored in the header flags, not the header bytes
+            if (input.isCompressed() != first.isCompressed()
+            ||  input.getValueConf().getCodecFlags() != vconf.getCodecFlags()
+            ||  !Arrays.equals(input.getValueConf().getHeaderBytes(), vconf.getHeaderBytes())) {
+                throw new IllegalArgumentException("matrix " + input.getPath() +
+                        " has a different row format or value codec than " + first.getPath());
+            }
+            sortedColumns &= input.hasSortedColumns();
+            numRows += input.getNumRows();
+        }
+
+        int rowIds[] = new int[numRows];
+        long rowOffsets[] = new long[numRows];
+        TIntSet seen = new TIntHashSet(numRows);
+        long base = 0;
+        int i = 0;
+        for (SparseMatrix input : inputs) {
+            RowIndex index = input.getRowIndex();
+            long start = input.getRowDataStart();
+            for (int j = 0; j < index.size(); j++, i++) {
+                rowIds[i] = index.getRowIdAt(j);
+                rowOffsets[i] = base + index.getOffsetAt(j) - start;
+                if (!seen.add(rowIds[i])) {
+                    throw new IllegalArgumentException("row " + rowIds[i] + " appears in more than one matrix");
+                }
+            }
+            base += input.getRowDataLength();
+        }
+
+        int indexFlag = RowIndex.chooseIndexFlag(rowIds);
+        long sizeHeader = SparseMatrixWriter.getHeaderSize(vconf, indexFlag, rowIds);
+        for (i = 0; i < rowOffsets.length; i++) {
+            rowOffsets[i] += sizeHeader;
+        }
+        int flags = vconf.getCodecFlags() | indexFlag |
+                (first.isCompressed() ? SparseMatrix.FLAG_COMPRESSED : 0) |
+                (sortedColumns ? SparseMatrix.FLAG_SORTED_COLUMNS : 0);
+
+        FileOutputStream fileOut = new FileOutputStream(path);
+        try {
+            BufferedOutputStream out = new BufferedOutputStream(fileOut, 1024 * 1024);
+            SparseMatrixWriter.writeHeader(out, vconf, flags, rowIds, rowOffsets);
+            out.flush();
+            for (SparseMatrix input : inputs) {
+                input.transferRows(fileOut.getChannel());
+                info("copied " + input.getNumRows() + " rows from " + input.getPath());
+            }
+        } finally {
+            fileOut.close();
+        }
+        if (path.length() != sizeHeader + base) {
+            throw new IOException("merged matrix " + path + " has length " + path.length() +
+                    " instead of " + (sizeHeader + base));
+        }
+        info("wrote " + numRows + " rows in " + FileUtils.sizeOf(path) + " bytes");
+        writeRowNorms(numRows);
+    }
+
+    /**
+     * Concatenates the row norms of the inputs, scanning any input without a sidecar.
+     * Rows of the merged matrix are in the same order as the norms.
+     */
+    private void writeRowNorms(int numRows) throws IOException {
+        int ids[] = new int[numRows];
+        float norms[] = new float[numRows];
+        int maxRowLength = 0;
+        long totalLength = 0;
+        int i = 0;
+        for (SparseMatrix input : inputs) {
+            RowNorms inputNorms = RowNorms.get(input);
+            for (int j = 0; j < inputNorms.getNumRows(); j++, i++) {
+                ids[i] = inputNorms.getRowId(j);
+                norms[i] = inputNorms.getNorm(j);
+            }
+            maxRowLength = Math.max(maxRowLength, inputNorms.getMaxRowLength());
+            totalLength += inputNorms.getTotalLength();
+        }
+        RowNorms.write(path, ids, norms, maxRowLength, totalLength);
+    }
+
+    private void info(String message) {
+        LOG.log(Level.INFO, "sparse matrix merger " + path + ": " + message);
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: java " + SparseMatrixMerger.class.getName() +
+                    " output_path input_path1 [input_path2 ...]");
+            System.exit(1);
+        }
+        List<SparseMatrix> inputs = new ArrayList<SparseMatrix>();
+        for (int i = 1; i < args.length; i++) {
+            inputs.add(new SparseMatrix(new File(args[i])));
+        }
+        new SparseMatrixMerger(inputs, new File(args[0])).merge();
+    }
+}
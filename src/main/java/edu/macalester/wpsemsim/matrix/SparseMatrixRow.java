@@ -4,21 +4,25 @@ import gnu.trove.map.hash.TIntFloatHashMap;
 import org.apache.commons.lang3.ArrayUtils;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 
 /**
  * A single sparse matrix row backed by a byte buffer. The row contains:
  * - a row id (int),
- * - a set of n columns, each with an id (int) and value (float packed into two bytes)
+ * - a set of n columns, each with an id (int) and value (float packed by the ValueConf's codec)
  *
  * The row can either be created from the component data, or from a byte buffer.
  * This means that the object can wrap data from an mmap'd file in the correct format.
+ * Rows created from component data use the raw format. Rows wrapping a buffer may also
+ * use the compressed format (see SparseRowCursor), which SparseMatrixWriter produces
+ * when asked to.
+ *
+ * Unlike a SparseRowCursor, a row may be read by several threads at once: the column ids
+ * of a compressed row are decoded into an array the first time they are needed.
  */
 public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
-    Logger LOG = Logger.getLogger(SparseMatrixRow.class.getName());
+    private static final Logger LOG = Logger.getLogger(SparseMatrixRow.class.getName());
     public static final Float MIN_SCORE = -1.1f;
     public static final Float MAX_SCORE = 1.1f;
 
@@ -26,6 +30,7 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public static final int PACKED_RANGE = (Short.MAX_VALUE - Short.MIN_VALUE);
 
     public static final int HEADER = 0xfefefefe;
+    public static final int HEADER_COMPRESSED = 0xfefefefd;
 
     /**
      * The main "source" buffer.
@@ -33,19 +38,15 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     private ByteBuffer buffer;
 
     /**
-     * A view buffer that points to the header.
+     * Decodes the buffer in either row format.
      */
-    private IntBuffer headerBuffer;
+    private SparseRowCursor cursor = new SparseRowCursor();
 
     /**
-     * A view buffer that points to the ids.
+     * The decoded column ids of a compressed row, or null until they are first read.
      */
-    private IntBuffer idBuffer;
+    private volatile int compressedIds[];
 
-    /**
-     * A view buffer that points to the values.
-     */
-    private ShortBuffer valBuffer;
     private ValueConf vconf;
 
     public SparseMatrixRow(ValueConf vconf, int rowIndex, LinkedHashMap<Integer, Float> row) {
@@ -57,19 +58,25 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
 
     public SparseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], float colVals[]) {
         this.vconf = vconf;
-        short packed[] = new short[colVals.length];
+        int packed[] = new int[colVals.length];
         for (int i = 0; i < colVals.length; i++) {
             packed[i] = vconf.pack(colVals[i]);
         }
         createBuffer(rowIndex, colIds, packed);
     }
 
-    public SparseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], short colVals[]) {
+    /**
+     * @param vconf
+     * @param rowIndex
+     * @param colIds
+     * @param colVals Values already packed by vconf.
+     */
+    public SparseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], int colVals[]) {
         this.vconf = vconf;
         createBuffer(rowIndex, colIds, colVals);
     }
 
-    public void createBuffer(int rowIndex, int colIds[], short colVals[]) {
+    public void createBuffer(int rowIndex, int colIds[], int colVals[]) {
         assert(colIds.length == colVals.length);
 
         buffer = ByteBuffer.allocate(
@@ -77,24 +84,31 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
                 4 +                 // row index
                 4 +                 // num cols
                 4 * colVals.length +    // col indexes
-                2 * colVals.length      // col values
+                vconf.getNumBytes() * colVals.length      // col values
         );
-        createViewBuffers(colVals.length);
-
-        headerBuffer.put(0, HEADER);
-        headerBuffer.put(1, rowIndex);
-        headerBuffer.put(2, colVals.length);
-        idBuffer.put(colIds, 0, colIds.length);
-        valBuffer.put(colVals, 0, colVals.length);
+        buffer.putInt(HEADER);
+        buffer.putInt(rowIndex);
+        buffer.putInt(colVals.length);
+        for (int id : colIds) {
+            buffer.putInt(id);
+        }
+        for (int v : colVals) {
+            vconf.putPacked(buffer, v);
+        }
+        buffer.rewind();
+        cursor.wrap(vconf, buffer, 0);
+        if (isSorted(colIds)) {
+            cursor.markSortedIds();
+        }
     }
 
-    private void createViewBuffers(int numColumns) {
-        buffer.position(0);
-        headerBuffer = buffer.asIntBuffer();
-        buffer.position(3 * 4);
-        idBuffer = buffer.asIntBuffer();
-        buffer.position(3 * 4 + numColumns * 4);
-        valBuffer = buffer.asShortBuffer();
+    private static boolean isSorted(int ids[]) {
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] < ids[i - 1]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -104,34 +118,67 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public SparseMatrixRow(ValueConf vconf, ByteBuffer buffer) {
         this.vconf = vconf;
         this.buffer = buffer;
-        if (this.buffer.getInt(0) != HEADER) {
-            throw new IllegalArgumentException("Invalid header in byte buffer");
-        }
-        createViewBuffers(buffer.getInt(8));
+        cursor.wrap(vconf, buffer, 0);
     }
 
     @Override
     public final int getColIndex(int i) {
-        return idBuffer.get(i);
+        if (!cursor.isCompressed()) {
+            return cursor.getColIndex(i);
+        }
+        int ids[] = compressedIds;
+        if (ids == null) {
+            // racing threads decode the same ids, so either copy may win
+            ids = cursor.decodeColIndexes();
+            compressedIds = ids;
+        }
+        return ids[i];
     }
 
     @Override
     public final float getColValue(int i) {
-        return vconf.unpack(valBuffer.get(i));
+        return cursor.getColValue(i);
     }
 
-    public final short getPackedColValue(int i) {
-        return valBuffer.get(i);
+    public final int getPackedColValue(int i) {
+        return cursor.getPackedColValue(i);
     }
 
     @Override
     public final int getRowIndex() {
-        return headerBuffer.get(1);
+        return cursor.getRowIndex();
     }
 
     @Override
     public final int getNumCols() {
-        return headerBuffer.get(2);
+        return cursor.getNumCols();
+    }
+
+    /**
+     * @return True if the row uses the compressed format.
+     */
+    public boolean isCompressed() {
+        return cursor.isCompressed();
+    }
+
+    /**
+     * Records that the column ids of the row are sorted.
+     */
+    void markSortedIds() {
+        cursor.markSortedIds();
+    }
+
+    @Override
+    public boolean hasSortedIds() {
+        return cursor.hasSortedIds();
+    }
+
+    /**
+     * Compressed ids are sorted, so once decoded they are binary searched.
+     */
+    @Override
+    public int getIndexForId(int id) {
+        return cursor.isCompressed() ? super.getIndexForId(id) : cursor.getIndexForId(id);
     }
 
     public ByteBuffer getBuffer() {
@@ -5,14 +5,27 @@ import java.io.IOException;
 import java.util.Arrays;
 
 /**
- * Writes an output matrix with the same rows, but sorted by row ids
+ * Writes an output matrix with the same rows, but sorted by row ids.
+ * It can also sort the columns of each row by id, which converts an existing
+ * matrix to the sorted-column format (see SparseMatrix.FLAG_SORTED_COLUMNS).
  */
 public class SparseMatrixSorter {
     public void sort(SparseMatrix matrix, File file) throws IOException {
+        sort(matrix, file, matrix.hasSortedColumns());
+    }
+
+    /**
+     * @param matrix
+     * @param file
+     * @param sortColumns If true, the columns of each output row are sorted by id.
+     * @throws IOException
+     */
+    public void sort(SparseMatrix matrix, File file, boolean sortColumns) throws IOException {
         int rowIds[] = matrix.getRowIds();
         rowIds = Arrays.copyOf(rowIds, rowIds.length);
         Arrays.sort(rowIds);
-        SparseMatrixWriter writer = new SparseMatrixWriter(file, matrix.getValueConf());
+        SparseMatrixWriter writer = new SparseMatrixWriter(
+                file, matrix.getValueConf(), matrix.isCompressed(), false, sortColumns);
         for (int id : rowIds) {
             writer.writeRow(matrix.getRow(id));
 
@@ -21,13 +34,13 @@ public class SparseMatrixSorter {
     }
 
     public static void main(String args[]) throws IOException {
-        if (args.length != 2) {
+        if (args.length != 2 && !(args.length == 3 && args[2].equals("sort-columns"))) {
             System.err.println("usage: java " +
                     SparseMatrixSorter.class.getName() +
-                    " input_path output_path");
+                    " input_path output_path [sort-columns]");
             System.exit(1);
         }
         SparseMatrix src = new SparseMatrix(new File(args[0]));
-        new SparseMatrixSorter().sort(src, new File(args[1]));
+        new SparseMatrixSorter().sort(src, new File(args[1]), args.length == 3 || src.hasSortedColumns());
     }
 }
@@ -1,148 +1,410 @@
 package edu.macalester.wpsemsim.matrix;
 
+import edu.macalester.wpsemsim.utils.Function;
+import edu.macalester.wpsemsim.utils.ParallelForEach;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.list.array.TShortArrayList;
-import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.set.hash.TIntHashSet;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * Transposes a sparse matrix using an external sort.
+ *
+ * A single pass over the source matrix buffers its cells. Each full buffer is sorted
+ * by column on a worker thread and written to a temporary run file, while the pass
+ * continues into another buffer. The runs are then merged, and each transposed row is
+ * streamed to a SparseMatrixWriter. The runs take about as much disk as the source matrix.
+ *
+ * Within a transposed row, columns appear in the order of the source rows.
+ */
 public class SparseMatrixTransposer {
     final static Logger LOG = Logger.getLogger(SparseMatrixTransposer.class.getName());
 
+    /**
+     * Buffer bytes used by each cell: a sort key, a row id and a packed value.
+     */
+    private static final int BYTES_PER_CELL = 8 + 4 + 4;
+
+    /**
+     * The maximum number of runs that are merged at once.
+     * If there are more runs, groups of them are merged into larger runs first.
+     */
+    public static int MAX_FAN_IN = 256;
+
     private SparseMatrixWriter writer;
     private SparseMatrix matrix;
-    private int colIds[];
-    private TIntIntHashMap colCounts = new TIntIntHashMap();
+    private ValueConf vconf;
     private int bufferMb;
-    private int numColsTransposed = 0;
+    private int numThreads;
 
+    /**
+     * Every run file created, so all of them can be deleted even if the transpose fails.
+     */
+    private final List<File> runFiles = Collections.synchronizedList(new ArrayList<File>());
 
     public SparseMatrixTransposer(SparseMatrix m, File f, int bufferMb) throws IOException {
+        this(m, f, bufferMb, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param m The matrix to transpose.
+     * @param f The output file.
+     * @param bufferMb The total size of the cell buffers.
+     * @param numThreads Number of threads that sort and merge runs.
+     * @throws IOException
+     */
+    public SparseMatrixTransposer(SparseMatrix m, File f, int bufferMb, int numThreads) throws IOException {
         this.matrix = m;
-        this.writer = new SparseMatrixWriter(f, m.getValueConf());
+        this.vconf = m.getValueConf();
+        this.writer = new SparseMatrixWriter(f, vconf, m.isCompressed(), false, m.hasSortedColumns());
         this.bufferMb = bufferMb;
-        this.numColsTransposed = 0;
+        this.numThreads = Math.max(1, numThreads);
     }
 
     public void transpose() throws IOException {
-        countCellsPerColumn();
-        while (numColsTransposed < colIds.length) {
-            Map<Integer, RowAccumulator> batch = accumulateBatch();
-            writeBatch(batch.values());
+        try {
+            List<File> runs = writeRuns();
+            while (runs.size() > MAX_FAN_IN) {
+                runs = mergeRuns(runs);
+            }
+            merge(runs, null);
+        } finally {
+            synchronized (runFiles) {
+                for (File run : runFiles) {
+                    run.delete();
+                }
+            }
         }
         this.writer.finish();
     }
 
-    private void countCellsPerColumn() throws IOException {
-        for (int id : matrix.getRowIds()) {
-            MatrixRow row = matrix.getRow(id);
-            for (int i = 0; i < row.getNumCols(); i++) {
-                colCounts.adjustOrPutValue(row.getColIndex(i), 1, 1);
-            }
+    /**
+     * Reads the source matrix once, writing its cells to runs sorted by column.
+     * @return The runs, in the order of the source rows they contain.
+     */
+    private List<File> writeRuns() throws IOException {
+        // one buffer per sorting thread, plus one that is being filled
+        int numBuffers = numThreads + 1;
+        int capacity = (int) Math.max(1, Math.min(
+                Integer.MAX_VALUE - 8,
+                1024L * 1024L * bufferMb / BYTES_PER_CELL / numBuffers));
+        final BlockingQueue<CellBuffer> free = new ArrayBlockingQueue<CellBuffer>(numBuffers);
+        for (int i = 0; i < numBuffers; i++) {
+            free.add(new CellBuffer(capacity));
         }
+        LOG.info("transposing with " + numBuffers + " buffers of " + capacity + " cells");
 
-        colIds = colCounts.keys();
-        LOG.info("found " + colIds.length + " unique column ids in matrix");
-        Arrays.sort(colIds);
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        List<Future<File>> futures = new ArrayList<Future<File>>();
+        try {
+            CellBuffer buffer = free.take();
+            for (SparseRowCursor row : matrix.cursors()) {
+                int rowId = row.getRowIndex();
+                for (int i = 0; i < row.getNumCols(); i++) {
+                    if (buffer.isFull()) {
+                        futures.add(exec.submit(new RunWriter(buffer, free)));
+                        buffer = free.take();
+                    }
+                    buffer.add(row.getColIndex(i), rowId, row.getPackedColValue(i));
+                }
+            }
+            if (buffer.size > 0) {
+                futures.add(exec.submit(new RunWriter(buffer, free)));
+            }
+
+            List<File> runs = new ArrayList<File>();
+            for (Future<File> f : futures) {
+                runs.add(f.get());
+            }
+            LOG.info("wrote " + runs.size() + " sorted runs");
+            return runs;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            // let running writers finish, so transpose() can delete every run they create
+            exec.shutdownNow();
+            try {
+                exec.awaitTermination(1, TimeUnit.HOURS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
-    public Map<Integer, RowAccumulator> accumulateBatch() {
-        Map<Integer, RowAccumulator> transposedBatch = new LinkedHashMap<Integer, RowAccumulator>();
+    /**
+     * Merges consecutive groups of runs into larger runs in parallel.
+     */
+    private List<File> mergeRuns(List<File> runs) throws IOException {
+        List<List<File>> groups = new ArrayList<List<File>>();
+        for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+            groups.add(runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN)));
+        }
+        LOG.info("merging " + runs.size() + " runs into " + groups.size());
+        List<File> merged = ParallelForEach.loop(groups, numThreads, new Function<List<File>, File>() {
+            public File call(List<File> group) throws IOException {
+                File output = createRunFile();
+                merge(group, output);
+                return output;
+            }
+        });
+        for (File run : runs) {
+            run.delete();
+        }
+        if (merged.contains(null)) {
+            throw new IOException("merging runs failed");
+        }
+        return merged;
+    }
 
-        // figure out which columns we are tracking
-        double mbs = 0;
-        TIntHashSet colIdsInBatch = new TIntHashSet();
-        for (int i = numColsTransposed; i  < colIds.length; i++) {
-            int colId = colIds[i];
-            int colSize = colCounts.get(colId);
-            double rowMbs = getSizeInMbOfRowDataStructure(colSize);
-            if (mbs + rowMbs > bufferMb) {
-                break;
+    /**
+     * Merges runs, writing transposed rows to either a new run or the matrix writer.
+     * @param runs
+     * @param output The run to write to, or null to write to the matrix writer.
+     */
+    private void merge(List<File> runs, File output) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(
+                Math.max(1, runs.size()), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader r1, RunReader r2) {
+                if (r1.colId != r2.colId) {
+                    return r1.colId < r2.colId ? -1 : +1;
+                }
+                return r1.index - r2.index;
             }
-            colIdsInBatch.add(colId);
-            mbs += rowMbs;
-        }
-        numColsTransposed += colIdsInBatch.size();
-        LOG.info("processing " + colIdsInBatch.size() + " columns in batch (total=" + numColsTransposed + " of " + colCounts.size() + ")");
-
-        for (SparseMatrixRow row : matrix) {
-            int rowId = row.getRowIndex();
-            for (int i = 0; i < row.getNumCols(); i++) {
-                int colId = row.getColIndex(i);
-                if (!colIdsInBatch.contains(colId)) {
-                    continue;
+        });
+        DataOutputStream out = (output == null) ? null : openRun(output);
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(runs.get(i), i, vconf);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
                 }
-                short colValue = row.getPackedColValue(i);
-                if (!transposedBatch.containsKey(colId)) {
-                    transposedBatch.put(colId, new RowAccumulator(colId));
+            }
+            TIntArrayList rowIds = new TIntArrayList();
+            TIntArrayList vals = new TIntArrayList();
+            List<RunReader> readers = new ArrayList<RunReader>();
+            while (!queue.isEmpty()) {
+                // ties are broken by run index, so cells stay in source row order
+                int colId = queue.peek().colId;
+                while (!queue.isEmpty() && queue.peek().colId == colId) {
+                    RunReader reader = queue.poll();
+                    reader.readCells(rowIds, vals);
+                    readers.add(reader);
+                }
+                if (out == null) {
+                    writer.writeRow(new SparseMatrixRow(vconf, colId, rowIds.toArray(), vals.toArray()));
+                } else {
+                    writeGroup(out, colId, rowIds, vals);
                 }
-                transposedBatch.get(colId).addCol(rowId, colValue);
+                rowIds.resetQuick();
+                vals.resetQuick();
+                for (RunReader reader : readers) {
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+                readers.clear();
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+            if (out != null) {
+                endRun(out);
             }
         }
+    }
 
-        for (int id : transposedBatch.keySet()) {
-            if (colCounts.get(id) != transposedBatch.get(id).size()) {
-                throw new IllegalArgumentException("row size unexpected!");
-            }
+    /**
+     * A run is a sequence of groups sorted by column id. Each group has a column id,
+     * the number of cells n, and n (row id, packed value) pairs. A group with n = -1 ends the run.
+     */
+    private File createRunFile() throws IOException {
+        File f = File.createTempFile("transpose", ".run");
+        f.deleteOnExit();
+        runFiles.add(f);
+        return f;
+    }
+
+    /**
+     * @return Every run file created so far. They are deleted when transpose() returns.
+     */
+    List<File> getRunFiles() {
+        synchronized (runFiles) {
+            return new ArrayList<File>(runFiles);
+        }
+    }
+
+    private static DataOutputStream openRun(File f) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1024 * 1024));
+    }
+
+    private void writeGroup(DataOutputStream out, int colId, TIntArrayList rowIds, TIntArrayList vals) throws IOException {
+        out.writeInt(colId);
+        out.writeInt(rowIds.size());
+        for (int i = 0; i < rowIds.size(); i++) {
+            out.writeInt(rowIds.get(i));
+            writePacked(out, vals.get(i));
         }
+    }
+
+    private static void endRun(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+        out.writeInt(-1);
+        out.close();
+    }
 
-        return transposedBatch;
+    private void writePacked(DataOutputStream out, int packed) throws IOException {
+        switch (vconf.getNumBytes()) {
+            case 1: out.writeByte(packed); break;
+            case 2: out.writeShort(packed); break;
+            default: out.writeInt(packed); break;
+        }
     }
 
-    public void writeBatch(Collection<RowAccumulator> batch) throws IOException {
-        for (RowAccumulator ra: batch) {
-            writer.writeRow(ra.toRow(matrix.getValueConf()));
+    /**
+     * Cells buffered in source row order.
+     * Sorting by (column id, position in buffer) groups cells by column but keeps that order.
+     */
+    static class CellBuffer {
+        long keys[];
+        int rowIds[];
+        int vals[];
+        int size = 0;
+
+        CellBuffer(int capacity) {
+            keys = new long[capacity];
+            rowIds = new int[capacity];
+            vals = new int[capacity];
+        }
+
+        boolean isFull() {
+            return size == keys.length;
+        }
+
+        void add(int colId, int rowId, int val) {
+            keys[size] = ((long) colId << 32) | size;
+            rowIds[size] = rowId;
+            vals[size] = val;
+            size++;
         }
     }
 
-    private static final int BYTES_PER_REF =
-            Integer.valueOf(System.getProperty("sun.arch.data.model")) / 8;
-    private static final int BYTES_PER_OBJECT = 40;     // an estimate at overhead
+    /**
+     * Sorts a buffer, writes it to a new run, and returns the buffer to the free queue.
+     */
+    class RunWriter implements Callable<File> {
+        private CellBuffer buffer;
+        private BlockingQueue<CellBuffer> free;
+
+        RunWriter(CellBuffer buffer, BlockingQueue<CellBuffer> free) {
+            this.buffer = buffer;
+            this.free = free;
+        }
 
-    private double getSizeInMbOfRowDataStructure(int numEntries) {
-        return (
-            // row accumulator object itself
-            BYTES_PER_OBJECT + 4 + 2 * BYTES_PER_REF +
-            // ids and values in accumulator
-            numEntries * (4 + 2)
-        ) / (1024.0 * 1024.0);
+        @Override
+        public File call() throws IOException {
+            try {
+                long keys[] = buffer.keys;
+                Arrays.sort(keys, 0, buffer.size);
+                File f = createRunFile();
+                DataOutputStream out = openRun(f);
+                int i = 0;
+                while (i < buffer.size) {
+                    int colId = (int) (keys[i] >> 32);
+                    int j = i;
+                    while (j < buffer.size && (int) (keys[j] >> 32) == colId) {
+                        j++;
+                    }
+                    out.writeInt(colId);
+                    out.writeInt(j - i);
+                    for (; i < j; i++) {
+                        int k = (int) keys[i];
+                        out.writeInt(buffer.rowIds[k]);
+                        writePacked(out, buffer.vals[k]);
+                    }
+                }
+                endRun(out);
+                return f;
+            } finally {
+                buffer.size = 0;
+                free.add(buffer);
+            }
+        }
     }
 
-    private static class RowAccumulator {
-        int id;
-        TIntArrayList colIds = new TIntArrayList();
-        TShortArrayList colVals = new TShortArrayList();
-        RowAccumulator(int id) {
-            this.id = id;
+    static class RunReader {
+        final int index;
+        final ValueConf vconf;
+        DataInputStream in;
+        int colId;
+        int numCells;
+
+        RunReader(File f, int index, ValueConf vconf) throws IOException {
+            this.index = index;
+            this.vconf = vconf;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 256 * 1024));
         }
-        SparseMatrixRow toRow(ValueConf vconf) {
-            return new SparseMatrixRow(vconf, id, colIds.toArray(), colVals.toArray());
+
+        /**
+         * Reads the header of the next group.
+         * @return False if the run has no more groups.
+         */
+        boolean advance() throws IOException {
+            colId = in.readInt();
+            numCells = in.readInt();
+            return numCells >= 0;
         }
-        void addCol(int id, short val) {
-            this.colIds.add(id);
-            this.colVals.add(val);
+
+        void readCells(TIntArrayList rowIds, TIntArrayList vals) throws IOException {
+            for (int i = 0; i < numCells; i++) {
+                rowIds.add(in.readInt());
+                switch (vconf.getNumBytes()) {
+                    case 1: vals.add(in.readByte()); break;
+                    case 2: vals.add(in.readShort()); break;
+                    default: vals.add(in.readInt()); break;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
         }
-        int size() { return this.colIds.size(); }
     }
 
     public static int PAGE_SIZE = 1024*1024*500;    // 500MB
     public static void main(String args[]) throws IOException {
-        if (args.length != 3) {
-            System.err.println("usage: java " + SparseMatrixTransposer.class.getName() + " input_path output_path buffer_in_MBs");
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("usage: java " + SparseMatrixTransposer.class.getName() + " input_path output_path buffer_in_MBs [num_threads]");
             System.exit(1);
         }
         SparseMatrix matrix = new SparseMatrix(new File(args[0]), 1, PAGE_SIZE);
+        int numThreads = (args.length == 4) ? Integer.valueOf(args[3]) : Runtime.getRuntime().availableProcessors();
         SparseMatrixTransposer transposer = new SparseMatrixTransposer(
                         matrix,
                         new File(args[1]),
-                        Integer.valueOf(args[2]));
+                        Integer.valueOf(args[2]),
+                        numThreads);
         transposer.transpose();
     }
 }
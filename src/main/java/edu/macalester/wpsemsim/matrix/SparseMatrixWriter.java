@@ -1,16 +1,46 @@
 package edu.macalester.wpsemsim.matrix;
 
+import gnu.trove.list.array.TFloatArrayList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Writes a sparse matrix.
+ * Rows are written in the raw format unless the writer is asked to compress them,
+ * in which case column ids are sorted, delta-encoded and stored as varints
+ * (see SparseRowCursor). The format is recorded in the flags of the file header.
+ * Raw rows keep their column order unless the writer is asked to sort columns by id,
+ * which lets readers use merge joins and binary search (SparseMatrix.FLAG_SORTED_COLUMNS).
+ *
+ * By default, rows are appended to a single temporary body file that is copied
+ * behind the header by finish(). In sharded mode each writing thread appends to its
+ * own shard file without locking, and finish() only writes a header file that lists
+ * the shards. SparseMatrix opens either layout.
+ *
+ * finish() also writes the row norms sidecar (see RowNorms) next to the matrix.
+ *
+ * A sharded writer can be made resumable with enableCheckpoints(). Each shard is then
+ * periodically flushed and synced, and the rows it has completed are appended to a
+ * manifest next to the matrix (see CheckpointManifest). If the process dies, a new
+ * writer for the same path picks up the checkpointed rows, truncates their shards to
+ * the last checkpoint and writes new rows to new shards. finish() lists the old and
+ * new shards in the header, so resuming never copies rows.
+ */
 public class SparseMatrixWriter {
 
     public static final byte ROW_PADDING = Byte.MIN_VALUE;
@@ -18,75 +48,499 @@ public class SparseMatrixWriter {
     private static final Logger LOG = Logger.getLogger(SparseMatrixWriter.class.getName());
 
     private File path;
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
-    private TIntArrayList rowIndexes = new TIntArrayList();
-    private File bodyPath;
-    private BufferedOutputStream body;
-    private long bodyOffset = 0;
     private ValueConf vconf;
+    private boolean compressed;
+    private boolean sharded;
+    private boolean sortColumns;
+
+    /**
+     * The body in unsharded mode.
+     */
+    private Shard body;
+
+    /**
+     * The shards in sharded mode, in the order they were created.
+     */
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private final ThreadLocal<Shard> threadShard = new ThreadLocal<Shard>();
+    private int nextShardNumber = 0;
+
+    private CheckpointManifest manifest = null;
+    private long checkpointIntervalMillis = 0;
 
     public SparseMatrixWriter(File path, ValueConf conf) throws IOException {
+        this(path, conf, false);
+    }
+
+    public SparseMatrixWriter(File path, ValueConf conf, boolean compressed) throws IOException {
+        this(path, conf, compressed, false);
+    }
+
+    public SparseMatrixWriter(File path, ValueConf conf, boolean compressed, boolean sharded) throws IOException {
+        this(path, conf, compressed, sharded, compressed);
+    }
+
+    /**
+     * @param path
+     * @param conf
+     * @param compressed If true, rows are written in the compressed format.
+     * @param sharded If true, each thread writes rows to its own shard file next to path.
+     * @param sortColumns If true, the columns of each row are sorted by id.
+     *                    Compressed rows are always sorted.
+     * @throws IOException
+     */
+    public SparseMatrixWriter(File path, ValueConf conf, boolean compressed, boolean sharded, boolean sortColumns) throws IOException {
         this.path = path;
         this.vconf = conf;
-        info("writing matrix to " + path);
-
-        // write tmp matrix file
-        this.bodyPath = File.createTempFile("matrix", null);
-        this.bodyPath.deleteOnExit();
-        this.body = new BufferedOutputStream(new FileOutputStream(bodyPath));
+        this.compressed = compressed;
+        this.sharded = sharded;
+        this.sortColumns = sortColumns || compressed;
+        info("writing " + (compressed ? "compressed " : "") + (sharded ? "sharded " : "") +
+                (sortColumns ? "sorted " : "") + "matrix to " + path);
 
-        info("writing body to tmp file at " + bodyPath);
+        if (!sharded) {
+            // write tmp matrix file
+            File bodyPath = File.createTempFile("matrix", null);
+            bodyPath.deleteOnExit();
+            this.body = new Shard(bodyPath);
+            info("writing body to tmp file at " + bodyPath);
+        }
     }
 
-    public synchronized void writeRow(SparseMatrixRow row) throws IOException {
+    public void writeRow(SparseMatrixRow row) throws IOException {
         if (!row.getValueConf().almostEquals(vconf)) {
             throw new IllegalArgumentException("Value conf for row does not match the writer's value conf");
         }
-        row.getBuffer().rewind();
-        byte[] bytes = new byte[row.getBuffer().remaining()];
-        row.getBuffer().get(bytes, 0, bytes.length);
+        float norm = (float) row.getNorm();     // outside the lock
+        if (sharded) {
+            getShard().write(row, norm);
+        } else {
+            synchronized (body) {
+                body.write(row, norm);
+            }
+        }
+    }
+
+    /**
+     * Makes the writer resumable. If an earlier writer for the same path left a
+     * checkpoint manifest, its checkpointed rows are kept and the rows it wrote after
+     * its last checkpoint are discarded. Must be called before any rows are written.
+     * @param intervalMillis Each shard is checkpointed after writing a row if at
+     *                       least this much time passed since its last checkpoint.
+     * @throws IllegalStateException If the writer is not sharded.
+     */
+    public void enableCheckpoints(long intervalMillis) throws IOException {
+        if (!sharded) {
+            throw new IllegalStateException("checkpoints need a sharded writer");
+        }
+        synchronized (shards) {
+            if (!shards.isEmpty()) {
+                throw new IllegalStateException("checkpoints must be enabled before rows are written");
+            }
+            manifest = CheckpointManifest.open(path, getFlags(), vconf.getHeaderBytes());
+            checkpointIntervalMillis = intervalMillis;
+            Map<String, Shard> resumed = new LinkedHashMap<String, Shard>();
+            for (CheckpointManifest.Record record : manifest.getRecords()) {
+                Shard shard = resumed.get(record.shardName);
+                if (shard == null) {
+                    shard = new Shard(new File(path.getAbsoluteFile().getParentFile(), record.shardName), false);
+                    resumed.put(record.shardName, shard);
+                }
+                shard.addCheckpointed(record);
+            }
+            for (Shard shard : resumed.values()) {
+                shard.truncate();
+                shards.add(shard);
+            }
+            if (!shards.isEmpty()) {
+                info("resuming " + getCheckpointedRowIds().size() + " rows in " + shards.size() + " shards");
+            }
+        }
+    }
+
+    /**
+     * @return The ids of rows written by an earlier, checkpointed writer for the same path.
+     */
+    public TIntSet getCheckpointedRowIds() {
+        TIntSet ids = new TIntHashSet();
+        synchronized (shards) {
+            for (Shard shard : shards) {
+                if (shard.out == null) {
+                    ids.addAll(shard.rowIds);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return The shard for the calling thread, creating it if necessary.
+     */
+    private Shard getShard() throws IOException {
+        Shard shard = threadShard.get();
+        if (shard == null) {
+            synchronized (shards) {
+                File file;
+                do {
+                    file = new File(path.getPath() + ".shard" + nextShardNumber++);
+                } while (isShardFile(file));
+                shard = new Shard(file);
+                shards.add(shard);
+            }
+            threadShard.set(shard);
+            info("writing shard to " + shard.file);
+        }
+        return shard;
+    }
+
+    private boolean isShardFile(File file) {
+        for (Shard shard : shards) {
+            if (shard.file.getName().equals(file.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A file that rows are appended to, along with the ids and offsets of its rows.
+     * A shard must only be used by one thread at a time.
+     * Shards resumed from a checkpoint manifest are read-only and have no output stream.
+     */
+    class Shard {
+        File file;
+        FileOutputStream fileOut;
+        BufferedOutputStream out;
+        long offset = 0;
+        TIntArrayList rowIds = new TIntArrayList();
+        TLongArrayList rowOffsets = new TLongArrayList();
+        TFloatArrayList rowNorms = new TFloatArrayList();
+        TIntArrayList rowLengths = new TIntArrayList();
+
+        // rows before this index are in the checkpoint manifest
+        int numCheckpointedRows = 0;
+        long lastCheckpointMillis = System.currentTimeMillis();
+
+        /**
+         * Scratch space used to encode a row before it is written.
+         */
+        private ByteBuffer scratch = ByteBuffer.allocate(1024);
+        private long sortKeys[] = new long[64];
+
+        Shard(File file) throws IOException {
+            this(file, true);
+        }
+
+        /**
+         * @param writable If false, the shard is resumed from checkpoint records and has no output stream.
+         */
+        Shard(File file, boolean writable) throws IOException {
+            this.file = file;
+            if (writable) {
+                this.fileOut = new FileOutputStream(file);
+                this.out = new BufferedOutputStream(fileOut, 1024 * 1024);
+            }
+        }
+
+        void addCheckpointed(CheckpointManifest.Record record) {
+            rowIds.add(record.rowIds);
+            rowOffsets.add(record.rowOffsets);
+            rowNorms.add(record.rowNorms);
+            rowLengths.add(record.rowLengths);
+            numCheckpointedRows = rowIds.size();
+            offset = Math.max(offset, record.shardLength);
+        }
+
+        /**
+         * Drops the bytes written to a resumed shard after its last checkpoint.
+         */
+        void truncate() throws IOException {
+            if (!file.isFile() || file.length() < offset) {
+                throw new IOException("checkpointed shard " + file + " is missing or shorter than " + offset + " bytes");
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(offset);
+            raf.close();
+        }
+
+        /**
+         * Syncs the shard to disk and then records its new rows in the manifest.
+         */
+        void checkpoint() throws IOException {
+            out.flush();
+            fileOut.getFD().sync();
+            int n = rowIds.size() - numCheckpointedRows;
+            manifest.append(new CheckpointManifest.Record(file.getName(), offset,
+                    rowIds.toArray(numCheckpointedRows, n),
+                    rowOffsets.toArray(numCheckpointedRows, n),
+                    rowNorms.toArray(numCheckpointedRows, n),
+                    rowLengths.toArray(numCheckpointedRows, n)));
+            numCheckpointedRows = rowIds.size();
+            lastCheckpointMillis = System.currentTimeMillis();
+        }
+
+        void write(SparseMatrixRow row, float norm) throws IOException {
+            if (compressed) {
+                encodeCompressed(row);
+            } else {
+                encodeRaw(row);
+            }
+
+            rowIds.add(row.getRowIndex());
+            rowOffsets.add(offset);
+            rowNorms.add(norm);
+            rowLengths.add(row.getNumCols());
+
+            out.write(scratch.array(), 0, scratch.limit());
+            offset += scratch.limit();
+
+            // pad rows to 8 byte offsets to speed things up.
+            while (offset % 8 != 0) {
+                offset++;
+                out.write(ROW_PADDING);
+            }
+
+            if (manifest != null && System.currentTimeMillis() - lastCheckpointMillis >= checkpointIntervalMillis) {
+                checkpoint();
+            }
+        }
+
+        /**
+         * Fills the scratch buffer with the row in the raw format.
+         */
+        private void encodeRaw(SparseMatrixRow row) {
+            int n = row.getNumCols();
+            int w = vconf.getNumBytes();
+            boolean sort = sortColumns && !row.hasSortedIds();
+            if (!row.isCompressed() && !sort) {
+                copyToScratch(row.getBuffer(), 12 + (4 + w) * n);
+                return;
+            }
+            if (sort) {
+                sortColumns(row);
+            }
+            ensureScratchCapacity(12 + (4 + w) * n);
+            scratch.putInt(SparseMatrixRow.HEADER);
+            scratch.putInt(row.getRowIndex());
+            scratch.putInt(n);
+            for (int i = 0; i < n; i++) {
+                scratch.putInt(sort ? (int) (sortKeys[i] >> 32) : row.getColIndex(i));
+            }
+            for (int i = 0; i < n; i++) {
+                vconf.putPacked(scratch, row.getPackedColValue(sort ? (int) sortKeys[i] : i));
+            }
+            scratch.flip();
+        }
+
+        /**
+         * Fills sortKeys with (column id << 32 | position) for the columns of the row, sorted by id.
+         */
+        private void sortColumns(SparseMatrixRow row) {
+            int n = row.getNumCols();
+            if (sortKeys.length < n) {
+                sortKeys = new long[Math.max(n, sortKeys.length * 2)];
+            }
+            for (int i = 0; i < n; i++) {
+                sortKeys[i] = ((long) row.getColIndex(i) << 32) | i;
+            }
+            Arrays.sort(sortKeys, 0, n);
+        }
+
+        /**
+         * Fills the scratch buffer with the row in the compressed format.
+         */
+        private void encodeCompressed(SparseMatrixRow row) {
+            int n = row.getNumCols();
+            int w = vconf.getNumBytes();
+            if (row.isCompressed()) {
+                copyToScratch(row.getBuffer(), 16 + w * n + row.getBuffer().getInt(12));
+                return;
+            }
+
+            // sort columns by id, remembering their original positions
+            sortColumns(row);
+
+            ensureScratchCapacity(16 + w * n + 5 * n);
+            scratch.putInt(SparseMatrixRow.HEADER_COMPRESSED);
+            scratch.putInt(row.getRowIndex());
+            scratch.putInt(n);
+            scratch.putInt(0);   // number of id bytes, filled in below
+            for (int i = 0; i < n; i++) {
+                vconf.putPacked(scratch, row.getPackedColValue((int) sortKeys[i]));
+            }
+            int idStart = scratch.position();
+            int lastId = 0;
+            for (int i = 0; i < n; i++) {
+                int id = (int) (sortKeys[i] >> 32);
+                if (i == 0) {
+                    putVarInt((id << 1) ^ (id >> 31));  // zigzag, since the first id may be negative
+                } else {
+                    putVarInt(id - lastId);
+                }
+                lastId = id;
+            }
+            scratch.putInt(12, scratch.position() - idStart);
+            scratch.flip();
+        }
+
+        private void putVarInt(int value) {
+            while ((value & ~0x7f) != 0) {
+                scratch.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            scratch.put((byte) value);
+        }
 
-        rowOffsets.put(row.getRowIndex(), bodyOffset);
-        rowIndexes.add(row.getRowIndex());
+        private void copyToScratch(ByteBuffer src, int length) {
+            ensureScratchCapacity(length);
+            ByteBuffer view = src.duplicate();
+            view.position(0);
+            view.limit(length);
+            scratch.put(view);
+            scratch.flip();
+        }
 
-        body.write(bytes);
-        bodyOffset += bytes.length;
+        private void ensureScratchCapacity(int capacity) {
+            if (scratch.capacity() < capacity) {
+                scratch = ByteBuffer.allocate(Math.max(capacity, scratch.capacity() * 2));
+            }
+            scratch.clear();
+        }
 
-        // pad rows to 8 byte offsets to speed things up.
-        while (bodyOffset % 8 != 0) {
-            bodyOffset++;
-            body.write(ROW_PADDING);
+        void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
         }
     }
 
     public void finish() throws IOException {
+        if (sharded) {
+            finishShards();
+            return;
+        }
         body.close();
-        info("wrote " + bodyOffset + " bytes in body of matrix");
+        info("wrote " + body.offset + " bytes in body of matrix");
 
         // write offset file
         info("generating header");
-        int sizeHeader = 16 + rowOffsets.size() * 12;
-        body = new BufferedOutputStream(new FileOutputStream(path));
-        body.write(intToBytes(SparseMatrix.FILE_HEADER));
-        body.write(floatToBytes(vconf.minScore));
-        body.write(floatToBytes(vconf.maxScore));
-        body.write(intToBytes(rowOffsets.size()));
-        for (int i = 0; i < rowIndexes.size(); i++) {
-            int rowIndex = rowIndexes.get(i);
-            long rowOffset = rowOffsets.get(rowIndex);
-            body.write(intToBytes(rowIndex));
-            body.write(longToBytes(rowOffset + sizeHeader));
+        int rowIds[] = body.rowIds.toArray();
+        long rowOffsets[] = body.rowOffsets.toArray();
+        int indexFlag = RowIndex.chooseIndexFlag(rowIds);
+        long sizeHeader = getHeaderSize(vconf, indexFlag, rowIds);
+        for (int i = 0; i < rowOffsets.length; i++) {
+            rowOffsets[i] += sizeHeader;
         }
+        int flags = vconf.getCodecFlags() | indexFlag | getFormatFlags();
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+        writeHeader(out, vconf, flags, rowIds, rowOffsets);
 
-        InputStream r = new FileInputStream(bodyPath);
+        InputStream r = new FileInputStream(body.file);
 
         // append other file
-        IOUtils.copyLarge(r, body);
+        IOUtils.copyLarge(r, out);
         r.close();
-        body.flush();
-        body.close();
+        out.flush();
+        out.close();
+        body.file.delete();
 
         info("wrote " + FileUtils.sizeOf(path) + " bytes to " + path);
+        writeRowNorms(Arrays.asList(body));
+    }
+
+    /**
+     * Writes a header file whose row offsets address the shards as if they were concatenated.
+     * The name and length of each shard follow the row index.
+     */
+    private void finishShards() throws IOException {
+        TIntArrayList rowIds = new TIntArrayList();
+        TLongArrayList rowOffsets = new TLongArrayList();
+        long base = 0;
+        for (Shard shard : shards) {
+            shard.close();
+            for (int i = 0; i < shard.rowIds.size(); i++) {
+                rowIds.add(shard.rowIds.get(i));
+                rowOffsets.add(base + shard.rowOffsets.get(i));
+            }
+            base += shard.offset;
+        }
+        info("wrote " + rowIds.size() + " rows to " + shards.size() + " shards");
+
+        int ids[] = rowIds.toArray();
+        int indexFlag = RowIndex.chooseIndexFlag(ids);
+        int flags = indexFlag | getFlags();
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+        writeHeader(out, vconf, flags, ids, rowOffsets.toArray());
+        out.write(intToBytes(shards.size()));
+        for (Shard shard : shards) {
+            byte name[] = shard.file.getName().getBytes("UTF-8");
+            out.write(longToBytes(shard.offset));
+            out.write(intToBytes(name.length));
+            out.write(name);
+        }
+        out.flush();
+        out.close();
+
+        info("wrote " + FileUtils.sizeOf(path) + " bytes of header to " + path);
+        writeRowNorms(shards);
+        if (manifest != null) {
+            manifest.delete();
+        }
+    }
+
+    /**
+     * Writes the row norms sidecar. Must be called after the matrix file is complete.
+     */
+    private void writeRowNorms(List<Shard> shards) throws IOException {
+        TIntArrayList rowIds = new TIntArrayList();
+        TFloatArrayList norms = new TFloatArrayList();
+        int maxRowLength = 0;
+        long totalLength = 0;
+        for (Shard shard : shards) {
+            rowIds.addAll(shard.rowIds);
+            norms.addAll(shard.rowNorms);
+            for (int i = 0; i < shard.rowLengths.size(); i++) {
+                maxRowLength = Math.max(maxRowLength, shard.rowLengths.get(i));
+                totalLength += shard.rowLengths.get(i);
+            }
+        }
+        RowNorms.write(path, rowIds.toArray(), norms.toArray(), maxRowLength, totalLength);
+        info("wrote row norms to " + RowNorms.getFile(path));
+    }
+
+    /**
+     * @return The header flags other than the index flag.
+     */
+    private int getFlags() {
+        return vconf.getCodecFlags() | (sharded ? SparseMatrix.FLAG_SHARDED : 0) | getFormatFlags();
+    }
+
+    private int getFormatFlags() {
+        return (compressed ? SparseMatrix.FLAG_COMPRESSED : 0) |
+               (sortColumns ? SparseMatrix.FLAG_SORTED_COLUMNS : 0);
+    }
+
+    /**
+     * @return The number of bytes writeHeader() will write.
+     */
+    static long getHeaderSize(ValueConf vconf, int indexFlag, int rowIds[]) {
+        return 12 + vconf.getHeaderSize() + rowIds.length * 12L + RowIndex.getIndexSize(indexFlag, rowIds);
+    }
+
+    /**
+     * Writes the file header, the write order table and the row index.
+     */
+    static void writeHeader(OutputStream out, ValueConf vconf, int flags, int rowIds[], long rowOffsets[]) throws IOException {
+        out.write(intToBytes(SparseMatrix.FILE_HEADER_V2));
+        out.write(intToBytes(flags));
+        out.write(vconf.getHeaderBytes());
+        out.write(intToBytes(rowIds.length));
+        for (int i = 0; i < rowIds.length; i++) {
+            out.write(intToBytes(rowIds[i]));
+            out.write(longToBytes(rowOffsets[i]));
+        }
+        int indexFlag = flags & (RowIndex.FLAG_SORTED_INDEX | RowIndex.FLAG_DENSE_INDEX);
+        RowIndex.writeIndex(out, indexFlag, rowIds, rowOffsets);
     }
 
     private void info(String message) {
@@ -97,7 +551,10 @@ public class SparseMatrixWriter {
         write(file, rows, new ValueConf());
     }
     public static void write(File file, Iterator<SparseMatrixRow> rows, ValueConf vconf) throws IOException {
-        SparseMatrixWriter w = new SparseMatrixWriter(file, vconf);
+        write(file, rows, vconf, false);
+    }
+    public static void write(File file, Iterator<SparseMatrixRow> rows, ValueConf vconf, boolean compressed) throws IOException {
+        SparseMatrixWriter w = new SparseMatrixWriter(file, vconf, compressed);
         while (rows.hasNext()) {
             w.writeRow(rows.next());
         }
@@ -112,7 +569,4 @@ public class SparseMatrixWriter {
     private static byte[] longToBytes(long i) {
         return ByteBuffer.allocate(8).putLong(i).array();
     }
-    private static byte[] floatToBytes(float f) {
-        return ByteBuffer.allocate(4).putFloat(f).array();
-    }
 }
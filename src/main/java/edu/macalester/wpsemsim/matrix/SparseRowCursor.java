@@ -0,0 +1,185 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, flyweight view of a sparse matrix row.
+ * The cursor reads directly from the memory mapped page that contains the row
+ * using absolute gets, so pointing it at a new row allocates nothing.
+ *
+ * The cursor understands both row formats:
+ * - raw rows (SparseMatrixRow.HEADER): a row id, n column ids (int) and n packed values.
+ * - compressed rows (SparseMatrixRow.HEADER_COMPRESSED): a row id, n packed values and
+ *   the sorted column ids as a zigzag varint followed by n - 1 varint deltas.
+ *
+ * Compressed column ids are decoded as a stream. Reading them in order costs O(1) per id,
+ * reading them out of order restarts the decoding from the beginning of the row.
+ *
+ * A cursor is not thread safe; each thread should use its own.
+ * It is only valid until it is pointed at the next row.
+ */
+public final class SparseRowCursor extends BaseMatrixRow implements MatrixRow {
+    private ValueConf vconf;
+    private ByteBuffer buffer;
+    private boolean compressed;
+    private boolean sortedIds;
+    private int rowIndex;
+    private int numCols;
+    private int idOffset;
+    private int valOffset;
+    private int valBytes;
+
+    /**
+     * Streaming decoder state for compressed rows:
+     * the last decoded column index, its id, and the position of the next varint.
+     */
+    private int decodedIndex;
+    private int decodedId;
+    private int decodedPos;
+
+    /**
+     * Points the cursor at the row starting at offset in the buffer.
+     * @param vconf
+     * @param buffer
+     * @param offset
+     */
+    void wrap(ValueConf vconf, ByteBuffer buffer, int offset) {
+        int header = buffer.getInt(offset);
+        this.vconf = vconf;
+        this.buffer = buffer;
+        this.rowIndex = buffer.getInt(offset + 4);
+        this.numCols = buffer.getInt(offset + 8);
+        this.valBytes = vconf.getNumBytes();
+        if (header == SparseMatrixRow.HEADER) {
+            this.compressed = false;
+            this.sortedIds = false;
+            this.idOffset = offset + 12;
+            this.valOffset = idOffset + 4 * numCols;
+        } else if (header == SparseMatrixRow.HEADER_COMPRESSED) {
+            this.compressed = true;
+            this.sortedIds = true;
+            this.valOffset = offset + 16;
+            this.idOffset = valOffset + valBytes * numCols;
+            this.decodedIndex = -1;
+        } else {
+            throw new IllegalArgumentException("Invalid header in byte buffer");
+        }
+    }
+
+    @Override
+    public final int getColIndex(int i) {
+        if (!compressed) {
+            return buffer.getInt(idOffset + 4 * i);
+        }
+        if (i < decodedIndex) {
+            decodedIndex = -1;
+        }
+        if (decodedIndex < 0) {
+            decodedPos = idOffset;
+            decodedId = zigZagDecode(readVarInt());
+            decodedIndex = 0;
+        }
+        while (decodedIndex < i) {
+            decodedId += readVarInt();
+            decodedIndex++;
+        }
+        return decodedId;
+    }
+
+    /**
+     * Decodes all the column ids of a compressed row without touching the streaming decoder.
+     * @return The column ids, in order.
+     */
+    int[] decodeColIndexes() {
+        int ids[] = new int[numCols];
+        int pos = idOffset;
+        int id = 0;
+        for (int i = 0; i < numCols; i++) {
+            int b = buffer.get(pos++);
+            int value = b & 0x7f;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = buffer.get(pos++);
+                value |= (b & 0x7f) << shift;
+            }
+            id = (i == 0) ? zigZagDecode(value) : id + value;
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private int readVarInt() {
+        int b = buffer.get(decodedPos++);
+        int value = b & 0x7f;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = buffer.get(decodedPos++);
+            value |= (b & 0x7f) << shift;
+        }
+        return value;
+    }
+
+    static int zigZagDecode(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    @Override
+    public final float getColValue(int i) {
+        return vconf.unpack(vconf.getPacked(buffer, valOffset + valBytes * i));
+    }
+
+    public final int getPackedColValue(int i) {
+        return vconf.getPacked(buffer, valOffset + valBytes * i);
+    }
+
+    @Override
+    public final int getRowIndex() {
+        return rowIndex;
+    }
+
+    @Override
+    public final int getNumCols() {
+        return numCols;
+    }
+
+    /**
+     * @return True if the row uses the compressed format, in which case its columns are sorted by id.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Records that the column ids of a raw row are sorted, for example because
+     * its matrix guarantees it. Compressed rows are always sorted.
+     */
+    void markSortedIds() {
+        this.sortedIds = true;
+    }
+
+    @Override
+    public boolean hasSortedIds() {
+        return sortedIds;
+    }
+
+    /**
+     * Compressed ids can't be binary searched, so they are streamed until the id is passed.
+     */
+    @Override
+    public int getIndexForId(int id) {
+        if (!compressed) {
+            return super.getIndexForId(id);
+        }
+        for (int i = 0; i < numCols; i++) {
+            int colId = getColIndex(i);
+            if (colId == id) {
+                return i;
+            } else if (colId > id) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    public ValueConf getValueConf() {
+        return vconf;
+    }
+}
@@ -1,42 +1,251 @@
 package edu.macalester.wpsemsim.matrix;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Configuration for the values in a sparse matrix row.
  * This class handles packing and unpacking of values.
- * Right now it uses a simple scheme, and packs the float
- * into a short. This will work well if the floats are
- * uniformly distributed across the range in [minScore, maxScore].
+ *
+ * Values are packed by a codec that is recorded in the matrix header:
+ * - LINEAR16 (the default) packs the float linearly into a short. This works well
+ *   if the floats are uniformly distributed across the range in [minScore, maxScore].
+ * - LINEAR8 packs the float linearly into a byte.
+ * - LOG8 packs the float into a byte using levels that are log-spaced away from zero,
+ *   so small scores keep more precision than large ones.
+ * - QUANTILE8 packs the float into a byte using 256 levels trained from a sample of
+ *   the values. The levels are stored in the matrix header.
+ * - FLOAT32 stores the raw float.
+ *
+ * A packed value is an int holding the stored bits, sign extended for 1 and 2 byte codecs.
  */
 public class ValueConf implements Serializable {
     public static final Float MIN_SCORE = -1.1f;
     public static final Float MAX_SCORE = 1.1f;
 
+    public static enum Codec {
+        LINEAR16(0, 2),
+        LINEAR8(1, 1),
+        LOG8(2, 1),
+        QUANTILE8(3, 1),
+        FLOAT32(4, 4);
+
+        public final int id;
+        public final int numBytes;
+
+        Codec(int id, int numBytes) {
+            this.id = id;
+            this.numBytes = numBytes;
+        }
+
+        public static Codec fromId(int id) {
+            for (Codec c : values()) {
+                if (c.id == id) {
+                    return c;
+                }
+            }
+            throw new IllegalArgumentException("unknown value codec: " + id);
+        }
+    }
+
+    /**
+     * The codec id is stored in these bits of the matrix header flags.
+     */
+    public static final int CODEC_FLAG_SHIFT = 8;
+    public static final int CODEC_FLAG_MASK = 0xff << CODEC_FLAG_SHIFT;
+
+    /**
+     * Number of levels in the 8-bit table codecs.
+     */
+    public static final int NUM_LEVELS = 256;
+
+    /**
+     * Scale applied before taking logs in the LOG8 codec.
+     * Larger values give more precision near zero and less near the extremes.
+     */
+    public static final float LOG_SCALE = 100f;
+
+    /**
+     * Upper bound on the bytes getHeaderBytes() returns.
+     */
+    public static final int MAX_HEADER_BYTES = 8 + 4 * NUM_LEVELS;
+
     public final float minScore;
     public final float maxScore;
     public final float range;
     public static final int PACKED_RANGE = (Short.MAX_VALUE - Short.MIN_VALUE);
+    public static final int PACKED_RANGE_8 = (Byte.MAX_VALUE - Byte.MIN_VALUE);
+
+    public final Codec codec;
+
+    /**
+     * Sorted levels for the LOG8 and QUANTILE8 codecs, null otherwise.
+     */
+    private final float levels[];
 
     public ValueConf() {
         this(MIN_SCORE, MAX_SCORE);
     }
 
     public ValueConf(float minScore, float maxScore) {
+        this(minScore, maxScore, Codec.LINEAR16);
+    }
+
+    public ValueConf(float minScore, float maxScore, Codec codec) {
+        this(minScore, maxScore, codec, null);
+    }
+
+    private ValueConf(float minScore, float maxScore, Codec codec, float levels[]) {
         this.minScore = minScore;
         this.maxScore = maxScore;
+        this.codec = codec;
         range = maxScore - minScore;
+        if (codec == Codec.LOG8) {
+            this.levels = makeLogLevels(minScore, maxScore);
+        } else if (codec == Codec.QUANTILE8) {
+            if (levels == null || levels.length != NUM_LEVELS) {
+                throw new IllegalArgumentException("QUANTILE8 requires " + NUM_LEVELS + " trained levels");
+            }
+            this.levels = levels;
+        } else {
+            this.levels = null;
+        }
+    }
+
+    /**
+     * Creates a QUANTILE8 conf whose levels are the quantiles of a sample of the values.
+     * @param minScore
+     * @param maxScore
+     * @param sample Sample of the values that will be packed. It is sorted in place.
+     * @return
+     */
+    public static ValueConf trainQuantiles(float minScore, float maxScore, float sample[]) {
+        if (sample.length == 0) {
+            throw new IllegalArgumentException("can't train quantiles on an empty sample");
+        }
+        Arrays.sort(sample);
+        float levels[] = new float[NUM_LEVELS];
+        for (int i = 0; i < NUM_LEVELS; i++) {
+            int j = (int) ((i + 0.5) * sample.length / NUM_LEVELS);
+            float s = sample[Math.min(j, sample.length - 1)];
+            levels[i] = Math.max(minScore, Math.min(maxScore, s));
+        }
+        return new ValueConf(minScore, maxScore, Codec.QUANTILE8, levels);
+    }
+
+    private static float[] makeLogLevels(float minScore, float maxScore) {
+        double lo = toLogSpace(minScore);
+        double hi = toLogSpace(maxScore);
+        float levels[] = new float[NUM_LEVELS];
+        for (int i = 0; i < NUM_LEVELS; i++) {
+            levels[i] = (float) fromLogSpace(lo + (hi - lo) * i / (NUM_LEVELS - 1));
+        }
+        levels[0] = minScore;
+        levels[NUM_LEVELS - 1] = maxScore;
+
+        // zero is common, so make sure it is represented exactly
+        if (minScore < 0 && maxScore > 0) {
+            int closest = 0;
+            for (int i = 1; i < NUM_LEVELS; i++) {
+                if (Math.abs(levels[i]) < Math.abs(levels[closest])) {
+                    closest = i;
+                }
+            }
+            levels[closest] = 0.0f;
+        }
+        return levels;
     }
 
-    public final short pack(float s) {
-        float normalized = (pinchScore(s) - minScore) / range;
-        return  (short)(normalized * PACKED_RANGE + Short.MIN_VALUE);
+    private static double toLogSpace(double x) {
+        return Math.signum(x) * Math.log1p(Math.abs(x) * LOG_SCALE);
     }
 
-    public final float unpack(short s) {
-        float f = (1.0f * (s - Short.MIN_VALUE) / PACKED_RANGE) * range + minScore;
-        assert(minScore <= f && f <= maxScore);
-        return f;
+    private static double fromLogSpace(double u) {
+        return Math.signum(u) * Math.expm1(Math.abs(u)) / LOG_SCALE;
+    }
+
+    public final int pack(float s) {
+        switch (codec) {
+            case LINEAR16: {
+                float normalized = (pinchScore(s) - minScore) / range;
+                return (short)(normalized * PACKED_RANGE + Short.MIN_VALUE);
+            }
+            case LINEAR8: {
+                float normalized = (pinchScore(s) - minScore) / range;
+                return (byte)(Math.round(normalized * PACKED_RANGE_8) + Byte.MIN_VALUE);
+            }
+            case LOG8:
+            case QUANTILE8:
+                return (byte)(nearestLevel(pinchScore(s)) + Byte.MIN_VALUE);
+            case FLOAT32:
+                return Float.floatToRawIntBits(s);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    public final float unpack(int s) {
+        switch (codec) {
+            case LINEAR16: {
+                float f = (1.0f * (s - Short.MIN_VALUE) / PACKED_RANGE) * range + minScore;
+                assert(minScore <= f && f <= maxScore);
+                return f;
+            }
+            case LINEAR8:
+                return (1.0f * (s - Byte.MIN_VALUE) / PACKED_RANGE_8) * range + minScore;
+            case LOG8:
+            case QUANTILE8:
+                return levels[s - Byte.MIN_VALUE];
+            case FLOAT32:
+                return Float.intBitsToFloat(s);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private int nearestLevel(float s) {
+        int i = Arrays.binarySearch(levels, s);
+        if (i >= 0) {
+            return i;
+        }
+        i = -i - 1;     // insertion point
+        if (i == 0) {
+            return 0;
+        } else if (i == levels.length) {
+            return levels.length - 1;
+        } else {
+            return (s - levels[i - 1] <= levels[i] - s) ? i - 1 : i;
+        }
+    }
+
+    /**
+     * @return The number of bytes used to store each packed value.
+     */
+    public final int getNumBytes() {
+        return codec.numBytes;
+    }
+
+    /**
+     * Reads the packed value stored at an absolute position in a buffer.
+     */
+    public final int getPacked(ByteBuffer buffer, int pos) {
+        switch (codec.numBytes) {
+            case 1: return buffer.get(pos);
+            case 2: return buffer.getShort(pos);
+            default: return buffer.getInt(pos);
+        }
+    }
+
+    /**
+     * Writes a packed value at the current position of a buffer.
+     */
+    public final void putPacked(ByteBuffer buffer, int packed) {
+        switch (codec.numBytes) {
+            case 1: buffer.put((byte) packed); break;
+            case 2: buffer.putShort((short) packed); break;
+            default: buffer.putInt(packed); break;
+        }
     }
 
     public final float pinchScore(float s) {
@@ -45,9 +254,62 @@ public class ValueConf implements Serializable {
         else return s;
     }
 
+    /**
+     * @return The codec bits for the flags field of a matrix header.
+     */
+    public int getCodecFlags() {
+        return codec.id << CODEC_FLAG_SHIFT;
+    }
+
+    /**
+     * @return The min and max scores followed by the trained levels, if any.
+     */
+    public byte[] getHeaderBytes() {
+        boolean trained = (codec == Codec.QUANTILE8);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + (trained ? 4 * NUM_LEVELS : 0));
+        buffer.putFloat(minScore);
+        buffer.putFloat(maxScore);
+        if (trained) {
+            for (float l : levels) {
+                buffer.putFloat(l);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads a conf written by getHeaderBytes().
+     * @param flags The flags field of the matrix header.
+     * @param buffer
+     * @param pos Absolute position of the header bytes.
+     * @return
+     */
+    public static ValueConf readHeader(int flags, ByteBuffer buffer, int pos) {
+        Codec codec = Codec.fromId((flags & CODEC_FLAG_MASK) >>> CODEC_FLAG_SHIFT);
+        float minScore = buffer.getFloat(pos);
+        float maxScore = buffer.getFloat(pos + 4);
+        float levels[] = null;
+        if (codec == Codec.QUANTILE8) {
+            levels = new float[NUM_LEVELS];
+            for (int i = 0; i < NUM_LEVELS; i++) {
+                levels[i] = buffer.getFloat(pos + 8 + 4 * i);
+            }
+        }
+        return new ValueConf(minScore, maxScore, codec, levels);
+    }
+
+    /**
+     * @return The number of bytes getHeaderBytes() returns.
+     */
+    public int getHeaderSize() {
+        return 8 + (codec == Codec.QUANTILE8 ? 4 * NUM_LEVELS : 0);
+    }
+
     public boolean almostEquals(ValueConf vconf) {
         double delta = 0.001 * Math.min(range, vconf.range);   // allowed error
         return (
+                (codec == vconf.codec) &&
+                (codec != Codec.QUANTILE8 || Arrays.equals(levels, vconf.levels)) &&
                 (Math.abs(minScore - vconf.minScore) < delta) &&
                 (Math.abs(maxScore - vconf.maxScore) < delta) &&
                 (Math.abs(range - vconf.range) < delta)
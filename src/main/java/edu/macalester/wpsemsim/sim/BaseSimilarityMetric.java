@@ -3,13 +3,16 @@ package edu.macalester.wpsemsim.sim;
 import edu.macalester.wpsemsim.concepts.ConceptMapper;
 import edu.macalester.wpsemsim.concepts.Disambiguator;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
-import edu.macalester.wpsemsim.matrix.SparseMatrix;
-import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.lucene.MltTermCache;
+import edu.macalester.wpsemsim.matrix.Matrix;
+import edu.macalester.wpsemsim.matrix.MatrixRow;
 import edu.macalester.wpsemsim.normalize.IdentityNormalizer;
 import edu.macalester.wpsemsim.normalize.Normalizer;
 import edu.macalester.wpsemsim.utils.*;
 import gnu.trove.set.TIntSet;
+import org.apache.lucene.queries.mlt.MoreLikeThis;
 import org.apache.lucene.queryparser.surround.parser.ParseException;
+import org.apache.lucene.search.Query;
 
 import java.io.*;
 import java.util.List;
@@ -32,7 +35,9 @@ public abstract class BaseSimilarityMetric implements SimilarityMetric {
     private Normalizer mostSimilarNormalizer = new IdentityNormalizer();
     private Normalizer similarityNormalizer = new IdentityNormalizer();
 
-    protected SparseMatrix mostSimilarMatrix;
+    protected Matrix<? extends MatrixRow> mostSimilarMatrix;
+
+    private MltTermCache mltTermCache;
 
     public BaseSimilarityMetric(ConceptMapper mapper, IndexHelper helper) {
         this.mapper = mapper;
@@ -47,10 +52,31 @@ public abstract class BaseSimilarityMetric implements SimilarityMetric {
         this.disambiguator = new Disambiguator(mapper, this, helper, 5);
     }
 
-    public void setMostSimilarMatrix(SparseMatrix matrix) {
+    /**
+     * @param matrix A sparse matrix of precomputed most similar lists,
+     *               possibly wrapped in a CachedMatrix.
+     */
+    public void setMostSimilarMatrix(Matrix<? extends MatrixRow> matrix) {
         this.mostSimilarMatrix = matrix;
     }
 
+    /**
+     * Reads MoreLikeThis queries for documents from a cache instead of analyzing their text,
+     * for metrics that find similar documents with MoreLikeThis.
+     * Documents missing from the cache fall back to MoreLikeThis.
+     */
+    public void setMltTermCache(MltTermCache mltTermCache) {
+        this.mltTermCache = mltTermCache;
+    }
+
+    /**
+     * @return The query mlt.like() builds for a document, read from the term cache if it has the document.
+     */
+    protected Query like(int wpId, int luceneId, MoreLikeThis mlt) throws IOException {
+        Query query = (mltTermCache == null) ? null : mltTermCache.like(wpId, mlt);
+        return (query == null) ? mlt.like(luceneId) : query;
+    }
+
     public boolean hasCachedMostSimilar(int wpId) throws IOException {
         return mostSimilarMatrix != null && mostSimilarMatrix.getRow(wpId) != null;
     }
@@ -59,19 +85,22 @@ public abstract class BaseSimilarityMetric implements SimilarityMetric {
         if (mostSimilarMatrix == null) {
             return null;
         }
-        SparseMatrixRow row = mostSimilarMatrix.getRow(wpId);
+        MatrixRow row = mostSimilarMatrix.getRow(wpId);
         if (row == null) {
             return null;
         }
         int n = 0;
         DocScoreList dsl = new DocScoreList(row.getNumCols());
-        for (int i = 0;i < row.getNumCols() &&  n < numResults; i++) {
+        for (int i = 0;i < row.getNumCols(); i++) {
             int wpId2 = row.getColIndex(i);
             if (validIds == null || validIds.contains(wpId2)) {
-                dsl.set(n++, row.getColIndex(i), row.getColValue(i));
+                dsl.set(n++, wpId2, row.getColValue(i));
             }
         }
+        // compressed rows are ordered by id, not score
         dsl.truncate(n);
+        dsl.sort();
+        dsl.truncate(Math.min(n, numResults));
         return dsl;
     }
 
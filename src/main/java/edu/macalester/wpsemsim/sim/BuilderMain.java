@@ -1,6 +1,8 @@
 package edu.macalester.wpsemsim.sim;
 
+import edu.macalester.wpsemsim.matrix.ValueConf;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseSimilarityWriter;
+import edu.macalester.wpsemsim.sim.pairwise.RowPartition;
 import edu.macalester.wpsemsim.utils.EnvConfigurator;
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
 import edu.macalester.wpsemsim.utils.DefaultOptionBuilder;
@@ -33,6 +35,38 @@ public class BuilderMain {
                 .withLongOpt("buildIds")
                 .withDescription("File listing ids that should be built.")
                 .create('i'));
+        options.addOption(new DefaultOptionBuilder()
+                .withLongOpt("compress")
+                .withDescription("Write the output matrix in the compressed row format.")
+                .create('z'));
+        options.addOption(new DefaultOptionBuilder()
+                .hasArg()
+                .withLongOpt("codec")
+                .withDescription("Value codec for the output matrix: linear16 (default), linear8, log8 or float32.")
+                .create('q'));
+        options.addOption(new DefaultOptionBuilder()
+                .withLongOpt("sharded")
+                .withDescription("Write the output matrix as a header file plus one shard file per thread.")
+                .create('s'));
+        options.addOption(new DefaultOptionBuilder()
+                .withLongOpt("sort-columns")
+                .withDescription("Sort the columns of each output row by id. Compressed rows are always sorted.")
+                .create('d'));
+        options.addOption(new DefaultOptionBuilder()
+                .hasArg()
+                .withLongOpt("block-size")
+                .withDescription("Number of rows of a pairwise metric computed together, sharing transpose row reads (default 1).")
+                .create('b'));
+        options.addOption(new DefaultOptionBuilder()
+                .hasArg()
+                .withLongOpt("checkpoint")
+                .withDescription("Checkpoint the sharded output every this many seconds, and resume from an earlier checkpointed run.")
+                .create('k'));
+        options.addOption(new DefaultOptionBuilder()
+                .hasArg()
+                .withLongOpt("partition")
+                .withDescription("Only build part i of N (written i/N), balanced by estimated cost; join the parts with SparseMatrixMerger.")
+                .create('p'));
 
         EnvConfigurator conf;
         try {
@@ -57,8 +91,23 @@ public class BuilderMain {
 
         File outputFile = new File(cmd.getOptionValue("o"));
         SimilarityMetric m = conf.loadMetric(cmd.getOptionValue("n"), true);
-        PairwiseSimilarityWriter writer = new PairwiseSimilarityWriter(m, outputFile);
+        ValueConf vconf = new ValueConf();
+        if (cmd.hasOption("q")) {
+            ValueConf.Codec codec = ValueConf.Codec.valueOf(cmd.getOptionValue("q").toUpperCase());
+            vconf = new ValueConf(ValueConf.MIN_SCORE, ValueConf.MAX_SCORE, codec);
+        }
+        PairwiseSimilarityWriter writer = new PairwiseSimilarityWriter(
+                m, outputFile, vconf, cmd.hasOption("z"), cmd.hasOption("s") || cmd.hasOption("k"), cmd.hasOption("d"));
         writer.setValidIds(env.getValidIds());
+        if (cmd.hasOption("k")) {
+            writer.setCheckpointInterval(1000L * Integer.valueOf(cmd.getOptionValue("k")));
+        }
+        if (cmd.hasOption("b")) {
+            writer.setBlockSize(Integer.valueOf(cmd.getOptionValue("b")));
+        }
+        if (cmd.hasOption("p")) {
+            writer.setPartition(RowPartition.parse(cmd.getOptionValue("p")));
+        }
         writer.writeSims(idsToBuild, env.getNumThreads(), env.getNumMostSimilarResults());
     }
 }
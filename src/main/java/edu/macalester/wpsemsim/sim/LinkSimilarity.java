@@ -103,8 +103,6 @@ public class LinkSimilarity extends BaseSimilarityMetric{
         if (doc1 < 0 || doc2 < 0) {
             return 0.0;
         }
-        MoreLikeThis mlt = getMoreLikeThis();
-
         BooleanFilter composition = new BooleanFilter();
         composition.add(new FieldCacheTermsFilter("id", "" + wpId2), BooleanClause.Occur.MUST);
         if (filter != null) {
@@ -112,7 +110,7 @@ public class LinkSimilarity extends BaseSimilarityMetric{
         }
 
         TopDocs similarDocs = searcher.search(
-                mlt.like(doc1),
+                like(wpId1, doc1, getMoreLikeThis()),
                 new FieldCacheTermsFilter("id", "" + wpId2),
                 1);
         if (similarDocs.scoreDocs.length == 0) {
@@ -129,7 +127,7 @@ public class LinkSimilarity extends BaseSimilarityMetric{
 //        return (Math.log(score) - 1) / 5.0;
     }
 
-    private MoreLikeThis getMoreLikeThis() {
+    public MoreLikeThis getMoreLikeThis() {
         MoreLikeThis mlt = new MoreLikeThis(linkHelper.getReader());
         mlt.setMaxDocFreqPct(20);
         mlt.setMaxQueryTerms(100);
@@ -224,12 +222,11 @@ public class LinkSimilarity extends BaseSimilarityMetric{
         if (hasCachedMostSimilar(wpId)) {
             return getCachedMostSimilar(wpId, maxResults, validIds);
         }
-        MoreLikeThis mlt = getMoreLikeThis();
         int luceneId = linkHelper.wpIdToLuceneId(wpId);
         if (luceneId < 0) {
             return null;
         }
-        TopDocs similarDocs = searcher.search(mlt.like(luceneId),
+        TopDocs similarDocs = searcher.search(like(wpId, luceneId, getMoreLikeThis()),
                 linkHelper.getWpIdFilter(validIds),
                 maxResults);
         DocScoreList scores = new DocScoreList(similarDocs.scoreDocs.length);
@@ -51,7 +51,7 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
         this.setName("text-similarity (field=" + field + ")");
     }
 
-    private MoreLikeThis getMoreLikeThis() {
+    public MoreLikeThis getMoreLikeThis() {
         MoreLikeThis mlt = new MoreLikeThis(reader); // Pass the reader reader
         mlt.setMaxDocFreqPct(maxPercentage);
         mlt.setMaxQueryTerms(maxQueryTerms);
@@ -127,12 +127,11 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
         if (hasCachedMostSimilar(wpId)) {
             return getCachedMostSimilar(wpId, maxResults, validIds);
         }
-        MoreLikeThis mlt = getMoreLikeThis();
         int luceneId = helper.wpIdToLuceneId(wpId);
         if (luceneId < 0) {
             return null;
         }
-        TopDocs similarDocs = searcher.search(mlt.like(luceneId),
+        TopDocs similarDocs = searcher.search(like(wpId, luceneId, getMoreLikeThis()),
                 helper.getWpIdFilter(validIds), maxResults);
         DocScoreList scores = new DocScoreList(similarDocs.scoreDocs.length);
         for (int i = 0; i < similarDocs.scoreDocs.length; i++) {
@@ -159,8 +158,7 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
             return Double.NaN;
         }
 
-        MoreLikeThis mlt = getMoreLikeThis();
-        TopDocs similarDocs = searcher.search(mlt.like(doc1), new FieldCacheTermsFilter("id", "" + wpId2), 1);
+        TopDocs similarDocs = searcher.search(like(wpId1, doc1, getMoreLikeThis()), new FieldCacheTermsFilter("id", "" + wpId2), 1);
         if (similarDocs.scoreDocs.length == 0) {
             return normalize(0);
         } else {
@@ -0,0 +1,321 @@
+package edu.macalester.wpsemsim.sim.esa;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.lucene.MltTermCache;
+import edu.macalester.wpsemsim.lucene.Page;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
+import edu.macalester.wpsemsim.matrix.SparseRowCursor;
+import edu.macalester.wpsemsim.matrix.ValueConf;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.procedure.TIntDoubleProcedure;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.util.logging.Logger;
+
+/**
+ * Exports an ESA Lucene index as two sparse matrices that let ESASimilarity build
+ * concept vectors without searching the index.
+ *
+ * The term matrix has a row for each term in the text field whose columns are the
+ * wpIds of the concepts containing the term. A value is the score a query for the
+ * term gives the concept under ESASimilarity.LuceneSimilarity, tf * idf^2 * norm,
+ * without the queryNorm and coord factors that depend on the rest of the query.
+ * Row ids are term ordinals, and the terms are written one per line, in row order,
+ * to the terms file next to the matrix.
+ *
+ * The concept matrix has a row for each concept holding its own concept vector:
+ * the sum of the term rows for the terms MoreLikeThis picks from the concept.
+ *
+ * Every row keeps at most maxConcepts columns, and its tail is pruned with the
+ * rule ESASimilarity applies to search results.
+ *
+ * writeMatrices() finishes by writing a header file next to the concept matrix that
+ * records the index, the builder and MoreLikeThis settings, and the matrix lengths.
+ * isCurrent() compares it, so callers rebuild matrices that are stale or were only
+ * partly written.
+ */
+public class ESAMatrixBuilder {
+    private static final Logger LOG = Logger.getLogger(ESAMatrixBuilder.class.getName());
+
+    public static final String TERMS_SUFFIX = ".terms";
+    public static final String HEADER_SUFFIX = ".header";
+    private static final String HEADER_PREFIX = "#esa-matrices\t";
+    public static final int DEFAULT_MAX_CONCEPTS = 5000;
+    public static final int DEFAULT_MIN_DOC_FREQ = 1;
+
+    /**
+     * Weights are unbounded, so they are stored as raw floats.
+     */
+    public static final ValueConf VALUE_CONF = new ValueConf(0, Float.MAX_VALUE, ValueConf.Codec.FLOAT32);
+
+    private ESASimilarity metric;
+    private IndexHelper helper;
+    private DirectoryReader reader;
+    private ESASimilarity.LuceneSimilarity similarity = new ESASimilarity.LuceneSimilarity();
+    private int maxConcepts = DEFAULT_MAX_CONCEPTS;
+    private int minDocFreq = DEFAULT_MIN_DOC_FREQ;
+
+    /**
+     * Wikipedia ids of the lucene docs, or -1 for deleted docs.
+     */
+    private int wpIds[];
+
+    /**
+     * @param metric The metric whose MoreLikeThis settings choose the terms of each concept.
+     */
+    public ESAMatrixBuilder(ESASimilarity metric) {
+        this.metric = metric;
+        this.helper = metric.getEsaHelper();
+        this.reader = helper.getReader();
+    }
+
+    /**
+     * @param maxConcepts The maximum number of columns in a row.
+     */
+    public void setMaxConcepts(int maxConcepts) {
+        this.maxConcepts = maxConcepts;
+    }
+
+    /**
+     * @param minDocFreq Terms in fewer concepts than this are left out of the term matrix.
+     */
+    public void setMinDocFreq(int minDocFreq) {
+        this.minDocFreq = minDocFreq;
+    }
+
+    public static File getTermsFile(File matrixPath) {
+        return new File(matrixPath.getPath() + TERMS_SUFFIX);
+    }
+
+    public static File getHeaderFile(File conceptPath) {
+        return new File(conceptPath.getPath() + HEADER_SUFFIX);
+    }
+
+    /**
+     * @return The header identifying the index and settings the matrices are built from,
+     * and the lengths of the matrices.
+     */
+    private String getHeader(File termPath, File conceptPath) {
+        return HEADER_PREFIX + maxConcepts
+                + "\t" + minDocFreq
+                + "\t" + MltTermCache.describe(helper, metric.getMoreLikeThis())
+                + "\t" + termPath.length()
+                + "\t" + conceptPath.length();
+    }
+
+    /**
+     * @return True if writeMatrices() completed both matrices from the current state
+     * of the index with the same settings.
+     * @throws IOException
+     */
+    public boolean isCurrent(File termPath, File conceptPath) throws IOException {
+        File headerFile = getHeaderFile(conceptPath);
+        if (!termPath.isFile() || !getTermsFile(termPath).isFile() || !conceptPath.isFile() || !headerFile.isFile()) {
+            return false;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(headerFile), "UTF-8"));
+        try {
+            return getHeader(termPath, conceptPath).equals(in.readLine());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the term matrix, its terms file and the concept matrix, then the header
+     * that marks them as complete.
+     * @param termPath
+     * @param conceptPath
+     * @param numThreads
+     * @throws IOException
+     */
+    public void writeMatrices(File termPath, File conceptPath, int numThreads) throws IOException {
+        File headerFile = getHeaderFile(conceptPath);
+        if (headerFile.exists() && !headerFile.delete()) {
+            throw new IOException("cannot delete " + headerFile);
+        }
+        writeTermMatrix(termPath);
+        writeConceptMatrix(new SparseMatrix(termPath), conceptPath, numThreads);
+        Writer out = new OutputStreamWriter(new FileOutputStream(headerFile), "UTF-8");
+        try {
+            out.write(getHeader(termPath, conceptPath));
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the terms file of a term matrix.
+     * @return A map from each term to its row id. Missing terms map to -1.
+     */
+    public static TObjectIntHashMap<String> readTerms(File matrixPath) throws IOException {
+        TObjectIntHashMap<String> terms = new TObjectIntHashMap<String>(
+                Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(getTermsFile(matrixPath)), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                terms.put(line, terms.size());
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return terms;
+    }
+
+    /**
+     * Writes the term matrix and its terms file.
+     * @param path
+     * @throws IOException
+     */
+    public void writeTermMatrix(File path) throws IOException {
+        Terms terms = MultiFields.getTerms(reader, Page.FIELD_TEXT);
+        if (terms == null) {
+            throw new IllegalArgumentException("index " + helper.getIndexDir() + " has no " + Page.FIELD_TEXT + " field");
+        }
+        int ids[] = getWpIds();
+        float norms[] = getNorms();
+        Bits live = MultiFields.getLiveDocs(reader);
+        int numDocs = reader.maxDoc();
+
+        SparseMatrixWriter writer = new SparseMatrixWriter(path, VALUE_CONF, false, false, true);
+        BufferedWriter termWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(getTermsFile(path)), "UTF-8"));
+        try {
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docs = null;
+            BytesRef ref;
+            int termId = 0;
+            while ((ref = termsEnum.next()) != null) {
+                int docFreq = termsEnum.docFreq();
+                float idf = similarity.idf(docFreq, numDocs);
+                if (docFreq < minDocFreq || idf <= 0) {
+                    continue;
+                }
+                Leaderboard top = new Leaderboard(Math.min(maxConcepts, docFreq));
+                docs = termsEnum.docs(live, docs, DocsEnum.FLAG_FREQS);
+                int doc;
+                while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    top.tallyScore(ids[doc], similarity.tf(docs.freq()) * idf * idf * norms[doc]);
+                }
+                termWriter.write(ref.utf8ToString());
+                termWriter.write('\n');
+                writer.writeRow(toRow(termId++, top.getTop()));
+                if (termId % 100000 == 0) {
+                    LOG.info("wrote " + termId + " term rows");
+                }
+            }
+        } finally {
+            termWriter.close();
+        }
+        writer.finish();
+    }
+
+    /**
+     * Writes the concept matrix.
+     * @param termMatrix The term matrix written by writeTermMatrix.
+     * @param path
+     * @param numThreads
+     * @throws IOException
+     */
+    public void writeConceptMatrix(final SparseMatrix termMatrix, File path, int numThreads) throws IOException {
+        final TObjectIntHashMap<String> termIds = readTerms(termMatrix.getPath());
+        final int ids[] = getWpIds();
+        final Bits live = MultiFields.getLiveDocs(reader);
+        final SparseMatrixWriter writer = new SparseMatrixWriter(path, VALUE_CONF, false, false, true);
+        ParallelForEach.range(0, reader.maxDoc(), numThreads, new Procedure<Integer>() {
+            public void call(Integer luceneId) throws Exception {
+                if (live != null && !live.get(luceneId)) {
+                    return;
+                }
+                SparseRowCursor cursor = new SparseRowCursor();
+                TIntDoubleHashMap sums = new TIntDoubleHashMap();
+                for (String term : metric.getMoreLikeThis().retrieveInterestingTerms(luceneId)) {
+                    int termId = termIds.get(term);
+                    SparseRowCursor row = (termId < 0) ? null : termMatrix.readRow(termId, cursor);
+                    if (row != null) {
+                        for (int i = 0; i < row.getNumCols(); i++) {
+                            float v = row.getColValue(i);
+                            sums.adjustOrPutValue(row.getColIndex(i), v, v);
+                        }
+                    }
+                }
+                final Leaderboard top = new Leaderboard(Math.min(maxConcepts, sums.size()));
+                sums.forEachEntry(new TIntDoubleProcedure() {
+                    public boolean execute(int id, double score) {
+                        top.tallyScore(id, score);
+                        return true;
+                    }
+                });
+                writer.writeRow(toRow(ids[luceneId], top.getTop()));
+            }
+        });
+        writer.finish();
+    }
+
+    private SparseMatrixRow toRow(int rowId, DocScoreList top) {
+        int n = ESASimilarity.getPruneCutoff(top.getScoresAsFloat());
+        int colIds[] = new int[n];
+        float colVals[] = new float[n];
+        for (int i = 0; i < n; i++) {
+            colIds[i] = top.getId(i);
+            colVals[i] = (float) top.getScore(i);
+        }
+        return new SparseMatrixRow(VALUE_CONF, rowId, colIds, colVals);
+    }
+
+    private synchronized int[] getWpIds() throws IOException {
+        if (wpIds == null) {
+            wpIds = new int[reader.maxDoc()];
+            for (int i = 0; i < wpIds.length; i++) {
+                wpIds[i] = helper.luceneIdToWpId(i);
+            }
+        }
+        return wpIds;
+    }
+
+    private float[] getNorms() throws IOException {
+        float norms[] = new float[reader.maxDoc()];
+        NumericDocValues values = MultiDocValues.getNormValues(reader, Page.FIELD_TEXT);
+        for (int i = 0; i < norms.length; i++) {
+            norms[i] = (values == null) ? 1.0f : similarity.decodeNormValue((byte) values.get(i));
+        }
+        return norms;
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("usage: java " +
+                    ESAMatrixBuilder.class.getName() +
+                    " lucene-esa-index-dir term-matrix concept-matrix [num-threads]");
+            System.exit(1);
+        }
+        IndexHelper helper = new IndexHelper(new File(args[0]), true);
+        int cores = (args.length == 4)
+                ? Integer.valueOf(args[3])
+                : Runtime.getRuntime().availableProcessors();
+        ESAMatrixBuilder builder = new ESAMatrixBuilder(new ESASimilarity(helper));
+        builder.writeMatrices(new File(args[1]), new File(args[2]), cores);
+    }
+}
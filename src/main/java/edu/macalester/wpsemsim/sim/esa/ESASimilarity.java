@@ -3,17 +3,26 @@ package edu.macalester.wpsemsim.sim.esa;
 import edu.macalester.wpsemsim.concepts.ConceptMapper;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
 import edu.macalester.wpsemsim.lucene.Page;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseRowCursor;
 import edu.macalester.wpsemsim.sim.BaseSimilarityMetric;
 import edu.macalester.wpsemsim.sim.SimilarityMetric;
 import edu.macalester.wpsemsim.sim.TextSimilarity;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseSimilarityWriter;
-import edu.macalester.wpsemsim.sim.utils.SimUtils;
+import edu.macalester.wpsemsim.sim.utils.SparseVector;
 import edu.macalester.wpsemsim.utils.DocScoreList;
-import gnu.trove.map.hash.TIntDoubleHashMap;
+import edu.macalester.wpsemsim.utils.Function;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import edu.macalester.wpsemsim.utils.LruCache;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.set.TIntSet;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.queries.mlt.MoreLikeThis;
@@ -30,6 +39,14 @@ import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Explicit semantic analysis: phrases and articles are compared by their vectors of
+ * scores against the concepts (articles) in an ESA Lucene index.
+ *
+ * By default concept vectors come from searching the index. After setMatrices(), they
+ * are sums of the precomputed term rows written by ESAMatrixBuilder, and articles are
+ * compared by the cosine of their rows in the concept matrix, so no searching is done.
+ */
 public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMetric {
     private static final Logger LOG = Logger.getLogger(ESASimilarity.class.getName());
     public static final int DEFAULT_MAX_PERCENTAGE = 10;
@@ -37,6 +54,15 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
     public static final int DEFAULT_MIN_TERM_FREQ = 2;
     public static final int DEFAULT_MIN_DOC_FREQ = 2;
 
+    /**
+     * Search results and matrix rows are cut where the scores drop by less than
+     * PRUNE_THRESHOLD of the top score over PRUNE_WINDOW positions.
+     */
+    public static final int PRUNE_WINDOW = 100;
+    public static final double PRUNE_THRESHOLD = 0.005;
+
+    public static final int DEFAULT_PHRASE_CACHE_MB = 128;
+
     private int maxPercentage = DEFAULT_MAX_PERCENTAGE;
     private int maxQueryTerms = DEFAULT_MAX_QUERY_TERMS;
     private int minTermFreq = DEFAULT_MIN_TERM_FREQ;
@@ -47,6 +73,10 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
     private DirectoryReader reader;
     private Analyzer analyzer = new ESAAnalyzer();
 
+    private SparseMatrix termMatrix;
+    private SparseMatrix conceptMatrix;
+    private TObjectIntHashMap<String> termIds;
+
     public ESASimilarity(IndexHelper helper) {
         this(null, helper);
     }
@@ -64,7 +94,49 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
         this.textHelper = textHelper;
     }
 
-    private MoreLikeThis getMoreLikeThis() {
+    /**
+     * Computes concept vectors from matrices written by ESAMatrixBuilder instead of
+     * searching the index. Concept vectors are then keyed by wpId rather than lucene id.
+     * @param termMatrix
+     * @param conceptMatrix May be null, in which case articles are compared by searching.
+     * @throws IOException
+     */
+    public void setMatrices(SparseMatrix termMatrix, SparseMatrix conceptMatrix) throws IOException {
+        this.termIds = ESAMatrixBuilder.readTerms(termMatrix.getPath());
+        this.termMatrix = termMatrix;
+        this.conceptMatrix = conceptMatrix;
+        phraseCache.clear();
+    }
+
+    /**
+     * Replaces the phrase cache with an empty one of the given capacity.
+     * @param mb The maximum heap used by cached concept vectors.
+     */
+    public void setPhraseCacheMb(int mb) {
+        phraseCache = createPhraseCache(mb);
+    }
+
+    /**
+     * @return The phrase cache, which has hit, miss and eviction counters.
+     */
+    public LruCache<String, SparseVector> getPhraseCache() {
+        return phraseCache;
+    }
+
+    private static LruCache<String, SparseVector> createPhraseCache(int mb) {
+        return new LruCache<String, SparseVector>(mb * 1024L * 1024L) {
+            @Override
+            protected long sizeOf(String phrase, SparseVector vector) {
+                return 40 + 2L * phrase.length() + vector.getSizeInBytes();
+            }
+        };
+    }
+
+    IndexHelper getEsaHelper() {
+        return esaHelper;
+    }
+
+    public MoreLikeThis getMoreLikeThis() {
         MoreLikeThis mlt = new MoreLikeThis(reader); // Pass the reader reader
         mlt.setMaxDocFreqPct(maxPercentage);
         mlt.setMaxQueryTerms(maxQueryTerms);
@@ -77,20 +149,42 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
 
     @Override
     public double similarity(String phrase1, String phrase2) throws IOException {
-        TIntDoubleHashMap scores1 = getConceptVector(phrase1, null);
-        TIntDoubleHashMap scores2 = getConceptVector(phrase2, null);
-        double sim = SimUtils.cosineSimilarity(scores1, scores2);
+        SparseVector vector1 = getConceptVector(phrase1, null);
+        SparseVector vector2 = getConceptVector(phrase2, null);
+        double sim = (vector1 == null || vector2 == null) ? Double.NaN : vector1.cosine(vector2);
         //sim = 10 + Math.log(0.0001 + sim);
         return normalize(sim);
     }
 
-    private Map<String, TIntDoubleHashMap> phraseCache = new HashMap<String, TIntDoubleHashMap>();
-    public TIntDoubleHashMap getConceptVector(String phrase, TIntSet validIds) throws IOException {
-        synchronized (phraseCache) {
-            if (phraseCache.containsKey(phrase)) {
-                return phraseCache.get(phrase);
-            }
+    private volatile LruCache<String, SparseVector> phraseCache = createPhraseCache(DEFAULT_PHRASE_CACHE_MB);
+    private final Function<String, SparseVector> phraseLoader = new Function<String, SparseVector>() {
+        public SparseVector call(String phrase) throws Exception {
+            return computeConceptVector(phrase, null);
+        }
+    };
+
+    /**
+     * Returns the concept vector of a phrase, which maps concept ids to the concepts'
+     * scores. Vectors for all concepts are cached.
+     * @param phrase
+     * @param validIds If not null, only these concepts are scored.
+     * @return The vector, or null if the phrase could not be parsed.
+     * @throws IOException
+     */
+    public SparseVector getConceptVector(String phrase, TIntSet validIds) throws IOException {
+        if (validIds != null) {
+            return computeConceptVector(phrase, validIds);
         }
+        return phraseCache.get(phrase, phraseLoader);
+    }
+
+    private SparseVector computeConceptVector(String phrase, TIntSet validIds) throws IOException {
+        return (termMatrix != null)
+                ? sumTermRows(phrase, validIds)
+                : searchConceptVector(phrase, validIds);
+    }
+
+    private SparseVector searchConceptVector(String phrase, TIntSet validIds) throws IOException {
         QueryParser parser = new QueryParser(Version.LUCENE_42, "text", analyzer);
         TopDocs docs = null;
         try {
@@ -100,11 +194,7 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
             return null;
         }
         pruneSimilar(docs);
-        TIntDoubleHashMap result = expandScores(docs.scoreDocs);
-        synchronized (phraseCache) {
-            phraseCache.put(phrase, result);
-        }
-        return result;
+        return expandScores(docs.scoreDocs);
 //        System.out.println("top docs for " + phrase + " are:");
 //        for (int i = 0; i < 50 && i < docs.scoreDocs.length; i++) {
 //            ScoreDoc sd = docs.scoreDocs[i];
@@ -116,31 +206,76 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
 //        }
     }
 
-    private void pruneSimilar(TopDocs docs) throws IOException {
-        if (docs.scoreDocs.length == 0) {
-            return;
+    /**
+     * Sums the term matrix rows of the terms in a phrase. A term that appears twice
+     * counts twice, as it does in the query the phrase parses to.
+     */
+    private SparseVector sumTermRows(String phrase, TIntSet validIds) throws IOException {
+        TIntArrayList ids = new TIntArrayList();
+        TFloatArrayList weights = new TFloatArrayList();
+        SparseRowCursor cursor = new SparseRowCursor();
+        TokenStream stream = analyzer.tokenStream(Page.FIELD_TEXT, new StringReader(phrase));
+        CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+        try {
+            stream.reset();
+            while (stream.incrementToken()) {
+                int termId = termIds.get(termAttr.toString());
+                SparseRowCursor row = (termId < 0) ? null : termMatrix.readRow(termId, cursor);
+                if (row == null) {
+                    continue;
+                }
+                for (int i = 0; i < row.getNumCols(); i++) {
+                    int wpId = row.getColIndex(i);
+                    if (validIds == null || validIds.contains(wpId)) {
+                        ids.add(wpId);
+                        weights.add(row.getColValue(i));
+                    }
+                }
+            }
+            stream.end();
+        } finally {
+            stream.close();
+        }
+        return SparseVector.fromUnsorted(ids.toArray(), weights.toArray(), ids.size());
+    }
+
+    /**
+     * @param scores Scores in decreasing order.
+     * @return The number of leading scores that survive pruning.
+     */
+    static int getPruneCutoff(float scores[]) {
+        if (scores.length == 0) {
+            return 0;
         }
-        int cutoff = docs.scoreDocs.length;
-        double threshold = 0.005 * docs.scoreDocs[0].score;
-        for (int i = 0, j = 100; j < docs.scoreDocs.length; i++, j++) {
-            float delta = docs.scoreDocs[i].score - docs.scoreDocs[j].score;
-            if (delta < threshold) {
-                cutoff = j;
-                break;
+        double threshold = PRUNE_THRESHOLD * scores[0];
+        for (int i = 0, j = PRUNE_WINDOW; j < scores.length; i++, j++) {
+            if (scores[i] - scores[j] < threshold) {
+                return j;
             }
         }
+        return scores.length;
+    }
+
+    private void pruneSimilar(TopDocs docs) throws IOException {
+        float scores[] = new float[docs.scoreDocs.length];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = docs.scoreDocs[i].score;
+        }
+        int cutoff = getPruneCutoff(scores);
         if (cutoff < docs.scoreDocs.length) {
 //            LOG.info("pruned results from " + docs.scoreDocs.length + " to " + cutoff);
             docs.scoreDocs = ArrayUtils.subarray(docs.scoreDocs, 0, cutoff);
         }
     }
 
-    private TIntDoubleHashMap expandScores(ScoreDoc scores[]) throws IOException {
-        TIntDoubleHashMap expanded = new TIntDoubleHashMap();
-        for (ScoreDoc sd : scores) {
-            expanded.adjustOrPutValue(sd.doc, sd.score, sd.score);
+    private SparseVector expandScores(ScoreDoc scores[]) throws IOException {
+        int ids[] = new int[scores.length];
+        float weights[] = new float[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            ids[i] = scores[i].doc;
+            weights[i] = scores[i].score;
         }
-        return expanded;
+        return SparseVector.fromUnsorted(ids, weights, scores.length);
     }
 
     @Override
@@ -148,15 +283,25 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
         if (hasCachedMostSimilar(wpId)) {
             return getCachedMostSimilar(wpId, maxResults, validIds);
         }
-        MoreLikeThis mlt = getMoreLikeThis();
+        SparseRowCursor row = (conceptMatrix == null) ? null : conceptMatrix.readRow(wpId, null);
+        if (row != null) {
+            Leaderboard top = new Leaderboard(Math.min(maxResults, row.getNumCols()));
+            for (int i = 0; i < row.getNumCols(); i++) {
+                int id = row.getColIndex(i);
+                if (validIds == null || validIds.contains(id)) {
+                    top.tallyScore(id, row.getColValue(i));
+                }
+            }
+            return normalize(top.getTop());
+        }
         int luceneId = esaHelper.wpIdToLuceneId(wpId);
         Query query;
         if (luceneId >= 0) {
-            query = mlt.like(luceneId);
+            query = like(wpId, luceneId, getMoreLikeThis());
         } else if (textHelper != null && textHelper.wpIdToLuceneId(wpId) >= 0) {
             Document d = textHelper.wpIdToLuceneDoc(wpId);
             String text = d.get(Page.FIELD_TEXT);
-            query = mlt.like(new StringReader(text), Page.FIELD_TEXT);
+            query = getMoreLikeThis().like(new StringReader(text), Page.FIELD_TEXT);
         } else {
             return null;
         }
@@ -174,25 +319,26 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
 
     @Override
     public DocScoreList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws IOException {
-        final TIntDoubleHashMap scores = getConceptVector(phrase, validIds);
-        Integer luceneIds[] = ArrayUtils.toObject(scores.keys());
-        Arrays.sort(luceneIds, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer id1, Integer id2) {
-                return -1 * new Double(scores.get(id1)).compareTo(scores.get(id2));
+        SparseVector vector = getConceptVector(phrase, validIds);
+        if (vector == null) {
+            return new DocScoreList(0);
+        }
+        DocScoreList result = vector.top(maxResults);
+        if (termMatrix == null) {
+            for (int i = 0; i < result.numDocs(); i++) {
+                result.set(i, esaHelper.luceneIdToWpId(result.getId(i)), result.getScore(i));
             }
-        });
-        DocScoreList result = new DocScoreList(Math.min(luceneIds.length, maxResults));
-        for (int i = 0; i < result.numDocs(); i++) {
-            result.set(i,
-                    esaHelper.luceneIdToWpId(luceneIds[i]),
-                    scores.get(luceneIds[i]));
         }
         return normalize(result);
     }
 
     @Override
     public double similarity(int wpId1, int wpId2) throws IOException {
+        if (conceptMatrix != null) {
+            SparseRowCursor row1 = conceptMatrix.readRow(wpId1, null);
+            SparseRowCursor row2 = conceptMatrix.readRow(wpId2, null);
+            return normalize((row1 == null || row2 == null) ? 0.0 : row1.cosine(row2));
+        }
         int doc1 = esaHelper.wpIdToLuceneId(wpId1);
         int doc2 = esaHelper.wpIdToLuceneId(wpId2);
 
@@ -200,8 +346,7 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
             return normalize(0.0);
         }
 
-        MoreLikeThis mlt = getMoreLikeThis();
-        TopDocs similarDocs = searcher.search(mlt.like(doc1), new FieldCacheTermsFilter("id", "" + wpId2), 1);
+        TopDocs similarDocs = searcher.search(like(wpId1, doc1, getMoreLikeThis()), new FieldCacheTermsFilter("id", "" + wpId2), 1);
         if (similarDocs.scoreDocs.length == 0) {
             return normalize(0);
         } else {
@@ -0,0 +1,478 @@
+package edu.macalester.wpsemsim.sim.pairwise;
+
+import edu.macalester.wpsemsim.matrix.MatrixRow;
+import edu.macalester.wpsemsim.matrix.RowIndex;
+import edu.macalester.wpsemsim.matrix.RowNorms;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseRowCursor;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import edu.macalester.wpsemsim.utils.MathUtils;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates the dot products of a query vector with every row of a matrix by
+ * scanning the rows of the matrix's transpose (a sparse matrix-vector product).
+ *
+ * Each matrix row id is mapped to a dense index. Each thread gets a Scratch with a
+ * dense array of partial dot products and a list of the touched indexes, so the
+ * inner loop neither hashes into a map nor allocates. Valid ids are checked once per
+ * touched row when the results are tallied rather than once per transpose entry.
+ * Scratch space costs about 12 bytes per matrix row per thread. Row ids and norms
+ * are read from RowNorms, which is usually mapped from the matrix's sidecar.
+ */
+final class DotProductAccumulator {
+    private static final int NO_INDEX = -1;
+    private static final double PRUNED = -1.0;
+
+    private final RowNorms rows;    // dense index -> row id and norm, in the matrix's write order
+    private final int numRows;
+
+    // optional per-column information used for pruning, keyed by column id
+    private TIntFloatHashMap columnBounds = null;
+    private TIntIntHashMap columnLengths = null;
+
+    // row id -> dense index, either a direct table or a hash map
+    private final int minId;
+    private final int denseTable[];
+    private final TIntIntHashMap denseMap;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final ThreadLocal<BlockScratch> blockScratch = new ThreadLocal<BlockScratch>() {
+        @Override
+        protected BlockScratch initialValue() {
+            return new BlockScratch();
+        }
+    };
+
+    /**
+     * @param rows The row norms of the matrix.
+     */
+    public DotProductAccumulator(RowNorms rows) {
+        this.rows = rows;
+        int n = rows.getNumRows();
+        numRows = n;
+
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            int id = rows.getRowId(i);
+            min = Math.min(min, id);
+            max = Math.max(max, id);
+        }
+        minId = min;
+        if (n > 0 && (long) max - min + 1 <= (long) RowIndex.MAX_DENSE_RATIO * n) {
+            denseTable = new int[max - min + 1];
+            Arrays.fill(denseTable, NO_INDEX);
+            for (int i = 0; i < n; i++) {
+                denseTable[rows.getRowId(i) - min] = i;
+            }
+            denseMap = null;
+        } else {
+            denseTable = null;
+            denseMap = new TIntIntHashMap(n * 2, 0.5f, NO_INDEX, NO_INDEX);
+            for (int i = 0; i < n; i++) {
+                denseMap.put(rows.getRowId(i), i);
+            }
+        }
+    }
+
+    /**
+     * @return The dense index of a row id, or -1 if it is not a row of the matrix.
+     */
+    public int getDenseIndex(int rowId) {
+        if (denseTable == null) {
+            return denseMap.get(rowId);
+        }
+        int i = rowId - minId;
+        return (i < 0 || i >= denseTable.length) ? NO_INDEX : denseTable[i];
+    }
+
+    /**
+     * @return The norm of a row, or 0 if it is not a row of the matrix.
+     */
+    public float getNorm(int rowId) {
+        int i = getDenseIndex(rowId);
+        return (i == NO_INDEX) ? 0.0f : rows.getNorm(i);
+    }
+
+    /**
+     * @return The number of columns in the longest row of the matrix.
+     */
+    public int getMaxRowLength() {
+        return rows.getMaxRowLength();
+    }
+
+    /**
+     * @return The mean number of columns in a row of the matrix.
+     */
+    public double getMeanRowLength() {
+        return rows.getMeanRowLength();
+    }
+
+    /**
+     * Computes the length of each column and the largest value of each column divided
+     * by the norm of its row, so value(row, col) / norm(row) <= bound(col) for every row.
+     * @param transpose The transpose of the matrix.
+     * @return False if the matrix has negative values, in which case the bounds are not valid.
+     */
+    public synchronized boolean computeColumnBounds(SparseMatrix transpose) {
+        TIntFloatHashMap bounds = new TIntFloatHashMap(transpose.getNumRows() * 2);
+        TIntIntHashMap lengths = new TIntIntHashMap(transpose.getNumRows() * 2);
+        for (SparseRowCursor col : transpose.cursors()) {
+            float max = 0.0f;
+            for (int j = 0; j < col.getNumCols(); j++) {
+                float val = col.getColValue(j);
+                if (val < 0) {
+                    return false;
+                }
+                int i = getDenseIndex(col.getColIndex(j));
+                if (i != NO_INDEX && rows.getNorm(i) > 0) {
+                    max = Math.max(max, val / rows.getNorm(i));
+                }
+            }
+            bounds.put(col.getRowIndex(), max);
+            lengths.put(col.getRowIndex(), col.getNumCols());
+        }
+        columnBounds = bounds;
+        columnLengths = lengths;
+        return true;
+    }
+
+    /**
+     * @return An upper bound on value(row, col) / norm(row) over all rows, or 0 for unknown columns.
+     * Only valid after computeColumnBounds() has returned true.
+     */
+    public float getColumnBound(int colId) {
+        return columnBounds.get(colId);
+    }
+
+    /**
+     * @return The number of rows with a value in the column, or 0 for unknown columns.
+     * Only valid after computeColumnBounds() has returned true.
+     */
+    public int getColumnLength(int colId) {
+        return columnLengths.get(colId);
+    }
+
+    /**
+     * @return The scratch space of the calling thread.
+     */
+    public Scratch getScratch() {
+        return scratch.get();
+    }
+
+    /**
+     * @return The scratch space for blocks of queries of the calling thread.
+     */
+    public BlockScratch getBlockScratch() {
+        return blockScratch.get();
+    }
+
+    /**
+     * Per-thread accumulator state. Use it as:
+     * begin(validIds), add() for each query entry, then finish().
+     */
+    public final class Scratch {
+        private final double dots[] = new double[numRows];
+        private final int touched[] = new int[numRows];
+        private int numTouched = 0;
+        private TIntSet validIds = null;
+
+        /**
+         * A cursor callers may reuse to read transpose rows.
+         */
+        public final SparseRowCursor cursor = new SparseRowCursor();
+
+        /**
+         * A second cursor callers may reuse to read matrix rows.
+         */
+        public final SparseRowCursor matrixCursor = new SparseRowCursor();
+
+        /**
+         * A map callers may reuse to hold the query vector.
+         */
+        public final TIntFloatHashMap query = new TIntFloatHashMap();
+
+        private long order[] = new long[0];
+        private double scores[] = new double[0];
+
+        private Scratch() {}
+
+        /**
+         * Starts a new query. Discards any state left by a query that failed before finish().
+         * @param validIds The matrix row ids that may be returned, or null for all rows.
+         */
+        public void begin(TIntSet validIds) {
+            if (numTouched > 0) {
+                clear();
+            }
+            this.validIds = validIds;
+        }
+
+        /**
+         * Adds weight * column for every column of a transpose row.
+         */
+        public void add(float weight, MatrixRow transposeRow) {
+            int n = transposeRow.getNumCols();
+            for (int j = 0; j < n; j++) {
+                int i = getDenseIndex(transposeRow.getColIndex(j));
+                if (i == NO_INDEX) {
+                    continue;
+                }
+                if (dots[i] == 0.0) {
+                    touched[numTouched++] = i;
+                }
+                dots[i] += weight * transposeRow.getColValue(j);
+                if (dots[i] == 0.0) {
+                    dots[i] = Double.MIN_VALUE;     // keep it marked as touched
+                }
+            }
+        }
+
+        /**
+         * Like add(), but only updates rows that are already touched and not pruned.
+         */
+        public void addToTouched(float weight, MatrixRow transposeRow) {
+            int n = transposeRow.getNumCols();
+            for (int j = 0; j < n; j++) {
+                int i = getDenseIndex(transposeRow.getColIndex(j));
+                if (i != NO_INDEX && dots[i] > 0.0) {
+                    dots[i] += weight * transposeRow.getColValue(j);
+                }
+            }
+        }
+
+        /**
+         * Marks the k'th touched row as pruned, so addToTouched() skips it.
+         * Only valid for matrices without negative values.
+         */
+        public void prune(int k) {
+            dots[touched[k]] = PRUNED;
+        }
+
+        /**
+         * @return True if the k'th touched row has been pruned.
+         */
+        public boolean isPruned(int k) {
+            return dots[touched[k]] == PRUNED;
+        }
+
+        /**
+         * @return The number of rows touched since begin().
+         */
+        public int getNumTouched() {
+            return numTouched;
+        }
+
+        /**
+         * @return The id of the k'th touched row.
+         */
+        public int getTouchedRowId(int k) {
+            return rows.getRowId(touched[k]);
+        }
+
+        /**
+         * @return The dot product accumulated so far for the k'th touched row.
+         */
+        public double getTouchedDot(int k) {
+            return dots[touched[k]];
+        }
+
+        /**
+         * Replaces the dot product of the k'th touched row.
+         */
+        public void setTouchedDot(int k, double dot) {
+            dots[touched[k]] = dot;
+        }
+
+        /**
+         * @return The norm of the k'th touched row.
+         */
+        public float getTouchedNorm(int k) {
+            return rows.getNorm(touched[k]);
+        }
+
+        /**
+         * @return The k'th largest cosine so far among the valid touched rows that are
+         * not pruned, or -infinity if there are fewer than k of them.
+         */
+        public double getKthScore(int k, double queryNorm) {
+            if (scores.length < numTouched) {
+                scores = new double[numRows];
+            }
+            int n = 0;
+            for (int t = 0; t < numTouched; t++) {
+                int i = touched[t];
+                if (dots[i] != PRUNED && (validIds == null || validIds.contains(rows.getRowId(i)))) {
+                    scores[n++] = dots[i] / rows.getNorm(i);
+                }
+            }
+            return (n < k) ? Double.NEGATIVE_INFINITY : MathUtils.kthLargest(scores, n, k) / queryNorm;
+        }
+
+        /**
+         * @return A reusable array of at least n longs.
+         */
+        public long[] getOrder(int n) {
+            if (order.length < n) {
+                order = new long[n];
+            }
+            return order;
+        }
+
+        /**
+         * Resets the scratch space without tallying any results.
+         */
+        public void clear() {
+            for (int k = 0; k < numTouched; k++) {
+                dots[touched[k]] = 0.0;
+            }
+            numTouched = 0;
+            validIds = null;
+        }
+
+        /**
+         * Tallies the cosine of every touched row and resets the scratch space.
+         * @param queryNorm The norm of the query vector.
+         * @param minScore Cosines below this are not tallied.
+         */
+        public void finish(double queryNorm, double minScore, Leaderboard leaderboard) {
+            for (int k = 0; k < numTouched; k++) {
+                int i = touched[k];
+                if (validIds == null || validIds.contains(rows.getRowId(i))) {
+                    double score = dots[i] / (rows.getNorm(i) * queryNorm);
+                    if (score >= minScore) {
+                        leaderboard.tallyScore(rows.getRowId(i), score);
+                    }
+                }
+            }
+            clear();
+        }
+    }
+
+    /**
+     * Per-thread accumulator state for a block of queries that share transpose rows.
+     * Use it as: begin(blockSize), add() for each transpose row the block needs, then finish().
+     *
+     * Each touched matrix row gets a slot of blockSize consecutive partial dot products,
+     * one per query, so scattering a transpose value into every query that uses it stays
+     * within a cache line or two. Slots cost 8 * blockSize bytes per touched row.
+     */
+    public final class BlockScratch {
+        private final int slots[] = new int[numRows];     // dense index -> slot, or -1
+        private int slotOwners[] = new int[1024];               // slot -> dense index
+        private int numSlots = 0;
+        private double dots[] = new double[0];
+        private int blockSize = 0;
+
+        /**
+         * A cursor callers may reuse to read transpose rows.
+         */
+        public final SparseRowCursor cursor = new SparseRowCursor();
+
+        private BlockScratch() {
+            Arrays.fill(slots, NO_INDEX);
+        }
+
+        /**
+         * Starts a new block of queries. Discards any state left by a block that failed before finish().
+         */
+        public void begin(int blockSize) {
+            if (numSlots > 0) {
+                clear();
+            }
+            this.blockSize = blockSize;
+        }
+
+        /**
+         * Resets the scratch space without tallying any results.
+         */
+        public void clear() {
+            for (int slot = 0; slot < numSlots; slot++) {
+                int base = slot * blockSize;
+                Arrays.fill(dots, base, base + blockSize, 0.0);
+                slots[slotOwners[slot]] = NO_INDEX;
+            }
+            numSlots = 0;
+        }
+
+        /**
+         * Adds weights[k] * column to the dot products of query queries[k], for k < n,
+         * for every column of a transpose row.
+         */
+        public void add(int queries[], float weights[], int n, MatrixRow transposeRow) {
+            int numCols = transposeRow.getNumCols();
+            for (int j = 0; j < numCols; j++) {
+                int i = getDenseIndex(transposeRow.getColIndex(j));
+                if (i == NO_INDEX) {
+                    continue;
+                }
+                int slot = slots[i];
+                if (slot == NO_INDEX) {
+                    slot = newSlot(i);
+                }
+                float val = transposeRow.getColValue(j);
+                int base = slot * blockSize;
+                for (int k = 0; k < n; k++) {
+                    int q = base + queries[k];
+                    dots[q] += weights[k] * val;
+                    if (dots[q] == 0.0) {
+                        dots[q] = Double.MIN_VALUE;     // keep it marked as touched
+                    }
+                }
+            }
+        }
+
+        private int newSlot(int i) {
+            int slot = numSlots++;
+            if (slot >= slotOwners.length) {
+                slotOwners = Arrays.copyOf(slotOwners, slotOwners.length * 2);
+            }
+            int end = numSlots * blockSize;
+            if (end > dots.length) {
+                dots = Arrays.copyOf(dots, Math.max(end, dots.length * 2));
+            }
+            slotOwners[slot] = i;
+            slots[i] = slot;
+            return slot;
+        }
+
+        /**
+         * Tallies the cosine of every row touched by each query and resets the scratch space.
+         * @param queryNorms The norm of each query vector.
+         * @param validIds The matrix row ids that may be returned, or null for all rows.
+         * @param minScore Cosines below this are not tallied.
+         * @param leaderboards One leaderboard per query.
+         */
+        public void finish(double queryNorms[], TIntSet validIds, double minScore, Leaderboard leaderboards[]) {
+            for (int slot = 0; slot < numSlots; slot++) {
+                int i = slotOwners[slot];
+                int base = slot * blockSize;
+                if (validIds == null || validIds.contains(rows.getRowId(i))) {
+                    for (int q = 0; q < blockSize; q++) {
+                        double dot = dots[base + q];
+                        if (dot != 0.0) {
+                            double score = dot / (rows.getNorm(i) * queryNorms[q]);
+                            if (score >= minScore) {
+                                leaderboards[q].tallyScore(rows.getRowId(i), score);
+                            }
+                        }
+                    }
+                }
+                Arrays.fill(dots, base, base + blockSize, 0.0);
+                slots[i] = NO_INDEX;
+            }
+            numSlots = 0;
+        }
+    }
+}
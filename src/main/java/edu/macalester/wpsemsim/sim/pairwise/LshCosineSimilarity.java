@@ -0,0 +1,168 @@
+package edu.macalester.wpsemsim.sim.pairwise;
+
+import edu.macalester.wpsemsim.concepts.ConceptMapper;
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.matrix.DecodedMatrixRow;
+import edu.macalester.wpsemsim.matrix.MatrixRow;
+import edu.macalester.wpsemsim.matrix.RowNorms;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseRowCursor;
+import edu.macalester.wpsemsim.sim.BaseSimilarityMetric;
+import edu.macalester.wpsemsim.sim.SimilarityMetric;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * An approximate version of PairwiseCosineSimilarity for exploratory runs.
+ *
+ * mostSimilar(wpId) looks up candidate rows in an LshIndex of the matrix, keeps the
+ * maxScored candidates whose signatures are closest to the query's, and ranks them by
+ * their exact cosine with the query row, so every returned score is exact but some true
+ * neighbors may be missed. More probes per table find more of them at the cost of
+ * comparing more signatures, and a larger maxScored at the cost of scoring more rows.
+ * similarity(wpId1, wpId2) is exact.
+ */
+public class LshCosineSimilarity extends BaseSimilarityMetric implements SimilarityMetric {
+    private static final Logger LOG = Logger.getLogger(LshCosineSimilarity.class.getName());
+
+    public static final int DEFAULT_NUM_PROBES = 8;
+    public static final int DEFAULT_MAX_CANDIDATES = 5000;
+    public static final int DEFAULT_MAX_SCORED = 200;
+
+    private SparseMatrix matrix;
+    private LshIndex index;
+    private int numProbes = DEFAULT_NUM_PROBES;
+    private int maxCandidates = DEFAULT_MAX_CANDIDATES;
+    private int maxScored = DEFAULT_MAX_SCORED;
+    private volatile RowNorms rowNorms = null;
+
+    private final ThreadLocal<LshIndex.Scratch> scratch = new ThreadLocal<LshIndex.Scratch>() {
+        @Override
+        protected LshIndex.Scratch initialValue() {
+            return index.newScratch();
+        }
+    };
+
+    public LshCosineSimilarity(SparseMatrix matrix, LshIndex index) {
+        this(null, null, matrix, index);
+    }
+
+    public LshCosineSimilarity(ConceptMapper mapper, IndexHelper helper, SparseMatrix matrix, LshIndex index) {
+        super(mapper, helper);
+        this.matrix = matrix;
+        this.index = index;
+        setName("lsh-cosine-similarity (matrix=" + matrix.getPath() + ")");
+    }
+
+    /**
+     * @param numProbes The number of buckets probed in each table, including the query's own.
+     */
+    public void setNumProbes(int numProbes) {
+        this.numProbes = numProbes;
+    }
+
+    /**
+     * @param maxCandidates The maximum number of rows found in the probed buckets per query.
+     */
+    public void setMaxCandidates(int maxCandidates) {
+        this.maxCandidates = maxCandidates;
+    }
+
+    /**
+     * @param maxScored The maximum number of candidates scored per query. Candidates whose
+     * signatures are closest to the query's are scored first.
+     */
+    public void setMaxScored(int maxScored) {
+        this.maxScored = maxScored;
+    }
+
+    /**
+     * Loads the row norms of the matrix, from its sidecar if it has one (see RowNorms).
+     */
+    private RowNorms getRowNorms() throws IOException {
+        if (rowNorms == null) {
+            synchronized (this) {
+                if (rowNorms == null) {
+                    rowNorms = RowNorms.get(matrix);
+                }
+            }
+        }
+        return rowNorms;
+    }
+
+    @Override
+    public double similarity(int wpId1, int wpId2) throws IOException {
+        double sim = 0;
+        MatrixRow row1 = matrix.readRow(wpId1, null);
+        if (row1 != null) {
+            MatrixRow row2 = matrix.readRow(wpId2, null);
+            if (row2 != null) {
+                sim = row1.cosine(row2);
+            }
+        }
+        return normalize(sim);
+    }
+
+    @Override
+    public DocScoreList mostSimilar(int wpId, int maxResults, TIntSet validIds) throws IOException {
+        if (maxResults <= 0) {
+            return new DocScoreList(0);
+        }
+        SparseRowCursor row = matrix.readRow(wpId, null);
+        if (row == null) {
+            LOG.info("unknown wpId: " + wpId);
+            return new DocScoreList(0);
+        }
+        DecodedMatrixRow query = DecodedMatrixRow.decode(row);
+        double norm = query.getNorm();
+        if (norm == 0) {
+            return new DocScoreList(0);
+        }
+        TIntArrayList candidates = new TIntArrayList();
+        LshIndex.Scratch lshScratch = scratch.get();
+        index.getCandidates(query, numProbes, maxCandidates, lshScratch, candidates);
+        index.keepClosest(lshScratch, candidates, Math.max(maxScored, maxResults));
+
+        // rows with sorted ids are scored by a merge join, others by probing a map of the query
+        RowNorms norms = getRowNorms();
+        TIntFloatHashMap queryMap = null;
+        Leaderboard leaderboard = new Leaderboard(maxResults);
+        SparseRowCursor cursor = new SparseRowCursor();
+        for (int i = 0; i < candidates.size(); i++) {
+            int c = candidates.get(i);
+            int id = index.getRowId(c);
+            if (validIds != null && !validIds.contains(id)) {
+                continue;
+            }
+            MatrixRow row2 = matrix.readRow(id, cursor);
+            if (row2 == null) {
+                continue;
+            }
+            double dot;
+            if (query.hasSortedIds() && row2.hasSortedIds()) {
+                dot = query.dot(row2);
+            } else {
+                if (queryMap == null) {
+                    queryMap = query.asTroveMap();
+                }
+                dot = 0;
+                for (int j = 0; j < row2.getNumCols(); j++) {
+                    dot += queryMap.get(row2.getColIndex(j)) * row2.getColValue(j);
+                }
+            }
+            if (dot != 0) {
+                // the index and the norms both list rows in the matrix's write order
+                double norm2 = (c < norms.getNumRows() && norms.getRowId(c) == id)
+                        ? norms.getNorm(c) : row2.getNorm();
+                leaderboard.tallyScore(id, dot / (norm * norm2));
+            }
+        }
+        return normalize(leaderboard.getTop());
+    }
+}
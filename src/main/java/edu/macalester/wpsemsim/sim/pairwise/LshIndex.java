@@ -0,0 +1,514 @@
+package edu.macalester.wpsemsim.sim.pairwise;
+
+import edu.macalester.wpsemsim.matrix.MatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseRowCursor;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A random-hyperplane (SimHash) locality sensitive hash index over the rows of a sparse
+ * matrix, for finding rows with a high cosine similarity to a query without scoring
+ * every row.
+ *
+ * Each bit of a row's signature is the sign of the row's projection onto a random
+ * hyperplane, so two rows agree on a bit with probability 1 - angle / pi. The
+ * hyperplanes have random +1/-1 components derived by hashing the column id, so no
+ * projection matrix is stored. Signatures are packed into one long[] with
+ * getNumWords() longs per row.
+ *
+ * The bits are split into numTables tables of bitsPerTable bits. Each table sorts the
+ * rows by their key, the table's bits, so a bucket is a range of the sorted rows.
+ * Lookups use multi-probe LSH: besides the query's own bucket, each table also probes
+ * the buckets that differ in the one or two bits whose projections were closest to zero,
+ * since those are the bits a near neighbor most likely disagrees on.
+ *
+ * Candidates can then be narrowed down to those whose whole signatures are closest
+ * to the query's in Hamming distance, see keepClosest().
+ *
+ * The index costs 4 bytes per row per table plus the signatures. Only the signatures are
+ * written to disk; the tables are sorted again when the index is read. The file records
+ * the number of rows, length and modification time of the matrix it was built from, and
+ * read(File, SparseMatrix) ignores it if any of them no longer match.
+ */
+public class LshIndex {
+    private static final Logger LOG = Logger.getLogger(LshIndex.class.getName());
+
+    public static final int FILE_HEADER = 0xabcd05;
+
+    public static final int DEFAULT_NUM_TABLES = 16;
+    public static final int DEFAULT_BITS_PER_TABLE = 16;
+    public static final long DEFAULT_SEED = 0x5eed;
+
+    private final int numTables;
+    private final int bitsPerTable;
+    private final int numWords;
+    private final long seed;
+    private final long matrixLength;
+    private final long matrixModified;
+
+    private final int rowIds[];
+    private final float norms[];
+    private final long signatures[];
+
+    // per table: row indexes sorted by key, and the key of each of them
+    private final int tableRows[][];
+    private final int tableKeys[][];
+
+    private LshIndex(int numTables, int bitsPerTable, long seed, long matrixLength, long matrixModified,
+                     int rowIds[], float norms[], long signatures[]) {
+        if (numTables < 1 || bitsPerTable < 1 || bitsPerTable > 31) {
+            throw new IllegalArgumentException("invalid tables: " + numTables + " of " + bitsPerTable + " bits");
+        }
+        this.numTables = numTables;
+        this.bitsPerTable = bitsPerTable;
+        this.numWords = (numTables * bitsPerTable + 63) / 64;
+        this.seed = seed;
+        this.matrixLength = matrixLength;
+        this.matrixModified = matrixModified;
+        this.rowIds = rowIds;
+        this.norms = norms;
+        this.signatures = signatures;
+        this.tableRows = new int[numTables][];
+        this.tableKeys = new int[numTables][];
+        buildTables();
+    }
+
+    /**
+     * Computes the signature of every row of a matrix.
+     */
+    public static LshIndex build(SparseMatrix matrix, int numTables, int bitsPerTable, long seed) {
+        int numWords = (numTables * bitsPerTable + 63) / 64;
+        int n = matrix.getNumRows();
+        int rowIds[] = new int[n];
+        float norms[] = new float[n];
+        long signatures[] = new long[n * numWords];
+        double projections[] = new double[numWords * 64];
+        int i = 0;
+        for (SparseRowCursor row : matrix.cursors()) {
+            rowIds[i] = row.getRowIndex();
+            norms[i] = (float) row.getNorm();
+            project(row, seed, numWords, projections);
+            sign(projections, signatures, i * numWords, numWords);
+            i++;
+            if (i % 100000 == 0) {
+                LOG.info("computed signatures of " + i + " of " + n + " rows");
+            }
+        }
+        return new LshIndex(numTables, bitsPerTable, seed,
+                matrix.getPath().length(), matrix.getPath().lastModified(), rowIds, norms, signatures);
+    }
+
+    /**
+     * @return True if the index was built from the current contents of a matrix.
+     */
+    public boolean matches(SparseMatrix matrix) {
+        return rowIds.length == matrix.getNumRows()
+            && matrixLength == matrix.getPath().length()
+            && matrixModified == matrix.getPath().lastModified();
+    }
+
+    /**
+     * Sorts each table's rows by their key.
+     */
+    private void buildTables() {
+        int n = rowIds.length;
+        long packed[] = new long[n];
+        for (int t = 0; t < numTables; t++) {
+            for (int i = 0; i < n; i++) {
+                packed[i] = ((long) getKey(signatures, i * numWords, t) << 32) | i;
+            }
+            Arrays.sort(packed);
+            int rows[] = new int[n];
+            int keys[] = new int[n];
+            for (int i = 0; i < n; i++) {
+                rows[i] = (int) packed[i];
+                keys[i] = (int) (packed[i] >>> 32);
+            }
+            tableRows[t] = rows;
+            tableKeys[t] = keys;
+        }
+    }
+
+    /**
+     * Projects a row onto numWords * 64 random hyperplanes.
+     * The component of hyperplane 64 * w + b for a column is bit b of a hash of the column and w.
+     */
+    static void project(MatrixRow row, long seed, int numWords, double projections[]) {
+        Arrays.fill(projections, 0, numWords * 64, 0.0);
+        for (int i = 0; i < row.getNumCols(); i++) {
+            long col = row.getColIndex(i);
+            double v = row.getColValue(i);
+            for (int w = 0; w < numWords; w++) {
+                long bits = mix(seed ^ mix((col << 8) | w));
+                int base = w * 64;
+                for (int b = 0; b < 64; b++) {
+                    projections[base + b] += ((bits >>> b) & 1L) != 0 ? v : -v;
+                }
+            }
+        }
+    }
+
+    private static void sign(double projections[], long signatures[], int offset, int numWords) {
+        for (int w = 0; w < numWords; w++) {
+            long word = 0;
+            for (int b = 0; b < 64; b++) {
+                if (projections[w * 64 + b] > 0) {
+                    word |= 1L << b;
+                }
+            }
+            signatures[offset + w] = word;
+        }
+    }
+
+    /**
+     * The splitmix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return The bits of a signature that form the key of a table.
+     */
+    private int getKey(long signatures[], int offset, int table) {
+        int key = 0;
+        int start = table * bitsPerTable;
+        for (int b = 0; b < bitsPerTable; b++) {
+            int bit = start + b;
+            if (((signatures[offset + (bit >> 6)] >>> (bit & 63)) & 1L) != 0) {
+                key |= 1 << b;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Adds the rows in the buckets probed for a query to a list of candidates.
+     * @param query The query row. It does not need to be in the index.
+     * @param numProbes The number of buckets probed per table, including the query's own bucket.
+     * @param maxCandidates Probing stops once this many distinct rows have been found.
+     * @param scratch Per-thread scratch space, see newScratch().
+     * @param candidates Receives the indexes of the candidate rows.
+     */
+    void getCandidates(MatrixRow query, int numProbes, int maxCandidates, Scratch scratch, TIntArrayList candidates) {
+        project(query, seed, numWords, scratch.projections);
+        sign(scratch.projections, scratch.signature, 0, numWords);
+        scratch.next();
+        // probe every table's best bucket before any table's second best, so the
+        // candidate limit cuts off the least likely buckets
+        int probes[][] = new int[numTables][Math.max(1, numProbes)];
+        int numTableProbes[] = new int[numTables];
+        int maxProbes = 0;
+        for (int t = 0; t < numTables; t++) {
+            numTableProbes[t] = getProbes(scratch.projections, t, getKey(scratch.signature, 0, t), probes[t]);
+            maxProbes = Math.max(maxProbes, numTableProbes[t]);
+        }
+        for (int p = 0; p < maxProbes; p++) {
+            for (int t = 0; t < numTables; t++) {
+                if (candidates.size() >= maxCandidates) {
+                    return;
+                }
+                if (p < numTableProbes[t]) {
+                    addBucket(t, probes[t][p], scratch, candidates, maxCandidates);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills probes with the query's key followed by the keys that differ from it in the
+     * one or two bits with the smallest total projection magnitude.
+     * @return The number of probes.
+     */
+    private int getProbes(double projections[], int table, int key, int probes[]) {
+        probes[0] = key;
+        if (probes.length == 1) {
+            return 1;
+        }
+        int k = bitsPerTable;
+        double margins[] = new double[k];
+        for (int b = 0; b < k; b++) {
+            margins[b] = Math.abs(projections[table * k + b]);
+        }
+        // every single and double bit flip, scored by the margins it crosses
+        int numFlips = k + k * (k - 1) / 2;
+        double scores[] = new double[numFlips];
+        int masks[] = new int[numFlips];
+        int f = 0;
+        for (int b1 = 0; b1 < k; b1++) {
+            scores[f] = margins[b1];
+            masks[f++] = 1 << b1;
+            for (int b2 = b1 + 1; b2 < k; b2++) {
+                scores[f] = margins[b1] + margins[b2];
+                masks[f++] = (1 << b1) | (1 << b2);
+            }
+        }
+        int n = 1;
+        boolean used[] = new boolean[numFlips];
+        while (n < probes.length && n <= numFlips) {
+            int best = -1;
+            for (int i = 0; i < numFlips; i++) {
+                if (!used[i] && (best < 0 || scores[i] < scores[best])) {
+                    best = i;
+                }
+            }
+            used[best] = true;
+            probes[n++] = key ^ masks[best];
+        }
+        return n;
+    }
+
+    /**
+     * Keeps the n candidates whose signatures differ from the query's signature, computed by
+     * the last getCandidates(), in the fewest bits. The full signature estimates the angle
+     * between two rows much better than any one table's key, and comparing signatures is far
+     * cheaper than scoring a row.
+     * @param candidates The candidates found by getCandidates(). Their order is not kept.
+     */
+    void keepClosest(Scratch scratch, TIntArrayList candidates, int n) {
+        int m = candidates.size();
+        if (m <= n) {
+            return;
+        }
+        int counts[] = scratch.distanceCounts;
+        Arrays.fill(counts, 0);
+        int distances[] = scratch.getDistances(m);
+        for (int i = 0; i < m; i++) {
+            int offset = candidates.get(i) * numWords;
+            int d = 0;
+            for (int w = 0; w < numWords; w++) {
+                d += Long.bitCount(signatures[offset + w] ^ scratch.signature[w]);
+            }
+            distances[i] = d;
+            counts[d]++;
+        }
+        // keep every candidate closer than the cutoff and as many at the cutoff as fit
+        int cutoff = 0;
+        int numCloser = 0;
+        while (numCloser + counts[cutoff] < n) {
+            numCloser += counts[cutoff++];
+        }
+        int atCutoff = n - numCloser;
+        int k = 0;
+        for (int i = 0; i < m; i++) {
+            int d = distances[i];
+            if (d < cutoff || (d == cutoff && atCutoff-- > 0)) {
+                candidates.set(k++, candidates.get(i));
+            }
+        }
+        candidates.remove(k, m - k);
+    }
+
+    private void addBucket(int table, int key, Scratch seen, TIntArrayList candidates, int maxCandidates) {
+        int keys[] = tableKeys[table];
+        int rows[] = tableRows[table];
+        int i = Arrays.binarySearch(keys, key);
+        if (i < 0) {
+            return;
+        }
+        while (i > 0 && keys[i - 1] == key) {
+            i--;
+        }
+        for (; i < keys.length && keys[i] == key && candidates.size() < maxCandidates; i++) {
+            if (seen.mark(rows[i])) {
+                candidates.add(rows[i]);
+            }
+        }
+    }
+
+    /**
+     * Per-thread space for queries. Rows already seen by a query are marked with the
+     * query's stamp, so the marks do not have to be cleared between queries.
+     */
+    static final class Scratch {
+        private final int stamps[];
+        private int stamp = 0;
+        private final double projections[];
+        private final long signature[];
+        private final int distanceCounts[];
+        private int distances[] = new int[0];
+
+        private Scratch(int numRows, int numWords) {
+            stamps = new int[numRows];
+            projections = new double[numWords * 64];
+            signature = new long[numWords];
+            distanceCounts = new int[numWords * 64 + 1];
+        }
+
+        private int[] getDistances(int n) {
+            if (distances.length < n) {
+                distances = new int[n];
+            }
+            return distances;
+        }
+
+        private void next() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+        }
+
+        /**
+         * @return True if the row had not been marked for the current query.
+         */
+        private boolean mark(int i) {
+            if (stamps[i] == stamp) {
+                return false;
+            }
+            stamps[i] = stamp;
+            return true;
+        }
+    }
+
+    Scratch newScratch() {
+        return new Scratch(rowIds.length, numWords);
+    }
+
+    public int getNumRows() {
+        return rowIds.length;
+    }
+
+    public int getNumTables() {
+        return numTables;
+    }
+
+    public int getBitsPerTable() {
+        return bitsPerTable;
+    }
+
+    /**
+     * @return The number of longs in each row's signature.
+     */
+    public int getNumWords() {
+        return numWords;
+    }
+
+    /**
+     * @return The id of the i'th row.
+     */
+    public int getRowId(int i) {
+        return rowIds[i];
+    }
+
+    /**
+     * @return The norm of the i'th row.
+     */
+    public float getNorm(int i) {
+        return norms[i];
+    }
+
+    /**
+     * @return Word w of the signature of the i'th row.
+     */
+    public long getSignatureWord(int i, int w) {
+        return signatures[i * numWords + w];
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(numTables);
+            out.writeInt(bitsPerTable);
+            out.writeLong(seed);
+            out.writeLong(matrixLength);
+            out.writeLong(matrixModified);
+            out.writeInt(rowIds.length);
+            for (int id : rowIds) {
+                out.writeInt(id);
+            }
+            for (float norm : norms) {
+                out.writeFloat(norm);
+            }
+            for (long word : signatures) {
+                out.writeLong(word);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static LshIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+        try {
+            if (in.readInt() != FILE_HEADER) {
+                throw new IOException("invalid lsh index file " + file);
+            }
+            int numTables = in.readInt();
+            int bitsPerTable = in.readInt();
+            long seed = in.readLong();
+            long matrixLength = in.readLong();
+            long matrixModified = in.readLong();
+            int n = in.readInt();
+            int numWords = (numTables * bitsPerTable + 63) / 64;
+            int rowIds[] = new int[n];
+            float norms[] = new float[n];
+            long signatures[] = new long[n * numWords];
+            for (int i = 0; i < n; i++) {
+                rowIds[i] = in.readInt();
+            }
+            for (int i = 0; i < n; i++) {
+                norms[i] = in.readFloat();
+            }
+            for (int i = 0; i < signatures.length; i++) {
+                signatures[i] = in.readLong();
+            }
+            return new LshIndex(numTables, bitsPerTable, seed, matrixLength, matrixModified, rowIds, norms, signatures);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the index of a matrix.
+     * @return The index, or null if the file is missing, in an older format, or was built
+     * from another version of the matrix.
+     */
+    public static LshIndex read(File file, SparseMatrix matrix) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != FILE_HEADER) {
+                LOG.log(Level.INFO, "ignoring lsh index in an older format " + file);
+                return null;
+            }
+        } finally {
+            in.close();
+        }
+        LshIndex index = read(file);
+        if (!index.matches(matrix)) {
+            LOG.log(Level.INFO, "ignoring stale lsh index " + file);
+            return null;
+        }
+        return index;
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 2 && args.length != 4) {
+            System.err.println("usage: java " + LshIndex.class.getName() +
+                    " path_matrix path_output [num_tables bits_per_table]");
+            System.exit(1);
+        }
+        int numTables = (args.length == 4) ? Integer.valueOf(args[2]) : DEFAULT_NUM_TABLES;
+        int bitsPerTable = (args.length == 4) ? Integer.valueOf(args[3]) : DEFAULT_BITS_PER_TABLE;
+        SparseMatrix matrix = new SparseMatrix(new File(args[0]));
+        build(matrix, numTables, bitsPerTable, DEFAULT_SEED).write(new File(args[1]));
+    }
+}
@@ -2,22 +2,30 @@ package edu.macalester.wpsemsim.sim.pairwise;
 
 import edu.macalester.wpsemsim.concepts.ConceptMapper;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.matrix.CachedMatrix;
+import edu.macalester.wpsemsim.matrix.DecodedMatrixRow;
 import edu.macalester.wpsemsim.matrix.Matrix;
 import edu.macalester.wpsemsim.matrix.MatrixRow;
+import edu.macalester.wpsemsim.matrix.RowNorms;
 import edu.macalester.wpsemsim.matrix.SparseMatrix;
-import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseRowCursor;
+import edu.macalester.wpsemsim.matrix.ValueConf;
 import edu.macalester.wpsemsim.sim.BaseSimilarityMetric;
 import edu.macalester.wpsemsim.sim.SimilarityMetric;
 import edu.macalester.wpsemsim.utils.DocScoreList;
 import edu.macalester.wpsemsim.utils.Leaderboard;
-import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.iterator.TIntFloatIterator;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.lucene.queryparser.surround.parser.ParseException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 public class PairwiseCosineSimilarity extends BaseSimilarityMetric implements SimilarityMetric {
@@ -25,11 +33,29 @@ public class PairwiseCosineSimilarity extends BaseSimilarityMetric implements Si
 
     private SparseMatrix matrix;
     private SparseMatrix transpose;
-    private TIntFloatHashMap lengths = null;   // lengths of each row
+    private CachedMatrix matrixCache;       // optional cache of decoded matrix rows
+    private CachedMatrix transposeCache;    // optional cache of decoded transpose rows
+    private volatile DotProductAccumulator accumulator = null;   // row norms and per-thread scratch space
     private int maxResults = -1;
     private SimilarityMetric basedOn;   // underlying similarity metric that generated these similarities
     private boolean buildPhraseVectors; // if true, build phrase vectors using the underlying similarity metric.
-    private TIntSet idsInResults = new TIntHashSet();
+    private volatile TIntSet idsInResults = null;   // row ids of the transpose, built for phrase vectors
+
+    // optional top-k pruning of mostSimilar(wpId)
+    private volatile boolean pruneTopK = false;
+    private double minSimilarity = Double.NEGATIVE_INFINITY;
+    private volatile boolean hasColumnBounds = false;
+
+    /**
+     * Slack for float rounding in the pruning bounds.
+     */
+    private static final double PRUNE_EPSILON = 1e-6;
+
+    /**
+     * Scoring a row against the query costs about this many times as much per value as
+     * adding a transpose value, because it reads a random row and probes a hash map.
+     */
+    private static final double VERIFY_COST = 2.0;
 
     public PairwiseCosineSimilarity(SparseMatrix matrix, SparseMatrix transpose) throws IOException {
         this(null, null, matrix, transpose);
@@ -44,30 +70,83 @@ public class PairwiseCosineSimilarity extends BaseSimilarityMetric implements Si
                 transpose.getPath() + ")");
     }
 
+    /**
+     * @param cache A cache wrapping the matrix, or null for no cache.
+     */
+    public void setMatrixCache(CachedMatrix cache) {
+        this.matrixCache = cache;
+    }
+
+    /**
+     * @param cache A cache wrapping the transpose, or null for no cache.
+     */
+    public void setTransposeCache(CachedMatrix cache) {
+        this.transposeCache = cache;
+    }
+
+    private MatrixRow getMatrixRow(int wpId) throws IOException {
+        return (matrixCache == null) ? matrix.readRow(wpId, null) : matrixCache.getRow(wpId);
+    }
+
+    /**
+     * If true, mostSimilar(wpId) skips rows that provably cannot make the top results.
+     * The results are still exact. Pruning needs a matrix without negative values;
+     * it is disabled otherwise. It pays off when the longest columns of the matrix
+     * have low values (like common words in tf-idf vectors) and the k'th best cosine
+     * or minSimilarity is high; otherwise its bookkeeping costs more than it skips.
+     */
+    public void setPruneTopK(boolean pruneTopK) {
+        this.pruneTopK = pruneTopK;
+    }
+
+    /**
+     * Drops results of mostSimilar(wpId) with a cosine below the threshold.
+     * With pruning, a higher threshold lets more rows be skipped.
+     */
+    public void setMinSimilarity(double minSimilarity) {
+        this.minSimilarity = minSimilarity;
+    }
+
     public void setBasedOn(SimilarityMetric metric) {
         this.basedOn = metric;
     }
 
-    public synchronized void initIfNeeded() {
-        if (lengths == null) {
-            LOG.info("building cached matrix information");
-            lengths = new TIntFloatHashMap();
-            for (SparseMatrixRow row : matrix) {
-                lengths.put(row.getRowIndex(), (float) row.getNorm());
-                maxResults = Math.max(maxResults, row.getNumCols());
+    /**
+     * Loads the row norms of the matrix, from its sidecar if it has one (see RowNorms).
+     * Only the first call takes a lock; later calls return immediately.
+     */
+    public void initIfNeeded() throws IOException {
+        if (accumulator == null || (pruneTopK && !hasColumnBounds)) {
+            init();
+        }
+    }
+
+    private synchronized void init() throws IOException {
+        if (accumulator == null) {
+            LOG.info("loading row norms");
+            DotProductAccumulator acc = new DotProductAccumulator(RowNorms.get(matrix));
+            maxResults = acc.getMaxRowLength();
+            accumulator = acc;
+        }
+        if (pruneTopK && !hasColumnBounds) {
+            LOG.info("building column bounds for pruning");
+            if (accumulator.computeColumnBounds(transpose)) {
+                hasColumnBounds = true;
+            } else {
+                LOG.warning("matrix " + matrix.getPath() + " has negative values; disabling pruning");
+                pruneTopK = false;
             }
-            idsInResults.addAll(transpose.getRowIds());
         }
     }
 
     @Override
     public double similarity(int wpId1, int wpId2) throws IOException {
         double sim = 0;
-        MatrixRow row1 = matrix.getRow(wpId1);
+        MatrixRow row1 = getMatrixRow(wpId1);
         if (row1 != null) {
-            MatrixRow row2 = matrix.getRow(wpId2);
+            MatrixRow row2 = getMatrixRow(wpId2);
             if (row2 != null) {
-                    sim = cosineSimilarity(row1.asTroveMap(), row2.asTroveMap());
+                    sim = row1.cosine(row2);
             }
         }
         return normalize(sim);
@@ -83,8 +162,8 @@ public class PairwiseCosineSimilarity extends BaseSimilarityMetric implements Si
             throw new IllegalArgumentException("basedOn must be non-null if buildPhraseVectors is true");
         }
         initIfNeeded();
-        DocScoreList list1 = basedOn.mostSimilar(phrase1, maxResults, idsInResults);
-        DocScoreList list2 = basedOn.mostSimilar(phrase2, maxResults, idsInResults);
+        DocScoreList list1 = basedOn.mostSimilar(phrase1, maxResults, getIdsInResults());
+        DocScoreList list2 = basedOn.mostSimilar(phrase2, maxResults, getIdsInResults());
         list1.makeUnitLength();
         list2.makeUnitLength();
         return normalize(cosineSimilarity(list1.asTroveMap(), list2.asTroveMap()));
@@ -92,13 +171,120 @@ public class PairwiseCosineSimilarity extends BaseSimilarityMetric implements Si
 
     @Override
     public DocScoreList mostSimilar(int wpId, int maxResults, TIntSet validIds) throws IOException {
-        MatrixRow row = matrix.getRow(wpId);
+        MatrixRow row = getMatrixRow(wpId);
         if (row == null) {
             LOG.info("unknown wpId: " + wpId);
             return new DocScoreList(0);
         }
-        TIntFloatHashMap vector = row.asTroveMap();
-        return mostSimilar(maxResults, validIds, vector);
+        initIfNeeded();
+        if (pruneTopK && row.getNorm() > 0) {
+            return mostSimilarPruned(row, maxResults, validIds);
+        }
+        DotProductAccumulator.Scratch scratch = accumulator.getScratch();
+        scratch.begin(validIds);
+        for (int i = 0; i < row.getNumCols(); i++) {
+            MatrixRow row2 = getTransposeRow(row.getColIndex(i), scratch);
+            if (row2 != null) {
+                scratch.add(row.getColValue(i), row2);
+            }
+        }
+        return finish(scratch, row.getNorm(), minSimilarity, maxResults);
+    }
+
+    /**
+     * Estimates the relative cost of mostSimilar() for each row as the number of
+     * transpose values it adds up: the total length of the transpose rows of its
+     * columns, plus one. Rows that are not in the matrix cost one.
+     */
+    public double[] estimateCosts(int wpIds[]) throws IOException {
+        TIntIntHashMap columnLengths = new TIntIntHashMap(transpose.getNumRows());
+        for (SparseRowCursor row : transpose.cursors()) {
+            columnLengths.put(row.getRowIndex(), row.getNumCols());
+        }
+        double costs[] = new double[wpIds.length];
+        SparseRowCursor cursor = new SparseRowCursor();
+        for (int i = 0; i < wpIds.length; i++) {
+            costs[i] = 1;
+            SparseRowCursor row = matrix.readRow(wpIds[i], cursor);
+            if (row != null) {
+                for (int j = 0; j < row.getNumCols(); j++) {
+                    costs[i] += columnLengths.get(row.getColIndex(j));
+                }
+            }
+        }
+        return costs;
+    }
+
+    /**
+     * Finds the most similar rows for a block of rows at once. Each transpose row
+     * needed by any row in the block is read once and scattered into the dot products
+     * of every row that uses it, which saves reads when rows share columns.
+     * The results are the same as calling mostSimilar(wpId) for each row, except that
+     * top-k pruning is not applied. Unknown rows get an empty list.
+     */
+    public DocScoreList[] mostSimilar(int wpIds[], int maxResults, TIntSet validIds) throws IOException {
+        initIfNeeded();
+        MatrixRow rows[] = new MatrixRow[wpIds.length];
+        double norms[] = new double[wpIds.length];
+        int numEntries = 0;
+        for (int q = 0; q < wpIds.length; q++) {
+            rows[q] = getMatrixRow(wpIds[q]);
+            if (rows[q] == null) {
+                LOG.info("unknown wpId: " + wpIds[q]);
+            } else {
+                norms[q] = rows[q].getNorm();
+                numEntries += rows[q].getNumCols();
+            }
+        }
+
+        // group the (column, row, value) entries of the block by column
+        long entries[] = new long[numEntries];
+        int entryQueries[] = new int[numEntries];
+        float entryWeights[] = new float[numEntries];
+        int e = 0;
+        for (int q = 0; q < wpIds.length; q++) {
+            for (int i = 0; rows[q] != null && i < rows[q].getNumCols(); i++) {
+                entries[e] = ((long) rows[q].getColIndex(i) << 32) | e;
+                entryQueries[e] = q;
+                entryWeights[e] = rows[q].getColValue(i);
+                e++;
+            }
+        }
+        Arrays.sort(entries);
+
+        DotProductAccumulator.BlockScratch scratch = accumulator.getBlockScratch();
+        scratch.begin(wpIds.length);
+        int queries[] = new int[wpIds.length];
+        float weights[] = new float[wpIds.length];
+        for (int start = 0; start < numEntries; ) {
+            int colId = (int) (entries[start] >> 32);
+            int n = 0;
+            int end = start;
+            for (; end < numEntries && (int) (entries[end] >> 32) == colId; end++) {
+                int entry = (int) entries[end];
+                queries[n] = entryQueries[entry];
+                weights[n] = entryWeights[entry];
+                n++;
+            }
+            MatrixRow row2 = (transposeCache == null)
+                    ? transpose.readRow(colId, scratch.cursor)
+                    : transposeCache.getRow(colId);
+            if (row2 != null) {
+                scratch.add(queries, weights, n, row2);
+            }
+            start = end;
+        }
+
+        Leaderboard leaderboards[] = new Leaderboard[wpIds.length];
+        for (int q = 0; q < wpIds.length; q++) {
+            leaderboards[q] = new Leaderboard(maxResults);
+        }
+        scratch.finish(norms, validIds, minSimilarity, leaderboards);
+        DocScoreList results[] = new DocScoreList[wpIds.length];
+        for (int q = 0; q < wpIds.length; q++) {
+            results[q] = (rows[q] == null) ? new DocScoreList(0) : normalize(leaderboards[q].getTop());
+        }
+        return results;
     }
 
     @Override
@@ -110,7 +296,7 @@ public class PairwiseCosineSimilarity extends BaseSimilarityMetric implements Si
             throw new IllegalArgumentException("basedOn must be non-null if buildPhraseVectors is true");
         }
         initIfNeeded();
-        DocScoreList list = basedOn.mostSimilar(phrase, maxResults, idsInResults);
+        DocScoreList list = basedOn.mostSimilar(phrase, maxResults, getIdsInResults());
         if (list == null) {
             return null;
         } else {
@@ -120,33 +306,179 @@ public class PairwiseCosineSimilarity extends BaseSimilarityMetric implements Si
     }
 
     private DocScoreList mostSimilar(int maxResults, TIntSet validIds, TIntFloatHashMap vector) throws IOException {
-        initIfNeeded();
-        TIntDoubleHashMap dots = new TIntDoubleHashMap();
+        DotProductAccumulator.Scratch scratch = accumulator.getScratch();
+        scratch.begin(validIds);
+        for (TIntFloatIterator iter = vector.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            MatrixRow row2 = getTransposeRow(iter.key(), scratch);
+            if (row2 != null) {
+                scratch.add(iter.value(), row2);
+            }
+        }
+        return finish(scratch, norm(vector), Double.NEGATIVE_INFINITY, maxResults);
+    }
+
+    /**
+     * Finds the most similar rows while skipping rows that cannot make the top results.
+     *
+     * Let bound(c) = q(c) * max value / row norm of column c, divided by |q|. A row's
+     * cosine gains at most bound(c) from column c. Query columns are processed in
+     * decreasing order of bound, so the bound of the unprocessed columns shrinks
+     * quickly. Once it falls below the threshold (a lower bound on the k'th best
+     * cosine, or minSimilarity), rows that have not been touched yet cannot make the
+     * results, so no new rows are admitted. Touched rows whose partial cosine plus the
+     * remaining bound is below the threshold are dropped. The survivors are completed
+     * either by scoring each of them against the query or by reading the remaining
+     * transpose rows, whichever is estimated to be cheaper.
+     */
+    private DocScoreList mostSimilarPruned(MatrixRow queryRow, int maxResults, TIntSet validIds) throws IOException {
+        // the columns are read in bound order, so decode them once rather than seeking in a compressed row
+        MatrixRow row = (queryRow instanceof DecodedMatrixRow) ? queryRow : DecodedMatrixRow.decode(queryRow);
+        DotProductAccumulator.Scratch scratch = accumulator.getScratch();
+        scratch.begin(validIds);
+        double queryNorm = row.getNorm();
+        int n = row.getNumCols();
 
-        for (int id : vector.keys()) {
-            float val1 = vector.get(id);
-            MatrixRow row2 = transpose.getRow(id);
+        // order the query columns by increasing bound, so they are read from the end
+        long order[] = scratch.getOrder(n);
+        double boundSum = 0.0;
+        double queryNorm2 = 0.0;
+        for (int i = 0; i < n; i++) {
+            double bound = getColumnBound(row, i, queryNorm);
+            boundSum += bound;
+            queryNorm2 += row.getColValue(i) * row.getColValue(i);
+            order[i] = ((long) Float.floatToIntBits((float) bound) << 32) | i;
+        }
+        Arrays.sort(order, 0, n);
+
+        // phase 1: accumulate until unseen rows cannot reach the threshold
+        double threshold = minSimilarity;
+        double remaining = Double.POSITIVE_INFINITY;
+        // No partial cosine exceeds the bounds processed so far, so the threshold can only
+        // end phase 1 once less than half the bound remains. After that, recheck only when
+        // the remaining bound is within twice the last threshold, since computing it is
+        // linear in the touched rows.
+        double nextCheck = boundSum / 2;
+        int k = n - 1;
+        for (; k >= 0; k--) {
+            // no row can gain more than the remaining bounds or, by Cauchy-Schwarz, |q_remaining| / |q|
+            remaining = Math.min(boundSum, Math.sqrt(Math.max(queryNorm2, 0.0)) / queryNorm);
+            if (remaining + PRUNE_EPSILON < threshold) {
+                break;
+            }
+            int i = (int) order[k];
+            boundSum -= getColumnBound(row, i, queryNorm);
+            queryNorm2 -= row.getColValue(i) * row.getColValue(i);
+            MatrixRow row2 = getTransposeRow(row.getColIndex(i), scratch);
             if (row2 != null) {
-                for (int j = 0; j < row2.getNumCols(); j++) {
-                    int id2 = row2.getColIndex(j);
-                    if (validIds == null || validIds.contains(id2)) {
-                        float val2 = row2.getColValue(j);
-                        dots.adjustOrPutValue(id2, val1 * val2, val1 * val2);
+                scratch.add(row.getColValue(i), row2);
+            }
+            if (Math.min(boundSum, remaining) < nextCheck && scratch.getNumTouched() >= maxResults) {
+                threshold = Math.max(threshold, scratch.getKthScore(maxResults, queryNorm));
+                nextCheck = Math.min(Math.min(boundSum, remaining) / 2, 2 * threshold);
+            }
+        }
+
+        // phase 2: drop touched rows that cannot reach the threshold and complete the others
+        if (k >= 0) {
+            int numSurvivors = 0;
+            for (int t = 0; t < scratch.getNumTouched(); t++) {
+                double score = scratch.getTouchedDot(t) / (scratch.getTouchedNorm(t) * queryNorm);
+                if ((validIds != null && !validIds.contains(scratch.getTouchedRowId(t)))
+                ||  score + remaining + PRUNE_EPSILON < threshold) {
+                    scratch.prune(t);
+                } else {
+                    numSurvivors++;
+                }
+            }
+            long scanCost = 0;
+            for (int k2 = 0; k2 <= k; k2++) {
+                scanCost += accumulator.getColumnLength(row.getColIndex((int) order[k2]));
+            }
+            if (VERIFY_COST * numSurvivors * accumulator.getMeanRowLength() < scanCost) {
+                verify(row, scratch);
+            } else {
+                for (; k >= 0; k--) {
+                    int i = (int) order[k];
+                    MatrixRow row2 = getTransposeRow(row.getColIndex(i), scratch);
+                    if (row2 != null) {
+                        scratch.addToTouched(row.getColValue(i), row2);
                     }
                 }
             }
         }
 
-        final Leaderboard leaderboard = new Leaderboard(maxResults);
-        double rowNorm = norm(vector);
-        for (int id : dots.keys()) {
-            double l1 = lengths.get(id);
-            double l2 = rowNorm;
-            double dot = dots.get(id);
-            double sim = dot / (l1 * l2);
-            leaderboard.tallyScore(id, sim);
+        Leaderboard leaderboard = new Leaderboard(maxResults);
+        for (int t = 0; t < scratch.getNumTouched(); t++) {
+            int id = scratch.getTouchedRowId(t);
+            if (scratch.isPruned(t) || (validIds != null && !validIds.contains(id))) {
+                continue;
+            }
+            double score = scratch.getTouchedDot(t) / (scratch.getTouchedNorm(t) * queryNorm);
+            if (score >= minSimilarity) {
+                leaderboard.tallyScore(id, score);
+            }
+        }
+        scratch.clear();
+        return normalize(leaderboard.getTop());
+    }
+
+    /**
+     * Replaces the partial dot product of every surviving touched row with its exact
+     * dot product with the query, reading the rows from the matrix.
+     */
+    private void verify(MatrixRow row, DotProductAccumulator.Scratch scratch) throws IOException {
+        TIntFloatHashMap query = scratch.query;
+        query.clear();
+        for (int i = 0; i < row.getNumCols(); i++) {
+            query.put(row.getColIndex(i), row.getColValue(i));
+        }
+        for (int t = 0; t < scratch.getNumTouched(); t++) {
+            if (scratch.isPruned(t)) {
+                continue;
+            }
+            int id = scratch.getTouchedRowId(t);
+            MatrixRow row2 = (matrixCache == null)
+                    ? matrix.readRow(id, scratch.matrixCursor)
+                    : matrixCache.getRow(id);
+            double dot = 0.0;
+            for (int j = 0; j < row2.getNumCols(); j++) {
+                dot += query.get(row2.getColIndex(j)) * row2.getColValue(j);
+            }
+            scratch.setTouchedDot(t, dot);
         }
+    }
+
+    private double getColumnBound(MatrixRow row, int i, double queryNorm) {
+        return row.getColValue(i) * accumulator.getColumnBound(row.getColIndex(i)) / queryNorm;
+    }
 
+    /**
+     * @return The row ids of the transpose, which phrase vectors are restricted to.
+     */
+    private TIntSet getIdsInResults() {
+        if (idsInResults == null) {
+            synchronized (this) {
+                if (idsInResults == null) {
+                    idsInResults = new TIntHashSet(transpose.getRowIds());
+                }
+            }
+        }
+        return idsInResults;
+    }
+
+    /**
+     * Reads a transpose row into the scratch cursor unless the transpose is cached.
+     */
+    private MatrixRow getTransposeRow(int id, DotProductAccumulator.Scratch scratch) throws IOException {
+        return (transposeCache == null)
+                ? transpose.readRow(id, scratch.cursor)
+                : transposeCache.getRow(id);
+    }
+
+    private DocScoreList finish(DotProductAccumulator.Scratch scratch, double norm, double minScore, int maxResults) {
+        Leaderboard leaderboard = new Leaderboard(maxResults);
+        scratch.finish(norm, minScore, leaderboard);
         return normalize(leaderboard.getTop());
     }
 
@@ -180,19 +512,45 @@ public class PairwiseCosineSimilarity extends BaseSimilarityMetric implements Si
 
     public static int PAGE_SIZE = 1024*1024*500;    // 500MB
     public static void main(String args[]) throws IOException, InterruptedException {
-        if (args.length != 4 && args.length != 5) {
+        // options may appear anywhere; the remaining arguments are positional
+        List<String> positional = new ArrayList<String>();
+        int checkpointSeconds = 0;
+        RowPartition partition = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--checkpoint") && i + 1 < args.length) {
+                checkpointSeconds = Integer.valueOf(args[++i]);
+            } else if (args[i].equals("--partition") && i + 1 < args.length) {
+                partition = RowPartition.parse(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        args = positional.toArray(new String[positional.size()]);
+        if (args.length < 4 || args.length > 6) {
             System.err.println("usage: " + PairwiseCosineSimilarity.class.getName()
-                    + " path_matrix path_matrix_transpose path_output maxResultsPerDoc [num-cores]");
+                    + " path_matrix path_matrix_transpose path_output maxResultsPerDoc [num-cores [min-similarity]]"
+                    + " [--checkpoint seconds] [--partition i/N]");
             System.exit(1);
         }
         SparseMatrix matrix = new SparseMatrix(new File(args[0]), 1, PAGE_SIZE);
         SparseMatrix transpose = new SparseMatrix(new File(args[1]));
         PairwiseCosineSimilarity sim = new PairwiseCosineSimilarity(matrix, transpose);
-        int cores = (args.length == 5)
+        if (args.length == 6) {
+            sim.setMinSimilarity(Double.valueOf(args[5]));
+        }
+        int cores = (args.length >= 5)
                 ? Integer.valueOf(args[4])
                 : Runtime.getRuntime().availableProcessors();
 
-        PairwiseSimilarityWriter writer = new PairwiseSimilarityWriter(sim, new File(args[2]));
+        PairwiseSimilarityWriter writer;
+        if (checkpointSeconds > 0) {
+            // checkpoints need a sharded output
+            writer = new PairwiseSimilarityWriter(sim, new File(args[2]), new ValueConf(), false, true);
+            writer.setCheckpointInterval(1000L * checkpointSeconds);
+        } else {
+            writer = new PairwiseSimilarityWriter(sim, new File(args[2]));
+        }
+        writer.setPartition(partition);
         writer.writeSims(matrix.getRowIds(), cores, Integer.valueOf(args[3]));
     }
 }
@@ -5,6 +5,7 @@ import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
 import edu.macalester.wpsemsim.matrix.ValueConf;
 import edu.macalester.wpsemsim.sim.SimilarityMetric;
 import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.FrozenIntSet;
 import edu.macalester.wpsemsim.utils.Procedure;
 import edu.macalester.wpsemsim.utils.ParallelForEach;
 import gnu.trove.set.TIntSet;
@@ -13,6 +14,7 @@ import gnu.trove.set.hash.TIntHashSet;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -28,15 +30,99 @@ public class PairwiseSimilarityWriter {
     private ValueConf vconf;
     private TIntSet validIds;
     private TIntSet usedIds = new TIntHashSet();
+    private int blockSize = 1;
+    private RowPartition partition;
 
     public PairwiseSimilarityWriter(SimilarityMetric metric, File outputFile) throws IOException {
+        this(metric, outputFile, false);
+    }
+
+    /**
+     * @param metric
+     * @param outputFile
+     * @param compressed If true, the output matrix uses the compressed row format.
+     * @throws IOException
+     */
+    public PairwiseSimilarityWriter(SimilarityMetric metric, File outputFile, boolean compressed) throws IOException {
+        this(metric, outputFile, new ValueConf(), compressed);
+    }
+
+    /**
+     * @param metric
+     * @param outputFile
+     * @param vconf Packs the similarity scores; its codec determines the bytes per value.
+     * @param compressed If true, the output matrix uses the compressed row format.
+     * @throws IOException
+     */
+    public PairwiseSimilarityWriter(SimilarityMetric metric, File outputFile, ValueConf vconf, boolean compressed) throws IOException {
+        this(metric, outputFile, vconf, compressed, false);
+    }
+
+    /**
+     * @param metric
+     * @param outputFile
+     * @param vconf Packs the similarity scores; its codec determines the bytes per value.
+     * @param compressed If true, the output matrix uses the compressed row format.
+     * @param sharded If true, each thread writes its rows to its own shard file.
+     * @throws IOException
+     */
+    public PairwiseSimilarityWriter(SimilarityMetric metric, File outputFile, ValueConf vconf, boolean compressed, boolean sharded) throws IOException {
+        this(metric, outputFile, vconf, compressed, sharded, compressed);
+    }
+
+    /**
+     * @param metric
+     * @param outputFile
+     * @param vconf Packs the similarity scores; its codec determines the bytes per value.
+     * @param compressed If true, the output matrix uses the compressed row format.
+     * @param sharded If true, each thread writes its rows to its own shard file.
+     * @param sortColumns If true, the columns of each row are sorted by id instead of by score.
+     * @throws IOException
+     */
+    public PairwiseSimilarityWriter(SimilarityMetric metric, File outputFile, ValueConf vconf,
+                                    boolean compressed, boolean sharded, boolean sortColumns) throws IOException {
         this.metric = metric;
-        this.vconf = new ValueConf();
-        this.writer = new SparseMatrixWriter(outputFile, vconf);
+        this.vconf = vconf;
+        this.writer = new SparseMatrixWriter(outputFile, vconf, compressed, sharded, sortColumns);
     }
 
+    /**
+     * @param validIds The ids that may appear as columns. The set is frozen, so
+     *                 metrics can cache filters for it cheaply.
+     */
     public void setValidIds(TIntSet validIds) {
-        this.validIds = validIds;
+        this.validIds = (validIds == null) ? null : FrozenIntSet.freeze(validIds);
+    }
+
+    /**
+     * Makes the build resumable: the output is checkpointed at this interval, and
+     * rows completed by an earlier checkpointed run for the same output are skipped.
+     * The writer must be sharded. See SparseMatrixWriter.enableCheckpoints().
+     */
+    public void setCheckpointInterval(long millis) throws IOException {
+        writer.enableCheckpoints(millis);
+    }
+
+    /**
+     * If greater than one and the metric is a PairwiseCosineSimilarity, each thread
+     * computes blocks of this many rows at once so rows in a block share transpose
+     * row reads. Larger blocks share more reads but use more scratch memory.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Only writes the rows of one part of the build, so several processes can each
+     * write a part to their own output. SparseMatrixMerger joins the outputs.
+     * Rows are balanced by their estimated cost if the metric is a
+     * PairwiseCosineSimilarity, and by count otherwise.
+     */
+    public void setPartition(RowPartition partition) {
+        this.partition = partition;
     }
 
     public void writeSims(final int wpIds[], final int threads, final int maxSimsPerDoc) throws IOException, InterruptedException {
@@ -46,23 +132,92 @@ public class PairwiseSimilarityWriter {
     }
 
     public void writeSims(List<Integer> wpIds, int threads, final int maxSimsPerDoc) throws IOException, InterruptedException {
-        ParallelForEach.loop(wpIds, threads, new Procedure<Integer>() {
-            public void call(Integer wpId) throws IOException {
-                writeSim(wpId, maxSimsPerDoc);
+        if (partition != null) {
+            wpIds = selectPartition(wpIds);
+        }
+        TIntSet completed = writer.getCheckpointedRowIds();
+        if (!completed.isEmpty()) {
+            List<Integer> remaining = new ArrayList<Integer>();
+            for (int id : wpIds) {
+                if (!completed.contains(id)) {
+                    remaining.add(id);
+                }
             }
-        }, Integer.MAX_VALUE);
+            LOG.info("skipping " + (wpIds.size() - remaining.size()) + " rows completed by an earlier run");
+            wpIds = remaining;
+        }
+        if (blockSize > 1 && metric instanceof PairwiseCosineSimilarity) {
+            List<int[]> blocks = new ArrayList<int[]>();
+            for (int i = 0; i < wpIds.size(); i += blockSize) {
+                int block[] = new int[Math.min(blockSize, wpIds.size() - i)];
+                for (int j = 0; j < block.length; j++) {
+                    block[j] = wpIds.get(i + j);
+                }
+                blocks.add(block);
+            }
+            ParallelForEach.loop(blocks, threads, new Procedure<int[]>() {
+                public void call(int block[]) throws IOException {
+                    writeBlock(block, maxSimsPerDoc);
+                }
+            }, Integer.MAX_VALUE);
+        } else {
+            if (blockSize > 1) {
+                LOG.warning("metric " + metric.getName() + " does not support blocks; writing one row at a time");
+            }
+            ParallelForEach.loop(wpIds, threads, new Procedure<Integer>() {
+                public void call(Integer wpId) throws IOException {
+                    writeSim(wpId, maxSimsPerDoc);
+                }
+            }, Integer.MAX_VALUE);
+        }
         LOG.info("wrote " + numCells + " non-zero similarity cells");
         this.writer.finish();
     }
 
+    private List<Integer> selectPartition(List<Integer> wpIds) throws IOException {
+        int ids[] = new int[wpIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = wpIds.get(i);
+        }
+        double costs[];
+        if (metric instanceof PairwiseCosineSimilarity) {
+            costs = ((PairwiseCosineSimilarity) metric).estimateCosts(ids);
+        } else {
+            LOG.info("metric " + metric.getName() + " has no cost estimates; balancing partitions by row count");
+            costs = new double[ids.length];
+            Arrays.fill(costs, 1.0);
+        }
+        List<Integer> selected = new ArrayList<Integer>();
+        for (int id : partition.select(ids, costs)) {
+            selected.add(id);
+        }
+        LOG.info("partition " + partition + " has " + selected.size() + " of " + ids.length + " rows");
+        return selected;
+    }
+
     private void writeSim(Integer wpId, int maxSimsPerDoc) throws IOException {
+        logProgress();
+        writeScores(wpId, metric.mostSimilar(wpId, maxSimsPerDoc, validIds));
+    }
+
+    private void writeBlock(int wpIds[], int maxSimsPerDoc) throws IOException {
+        DocScoreList scores[] = ((PairwiseCosineSimilarity) metric).mostSimilar(wpIds, maxSimsPerDoc, validIds);
+        for (int i = 0; i < wpIds.length; i++) {
+            logProgress();
+            writeScores(wpIds[i], scores[i]);
+        }
+    }
+
+    private void logProgress() {
         if (idCounter.incrementAndGet() % 10000 == 0) {
             String nValidStr  = (validIds == null) ? "infinite" : ("" + validIds.size());
             System.err.println("" + new Date() +
                     ": finding matches for doc " + idCounter.get() +
                     ", used " + usedIds.size() + " of " + nValidStr);
         }
-        DocScoreList scores = metric.mostSimilar(wpId, maxSimsPerDoc, validIds);
+    }
+
+    private void writeScores(int wpId, DocScoreList scores) throws IOException {
         if (scores != null) {
             int ids[] = scores.getIds();
             synchronized (this) {
@@ -0,0 +1,101 @@
+package edu.macalester.wpsemsim.sim.pairwise;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * One of N parts of a build that is split across processes, written "i/N" with 0 <= i < N.
+ *
+ * Rows are assigned greedily by decreasing estimated cost to the part with the least
+ * total cost so far, which keeps the parts within one row's cost of each other.
+ * Ties are broken by row id and part number, so every process that is given the
+ * same ids and costs computes the same assignment, whatever the order of the ids.
+ */
+public final class RowPartition {
+    private final int index;
+    private final int count;
+
+    public RowPartition(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("invalid partition " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @param spec A partition written "i/N", for example "0/4".
+     */
+    public static RowPartition parse(String spec) {
+        int slash = spec.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("partition must be written i/N: " + spec);
+        }
+        try {
+            return new RowPartition(
+                    Integer.valueOf(spec.substring(0, slash).trim()),
+                    Integer.valueOf(spec.substring(slash + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("partition must be written i/N: " + spec);
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param ids Ids of all the rows in the build.
+     * @param costs The estimated cost of each row, parallel to ids.
+     * @return The ids of the rows in this part, in their order in ids.
+     */
+    public int[] select(final int ids[], final double costs[]) {
+        if (ids.length != costs.length) {
+            throw new IllegalArgumentException("ids and costs have different lengths");
+        }
+        Integer order[] = new Integer[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                int r = Double.compare(costs[i2], costs[i1]);
+                if (r == 0) {
+                    r = (ids[i1] < ids[i2]) ? -1 : ((ids[i1] == ids[i2]) ? 0 : 1);
+                }
+                return r;
+            }
+        });
+
+        double loads[] = new double[count];
+        boolean selected[] = new boolean[ids.length];
+        for (int i : order) {
+            int part = 0;
+            for (int p = 1; p < count; p++) {
+                if (loads[p] < loads[part]) {
+                    part = p;
+                }
+            }
+            loads[part] += costs[i];
+            selected[i] = (part == index);
+        }
+        TIntArrayList result = new TIntArrayList();
+        for (int i = 0; i < ids.length; i++) {
+            if (selected[i]) {
+                result.add(ids[i]);
+            }
+        }
+        return result.toArray();
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
@@ -1,7 +1,9 @@
 package edu.macalester.wpsemsim.sim.utils;
 
+import edu.macalester.wpsemsim.matrix.CachedMatrix;
 import edu.macalester.wpsemsim.matrix.DenseMatrix;
-import edu.macalester.wpsemsim.matrix.DenseMatrixRow;
+import edu.macalester.wpsemsim.matrix.Matrix;
+import edu.macalester.wpsemsim.matrix.MatrixRow;
 import edu.macalester.wpsemsim.matrix.SparseMatrix;
 import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
 import edu.macalester.wpsemsim.sim.SimilarityMetric;
@@ -26,6 +28,8 @@ public class KnownPhraseSimilarity implements SimilarityMetric {
 
     private SparseMatrix mostSimilarMatrix;
     private DenseMatrix similarityMatrix;
+    private Matrix similarityRows;      // the similarity matrix, or a cache wrapping it
+    private long cacheBytes = 0;
     private File directory;
     private int numOpenPages;
     private int maxPageSize;
@@ -64,6 +68,20 @@ public class KnownPhraseSimilarity implements SimilarityMetric {
         this.directory = dir;
         mostSimilarMatrix = new SparseMatrix(new File(dir, "mostSimilar.matrix"), numOpenPages, maxPageSize);
         similarityMatrix = new DenseMatrix(new File(dir, "similarity.matrix"), numOpenPages, maxPageSize);
+        wrapSimilarityMatrix();
+    }
+
+    /**
+     * Caches decoded rows of the similarity matrix.
+     * @param maxBytes The maximum heap used by cached rows, or 0 for no cache.
+     */
+    public void setCacheBytes(long maxBytes) {
+        this.cacheBytes = maxBytes;
+        wrapSimilarityMatrix();
+    }
+
+    private void wrapSimilarityMatrix() {
+        similarityRows = (cacheBytes > 0) ? new CachedMatrix(similarityMatrix, cacheBytes) : similarityMatrix;
     }
 
 
@@ -74,8 +92,8 @@ public class KnownPhraseSimilarity implements SimilarityMetric {
 
     @Override
     public double similarity(int clientId1, int clientId2) throws IOException {
-        DenseMatrixRow row1 = similarityMatrix.getRow(clientId1);
-        DenseMatrixRow row2 = similarityMatrix.getRow(clientId2);
+        MatrixRow row1 = similarityRows.getRow(clientId1);
+        MatrixRow row2 = similarityRows.getRow(clientId2);
         if (row1 == null) {
             throw new IllegalArgumentException("unknown client id: " + clientId1);
         }
@@ -115,7 +133,7 @@ public class KnownPhraseSimilarity implements SimilarityMetric {
         }
 
         for (int i = 0; i < rowIds.length; i++) {
-            DenseMatrixRow row = similarityMatrix.getRow(rowIds[i]);
+            MatrixRow row = similarityRows.getRow(rowIds[i]);
             if (row == null) continue;
             for (int j = 0; j < colIds.length; j++) {
                 int col = colIndexes[j];
@@ -151,7 +169,7 @@ public class KnownPhraseSimilarity implements SimilarityMetric {
     @Override
     public DocScoreList mostSimilar(int clientId, int maxResults, TIntSet validIds) throws IOException {
         Leaderboard board = new Leaderboard(maxResults);
-        DenseMatrixRow row = similarityMatrix.getRow(clientId);
+        MatrixRow row = similarityRows.getRow(clientId);
         if (row == null) {
             return new DocScoreList(0);
         }
@@ -0,0 +1,160 @@
+package edu.macalester.wpsemsim.sim.utils;
+
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+
+import java.util.Arrays;
+
+/**
+ * An immutable sparse vector of ids in increasing order and their weights,
+ * stored in primitive arrays with a precomputed norm.
+ *
+ * Dot products and cosines walk the two id arrays in step without allocating.
+ */
+public final class SparseVector {
+    public static final SparseVector EMPTY = new SparseVector(new int[0], new float[0]);
+
+    private final int ids[];
+    private final float weights[];
+    private final double norm;
+
+    /**
+     * @param ids Strictly increasing ids. The array is kept, not copied.
+     * @param weights Weights parallel to ids. The array is kept, not copied.
+     */
+    public SparseVector(int ids[], float weights[]) {
+        if (ids.length != weights.length) {
+            throw new IllegalArgumentException("ids and weights have different lengths");
+        }
+        double sum = 0.0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0 && ids[i - 1] >= ids[i]) {
+                throw new IllegalArgumentException("ids are not strictly increasing at index " + i);
+            }
+            sum += weights[i] * weights[i];
+        }
+        this.ids = ids;
+        this.weights = weights;
+        this.norm = Math.sqrt(sum);
+    }
+
+    public static SparseVector fromMap(TIntDoubleHashMap map) {
+        int ids[] = map.keys();
+        Arrays.sort(ids);
+        float weights[] = new float[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            weights[i] = (float) map.get(ids[i]);
+        }
+        return new SparseVector(ids, weights);
+    }
+
+    /**
+     * Creates a vector from ids in any order. The weights of repeated ids are summed.
+     * @param ids Non-negative ids.
+     * @param weights Weights parallel to ids.
+     * @param n The number of leading entries of ids and weights to use.
+     */
+    public static SparseVector fromUnsorted(int ids[], float weights[], int n) {
+        // sorting packed (id, weight bits) longs orders the entries by id without boxing
+        long packed[] = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (ids[i] < 0) {
+                throw new IllegalArgumentException("negative id: " + ids[i]);
+            }
+            packed[i] = ((long) ids[i] << 32) | (Float.floatToRawIntBits(weights[i]) & 0xffffffffL);
+        }
+        Arrays.sort(packed);
+        int sortedIds[] = new int[n];
+        float sortedWeights[] = new float[n];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            int id = (int) (packed[i] >>> 32);
+            float w = Float.intBitsToFloat((int) packed[i]);
+            if (size > 0 && sortedIds[size - 1] == id) {
+                sortedWeights[size - 1] += w;
+            } else {
+                sortedIds[size] = id;
+                sortedWeights[size] = w;
+                size++;
+            }
+        }
+        if (size < n) {
+            sortedIds = Arrays.copyOf(sortedIds, size);
+            sortedWeights = Arrays.copyOf(sortedWeights, size);
+        }
+        return new SparseVector(sortedIds, sortedWeights);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public float getWeight(int i) {
+        return weights[i];
+    }
+
+    /**
+     * @return The weight of an id, or 0 if the vector does not contain it.
+     */
+    public float get(int id) {
+        int i = Arrays.binarySearch(ids, id);
+        return (i < 0) ? 0.0f : weights[i];
+    }
+
+    public double getNorm() {
+        return norm;
+    }
+
+    public double dot(SparseVector other) {
+        int ids2[] = other.ids;
+        float weights2[] = other.weights;
+        int n1 = ids.length;
+        int n2 = ids2.length;
+        double dot = 0.0;
+        int i = 0;
+        int j = 0;
+        while (i < n1 && j < n2) {
+            int id1 = ids[i];
+            int id2 = ids2[j];
+            if (id1 < id2) {
+                i++;
+            } else if (id1 > id2) {
+                j++;
+            } else {
+                dot += weights[i++] * weights2[j++];
+            }
+        }
+        return dot;
+    }
+
+    /**
+     * @return The cosine similarity, or NaN if either vector has zero norm.
+     */
+    public double cosine(SparseVector other) {
+        double norms = norm * other.norm;
+        return (norms == 0.0) ? Double.NaN : dot(other) / norms;
+    }
+
+    /**
+     * @return The k entries with the largest weights, in decreasing order of weight.
+     */
+    public DocScoreList top(int k) {
+        Leaderboard leaderboard = new Leaderboard(Math.min(k, ids.length));
+        for (int i = 0; i < ids.length; i++) {
+            leaderboard.tallyScore(ids[i], weights[i]);
+        }
+        return leaderboard.getTop();
+    }
+
+    /**
+     * @return An estimate of the heap used by the vector.
+     */
+    public long getSizeInBytes() {
+        return 48 + 8L * ids.length;
+    }
+}
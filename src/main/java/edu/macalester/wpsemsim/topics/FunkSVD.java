@@ -70,7 +70,7 @@ public class FunkSVD {
         double totalErr2 = 0.0;
         long n = 0;
         int r = 0;
-        for (SparseMatrixRow row : matrix) {
+        for (SparseRowCursor row : matrix.cursors()) {
             if (r % 100000 == 0) {
                 LOG.info("visiting row " + r + " of " + matrix.getNumRows());
             }
@@ -104,7 +104,7 @@ public class FunkSVD {
     private void init() {
 
         LOG.info("creating dense indexing for column ids");
-        for (MatrixRow row : matrix) {
+        for (SparseRowCursor row : matrix.cursors()) {
             for (int i = 0; i < row.getNumCols(); i++) {
                 int colId = row.getColIndex(i);
                 if (!columnMap.containsKey(colId)) {
@@ -132,7 +132,7 @@ public class FunkSVD {
         LOG.info("calculating mean");
         this.meanVal = 0.0;
         long numCells = 0;
-        for (MatrixRow row : matrix) {
+        for (SparseRowCursor row : matrix.cursors()) {
             for (int i = 0; i < row.getNumCols(); i++) {
                 meanVal += row.getColValue(i);
                 numCells++;
@@ -142,7 +142,7 @@ public class FunkSVD {
 
         LOG.info("calculating std dev");
         double err2 = 0.0;
-        for (MatrixRow row : matrix) {
+        for (SparseRowCursor row : matrix.cursors()) {
             for (int i = 0; i < row.getNumCols(); i++) {
                 err2 += Math.pow(row.getColValue(i) - meanVal, 2.0);
             }
@@ -2,8 +2,8 @@ package edu.macalester.wpsemsim.topics;
 
 import edu.macalester.wpsemsim.concepts.ConceptMapper;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
-import edu.macalester.wpsemsim.matrix.DenseMatrix;
-import edu.macalester.wpsemsim.matrix.DenseMatrixRow;
+import edu.macalester.wpsemsim.matrix.Matrix;
+import edu.macalester.wpsemsim.matrix.MatrixRow;
 import edu.macalester.wpsemsim.sim.BaseSimilarityMetric;
 import edu.macalester.wpsemsim.sim.SimilarityMetric;
 import edu.macalester.wpsemsim.utils.DocScoreList;
@@ -13,17 +13,22 @@ import java.io.File;
 import java.io.IOException;
 
 public class SvdSimilarity extends BaseSimilarityMetric {
-    private DenseMatrix matrix = null;
+    private Matrix<? extends MatrixRow> matrix = null;
 
-    public SvdSimilarity(ConceptMapper mapper, IndexHelper helper, DenseMatrix matrix) {
+    /**
+     * @param mapper
+     * @param helper
+     * @param matrix A dense matrix, possibly wrapped in a CachedMatrix.
+     */
+    public SvdSimilarity(ConceptMapper mapper, IndexHelper helper, Matrix<? extends MatrixRow> matrix) {
         super(mapper, helper);
         this.matrix = matrix;
     }
 
     @Override
     public double similarity(int wpId1, int wpId2) throws IOException {
-        DenseMatrixRow row1 = matrix.getRow(wpId1);
-        DenseMatrixRow row2 = matrix.getRow(wpId2);
+        MatrixRow row1 = matrix.getRow(wpId1);
+        MatrixRow row2 = matrix.getRow(wpId2);
         if (row1 == null || row2 == null) {
             return 0.0;
         }
@@ -56,7 +61,7 @@ public class SvdSimilarity extends BaseSimilarityMetric {
         return cosimilarity;
     } */
 
-    private double cosine(DenseMatrixRow X, DenseMatrixRow Y) {
+    private double cosine(MatrixRow X, MatrixRow Y) {
         double xx = 0.0;
         double yy = 0.0;
         double xy = 0.0;
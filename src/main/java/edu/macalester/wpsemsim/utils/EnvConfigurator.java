@@ -3,7 +3,12 @@ package edu.macalester.wpsemsim.utils;
 import com.sleepycat.je.DatabaseException;
 import edu.macalester.wpsemsim.concepts.*;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.lucene.MltTermCache;
+import edu.macalester.wpsemsim.lucene.Page;
+import edu.macalester.wpsemsim.matrix.CachedMatrix;
 import edu.macalester.wpsemsim.matrix.DenseMatrix;
+import edu.macalester.wpsemsim.matrix.Matrix;
+import edu.macalester.wpsemsim.matrix.MatrixRow;
 import edu.macalester.wpsemsim.matrix.SparseMatrix;
 import edu.macalester.wpsemsim.normalize.IdentityNormalizer;
 import edu.macalester.wpsemsim.normalize.LoessNormalizer;
@@ -17,13 +22,17 @@ import edu.macalester.wpsemsim.sim.ensemble.EnsembleSimilarity;
 import edu.macalester.wpsemsim.sim.ensemble.LinearEnsemble;
 import edu.macalester.wpsemsim.sim.ensemble.SvmEnsemble;
 import edu.macalester.wpsemsim.sim.esa.ESAAnalyzer;
+import edu.macalester.wpsemsim.sim.esa.ESAMatrixBuilder;
 import edu.macalester.wpsemsim.sim.esa.ESASimilarity;
+import edu.macalester.wpsemsim.sim.pairwise.LshCosineSimilarity;
+import edu.macalester.wpsemsim.sim.pairwise.LshIndex;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseCosineSimilarity;
 import edu.macalester.wpsemsim.topics.SvdSimilarity;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.queries.mlt.MoreLikeThis;
 import org.json.simple.JSONObject;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
@@ -133,7 +142,7 @@ public class EnvConfigurator {
             LOG.info("set max mostSimilar results " + env.getNumMostSimilarResults());
         }
         if (cmd.hasOption("v")) {
-            env.setValidIds(readIds(cmd.getOptionValue("v")));
+            env.setValidIds(FrozenIntSet.freeze(readIds(cmd.getOptionValue("v"))));
             LOG.info("set valid ids to " + env.getValidIds().size() +
                      " ids in " + cmd.getOptionValue("v"));
         }
@@ -219,7 +228,7 @@ public class EnvConfigurator {
             String type = requireString(configuration.getMetric(key), "type");
             if (type.equals("ensemble")) {
                 ensembleKeys.add(key);
-            } else if (type.equals("pairwise") && !doPairwise) {
+            } else if ((type.equals("pairwise") || type.equals("lsh")) && !doPairwise) {
                 // do nothing
             } else {
                 metrics.add(loadMetric(key, readModel));
@@ -352,6 +361,8 @@ public class EnvConfigurator {
             metric = createLinkSimilarity(name);
         } else if (type.equals("pairwise")) {
             metric = createPairwiseSimilarity(name, readModel);
+        } else if (type.equals("lsh")) {
+            metric = createLshSimilarity(name);
         } else if (type.equals("svd")) {
             metric = createSvdSimilarity(name, readModel);
         } else if (type.equals("split")) {
@@ -369,7 +380,8 @@ public class EnvConfigurator {
             File path = requireFile(params, "mostSimilarMatrix");
             LOG.info("setting most similar matrix for " + name + " to " + path);
             SparseMatrix m = new SparseMatrix(path, 3, 1024*1024*1024); // 3 * 1GB
-            ((BaseSimilarityMetric)metric).setMostSimilarMatrix(m);
+            CachedMatrix cache = createMatrixCache(params, "mostSimilarMatrix", m);
+            ((BaseSimilarityMetric)metric).setMostSimilarMatrix(cache == null ? m : cache);
         }
         if (readModel) {
             readModel(metric);
@@ -420,19 +432,74 @@ public class EnvConfigurator {
         SparseMatrix m = new SparseMatrix(requireFile(params, "matrix"));
         SparseMatrix mt = new SparseMatrix(requireFile(params, "transpose"));
         metric = new PairwiseCosineSimilarity(loadMainMapper(), loadMainIndex(), m, mt);
+        metric.setMatrixCache(createMatrixCache(params, "matrix", m));
+        metric.setTransposeCache(createMatrixCache(params, "transpose", mt));
         if (params.containsKey("basedOn")) {
             metric.setBasedOn(loadMetric(requireString(params, "basedOn"), loadModels));
         }
         if (params.containsKey("buildPhraseVectors")) {
             metric.setBuildPhraseVectors(requireBoolean(params, "buildPhraseVectors"));
         }
+        if (params.containsKey("pruneTopK")) {
+            metric.setPruneTopK(requireBoolean(params, "pruneTopK"));
+        }
+        if (params.containsKey("minSimilarity")) {
+            metric.setMinSimilarity(requireDouble(params, "minSimilarity"));
+        }
+        return metric;
+    }
+
+    /**
+     * Creates an approximate pairwise metric. The index is built from the matrix and
+     * written to the "index" file if that file is missing or was built from another
+     * version of the matrix.
+     */
+    private SimilarityMetric createLshSimilarity(String name) throws IOException, ConfigurationException {
+        JSONObject params = configuration.getMetric(name);
+        SparseMatrix m = new SparseMatrix(requireFile(params, "matrix"));
+        File indexFile = new File(requireString(params, "index"));
+        LshIndex index = LshIndex.read(indexFile, m);
+        if (index == null) {
+            info("building lsh index " + indexFile);
+            index = LshIndex.build(m,
+                    params.containsKey("numTables") ? requireInteger(params, "numTables") : LshIndex.DEFAULT_NUM_TABLES,
+                    params.containsKey("bitsPerTable") ? requireInteger(params, "bitsPerTable") : LshIndex.DEFAULT_BITS_PER_TABLE,
+                    LshIndex.DEFAULT_SEED);
+            index.write(indexFile);
+        }
+        LshCosineSimilarity metric = new LshCosineSimilarity(loadMainMapper(), loadMainIndex(), m, index);
+        if (params.containsKey("numProbes")) {
+            metric.setNumProbes(requireInteger(params, "numProbes"));
+        }
+        if (params.containsKey("maxCandidates")) {
+            metric.setMaxCandidates(requireInteger(params, "maxCandidates"));
+        }
+        if (params.containsKey("maxScored")) {
+            metric.setMaxScored(requireInteger(params, "maxScored"));
+        }
         return metric;
     }
 
     private SimilarityMetric createSvdSimilarity(String name, boolean loadModels) throws IOException, ConfigurationException {
         JSONObject params = configuration.getMetric(name);
         DenseMatrix m = new DenseMatrix(requireFile(params, "matrix"));
-        return new SvdSimilarity(loadMainMapper(), loadMainIndex(), m);
+        CachedMatrix cache = createMatrixCache(params, "matrix", m);
+        return new SvdSimilarity(loadMainMapper(), loadMainIndex(), cache == null ? m : cache);
+    }
+
+    /**
+     * Creates a cache of decoded rows for the matrix configured under key
+     * if the params have a "[key]CacheMb" entry, for example "transposeCacheMb" : 512.
+     * @return The cache, or null if none is configured.
+     */
+    private CachedMatrix createMatrixCache(JSONObject params, String key, Matrix<? extends MatrixRow> matrix) throws ConfigurationException {
+        String cacheKey = key + "CacheMb";
+        if (!params.containsKey(cacheKey)) {
+            return null;
+        }
+        long maxBytes = 1024L * 1024L * requireInteger(params, cacheKey);
+        info("caching " + maxBytes + " bytes of decoded rows for " + key);
+        return new CachedMatrix(matrix, maxBytes);
     }
 
     private SimilarityMetric createSplitSimilarity(String name, boolean loadModels) throws IOException, ConfigurationException {
@@ -446,7 +513,8 @@ public class EnvConfigurator {
         JSONObject params = configuration.getMetric(name);
         SimilarityMetric metric;
         String field = requireString(params, "field");
-        LinkSimilarity lmetric = new LinkSimilarity(loadMainMapper(), loadIndex(requireString(params, "lucene")), env.getMainIndex(), field);
+        IndexHelper helper = loadIndex(requireString(params, "lucene"));
+        LinkSimilarity lmetric = new LinkSimilarity(loadMainMapper(), helper, env.getMainIndex(), field);
         if (params.containsKey("similarity")) {
             String sim = requireString(params, "similarity");
             if (sim.equals("tfidf")) {
@@ -466,18 +534,39 @@ public class EnvConfigurator {
         if (params.containsKey("minDocFreq")) {
             lmetric.setMinDocFreq(requireInteger(params, "minDocFreq"));
         }
+        if (params.containsKey("mltTermCache")) {
+            lmetric.setMltTermCache(loadMltTermCache(params, helper, lmetric.getMoreLikeThis(), field));
+        }
         metric = lmetric;
         return metric;
     }
 
     private SimilarityMetric createEsaSimilarity(String name) throws ConfigurationException, IOException {
         JSONObject params = configuration.getMetric(name);
-        ESASimilarity metric = new ESASimilarity(
-                loadMainMapper(),
-                loadIndex(requireString(params, "lucene")));
+        IndexHelper helper = loadIndex(requireString(params, "lucene"));
+        ESASimilarity metric = new ESASimilarity(loadMainMapper(), helper);
         if (params.containsKey("textLucene")) {
             metric.setTextHelper(loadIndex(requireString(params, "textLucene")));
         }
+        if (params.containsKey("phraseCacheMb")) {
+            metric.setPhraseCacheMb(requireInteger(params, "phraseCacheMb"));
+        }
+        if (params.containsKey("mltTermCache")) {
+            metric.setMltTermCache(loadMltTermCache(params, helper, metric.getMoreLikeThis(), Page.FIELD_TEXT));
+        }
+        if (params.containsKey("termMatrix")) {
+            File termPath = new File(requireString(params, "termMatrix"));
+            File conceptPath = new File(requireString(params, "conceptMatrix"));
+            ESAMatrixBuilder builder = new ESAMatrixBuilder(metric);
+            if (params.containsKey("maxConcepts")) {
+                builder.setMaxConcepts(requireInteger(params, "maxConcepts"));
+            }
+            if (!builder.isCurrent(termPath, conceptPath)) {
+                info("building esa matrices " + termPath + " and " + conceptPath);
+                builder.writeMatrices(termPath, conceptPath, Runtime.getRuntime().availableProcessors());
+            }
+            metric.setMatrices(new SparseMatrix(termPath), new SparseMatrix(conceptPath));
+        }
         return metric;
     }
 
@@ -499,9 +588,26 @@ public class EnvConfigurator {
         if (params.containsKey("useInternalMapper")) {
             ((TextSimilarity)metric).setUseInternalMapper(requireBoolean(params, "useInternalMapper"));
         }
+        if (params.containsKey("mltTermCache")) {
+            TextSimilarity tmetric = (TextSimilarity) metric;
+            tmetric.setMltTermCache(loadMltTermCache(params, helper, tmetric.getMoreLikeThis(), field));
+        }
         return metric;
     }
 
+    /**
+     * Opens the MoreLikeThis term cache named by the "mltTermCache" key. The cache is
+     * rebuilt first if it is missing or the index or MoreLikeThis settings have changed.
+     */
+    private MltTermCache loadMltTermCache(JSONObject params, IndexHelper helper, MoreLikeThis mlt, String field) throws ConfigurationException, IOException {
+        File path = new File(requireString(params, "mltTermCache"));
+        if (!MltTermCache.isCurrent(path, helper, mlt)) {
+            info("building MoreLikeThis term cache " + path);
+            MltTermCache.build(helper, mlt, path, env.getNumThreads());
+        }
+        return new MltTermCache(path, field);
+    }
+
     private SimilarityMetric createCategorySimilarity(String name) throws ConfigurationException, IOException {
         JSONObject params = configuration.getMetric(name);
         SimilarityMetric metric;
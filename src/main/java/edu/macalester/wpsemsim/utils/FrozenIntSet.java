@@ -0,0 +1,38 @@
+package edu.macalester.wpsemsim.utils;
+
+import gnu.trove.impl.unmodifiable.TUnmodifiableIntSet;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * An immutable copy of a set of ints that computes its hash code once.
+ *
+ * Caches keyed by the contents of a set, such as IndexHelper's filter cache, can
+ * keep a frozen set without copying it and recognize it again in constant time.
+ * Long running jobs that pass the same set with every query should freeze it first.
+ */
+public class FrozenIntSet extends TUnmodifiableIntSet {
+    private final int hash;
+
+    public FrozenIntSet(TIntSet ids) {
+        super(new TIntHashSet(ids));
+        this.hash = super.hashCode();
+    }
+
+    /**
+     * @return The set itself if it is already frozen, or a frozen copy.
+     */
+    public static FrozenIntSet freeze(TIntSet ids) {
+        return (ids instanceof FrozenIntSet) ? (FrozenIntSet) ids : new FrozenIntSet(ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o == this || super.equals(o);
+    }
+}
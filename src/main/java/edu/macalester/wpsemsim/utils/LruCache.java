@@ -1,11 +1,286 @@
 package edu.macalester.wpsemsim.utils;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Created with IntelliJ IDEA.
- * User: shilad
- * Date: 12/7/12
- * Time: 10:32 AM
- * To change this template use File | Settings | File Templates.
+ * A thread-safe least-recently-used cache whose capacity is measured in bytes.
+ *
+ * Keys are spread over stripes, each an access-ordered LinkedHashMap with its
+ * own lock and an equal share of the capacity, so threads working on different
+ * keys rarely contend. Subclasses override sizeOf() to weigh values; by default
+ * every entry weighs one "byte", which bounds the number of entries instead.
+ *
+ * get(key, loader) computes missing values, and threads that miss on a key while
+ * another thread is loading it wait for that load rather than repeating it.
  */
-public class LruCache {
+public class LruCache<K, V> {
+    public static final int DEFAULT_NUM_STRIPES = 16;
+
+    private final List<Stripe> stripes;
+    private final long maxBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong coalescedLoads = new AtomicLong();
+
+    /**
+     * Loads in progress in get(key, loader).
+     */
+    private final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    public LruCache(long maxBytes) {
+        this(maxBytes, DEFAULT_NUM_STRIPES);
+    }
+
+    /**
+     * @param maxBytes The total capacity of the cache.
+     * @param numStripes The number of independently locked stripes.
+     */
+    public LruCache(long maxBytes, int numStripes) {
+        if (numStripes <= 0) {
+            throw new IllegalArgumentException("numStripes must be at least 1");
+        }
+        this.maxBytes = maxBytes;
+        this.stripes = new ArrayList<Stripe>(numStripes);
+        for (int i = 0; i < numStripes; i++) {
+            stripes.add(new Stripe(maxBytes / numStripes));
+        }
+    }
+
+    /**
+     * @return The number of bytes an entry uses.
+     */
+    protected long sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * @return The cached value, or null if there is none.
+     */
+    public V get(K key) {
+        Stripe stripe = getStripe(key);
+        V value;
+        synchronized (stripe) {
+            value = stripe.entries.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the cached value for a key, loading and caching it on a miss.
+     * If another thread is already loading the key, waits for its value instead.
+     * Null values are returned but not cached.
+     * @throws IOException If the loader fails. Waiting threads see the same failure.
+     */
+    public V get(final K key, final Function<K, V> loader) throws IOException {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            public V call() throws Exception {
+                // the key may have been cached by a load that finished after our miss
+                V cached = peek(key);
+                return (cached != null) ? cached : loader.call(key);
+            }
+        });
+        FutureTask<V> existing = loading.putIfAbsent(key, task);
+        if (existing != null) {
+            coalescedLoads.incrementAndGet();
+            return waitFor(existing);
+        }
+        try {
+            task.run();
+            value = waitFor(task);
+            if (value != null) {
+                put(key, value);
+            }
+            return value;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    private V waitFor(FutureTask<V> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a load", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return The cached value, or null, without updating the counters.
+     */
+    private V peek(K key) {
+        Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            return stripe.entries.get(key);
+        }
+    }
+
+    /**
+     * Caches a value, evicting the least recently used entries of its stripe as needed.
+     * Values larger than a stripe are not cached.
+     */
+    public void put(K key, V value) {
+        Stripe stripe = getStripe(key);
+        long size = sizeOf(key, value);
+        synchronized (stripe) {
+            V old = stripe.entries.remove(key);
+            if (old != null) {
+                stripe.bytes -= sizeOf(key, old);
+            }
+            if (size > stripe.maxBytes) {
+                return;
+            }
+            stripe.entries.put(key, value);
+            stripe.bytes += size;
+            stripe.evict();
+        }
+    }
+
+    public V remove(K key) {
+        Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            V old = stripe.entries.remove(key);
+            if (old != null) {
+                stripe.bytes -= sizeOf(key, old);
+            }
+            return old;
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.entries.clear();
+                stripe.bytes = 0;
+            }
+        }
+    }
+
+    private Stripe getStripe(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes.get((h & Integer.MAX_VALUE) % stripes.size());
+    }
+
+    /**
+     * @return The number of cached entries.
+     */
+    public int size() {
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.entries.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return The number of bytes used by cached entries.
+     */
+    public long getSizeInBytes() {
+        long n = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.bytes;
+            }
+        }
+        return n;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The number of misses that waited for another thread's load of the same key.
+     */
+    public long getCoalescedLoads() {
+        return coalescedLoads.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : 1.0 * h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "LruCache (" +
+                "entries=" + size() +
+                ", bytes=" + getSizeInBytes() + "/" + maxBytes +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", coalesced loads=" + getCoalescedLoads() +
+                ", hit rate=" + getHitRate() + ")";
+    }
+
+    private class Stripe {
+        final long maxBytes;
+        long bytes = 0;
+        final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Removes least recently used entries until the stripe fits in its share of the cache.
+         * Callers must hold the stripe's lock.
+         */
+        void evict() {
+            Iterator<Map.Entry<K, V>> iter = entries.entrySet().iterator();
+            while (bytes > maxBytes && iter.hasNext()) {
+                Map.Entry<K, V> e = iter.next();
+                bytes -= sizeOf(e.getKey(), e.getValue());
+                iter.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
 }
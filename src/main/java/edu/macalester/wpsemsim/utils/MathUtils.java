@@ -121,6 +121,48 @@ public class MathUtils {
         X.set(0, X2);
     }
 
+    /**
+     * Finds the k'th largest of the first n values in expected linear time (quickselect).
+     * This function is destructive: it reorders the first n values.
+     *
+     * @param X Input data.
+     * @param n The number of values to consider.
+     * @param k The rank, from 1 (the largest) to n.
+     * @return
+     */
+    public static double kthLargest(double X[], int n, int k) {
+        if (k < 1 || k > n) {
+            throw new IllegalArgumentException("k must be between 1 and " + n + ", was " + k);
+        }
+        int target = k - 1;     // index of the answer when sorted in decreasing order
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            double pivot = X[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (X[i] > pivot) i++;
+                while (X[j] < pivot) j--;
+                if (i <= j) {
+                    double tmp = X[i];
+                    X[i] = X[j];
+                    X[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (target <= j) {
+                hi = j;
+            } else if (target >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return X[target];
+    }
+
     /**
      * Given two parallel arrays of doubles representing x,y pairs
      * remove all pairs that are NaN or Infinite, and return the result.
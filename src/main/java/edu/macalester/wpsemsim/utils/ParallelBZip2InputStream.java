@@ -0,0 +1,482 @@
+package edu.macalester.wpsemsim.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decompresses a bzip2 file (or several concatenated bzip2 streams, as written by
+ * pbzip2) on a pool of threads.
+ *
+ * A scanner thread finds the bit-aligned magic number that starts each compressed
+ * block and copies the block into a standalone one-block bzip2 stream, whose combined
+ * CRC is the block's CRC. The pool decompresses the blocks, and reads return their
+ * output in file order.
+ *
+ * The block magic can occur by chance inside compressed data. A false boundary splits
+ * a block into pieces that fail their CRC check, so a block that fails is merged with
+ * the following one and decompressed again.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+    private static final Logger LOG = Logger.getLogger(ParallelBZip2InputStream.class.getName());
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+    private static final int MAGIC_BITS = 48;
+
+    /**
+     * The number of false block boundaries tolerated in a row.
+     */
+    private static final int MAX_MERGES = 4;
+
+    private final InputStream in;
+    private final ExecutorService exec;
+    private final BlockingQueue<Task> tasks;
+    private final Thread scanner;
+
+    private volatile boolean closed = false;
+    private boolean finished = false;
+    private byte current[] = new byte[0];
+    private int pos = 0;
+
+    /**
+     * @param in The compressed input. It is read by a separate thread and closed by close().
+     * @param numThreads The number of decompression threads.
+     */
+    public ParallelBZip2InputStream(InputStream in, int numThreads) {
+        this(in, numThreads, null);
+    }
+
+    /**
+     * Decompresses blocks that have already been split, instead of scanning an input.
+     * Used by tests to feed false block boundaries through the stream.
+     */
+    ParallelBZip2InputStream(List<Block> blocks, int numThreads) {
+        this(new ByteArrayInputStream(new byte[0]), numThreads, blocks);
+    }
+
+    private ParallelBZip2InputStream(InputStream in, int numThreads, final List<Block> blocks) {
+        this.in = new BufferedInputStream(in, 1024 * 1024);
+        this.exec = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bzip2-decompress");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // enough blocks in flight to keep every thread busy while the reader catches up
+        this.tasks = new ArrayBlockingQueue<Task>(2 * numThreads + 2);
+        this.scanner = new Thread(new Runnable() {
+            public void run() {
+                if (blocks == null) {
+                    scan();
+                } else {
+                    submitAll(blocks);
+                }
+            }
+        }, "bzip2-scanner");
+        this.scanner.setDaemon(true);
+        this.scanner.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        scanner.interrupt();
+        exec.shutdownNow();
+        in.close();
+    }
+
+    /**
+     * Makes sure the current block has unread bytes.
+     * @return false at the end of the input.
+     */
+    private boolean fill() throws IOException {
+        while (pos >= current.length) {
+            if (finished || closed) {
+                return false;
+            }
+            Task task = take();
+            if (task.error != null) {
+                finished = true;
+                throw new IOException("reading bzip2 input failed", task.error);
+            } else if (task.block == null) {
+                finished = true;
+                exec.shutdown();
+                return false;
+            }
+            try {
+                current = getOutput(task);
+            } catch (IOException e) {
+                finished = true;    // merging may have taken the end of the input, so nothing more can be read
+                throw e;
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a block's output, merging it with the blocks that follow it if it fails.
+     */
+    private byte[] getOutput(Task task) throws IOException {
+        Throwable failure;
+        try {
+            return task.output.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while decompressing", e);
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof IOException)) {
+                throw new IOException("decompressing block failed", e.getCause());
+            }
+            failure = e.getCause();
+        }
+        Block merged = task.block;
+        for (int i = 0; i < MAX_MERGES; i++) {
+            Task next = take();
+            if (next.error != null) {
+                throw new IOException("reading bzip2 input failed", next.error);
+            } else if (next.block == null) {
+                break;
+            }
+            LOG.log(Level.FINE, "bzip2 block failed its CRC check; assuming a false block boundary");
+            merged = merged.concat(next.block);
+            try {
+                return decompress(merged);
+            } catch (IOException e) {
+                // keep merging
+            }
+        }
+        throw new IOException("corrupt bzip2 block", failure);
+    }
+
+    private Task take() throws IOException {
+        try {
+            return tasks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while decompressing", e);
+        }
+    }
+
+    /**
+     * Splits the input into blocks and submits them for decompression. Runs on the scanner thread.
+     */
+    private void scan() {
+        try {
+            int level = readStreamHeader(true);
+            long reg = 0;
+            Block block = null;
+            int crcBitsLeft = -1;   // >= 0 after a possible end of stream marker
+            long eosStart = 0;
+            while (level > 0) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("bzip2 input ended inside a stream");
+                }
+                reg = (reg << 8) | b;
+                if (block != null) {
+                    block.appendByte(b);
+                }
+                // a magic may end at any bit of the byte; s is the number of bits after it
+                int s = 7;
+                if (crcBitsLeft > 0) {
+                    int n = Math.min(crcBitsLeft, 8);
+                    crcBitsLeft -= n;
+                    s -= n;
+                }
+                for (; s >= 0 && crcBitsLeft <= 0; s--) {
+                    long low = (reg >>> s) & MAGIC_MASK;
+                    if (low == BLOCK_MAGIC) {
+                        if (block != null) {
+                            block.truncate(block.numBits - s - MAGIC_BITS);
+                            submit(block);
+                        }
+                        block = new Block(level);
+                        block.appendBits(BLOCK_MAGIC, MAGIC_BITS);
+                        block.appendBits(b, s);
+                    } else if (low == EOS_MAGIC) {
+                        crcBitsLeft = 32 - s;
+                        eosStart = (block == null) ? 0 : block.numBits - s - MAGIC_BITS;
+                    }
+                }
+                if (crcBitsLeft == 0) {
+                    // the combined CRC and padding are done; a real end of stream is followed by eof or a new stream
+                    int nextLevel = readStreamHeader(false);
+                    if (nextLevel >= 0) {
+                        if (block != null) {
+                            block.truncate(eosStart);
+                            submit(block);
+                        }
+                        block = null;
+                        level = nextLevel;
+                        reg = 0;
+                    }
+                    crcBitsLeft = -1;
+                }
+            }
+            tasks.put(new Task(null, null, null));
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable e) {
+            if (!closed) {
+                try {
+                    tasks.put(new Task(null, null, e));
+                } catch (InterruptedException e2) {
+                    // closed
+                }
+            }
+        }
+    }
+
+    private void submitAll(List<Block> blocks) {
+        try {
+            for (Block block : blocks) {
+                submit(block);
+            }
+            tasks.put(new Task(null, null, null));
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Reads the "BZh" header of a stream.
+     * @param required If false, the header is only consumed if one is present.
+     * @return The block size level, 0 at the end of the input, or -1 if required
+     * is false and the next bytes are not a header.
+     */
+    private int readStreamHeader(boolean required) throws IOException {
+        in.mark(4);
+        byte header[] = new byte[4];
+        int n = 0;
+        int r;
+        while (n < 4 && (r = in.read(header, n, 4 - n)) > 0) {
+            n += r;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        if (n == 4 && header[0] == 'B' && header[1] == 'Z' && header[2] == 'h'
+        &&  header[3] >= '1' && header[3] <= '9') {
+            return header[3] - '0';
+        }
+        if (required) {
+            throw new IOException("input is not in bzip2 format");
+        }
+        in.reset();
+        return -1;
+    }
+
+    private void submit(final Block block) throws InterruptedException {
+        Future<byte[]> output = exec.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return decompress(block);
+            }
+        });
+        tasks.put(new Task(block, output, null));
+    }
+
+    /**
+     * Decompresses a block by wrapping it in a one-block bzip2 stream.
+     */
+    static byte[] decompress(Block block) throws IOException {
+        Block stream = new Block(block.level, block.getNumBytes() + 16);
+        stream.appendBits(0x425a6830L + block.level, 32);     // "BZh" + level
+        stream.append(block);
+        stream.appendBits(EOS_MAGIC, MAGIC_BITS);
+        stream.appendBits(block.getCrc(), 32);
+        BZip2CompressorInputStream bz = new BZip2CompressorInputStream(
+                new ByteArrayInputStream(stream.bits, 0, stream.getNumBytes()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(block.level * 100000 + 1024);
+        byte buffer[] = new byte[64 * 1024];
+        int n;
+        while ((n = bz.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        bz.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * A growable bit string holding one compressed block, starting with its magic.
+     * Bits past numBits are always zero, so appends can OR bytes into place.
+     */
+    static final class Block {
+        final int level;
+        byte bits[];
+        long numBits = 0;
+
+        Block(int level) {
+            this(level, 64 * 1024);
+        }
+
+        Block(int level, int capacity) {
+            this.level = level;
+            this.bits = new byte[capacity];
+        }
+
+        /**
+         * @return The number of bytes holding the block's bits.
+         */
+        int getNumBytes() {
+            return (int) ((numBits + 7) >>> 3);
+        }
+
+        private void ensureCapacity(int numBytes) {
+            if (numBytes > bits.length) {
+                bits = Arrays.copyOf(bits, Math.max(numBytes, bits.length * 2));
+            }
+        }
+
+        void append(int bit) {
+            int i = (int) (numBits >>> 3);
+            ensureCapacity(i + 1);
+            if (bit != 0) {
+                bits[i] |= 0x80 >>> (numBits & 7);
+            }
+            numBits++;
+        }
+
+        /**
+         * Appends the 8 bits of b, which may straddle two bytes.
+         */
+        void appendByte(int b) {
+            int i = (int) (numBits >>> 3);
+            int shift = (int) (numBits & 7);
+            ensureCapacity(i + 2);
+            bits[i] |= (b & 0xff) >>> shift;
+            if (shift != 0) {
+                bits[i + 1] |= b << (8 - shift);
+            }
+            numBits += 8;
+        }
+
+        /**
+         * Appends the low n bits of value, most significant first.
+         */
+        void appendBits(long value, int n) {
+            for (; n >= 8; n -= 8) {
+                appendByte((int) (value >>> (n - 8)));
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                append((int) (value >>> i) & 1);
+            }
+        }
+
+        /**
+         * Appends another block. Whole bytes are copied at once when this block ends on a
+         * byte boundary, and shifted a byte at a time otherwise.
+         */
+        void append(Block other) {
+            int n = (int) (other.numBits >>> 3);
+            int start = (int) (numBits >>> 3);
+            ensureCapacity(start + n + 2);
+            if ((numBits & 7) == 0) {
+                System.arraycopy(other.bits, 0, bits, start, n);
+                numBits += 8L * n;
+            } else {
+                for (int i = 0; i < n; i++) {
+                    appendByte(other.bits[i]);
+                }
+            }
+            int rest = (int) (other.numBits & 7);
+            if (rest > 0) {
+                appendBits((other.bits[n] & 0xff) >>> (8 - rest), rest);
+            }
+        }
+
+        int getBit(long i) {
+            return (bits[(int) (i >>> 3)] >>> (7 - (i & 7))) & 1;
+        }
+
+        void truncate(long n) {
+            for (long i = n; i < numBits && (i & 7) != 0; i++) {
+                bits[(int) (i >>> 3)] &= ~(0x80 >>> (i & 7));
+            }
+            Arrays.fill(bits, (int) ((n + 7) >>> 3), getNumBytes(), (byte) 0);
+            numBits = n;
+        }
+
+        /**
+         * @return A copy of this block followed by another.
+         */
+        Block concat(Block other) {
+            Block b = new Block(level, getNumBytes() + other.getNumBytes() + 2);
+            b.append(this);
+            b.append(other);
+            return b;
+        }
+
+        /**
+         * @return The block CRC that follows the block magic.
+         */
+        long getCrc() {
+            long crc = 0;
+            for (int i = 0; i < 32; i++) {
+                crc = (crc << 1) | getBit(MAGIC_BITS + i);
+            }
+            return crc;
+        }
+    }
+
+    private static final class Task {
+        final Block block;
+        final Future<byte[]> output;
+        final Throwable error;
+
+        Task(Block block, Future<byte[]> output, Throwable error) {
+            this.block = block;
+            this.output = output;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package edu.macalester.wpsemsim.lucene;
+
+import edu.macalester.wpsemsim.utils.TestUtils;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Measures PageReader pages/sec on a bzip2 dump with a range of decompression threads.
+ * Without arguments, the test dump is repeated into a temporary dump.
+ *
+ * usage: PageReaderBenchmark [dump.xml.bz2 [threads ...]]
+ */
+public class PageReaderBenchmark {
+    public static final int NUM_COPIES = 40;
+
+    public static void main(String args[]) throws IOException {
+        File dump;
+        if (args.length > 0) {
+            dump = new File(args[0]);
+        } else {
+            dump = createDump();
+            dump.deleteOnExit();
+        }
+        int threads[] = { 1, 4, 16 };
+        if (args.length > 1) {
+            threads = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threads[i - 1] = Integer.valueOf(args[i]);
+            }
+        }
+        System.out.println("reading " + dump + " (" + dump.length() / 1024 / 1024 + " MB)");
+        for (int n : threads) {
+            long start = System.currentTimeMillis();
+            int numPages = 0;
+            for (Page p : new PageReader(dump, n)) {
+                numPages++;
+            }
+            long millis = Math.max(1, System.currentTimeMillis() - start);
+            System.out.println(n + " threads: " + numPages + " pages in " + millis + " ms, " +
+                    (1000L * numPages / millis) + " pages/sec");
+        }
+    }
+
+    /**
+     * Writes the pages of the test dump NUM_COPIES times into one bzip2 dump.
+     */
+    private static File createDump() throws IOException {
+        String xml = FileUtils.readFileToString(TestUtils.TEST_INPUT_FILE, "UTF-8");
+        int begin = xml.indexOf("<page>");
+        int end = xml.lastIndexOf("</mediawiki>");
+        File dump = File.createTempFile("dump", ".xml.bz2");
+        OutputStream out = new BZip2CompressorOutputStream(new FileOutputStream(dump), 9);
+        try {
+            out.write(xml.substring(0, begin).getBytes("UTF-8"));
+            byte pages[] = xml.substring(begin, end).getBytes("UTF-8");
+            for (int i = 0; i < NUM_COPIES; i++) {
+                out.write(pages);
+            }
+            out.write(xml.substring(end).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return dump;
+    }
+}
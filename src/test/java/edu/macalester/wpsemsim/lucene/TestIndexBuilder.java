@@ -40,4 +40,23 @@ public class TestIndexBuilder {
         dir.delete();
     }
 
+    @Test
+    public void testStagedThreads() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
+        ConfigurationFile conf = TestUtils.makeSandboxConfiguration();
+        File dir = new File(ConfigurationFile.requireString(conf.get("indexes"), "outputDir"));
+        dir.mkdirs();
+        AllIndexBuilder builder = new AllIndexBuilder(conf, null);
+        builder.setBuilderThreads(3);
+        builder.setWriterThreads(2);
+        builder.setQueueSize(5);
+        builder.write(1, 100);
+        assertEquals(0, builder.getPipeline().getPageQueueDepth());
+        for (IndexGenerator g : builder.getGenerators()) {
+            assertEquals(0, builder.getPipeline().getDocQueueDepth(g));
+            DirectoryReader reader = TestUtils.openReader(dir, g.getName());
+            assertEquals(g.getName().equals("main") ? 83 : 17, reader.numDocs());
+            reader.close();
+        }
+        dir.delete();
+    }
 }
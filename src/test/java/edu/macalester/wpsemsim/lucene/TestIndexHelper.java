@@ -1,13 +1,19 @@
 package edu.macalester.wpsemsim.lucene;
 
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
+import edu.macalester.wpsemsim.utils.FrozenIntSet;
 import edu.macalester.wpsemsim.utils.TestUtils;
 import gnu.trove.list.TIntList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.util.BytesRef;
 import org.junit.*;
 
@@ -15,6 +21,12 @@ import java.io.File;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestIndexHelper {
 
@@ -76,6 +88,72 @@ public class TestIndexHelper {
         assertEquals(linkHelper.getDocFreq(Page.FIELD_LINKS, ""+wpId), 2);
     }
 
+    @Test
+    public void testWpIdTable() throws IOException {
+        File dir = new File(indexPath, "links");
+        assertTrue(WpIdTable.getFile(dir).isFile());
+        assertNotNull(WpIdTable.read(linkHelper));
+        for (int i = 0; i < linkReader.maxDoc(); i++) {
+            int wpId = Integer.valueOf(linkReader.document(i).get("id"));
+            assertEquals(wpId, linkHelper.luceneIdToWpId(i));
+            assertEquals(i, linkHelper.wpIdToLuceneId(wpId));
+        }
+        assertEquals(-1, linkHelper.wpIdToLuceneId(-5));
+        assertEquals(-1, linkHelper.titleToLuceneId("No Such Article"));
+        assertNull(linkHelper.wpIdToTitle(-5));
+
+        // touching the index invalidates the table
+        File segments = dir.listFiles()[0];
+        assertTrue(segments.setLastModified(linkHelper.getLastModified() + 10000));
+        assertNull(WpIdTable.read(linkHelper));
+        IndexHelper reopened = new IndexHelper(dir, true);
+        assertNotNull(WpIdTable.read(reopened));
+        assertEquals(12, reopened.luceneIdToWpId(reopened.wpIdToLuceneId(12)));
+    }
+
+    @Test
+    public void testWpIdFilter() throws IOException {
+        TIntSet ids = new TIntHashSet(new int[] { 12, 25, 339, -3 });
+        Filter filter = linkHelper.getWpIdFilter(ids);
+        TIntSet found = new TIntHashSet();
+        for (ScoreDoc sd : linkHelper.getSearcher().search(new MatchAllDocsQuery(), filter, 100).scoreDocs) {
+            found.add(linkHelper.luceneIdToWpId(sd.doc));
+        }
+        assertEquals(new TIntHashSet(new int[] { 12, 25, 339 }), found);
+
+        // filters are cached by the contents of the set, not its identity
+        assertSame(filter, linkHelper.getWpIdFilter(new TIntHashSet(ids)));
+        ids.remove(339);
+        Filter smaller = linkHelper.getWpIdFilter(ids);
+        assertTrue(filter != smaller);
+        assertEquals(2, linkHelper.getSearcher().search(new MatchAllDocsQuery(), smaller, 100).totalHits);
+        ids.add(339);
+        assertSame(filter, linkHelper.getWpIdFilter(ids));
+
+        // swapping a member without changing the size changes the filter
+        ids.remove(339);
+        ids.add(2);
+        Filter swapped = linkHelper.getWpIdFilter(ids);
+        assertTrue(filter != swapped);
+        found.clear();
+        for (ScoreDoc sd : linkHelper.getSearcher().search(new MatchAllDocsQuery(), swapped, 100).scoreDocs) {
+            found.add(linkHelper.luceneIdToWpId(sd.doc));
+        }
+        assertFalse(found.contains(339));
+
+        // a frozen set is cached as it is and cannot change
+        FrozenIntSet frozen = FrozenIntSet.freeze(new TIntHashSet(new int[] { 12, 25 }));
+        Filter frozenFilter = linkHelper.getWpIdFilter(frozen);
+        assertSame(frozenFilter, linkHelper.getWpIdFilter(frozen));
+        assertSame(frozenFilter, linkHelper.getWpIdFilter(new TIntHashSet(new int[] { 12, 25 })));
+        try {
+            frozen.add(339);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
     @AfterClass
     public static void deleteIndex() throws IOException {
         FileUtils.deleteDirectory(indexPath);
@@ -0,0 +1,54 @@
+package edu.macalester.wpsemsim.matrix;
+
+import edu.macalester.wpsemsim.utils.TestUtils;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares reading and unpacking every value of skewed random rows directly
+ * from a sparse matrix and through a CachedMatrix.
+ */
+public class CachedMatrixBenchmark {
+    public static final int NUM_ROWS = 20000;
+    public static final int MAX_ROW_LENGTH = 500;
+    public static final int NUM_READS = 200000;
+    public static final long CACHE_BYTES = 32 * 1024 * 1024;
+
+    public static void main(String args[]) throws IOException {
+        SparseMatrix matrix = TestUtils.createSparseTestMatrix(NUM_ROWS, MAX_ROW_LENGTH, false);
+        int ids[] = matrix.getRowIds();
+
+        // popular rows are read far more often than others
+        Random random = new Random(0);
+        int reads[] = new int[NUM_READS];
+        for (int i = 0; i < NUM_READS; i++) {
+            double u = random.nextDouble();
+            reads[i] = ids[(int) (ids.length * u * u * u)];
+        }
+
+        CachedMatrix cached = new CachedMatrix(matrix, CACHE_BYTES);
+        for (int rep = 0; rep < 5; rep++) {
+            System.out.println(
+                    "rows/sec uncached: " + benchmark(matrix, reads) +
+                    ", rows/sec cached: " + benchmark(cached, reads));
+        }
+        System.out.println(cached.getCache());
+    }
+
+    private static long benchmark(Matrix<? extends MatrixRow> matrix, int reads[]) throws IOException {
+        long startTimeNano = System.nanoTime();
+        double sum = 0;
+        for (int id : reads) {
+            MatrixRow row = matrix.getRow(id);
+            for (int i = 0; i < row.getNumCols(); i++) {
+                sum += row.getColValue(i);
+            }
+        }
+        long endTimeNano = System.nanoTime();
+        if (sum == 42) {
+            System.out.println("unlikely");
+        }
+        return 1000000000L * reads.length / (endTimeNano - startTimeNano);
+    }
+}
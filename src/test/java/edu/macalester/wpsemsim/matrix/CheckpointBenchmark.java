@@ -0,0 +1,69 @@
+package edu.macalester.wpsemsim.matrix;
+
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the cost of checkpoints by writing similarity-sized rows to a sharded
+ * writer without checkpoints and with checkpoints at several intervals. Writing
+ * rows is all this does, so the overhead is larger than in a real build.
+ */
+public class CheckpointBenchmark {
+    public static final int NUM_ROWS = 200000;
+    public static final int ROW_LENGTH = 100;
+    public static final int MAX_ID = 5000000;
+    public static final int THREADS = 4;
+    public static final long INTERVALS[] = { -1, 10000, 1000, 100 };
+
+    public static void main(String args[]) throws IOException {
+        Random random = new Random(0);
+        ValueConf vconf = new ValueConf();
+        List<SparseMatrixRow> rows = new ArrayList<SparseMatrixRow>();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            int colIds[] = new int[ROW_LENGTH];
+            float colVals[] = new float[ROW_LENGTH];
+            for (int j = 0; j < ROW_LENGTH; j++) {
+                colIds[j] = random.nextInt(MAX_ID);
+                colVals[j] = random.nextFloat();
+            }
+            rows.add(new SparseMatrixRow(vconf, i, colIds, colVals));
+        }
+        for (int rep = 0; rep < 7; rep++) {
+            StringBuilder line = new StringBuilder("rows/sec");
+            for (long interval : INTERVALS) {
+                line.append((interval < 0) ? " no checkpoints: " : ", every " + interval + " ms: ");
+                line.append(benchmark(rows, interval));
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static long benchmark(List<SparseMatrixRow> rows, long intervalMillis) throws IOException {
+        File file = File.createTempFile("matrix", null);
+        final SparseMatrixWriter writer = new SparseMatrixWriter(file, new ValueConf(), false, true);
+        long startTimeNano = System.nanoTime();
+        if (intervalMillis >= 0) {
+            writer.enableCheckpoints(intervalMillis);
+        }
+        ParallelForEach.loop(rows, THREADS, new Procedure<SparseMatrixRow>() {
+            @Override
+            public void call(SparseMatrixRow row) throws Exception {
+                writer.writeRow(row);
+            }
+        }, Integer.MAX_VALUE);
+        writer.finish();
+        long endTimeNano = System.nanoTime();
+        for (int i = 0; i < THREADS; i++) {
+            new File(file.getPath() + ".shard" + i).delete();
+        }
+        RowNorms.getFile(file).delete();
+        file.delete();
+        return 1000000000L * rows.size() / (endTimeNano - startTimeNano);
+    }
+}
@@ -0,0 +1,69 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares file size and full-scan throughput of the raw and compressed
+ * sparse row formats on a matrix shaped like a pairwise similarity matrix.
+ */
+public class CompressedMatrixBenchmark {
+    public static final int NUM_ROWS = 20000;
+    public static final int ROW_LENGTH = 500;
+    public static final int MAX_ID = 250000;
+    public static final int NUM_SCANS = 5;
+
+    public static void main(String args[]) throws IOException {
+        File raw = File.createTempFile("matrix", null);
+        File compressed = File.createTempFile("matrix", null);
+        raw.deleteOnExit();
+        compressed.deleteOnExit();
+        write(raw, false);
+        write(compressed, true);
+
+        System.out.println("raw bytes: " + raw.length() +
+                ", compressed bytes: " + compressed.length() +
+                ", ratio: " + (1.0 * raw.length() / compressed.length()));
+        System.out.println("raw rows/sec: " + scan(new SparseMatrix(raw)));
+        System.out.println("compressed rows/sec: " + scan(new SparseMatrix(compressed)));
+    }
+
+    private static void write(File file, boolean compressed) throws IOException {
+        Random random = new Random(0);
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf, compressed);
+        int colIds[] = new int[ROW_LENGTH];
+        float colVals[] = new float[ROW_LENGTH];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            for (int j = 0; j < ROW_LENGTH; j++) {
+                colIds[j] = random.nextInt(MAX_ID);
+                colVals[j] = random.nextFloat();
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, i, colIds, colVals));
+        }
+        writer.finish();
+    }
+
+    private static long scan(SparseMatrix m) throws IOException {
+        double z = 0;
+        scanOnce(m);    // warm up
+        long startTimeNano = System.nanoTime();
+        for (int i = 0; i < NUM_SCANS; i++) {
+            z += scanOnce(m);
+        }
+        long endTimeNano = System.nanoTime();
+        if (z == 42) { System.out.println("unlikely checksum"); }
+        return 1000000000L * NUM_SCANS * m.getNumRows() / (endTimeNano - startTimeNano);
+    }
+
+    private static double scanOnce(SparseMatrix m) {
+        double z = 0;
+        for (SparseRowCursor row : m.cursors()) {
+            for (int i = 0; i < row.getNumCols(); i++) {
+                z += row.getColIndex(i) * row.getColValue(i);
+            }
+        }
+        return z;
+    }
+}
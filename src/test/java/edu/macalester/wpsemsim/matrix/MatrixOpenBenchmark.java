@@ -0,0 +1,58 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the time and heap needed to open a sparse matrix with many small rows,
+ * and the speed of random row lookups once it is open.
+ */
+public class MatrixOpenBenchmark {
+    public static final int NUM_ROWS = 3000000;
+    public static final int NUM_LOOKUPS = 1000000;
+    public static final int PAGE_SIZE = 500 * 1024 * 1024;
+
+    public static void main(String args[]) throws IOException {
+        // dense ids are consecutive, sparse ids are spread out like wikipedia ids
+        benchmark("dense ids", 1);
+        benchmark("sparse ids", 13);
+    }
+
+    private static void benchmark(String name, int idStep) throws IOException {
+        File file = File.createTempFile("matrix", null);
+        file.deleteOnExit();
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            writer.writeRow(new SparseMatrixRow(vconf, i * idStep, new int[] { i }, new float[] { 0.5f }));
+        }
+        writer.finish();
+
+        long heapBefore = usedHeap();
+        long startTimeNano = System.nanoTime();
+        SparseMatrix matrix = new SparseMatrix(file, 1, PAGE_SIZE);
+        long openMillis = (System.nanoTime() - startTimeNano) / 1000000;
+        long heapMb = (usedHeap() - heapBefore) / (1024 * 1024);
+
+        Random random = new Random(0);
+        startTimeNano = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            sum += matrix.getRow(random.nextInt(NUM_ROWS) * idStep).getColIndex(0);
+        }
+        long lookupsPerSec = 1000000000L * NUM_LOOKUPS / (System.nanoTime() - startTimeNano);
+
+        System.out.println(name + ": open millis: " + openMillis + ", heap MB: " + heapMb +
+                ", lookups/sec: " + lookupsPerSec + " (checksum " + sum + ")");
+        file.delete();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,47 @@
+package edu.macalester.wpsemsim.matrix;
+
+import edu.macalester.wpsemsim.utils.TestUtils;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares row-fetch latency for the same matrix mapped as a single page
+ * and as many small pages. With the page directory the latency should
+ * stay flat as the number of pages grows.
+ */
+public class MemoryMappedMatrixBenchmark {
+    public static final int NUM_ROWS = 100000;
+    public static final int MAX_ROW_LENGTH = 20;
+    public static final int NUM_FETCHES = 5000000;
+    public static final int PAGE_SIZES[] = { Integer.MAX_VALUE, 1024 * 1024, 64 * 1024, 4 * 1024 };
+
+    public static void main(String args[]) throws IOException {
+        for (int pageSize : PAGE_SIZES) {
+            SparseMatrix m = TestUtils.createSparseTestMatrix(
+                    NUM_ROWS, MAX_ROW_LENGTH, true, pageSize, false);
+            int numPages = m.rowBuffers.buffers.size();
+
+            // warm up: touch every page and give the JIT a chance
+            fetch(m, NUM_FETCHES / 10);
+
+            long startTimeNano = System.nanoTime();
+            long z = fetch(m, NUM_FETCHES);
+            long endTimeNano = System.nanoTime();
+            System.out.println(
+                    "pages: " + numPages +
+                    ", ns per getRow: " + (endTimeNano - startTimeNano) / NUM_FETCHES +
+                    " (checksum " + z + ")");
+        }
+    }
+
+    private static long fetch(SparseMatrix m, int n) throws IOException {
+        Random random = new Random(0);
+        int rowIds[] = m.getRowIds();
+        long z = 0;
+        for (int i = 0; i < n; i++) {
+            z += m.getRow(rowIds[random.nextInt(rowIds.length)]).getNumCols();
+        }
+        return z;
+    }
+}
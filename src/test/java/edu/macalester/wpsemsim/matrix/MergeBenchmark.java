@@ -0,0 +1,70 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures joining the outputs of a partitioned build: SparseMatrixMerger, which copies
+ * row bytes, against decoding every row and writing it again with a SparseMatrixWriter.
+ */
+public class MergeBenchmark {
+    public static final int NUM_ROWS = 200000;
+    public static final int ROW_LENGTH = 100;
+    public static final int MAX_ID = 5000000;
+    public static final int NUM_PARTS = 4;
+
+    public static void main(String args[]) throws IOException {
+        Random random = new Random(0);
+        ValueConf vconf = new ValueConf();
+        List<SparseMatrix> parts = new ArrayList<SparseMatrix>();
+        for (int p = 0; p < NUM_PARTS; p++) {
+            File file = File.createTempFile("matrix", null);
+            file.deleteOnExit();
+            SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf);
+            for (int i = p; i < NUM_ROWS; i += NUM_PARTS) {
+                int colIds[] = new int[ROW_LENGTH];
+                float colVals[] = new float[ROW_LENGTH];
+                for (int j = 0; j < ROW_LENGTH; j++) {
+                    colIds[j] = random.nextInt(MAX_ID);
+                    colVals[j] = random.nextFloat();
+                }
+                writer.writeRow(new SparseMatrixRow(vconf, i, colIds, colVals));
+            }
+            writer.finish();
+            RowNorms.getFile(file).deleteOnExit();
+            parts.add(new SparseMatrix(file));
+        }
+        for (int rep = 0; rep < 5; rep++) {
+            System.out.println("millis merge: " + benchmarkMerge(parts) + ", rewrite: " + benchmarkRewrite(parts));
+        }
+    }
+
+    private static long benchmarkMerge(List<SparseMatrix> parts) throws IOException {
+        File file = File.createTempFile("matrix", null);
+        long startTimeNano = System.nanoTime();
+        new SparseMatrixMerger(parts, file).merge();
+        long endTimeNano = System.nanoTime();
+        RowNorms.getFile(file).delete();
+        file.delete();
+        return (endTimeNano - startTimeNano) / 1000000;
+    }
+
+    private static long benchmarkRewrite(List<SparseMatrix> parts) throws IOException {
+        File file = File.createTempFile("matrix", null);
+        long startTimeNano = System.nanoTime();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, parts.get(0).getValueConf());
+        for (SparseMatrix part : parts) {
+            for (SparseMatrixRow row : part) {
+                writer.writeRow(row);
+            }
+        }
+        writer.finish();
+        long endTimeNano = System.nanoTime();
+        RowNorms.getFile(file).delete();
+        file.delete();
+        return (endTimeNano - startTimeNano) / 1000000;
+    }
+}
@@ -0,0 +1,60 @@
+package edu.macalester.wpsemsim.matrix;
+
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+import edu.macalester.wpsemsim.utils.TestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures multi-threaded getRow throughput when only some of the pages
+ * of a matrix may be mapped at once (maxOpenPages is bounded).
+ */
+public class PageResidencyBenchmark {
+    public static final int NUM_ROWS = 100000;
+    public static final int MAX_ROW_LENGTH = 20;
+    public static final int PAGE_SIZE = 64 * 1024;
+    public static final int FETCHES_PER_THREAD = 200000;
+    public static final int THREADS[] = { 1, 2, 4, 8, 16 };
+
+    public static void main(String args[]) throws IOException {
+        SparseMatrix unbounded = TestUtils.createSparseTestMatrix(
+                NUM_ROWS, MAX_ROW_LENGTH, true, PAGE_SIZE, false);
+        int numPages = unbounded.rowBuffers.buffers.size();
+        SparseMatrix bounded = new SparseMatrix(unbounded.getPath(), numPages / 2, PAGE_SIZE);
+        System.out.println("matrix has " + numPages + " pages");
+
+        for (int threads : THREADS) {
+            System.out.println(
+                    "threads: " + threads +
+                    ", rows/sec all pages open: " + benchmark(unbounded, threads) +
+                    ", rows/sec half pages open: " + benchmark(bounded, threads));
+        }
+    }
+
+    private static long benchmark(final SparseMatrix m, int numThreads) {
+        List<Integer> range = new ArrayList<Integer>();
+        for (int i = 0; i < numThreads; i++) { range.add(i); }
+        final AtomicLong checksum = new AtomicLong();
+
+        long startTimeNano = System.nanoTime();
+        ParallelForEach.loop(range, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer seed) throws Exception {
+                Random random = new Random(seed);
+                int rowIds[] = m.getRowIds();
+                long z = 0;
+                for (int i = 0; i < FETCHES_PER_THREAD; i++) {
+                    z += m.getRow(rowIds[random.nextInt(rowIds.length)]).getNumCols();
+                }
+                checksum.addAndGet(z);
+            }
+        });
+        long endTimeNano = System.nanoTime();
+        return 1000000000L * numThreads * FETCHES_PER_THREAD / (endTimeNano - startTimeNano);
+    }
+}
@@ -0,0 +1,86 @@
+package edu.macalester.wpsemsim.matrix;
+
+import edu.macalester.wpsemsim.utils.TestUtils;
+import gnu.trove.map.hash.TIntFloatHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the cosine of random pairs of rows computed by building two trove maps
+ * (the old PairwiseCosineSimilarity approach) against MatrixRow.cosine() on
+ * unsorted, sorted and compressed matrices.
+ */
+public class RowCosineBenchmark {
+    public static final int NUM_ROWS = 20000;
+    public static final int MAX_ROW_LENGTH = 500;
+    public static final int NUM_PAIRS = 200000;
+
+    public static void main(String args[]) throws IOException {
+        SparseMatrix unsorted = TestUtils.createSparseTestMatrix(NUM_ROWS, MAX_ROW_LENGTH, true);
+
+        File sortedFile = File.createTempFile("matrix", null);
+        sortedFile.deleteOnExit();
+        new SparseMatrixSorter().sort(unsorted, sortedFile, true);
+        SparseMatrix sorted = new SparseMatrix(sortedFile);
+
+        File compressedFile = File.createTempFile("matrix", null);
+        compressedFile.deleteOnExit();
+        SparseMatrixWriter.write(compressedFile, unsorted.iterator(), unsorted.getValueConf(), true);
+        SparseMatrix compressed = new SparseMatrix(compressedFile);
+
+        int ids[] = unsorted.getRowIds();
+        Random random = new Random(0);
+        int pairs[] = new int[NUM_PAIRS * 2];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = ids[random.nextInt(ids.length)];
+        }
+
+        for (int rep = 0; rep < 5; rep++) {
+            System.out.println(
+                    "pairs/sec trove maps: " + benchmarkMaps(unsorted, pairs) +
+                    ", unsorted: " + benchmark(unsorted, pairs) +
+                    ", sorted: " + benchmark(sorted, pairs) +
+                    ", compressed: " + benchmark(compressed, pairs));
+        }
+    }
+
+    private static long benchmarkMaps(SparseMatrix matrix, int pairs[]) throws IOException {
+        long startTimeNano = System.nanoTime();
+        double sum = 0;
+        for (int i = 0; i < pairs.length; i += 2) {
+            TIntFloatHashMap map1 = matrix.getRow(pairs[i]).asTroveMap();
+            TIntFloatHashMap map2 = matrix.getRow(pairs[i + 1]).asTroveMap();
+            double xDotX = 0.0;
+            double yDotY = 0.0;
+            double xDotY = 0.0;
+            for (float x: map1.values()) { xDotX += x * x; }
+            for (float y: map2.values()) { yDotY += y * y; }
+            for (int id : map1.keys()) {
+                if (map2.containsKey(id)) {
+                    xDotY += map1.get(id) * map2.get(id);
+                }
+            }
+            sum += xDotY / Math.sqrt(xDotX * yDotY);
+        }
+        return report(sum, pairs, startTimeNano);
+    }
+
+    private static long benchmark(SparseMatrix matrix, int pairs[]) throws IOException {
+        long startTimeNano = System.nanoTime();
+        double sum = 0;
+        for (int i = 0; i < pairs.length; i += 2) {
+            sum += matrix.getRow(pairs[i]).cosine(matrix.getRow(pairs[i + 1]));
+        }
+        return report(sum, pairs, startTimeNano);
+    }
+
+    private static long report(double sum, int pairs[], long startTimeNano) {
+        long endTimeNano = System.nanoTime();
+        if (sum == 42) {
+            System.out.println("unlikely");
+        }
+        return 1000000000L * (pairs.length / 2) / (endTimeNano - startTimeNano);
+    }
+}
@@ -0,0 +1,61 @@
+package edu.macalester.wpsemsim.matrix;
+
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares multi-threaded write throughput, including finish(), of a single
+ * locked body file and of one shard per thread.
+ */
+public class ShardedWriterBenchmark {
+    public static final int NUM_ROWS = 20000;
+    public static final int ROW_LENGTH = 500;
+    public static final int MAX_ID = 250000;
+    public static final int THREADS[] = { 1, 2, 4, 8 };
+
+    public static void main(String args[]) throws IOException {
+        Random random = new Random(0);
+        ValueConf vconf = new ValueConf();
+        List<SparseMatrixRow> rows = new ArrayList<SparseMatrixRow>();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            int colIds[] = new int[ROW_LENGTH];
+            float colVals[] = new float[ROW_LENGTH];
+            for (int j = 0; j < ROW_LENGTH; j++) {
+                colIds[j] = random.nextInt(MAX_ID);
+                colVals[j] = random.nextFloat();
+            }
+            rows.add(new SparseMatrixRow(vconf, i, colIds, colVals));
+        }
+        for (int threads : THREADS) {
+            System.out.println(
+                    "threads: " + threads +
+                    ", rows/sec single body: " + benchmark(rows, threads, false) +
+                    ", rows/sec sharded: " + benchmark(rows, threads, true));
+        }
+    }
+
+    private static long benchmark(List<SparseMatrixRow> rows, int numThreads, boolean sharded) throws IOException {
+        File file = File.createTempFile("matrix", null);
+        file.deleteOnExit();
+        final SparseMatrixWriter writer = new SparseMatrixWriter(file, new ValueConf(), false, sharded);
+        long startTimeNano = System.nanoTime();
+        ParallelForEach.loop(rows, numThreads, new Procedure<SparseMatrixRow>() {
+            @Override
+            public void call(SparseMatrixRow row) throws Exception {
+                writer.writeRow(row);
+            }
+        }, Integer.MAX_VALUE);
+        writer.finish();
+        long endTimeNano = System.nanoTime();
+        for (int i = 0; sharded && i < numThreads; i++) {
+            new File(file.getPath() + ".shard" + i).delete();
+        }
+        return 1000000000L * rows.size() / (endTimeNano - startTimeNano);
+    }
+}
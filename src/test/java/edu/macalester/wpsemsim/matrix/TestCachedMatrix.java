@@ -0,0 +1,71 @@
+package edu.macalester.wpsemsim.matrix;
+
+import edu.macalester.wpsemsim.utils.TestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestCachedMatrix {
+
+    @Test
+    public void testSparse() throws IOException {
+        SparseMatrix m = TestUtils.createSparseTestMatrix(200, 100, false);
+        CachedMatrix cached = new CachedMatrix(m, 1024 * 1024);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int id : m.getRowIds()) {
+                verifySameRow(m.getRow(id), cached.getRow(id));
+            }
+        }
+        assertNull(cached.getRow(-42));
+        assertEquals(m.getNumRows(), cached.getCache().getHits());
+        assertEquals(m.getNumRows() + 1, cached.getCache().getMisses());
+
+        int n = 0;
+        for (DecodedMatrixRow row : cached) {
+            verifySameRow(m.getRow(row.getRowIndex()), row);
+            n++;
+        }
+        assertEquals(m.getNumRows(), n);
+    }
+
+    @Test
+    public void testBounded() throws IOException {
+        SparseMatrix m = TestUtils.createSparseTestMatrix(200, 100, false);
+        CachedMatrix cached = new CachedMatrix(m, 8 * 1024);
+        for (int id : m.getRowIds()) {
+            verifySameRow(m.getRow(id), cached.getRow(id));
+        }
+        assertTrue(cached.getCache().getSizeInBytes() <= 8 * 1024);
+        assertTrue(cached.getCache().getEvictions() > 0);
+    }
+
+    @Test
+    public void testDense() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        tmp.deleteOnExit();
+        DenseMatrixWriter.write(tmp, TestUtils.createDenseTestMatrixRows(50, 20).iterator());
+        DenseMatrix m = new DenseMatrix(tmp);
+        CachedMatrix cached = new CachedMatrix(m, 1024 * 1024);
+        int ids[] = m.getRowIds();
+        for (int id : ids) {
+            verifySameRow(m.getRow(id), cached.getRow(id));
+        }
+        // dense rows share the column ids of the matrix
+        assertSame(cached.getRow(ids[0]).getColIds(), cached.getRow(ids[1]).getColIds());
+    }
+
+    private void verifySameRow(MatrixRow expected, DecodedMatrixRow actual) {
+        assertEquals(expected.getRowIndex(), actual.getRowIndex());
+        assertEquals(expected.getNumCols(), actual.getNumCols());
+        for (int i = 0; i < expected.getNumCols(); i++) {
+            assertEquals(expected.getColIndex(i), actual.getColIndex(i));
+            assertEquals(expected.getColValue(i), actual.getColValue(i), 0.0);
+        }
+    }
+}
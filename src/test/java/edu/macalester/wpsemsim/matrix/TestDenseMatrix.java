@@ -6,8 +6,10 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -68,6 +70,41 @@ public class TestDenseMatrix {
     }
 
 
+    @Test
+    public void testCodecs() throws IOException {
+        for (ValueConf vconf : makeValueConfs()) {
+            File tmp = File.createTempFile("matrix", null);
+            DenseMatrixWriter writer = new DenseMatrixWriter(tmp, vconf);
+            for (DenseMatrixRow srcRow : srcRows) {
+                writer.writeRow(new DenseMatrixRow(vconf, srcRow.getRowIndex(), srcRow.getColIds(), srcRow.getValues()));
+            }
+            writer.finish();
+            DenseMatrix m = new DenseMatrix(tmp, Integer.MAX_VALUE, PAGE_SIZE);
+            assertEquals(vconf.codec, m.getValueConf().codec);
+            verifyIsSourceMatrixUnordered(m, vconf.getNumBytes() == 1 ? 0.05 : 0.001);
+        }
+    }
+
+    /**
+     * @return One value conf per codec, covering the [0, 1) values in the test matrices.
+     */
+    static List<ValueConf> makeValueConfs() {
+        List<ValueConf> confs = new ArrayList<ValueConf>();
+        Random random = new Random(0);
+        float sample[] = new float[1000];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = random.nextFloat();
+        }
+        for (ValueConf.Codec codec : ValueConf.Codec.values()) {
+            if (codec == ValueConf.Codec.QUANTILE8) {
+                confs.add(ValueConf.trainQuantiles(0.0f, 1.0f, sample));
+            } else {
+                confs.add(new ValueConf(0.0f, 1.0f, codec));
+            }
+        }
+        return confs;
+    }
+
     private void verifyIsSourceMatrix(Matrix m) throws IOException {
         int j = 0;
         for (DenseMatrixRow srcRow : srcRows) {
@@ -0,0 +1,106 @@
+package edu.macalester.wpsemsim.matrix;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TestRowIndex {
+
+    @Test
+    public void testChooseIndex() {
+        assertEquals(RowIndex.FLAG_DENSE_INDEX, RowIndex.chooseIndexFlag(new int[] { 5, 3, 4, 7 }));
+        assertEquals(RowIndex.FLAG_SORTED_INDEX, RowIndex.chooseIndexFlag(new int[] { 5, 3000, -40 }));
+        assertEquals(RowIndex.FLAG_SORTED_INDEX, RowIndex.chooseIndexFlag(new int[0]));
+    }
+
+    @Test
+    public void testDenseIds() throws IOException {
+        int ids[] = new int[500];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ids.length - i;
+        }
+        SparseMatrix m = writeMatrix(ids);
+        verifyRows(m, ids);
+    }
+
+    @Test
+    public void testSparseIds() throws IOException {
+        int ids[] = new int[500];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (i % 2 == 0) ? i * 1000 : -i * 77;
+        }
+        SparseMatrix m = writeMatrix(ids);
+        verifyRows(m, ids);
+    }
+
+    @Test
+    public void testLegacyTable() throws IOException {
+        int ids[] = { 40, 10, 30, 20, 10 };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        for (int i = 0; i < ids.length; i++) {
+            buffer.clear();
+            buffer.putInt(ids[i]).putLong(100L * i);
+            bytes.write(buffer.array(), 0, 12);
+        }
+        File tmp = File.createTempFile("index", null);
+        tmp.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(bytes.toByteArray());
+        out.close();
+
+        FileChannel channel = new FileInputStream(tmp).getChannel();
+        RowIndex index = RowIndex.read(channel, 0, ids.length, 0);
+        assertEquals(ids.length, index.size());
+        assertEquals(20, index.getRowIdAt(3));
+        assertEquals(200L, index.getOffset(30));
+        assertEquals(400L, index.getOffset(10));     // the last occurrence wins
+        assertEquals(-1L, index.getOffset(25));
+        assertFalse(index.containsRow(50));
+        channel.close();
+    }
+
+    private SparseMatrix writeMatrix(int ids[]) throws IOException {
+        List<SparseMatrixRow> rows = new ArrayList<SparseMatrixRow>();
+        ValueConf vconf = new ValueConf();
+        for (int id : ids) {
+            int cols[] = { id, id + 1 };
+            float vals[] = { 0.5f, -0.25f };
+            rows.add(new SparseMatrixRow(vconf, id, cols, vals));
+        }
+        File tmp = File.createTempFile("matrix", null);
+        tmp.deleteOnExit();
+        SparseMatrixWriter.write(tmp, rows.iterator(), vconf);
+        return new SparseMatrix(tmp);
+    }
+
+    private void verifyRows(SparseMatrix m, int ids[]) throws IOException {
+        assertEquals(ids.length, m.getNumRows());
+        int i = 0;
+        for (SparseMatrixRow row : m) {
+            assertEquals(ids[i++], row.getRowIndex());
+        }
+        for (int id : ids) {
+            SparseMatrixRow row = m.getRow(id);
+            assertEquals(id, row.getRowIndex());
+            assertEquals(id + 1, row.getColIndex(1));
+            assertEquals(0.5f, row.getColValue(0), 0.001);
+        }
+        assertNull(m.getRow(Integer.MIN_VALUE));
+        assertNull(m.getRow(Integer.MAX_VALUE));
+        assertNull(m.getRow(ids.length + 1));
+        assertEquals(ids.length, m.getRowIds().length);
+    }
+}
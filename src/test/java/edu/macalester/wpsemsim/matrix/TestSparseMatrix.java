@@ -1,16 +1,27 @@
 package edu.macalester.wpsemsim.matrix;
 
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
 import edu.macalester.wpsemsim.utils.TestUtils;
+import gnu.trove.set.TIntSet;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestSparseMatrix {
     private List<SparseMatrixRow> srcRows;
@@ -56,6 +67,31 @@ public class TestSparseMatrix {
     }
 
 
+    @Test
+    public void testTransposeManyRuns() throws IOException {
+        // force several levels of merging and several sorting threads
+        int oldFanIn = SparseMatrixTransposer.MAX_FAN_IN;
+        SparseMatrixTransposer.MAX_FAN_IN = 3;
+        try {
+            File tmp1 = File.createTempFile("matrix", null);
+            File tmp2 = File.createTempFile("matrix", null);
+            File tmp3 = File.createTempFile("matrix", null);
+            SparseMatrixWriter.write(tmp1, srcRows.iterator());
+            SparseMatrix m = new SparseMatrix(tmp1);
+            SparseMatrixTransposer transposer = new SparseMatrixTransposer(m, tmp2, 1, 3);
+            transposer.transpose();
+            assertTrue(transposer.getRunFiles().size() > SparseMatrixTransposer.MAX_FAN_IN);
+            for (File run : transposer.getRunFiles()) {
+                assertFalse(run.exists());
+            }
+            SparseMatrix m2 = new SparseMatrix(tmp2);
+            new SparseMatrixTransposer(m2, tmp3, 1, 3).transpose();
+            verifyIsSourceMatrixUnordered(new SparseMatrix(tmp3), .001);
+        } finally {
+            SparseMatrixTransposer.MAX_FAN_IN = oldFanIn;
+        }
+    }
+
     @Test
     public void testRows() throws IOException {
         for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
@@ -66,6 +102,355 @@ public class TestSparseMatrix {
         }
     }
 
+    @Test
+    public void testCursors() throws IOException {
+        for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
+            File tmp = File.createTempFile("matrix", null);
+            SparseMatrixWriter.write(tmp, srcRows.iterator());
+            SparseMatrix m = new SparseMatrix(tmp, numOpenPages, NUM_ROWS * 20);
+
+            // random access with a reused cursor
+            SparseRowCursor cursor = new SparseRowCursor();
+            for (SparseMatrixRow srcRow : srcRows) {
+                assertTrue(m.readRow(srcRow.getRowIndex(), cursor) == cursor);
+                verifyRowsEqual(srcRow, cursor);
+            }
+            assertNull(m.readRow(-1, cursor));
+
+            // sequential access
+            int i = 0;
+            for (SparseRowCursor row : m.cursors()) {
+                verifyRowsEqual(srcRows.get(i++), row);
+            }
+            assertEquals(srcRows.size(), i);
+        }
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
+            File tmp1 = File.createTempFile("matrix", null);
+            File tmp2 = File.createTempFile("matrix", null);
+            File tmp3 = File.createTempFile("matrix", null);
+            SparseMatrixWriter.write(tmp1, srcRows.iterator(), new ValueConf(), true);
+            SparseMatrix m = new SparseMatrix(tmp1, numOpenPages, NUM_ROWS * 20);
+            assertTrue(m.isCompressed());
+            verifyIsSourceMatrixUnordered(m, .001);
+
+            // compressed columns come back sorted by id
+            int i = 0;
+            for (SparseRowCursor row : m.cursors()) {
+                assertTrue(row.isCompressed());
+                for (int j = 1; j < row.getNumCols(); j++) {
+                    assertTrue(row.getColIndex(j - 1) < row.getColIndex(j));
+                }
+                i++;
+            }
+            assertEquals(srcRows.size(), i);
+
+            // transposing preserves the format
+            new SparseMatrixTransposer(m, tmp2, 1).transpose();
+            SparseMatrix m2 = new SparseMatrix(tmp2, numOpenPages, MAX_KEY * 50);
+            assertTrue(m2.isCompressed());
+            new SparseMatrixTransposer(m2, tmp3, 1).transpose();
+            verifyIsSourceMatrixUnordered(new SparseMatrix(tmp3, numOpenPages, MAX_KEY * 50), .001);
+        }
+    }
+
+    @Test
+    public void testSharedCompressedRows() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator(), new ValueConf(), true);
+        SparseMatrix m = new SparseMatrix(tmp, Integer.MAX_VALUE, NUM_ROWS * 20);
+        final List<SparseMatrixRow> rows = new ArrayList<SparseMatrixRow>();
+        final List<int[]> expected = new ArrayList<int[]>();
+        for (SparseRowCursor cursor : m.cursors()) {
+            int ids[] = new int[cursor.getNumCols()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = cursor.getColIndex(i);
+            }
+            rows.add(m.getRow(cursor.getRowIndex()));
+            expected.add(ids);
+        }
+
+        // threads read the same row objects in different orders
+        final AtomicInteger mismatches = new AtomicInteger();
+        ParallelForEach.range(0, 8, 4, new Procedure<Integer>() {
+            @Override
+            public void call(Integer t) throws Exception {
+                for (int r = 0; r < rows.size(); r++) {
+                    SparseMatrixRow row = rows.get(r);
+                    int ids[] = expected.get(r);
+                    for (int k = 0; k < ids.length; k++) {
+                        int i = (t % 2 == 0) ? k : ids.length - 1 - k;
+                        if (row.getColIndex(i) != ids[i] || row.getIndexForId(ids[i]) != i) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+        assertEquals(0, mismatches.get());
+        tmp.delete();
+    }
+
+    @Test
+    public void testSharded() throws IOException {
+        for (final boolean compressed : new boolean[] { false, true }) {
+            File tmp = File.createTempFile("matrix", null);
+            final SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), compressed, true);
+            ParallelForEach.loop(srcRows, 4, new Procedure<SparseMatrixRow>() {
+                @Override
+                public void call(SparseMatrixRow row) throws Exception {
+                    writer.writeRow(row);
+                }
+            });
+            writer.finish();
+            for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
+                SparseMatrix m = new SparseMatrix(tmp, numOpenPages, NUM_ROWS * 20);
+                assertTrue(m.isSharded());
+                assertEquals(srcRows.size(), m.getNumRows());
+                if (compressed) {
+                    verifyIsSourceMatrixUnordered(m, .001);
+                } else {
+                    verifyIsSourceMatrix(m);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRowNorms() throws IOException {
+        for (final boolean sharded : new boolean[] { false, true }) {
+            File tmp = File.createTempFile("matrix", null);
+            final SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), false, sharded);
+            ParallelForEach.loop(srcRows, 2, new Procedure<SparseMatrixRow>() {
+                @Override
+                public void call(SparseMatrixRow row) throws Exception {
+                    writer.writeRow(row);
+                }
+            });
+            writer.finish();
+            SparseMatrix m = new SparseMatrix(tmp);
+            RowNorms expected = RowNorms.compute(m);
+            RowNorms actual = RowNorms.read(m);
+            assertEquals(expected.getNumRows(), actual.getNumRows());
+            for (int i = 0; i < expected.getNumRows(); i++) {
+                assertEquals(expected.getRowId(i), actual.getRowId(i));
+                assertEquals(expected.getNorm(i), actual.getNorm(i), 0.0001);
+                assertEquals(m.getRow(actual.getRowId(i)).getNorm(), actual.getNorm(i), 0.0001);
+            }
+            assertEquals(expected.getMaxRowLength(), actual.getMaxRowLength());
+            assertEquals(expected.getMeanRowLength(), actual.getMeanRowLength(), 0.0001);
+        }
+
+        // a sidecar written for another matrix is ignored
+        File tmp1 = File.createTempFile("matrix", null);
+        File tmp2 = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp1, srcRows.iterator());
+        SparseMatrixWriter.write(tmp2, srcRows.subList(0, NUM_ROWS / 2).iterator());
+        assertTrue(RowNorms.getFile(tmp2).renameTo(RowNorms.getFile(tmp1)));
+        SparseMatrix m1 = new SparseMatrix(tmp1);
+        assertNull(RowNorms.read(m1));
+        assertEquals(NUM_ROWS, RowNorms.get(m1).getNumRows());
+        assertNull(RowNorms.read(new SparseMatrix(tmp2)));
+
+        // as is a sidecar of an earlier matrix with the same length
+        RowNorms.write(m1);
+        assertNotNull(RowNorms.read(m1));
+        assertTrue(tmp1.setLastModified(tmp1.lastModified() + 10000));
+        assertNull(RowNorms.read(new SparseMatrix(tmp1)));
+    }
+
+    @Test
+    public void testCheckpoints() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        int half = NUM_ROWS / 2;
+
+        // a writer that dies after checkpointing the first half of the rows
+        final SparseMatrixWriter crashed = new SparseMatrixWriter(tmp, new ValueConf(), false, true);
+        crashed.enableCheckpoints(0);
+        ParallelForEach.loop(srcRows.subList(0, half), 2, new Procedure<SparseMatrixRow>() {
+            @Override
+            public void call(SparseMatrixRow row) throws Exception {
+                crashed.writeRow(row);
+            }
+        });
+        // bytes written after the last checkpoint, and a manifest record cut short
+        FileOutputStream out = new FileOutputStream(new File(tmp.getPath() + ".shard0"), true);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        out = new FileOutputStream(new File(tmp.getPath() + CheckpointManifest.SUFFIX), true);
+        out.write(new byte[] { 0x7e, (byte) 0xc0 });
+        out.close();
+
+        final SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), false, true);
+        writer.enableCheckpoints(0);
+        TIntSet completed = writer.getCheckpointedRowIds();
+        assertEquals(half, completed.size());
+        for (SparseMatrixRow row : srcRows.subList(0, half)) {
+            assertTrue(completed.contains(row.getRowIndex()));
+        }
+        ParallelForEach.loop(srcRows.subList(half, NUM_ROWS), 2, new Procedure<SparseMatrixRow>() {
+            @Override
+            public void call(SparseMatrixRow row) throws Exception {
+                writer.writeRow(row);
+            }
+        });
+        writer.finish();
+        assertFalse(new File(tmp.getPath() + CheckpointManifest.SUFFIX).exists());
+
+        SparseMatrix m = new SparseMatrix(tmp);
+        assertEquals(NUM_ROWS, m.getNumRows());
+        verifyIsSourceMatrix(m);
+        assertEquals(NUM_ROWS, RowNorms.read(m).getNumRows());
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        for (boolean compressed : new boolean[] { false, true }) {
+            // partitions written unsharded, sharded, and without a row norms sidecar
+            List<SparseMatrix> parts = new ArrayList<SparseMatrix>();
+            int bounds[] = { 0, NUM_ROWS / 3, NUM_ROWS / 2, NUM_ROWS };
+            for (int p = 0; p < 3; p++) {
+                File tmp = File.createTempFile("matrix", null);
+                final SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), compressed, p == 1);
+                ParallelForEach.loop(srcRows.subList(bounds[p], bounds[p + 1]), 2, new Procedure<SparseMatrixRow>() {
+                    @Override
+                    public void call(SparseMatrixRow row) throws Exception {
+                        writer.writeRow(row);
+                    }
+                });
+                writer.finish();
+                if (p == 2) {
+                    assertTrue(RowNorms.getFile(tmp).delete());
+                }
+                parts.add(new SparseMatrix(tmp));
+            }
+
+            File merged = File.createTempFile("matrix", null);
+            new SparseMatrixMerger(parts, merged).merge();
+            for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
+                SparseMatrix m = new SparseMatrix(merged, numOpenPages, NUM_ROWS * 20);
+                assertFalse(m.isSharded());
+                assertEquals(compressed, m.isCompressed());
+                assertEquals(NUM_ROWS, m.getNumRows());
+                if (compressed) {
+                    verifyIsSourceMatrixUnordered(m, .001);
+                } else {
+                    verifyIsSourceMatrix(m);
+                }
+                RowNorms norms = RowNorms.read(m);
+                assertEquals(NUM_ROWS, norms.getNumRows());
+                for (int i = 0; i < norms.getNumRows(); i++) {
+                    assertEquals(m.getRow(norms.getRowId(i)).getNorm(), norms.getNorm(i), 0.0001);
+                }
+            }
+        }
+
+        // rows may only appear in one partition
+        File tmp1 = File.createTempFile("matrix", null);
+        File tmp2 = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp1, srcRows.iterator());
+        SparseMatrixWriter.write(tmp2, srcRows.subList(0, 1).iterator());
+        try {
+            new SparseMatrixMerger(
+                    Arrays.asList(new SparseMatrix(tmp1), new SparseMatrix(tmp2)),
+                    File.createTempFile("matrix", null)).merge();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // as may only matrices with the same value codec
+        ValueConf linear8 = new ValueConf(ValueConf.MIN_SCORE, ValueConf.MAX_SCORE, ValueConf.Codec.LINEAR8);
+        List<SparseMatrixRow> rows8 = new ArrayList<SparseMatrixRow>();
+        for (SparseMatrixRow row : srcRows.subList(0, NUM_ROWS / 2)) {
+            int cols[] = new int[row.getNumCols()];
+            float vals[] = new float[row.getNumCols()];
+            for (int i = 0; i < cols.length; i++) {
+                cols[i] = row.getColIndex(i);
+                vals[i] = row.getColValue(i);
+            }
+            rows8.add(new SparseMatrixRow(linear8, row.getRowIndex(), cols, vals));
+        }
+        File tmp3 = File.createTempFile("matrix", null);
+        File tmp4 = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer8 = new SparseMatrixWriter(tmp3, linear8);
+        for (SparseMatrixRow row : rows8) {
+            writer8.writeRow(row);
+        }
+        writer8.finish();
+        SparseMatrixWriter.write(tmp4, srcRows.subList(NUM_ROWS / 2, NUM_ROWS).iterator());
+        try {
+            new SparseMatrixMerger(
+                    Arrays.asList(new SparseMatrix(tmp3), new SparseMatrix(tmp4)),
+                    File.createTempFile("matrix", null)).merge();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSortedColumns() throws IOException {
+        File tmp1 = File.createTempFile("matrix", null);
+        File tmp2 = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp1, srcRows.iterator());
+        SparseMatrix m = new SparseMatrix(tmp1, 1, NUM_ROWS * 20);
+        assertFalse(m.hasSortedColumns());
+
+        // the sorter converts existing matrices
+        new SparseMatrixSorter().sort(m, tmp2, true);
+        SparseMatrix m2 = new SparseMatrix(tmp2, 1, NUM_ROWS * 20);
+        assertTrue(m2.hasSortedColumns());
+        verifyIsSourceMatrixUnordered(m2, .001);
+        for (SparseRowCursor row : m2.cursors()) {
+            assertTrue(row.hasSortedIds());
+            for (int j = 1; j < row.getNumCols(); j++) {
+                assertTrue(row.getColIndex(j - 1) <= row.getColIndex(j));
+            }
+        }
+        SparseMatrixRow src = srcRows.get(0);
+        SparseMatrixRow sorted = m2.getRow(src.getRowIndex());
+        assertTrue(sorted.hasSortedIds());
+        assertEquals(src.getNorm() * src.getNorm(), sorted.dot(m.getRow(src.getRowIndex())), 0.01);
+        for (int j = 0; j < src.getNumCols(); j++) {
+            assertEquals(src.getColValue(j), sorted.getValueForId(src.getColIndex(j)), 0.001);
+        }
+
+        // transposing preserves the guarantee
+        File tmp3 = File.createTempFile("matrix", null);
+        new SparseMatrixTransposer(m2, tmp3, 1).transpose();
+        assertTrue(new SparseMatrix(tmp3, 1, MAX_KEY * 50).hasSortedColumns());
+    }
+
+    @Test
+    public void testCodecs() throws IOException {
+        for (ValueConf vconf : TestDenseMatrix.makeValueConfs()) {
+            for (boolean compressed : new boolean[] { false, true }) {
+                File tmp = File.createTempFile("matrix", null);
+                SparseMatrixWriter writer = new SparseMatrixWriter(tmp, vconf, compressed);
+                for (SparseMatrixRow srcRow : srcRows) {
+                    LinkedHashMap<Integer, Float> row = srcRow.asMap();
+                    writer.writeRow(new SparseMatrixRow(vconf, srcRow.getRowIndex(), row));
+                }
+                writer.finish();
+                SparseMatrix m = new SparseMatrix(tmp, 1, NUM_ROWS * 20);
+                assertEquals(vconf.codec, m.getValueConf().codec);
+                verifyIsSourceMatrixUnordered(m, vconf.getNumBytes() == 1 ? 0.05 : 0.001);
+            }
+        }
+    }
+
+    private void verifyRowsEqual(MatrixRow srcRow, MatrixRow destRow) {
+        assertEquals(srcRow.getRowIndex(), destRow.getRowIndex());
+        assertEquals(srcRow.getNumCols(), destRow.getNumCols());
+        for (int i = 0; i < destRow.getNumCols(); i++) {
+            assertEquals(srcRow.getColIndex(i), destRow.getColIndex(i));
+            assertEquals(srcRow.getColValue(i), destRow.getColValue(i), 0.01);
+        }
+    }
 
     private void verifyIsSourceMatrix(Matrix m) throws IOException {
         for (SparseMatrixRow srcRow : srcRows) {
@@ -1,10 +1,15 @@
 package edu.macalester.wpsemsim.matrix;
 
+import gnu.trove.list.array.TIntArrayList;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class TestSparseMatrixRow {
     private int[] keys = new int[] { 9, 11, 3, 26, 54 };
@@ -30,6 +35,90 @@ public class TestSparseMatrixRow {
         }
     }
 
+    @Test
+    public void testSortedIds() {
+        assertFalse(createRow().hasSortedIds());
+        MatrixRow row = createSortedRow();
+        assertTrue(row.hasSortedIds());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(row.getColIndex(row.getIndexForId(keys[i])), keys[i]);
+            assertEquals(row.getValueForId(keys[i]), createRow().getValueForId(keys[i]), 0.0);
+        }
+        assertEquals(-1, row.getIndexForId(10));
+        assertEquals(-1, row.getIndexForId(100));
+        assertEquals(-1, row.getIndexForId(-5));
+        assertTrue(Float.isNaN(row.getValueForId(10)));
+    }
+
+    @Test
+    public void testDot() {
+        Random random = new Random(0);
+        ValueConf vconf = new ValueConf();
+        for (int t = 0; t < 100; t++) {
+            SparseMatrixRow row1 = randomRow(random, vconf);
+            SparseMatrixRow row2 = randomRow(random, vconf);
+            double expected = 0.0;
+            for (int i = 0; i < row1.getNumCols(); i++) {
+                for (int j = 0; j < row2.getNumCols(); j++) {
+                    if (row1.getColIndex(i) == row2.getColIndex(j)) {
+                        expected += row1.getColValue(i) * row2.getColValue(j);
+                    }
+                }
+            }
+            MatrixRow sorted1 = sort(row1, vconf);
+            MatrixRow sorted2 = sort(row2, vconf);
+            assertTrue(sorted1.hasSortedIds() && sorted2.hasSortedIds());
+            assertEquals(expected, row1.dot(row2), 0.0001);
+            assertEquals(expected, sorted1.dot(sorted2), 0.0001);
+            assertEquals(expected, sorted1.dot(row2), 0.0001);
+            double norms = row1.getNorm() * row2.getNorm();
+            assertEquals(norms == 0 ? 0.0 : expected / norms, sorted1.cosine(sorted2), 0.0001);
+        }
+    }
+
+    private SparseMatrixRow randomRow(Random random, ValueConf vconf) {
+        // distinct ids in random order
+        TIntArrayList candidates = new TIntArrayList();
+        for (int id = -20; id < 80; id++) {
+            candidates.add(id);
+        }
+        candidates.shuffle(random);
+        int n = random.nextInt(30);
+        int ids[] = new int[n];
+        float vals[] = new float[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = candidates.get(i);
+            vals[i] = random.nextFloat() * 2 - 1;
+        }
+        return new SparseMatrixRow(vconf, 0, ids, vals);
+    }
+
+    private SparseMatrixRow sort(SparseMatrixRow row, ValueConf vconf) {
+        int n = row.getNumCols();
+        long keys[] = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) row.getColIndex(i) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int ids[] = new int[n];
+        int vals[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = (int) (keys[i] >> 32);
+            vals[i] = row.getPackedColValue((int) keys[i]);
+        }
+        return new SparseMatrixRow(vconf, row.getRowIndex(), ids, vals);
+    }
+
+    public MatrixRow createSortedRow() {
+        int sortedKeys[] = keys.clone();
+        Arrays.sort(sortedKeys);
+        float sortedVals[] = new float[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sortedVals[Arrays.binarySearch(sortedKeys, keys[i])] = vals[i];
+        }
+        return new SparseMatrixRow(new ValueConf(), ROW_INDEX, sortedKeys, sortedVals);
+    }
+
     public MatrixRow createRow() {
         LinkedHashMap<Integer, Float> m = new LinkedHashMap<Integer, Float>();
         assertEquals(keys.length, vals.length);
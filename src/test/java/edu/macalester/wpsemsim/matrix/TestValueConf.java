@@ -0,0 +1,80 @@
+package edu.macalester.wpsemsim.matrix;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestValueConf {
+    private static final int NUM_VALUES = 10000;
+
+    @Test
+    public void testRoundTrip() {
+        float values[] = randomValues();
+        assertMaxError(new ValueConf(), values, 0.0001);
+        assertMaxError(new ValueConf(-1.1f, 1.1f, ValueConf.Codec.LINEAR8), values, 0.005);
+        assertMaxError(new ValueConf(-1.1f, 1.1f, ValueConf.Codec.LOG8), values, 0.03);
+        assertMaxError(ValueConf.trainQuantiles(-1.1f, 1.1f, values.clone()), values, 0.05);
+        assertMaxError(new ValueConf(-1.1f, 1.1f, ValueConf.Codec.FLOAT32), values, 0.0);
+    }
+
+    @Test
+    public void testLogPrecision() {
+        // log levels are much finer near zero
+        ValueConf vconf = new ValueConf(-1.1f, 1.1f, ValueConf.Codec.LOG8);
+        assertEquals(0.001f, vconf.unpack(vconf.pack(0.001f)), 0.0002);
+        assertEquals(0.0f, vconf.unpack(vconf.pack(0.0f)), 0.0001);
+    }
+
+    @Test
+    public void testHeader() {
+        for (ValueConf.Codec codec : ValueConf.Codec.values()) {
+            ValueConf vconf = (codec == ValueConf.Codec.QUANTILE8)
+                    ? ValueConf.trainQuantiles(0.0f, 1.0f, randomValues())
+                    : new ValueConf(0.0f, 1.0f, codec);
+            ByteBuffer buffer = ByteBuffer.wrap(vconf.getHeaderBytes());
+            assertEquals(vconf.getHeaderSize(), buffer.capacity());
+            ValueConf vconf2 = ValueConf.readHeader(vconf.getCodecFlags(), buffer, 0);
+            assertEquals(codec, vconf2.codec);
+            assertTrue(vconf.almostEquals(vconf2));
+            for (float v : new float[] { 0.0f, 0.3f, 0.71f, 1.0f }) {
+                assertEquals(vconf.unpack(vconf.pack(v)), vconf2.unpack(vconf2.pack(v)), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testPackedBytes() {
+        for (ValueConf.Codec codec : ValueConf.Codec.values()) {
+            if (codec == ValueConf.Codec.QUANTILE8) continue;
+            ValueConf vconf = new ValueConf(-1.1f, 1.1f, codec);
+            ByteBuffer buffer = ByteBuffer.allocate(3 * codec.numBytes);
+            for (float v : new float[] { -1.1f, 0.25f, 1.1f }) {
+                vconf.putPacked(buffer, vconf.pack(v));
+            }
+            assertEquals(buffer.capacity(), buffer.position());
+            for (int i = 0; i < 3; i++) {
+                int packed = vconf.getPacked(buffer, i * codec.numBytes);
+                assertEquals(new float[] { -1.1f, 0.25f, 1.1f }[i], vconf.unpack(packed), 0.03);
+            }
+        }
+    }
+
+    private float[] randomValues() {
+        Random random = new Random(0);
+        float values[] = new float[NUM_VALUES];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextFloat() * 2.2f - 1.1f;
+        }
+        return values;
+    }
+
+    private void assertMaxError(ValueConf vconf, float values[], double delta) {
+        for (float v : values) {
+            assertEquals(v, vconf.unpack(vconf.pack(v)), delta);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package edu.macalester.wpsemsim.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Times transposing a matrix shaped like a pairwise similarity matrix
+ * when the transposer's buffer is much smaller than the matrix.
+ */
+public class TransposeBenchmark {
+    public static final int NUM_ROWS = 20000;
+    public static final int ROW_LENGTH = 500;
+    public static final int MAX_ID = 250000;
+    public static final int BUFFER_MB = 16;
+
+    public static void main(String args[]) throws IOException {
+        int bufferMb = (args.length > 0) ? Integer.valueOf(args[0]) : BUFFER_MB;
+        File src = File.createTempFile("matrix", null);
+        File dest = File.createTempFile("matrix", null);
+        src.deleteOnExit();
+        dest.deleteOnExit();
+
+        Random random = new Random(0);
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(src, vconf);
+        int colIds[] = new int[ROW_LENGTH];
+        float colVals[] = new float[ROW_LENGTH];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            for (int j = 0; j < ROW_LENGTH; j++) {
+                colIds[j] = random.nextInt(MAX_ID);
+                colVals[j] = random.nextFloat();
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, i, colIds, colVals));
+        }
+        writer.finish();
+
+        SparseMatrix m = new SparseMatrix(src);
+        long startTimeNano = System.nanoTime();
+        new SparseMatrixTransposer(m, dest, bufferMb).transpose();
+        long endTimeNano = System.nanoTime();
+        System.out.println(
+                "matrix bytes: " + src.length() +
+                ", buffer MB: " + bufferMb +
+                ", seconds to transpose: " + (endTimeNano - startTimeNano) / 1000000000.0);
+    }
+}
@@ -0,0 +1,53 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixTransposer;
+import edu.macalester.wpsemsim.sim.pairwise.PairwiseCosineSimilarity;
+import edu.macalester.wpsemsim.sim.pairwise.PairwiseSimilarityWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compares writing the pairwise similarities of tf-idf like topic rows one row at a
+ * time against writing them in blocks of rows that share transpose row reads.
+ */
+public class BlockedPairwiseBenchmark {
+    public static final int NUM_ROWS_TO_WRITE = 4000;
+    public static final int MAX_RESULTS = 100;
+    public static final int BLOCK_SIZES[] = { 1, 4, 16, 64, 256 };
+    public static final int THREAD_COUNTS[] = { 1, 4 };
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        SparseMatrix matrix = MostSimilarBenchmark.createTopicMatrix();
+        File transposeFile = File.createTempFile("matrix", null);
+        transposeFile.deleteOnExit();
+        new SparseMatrixTransposer(matrix, transposeFile, 100).transpose();
+        SparseMatrix transpose = new SparseMatrix(transposeFile);
+        PairwiseCosineSimilarity cosine = new PairwiseCosineSimilarity(matrix, transpose);
+        int ids[] = Arrays.copyOf(matrix.getRowIds(), NUM_ROWS_TO_WRITE);
+
+        for (int threads : THREAD_COUNTS) {
+            for (int rep = 0; rep < 3; rep++) {
+                StringBuilder line = new StringBuilder("rows/sec with " + threads + " threads");
+                for (int blockSize : BLOCK_SIZES) {
+                    line.append(", block size " + blockSize + ": " + benchmark(cosine, ids, threads, blockSize));
+                }
+                System.out.println(line);
+            }
+        }
+    }
+
+    private static long benchmark(PairwiseCosineSimilarity cosine, int ids[], int threads, int blockSize)
+            throws IOException, InterruptedException {
+        File file = File.createTempFile("matrix", null);
+        long startTimeNano = System.nanoTime();
+        PairwiseSimilarityWriter writer = new PairwiseSimilarityWriter(cosine, file);
+        writer.setBlockSize(blockSize);
+        writer.writeSims(ids, threads, MAX_RESULTS);
+        long endTimeNano = System.nanoTime();
+        file.delete();
+        return 1000000000L * ids.length / (endTimeNano - startTimeNano);
+    }
+}
@@ -0,0 +1,73 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.sim.utils.SimUtils;
+import edu.macalester.wpsemsim.sim.utils.SparseVector;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+
+import java.util.Random;
+
+/**
+ * Compares ESA-sized concept vectors stored as trove maps and compared with
+ * SimUtils.cosineSimilarity() against SparseVectors compared by merging.
+ */
+public class ConceptVectorBenchmark {
+    public static final int NUM_VECTORS = 1000;
+    public static final int VECTOR_LENGTH = 5000;
+    public static final int NUM_CONCEPTS = 4000000;
+    public static final int NUM_PAIRS = 20000;
+
+    public static void main(String args[]) {
+        Random random = new Random(0);
+        TIntDoubleHashMap maps[] = new TIntDoubleHashMap[NUM_VECTORS];
+        SparseVector vectors[] = new SparseVector[NUM_VECTORS];
+
+        long before = usedMemory();
+        for (int i = 0; i < NUM_VECTORS; i++) {
+            maps[i] = new TIntDoubleHashMap();
+            // ESA vectors concentrate on popular concepts, so pairs overlap
+            for (int j = 0; j < VECTOR_LENGTH; j++) {
+                int id = (int) (NUM_CONCEPTS * Math.pow(random.nextDouble(), 3));
+                maps[i].put(id, random.nextDouble());
+            }
+        }
+        long mapBytes = usedMemory() - before;
+        before = usedMemory();
+        for (int i = 0; i < NUM_VECTORS; i++) {
+            vectors[i] = SparseVector.fromMap(maps[i]);
+        }
+        long vectorBytes = usedMemory() - before;
+        System.out.println("bytes per vector, trove maps: " + mapBytes / NUM_VECTORS +
+                ", sparse vectors: " + vectorBytes / NUM_VECTORS);
+
+        int pairs[] = new int[NUM_PAIRS * 2];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = random.nextInt(NUM_VECTORS);
+        }
+        for (int rep = 0; rep < 5; rep++) {
+            long startTimeNano = System.nanoTime();
+            double sum1 = 0;
+            for (int i = 0; i < pairs.length; i += 2) {
+                sum1 += SimUtils.cosineSimilarity(maps[pairs[i]], maps[pairs[i + 1]]);
+            }
+            long mapNanos = System.nanoTime() - startTimeNano;
+
+            startTimeNano = System.nanoTime();
+            double sum2 = 0;
+            for (int i = 0; i < pairs.length; i += 2) {
+                sum2 += vectors[pairs[i]].cosine(vectors[pairs[i + 1]]);
+            }
+            long vectorNanos = System.nanoTime() - startTimeNano;
+            System.out.println("pairs/sec trove maps: " + (1000000000L * NUM_PAIRS / mapNanos) +
+                    ", sparse vectors: " + (1000000000L * NUM_PAIRS / vectorNanos) +
+                    " (sums " + sum1 + ", " + sum2 + ")");
+        }
+    }
+
+    private static long usedMemory() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+}
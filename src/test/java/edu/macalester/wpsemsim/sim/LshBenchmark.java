@@ -0,0 +1,89 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixTransposer;
+import edu.macalester.wpsemsim.sim.pairwise.LshCosineSimilarity;
+import edu.macalester.wpsemsim.sim.pairwise.LshIndex;
+import edu.macalester.wpsemsim.sim.pairwise.PairwiseCosineSimilarity;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the recall@k and query rate of LshCosineSimilarity.mostSimilar() against
+ * the exact PairwiseCosineSimilarity on the tf-idf like topic rows of MostSimilarBenchmark.
+ * Recall is the fraction of the exact top k with a positive score that LSH also returns.
+ */
+public class LshBenchmark {
+    public static final int NUM_QUERIES = 1000;
+    public static final int K = 10;
+    public static final int BITS = 8;
+    public static final int TABLES[] = { 16, 32, 64 };
+    public static final int PROBES[] = { 1, 4 };
+    public static final int MAX_SCORED[] = { 100, 200, 400 };
+
+    public static void main(String args[]) throws IOException {
+        SparseMatrix matrix = MostSimilarBenchmark.createTopicMatrix();
+        File transposeFile = File.createTempFile("matrix", null);
+        transposeFile.deleteOnExit();
+        new SparseMatrixTransposer(matrix, transposeFile, 100).transpose();
+        PairwiseCosineSimilarity exact = new PairwiseCosineSimilarity(matrix, new SparseMatrix(transposeFile));
+
+        int ids[] = matrix.getRowIds();
+        Random random = new Random(0);
+        int queries[] = new int[NUM_QUERIES];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = ids[random.nextInt(ids.length)];
+        }
+        DocScoreList truth[] = new DocScoreList[queries.length];
+        long startTimeNano = System.nanoTime();
+        for (int i = 0; i < queries.length; i++) {
+            truth[i] = exact.mostSimilar(queries[i], K);
+        }
+        System.out.println("exact: queries/sec " + rate(queries.length, startTimeNano));
+
+        for (int tables : TABLES) {
+            long buildStartNano = System.nanoTime();
+            LshIndex index = LshIndex.build(matrix, tables, BITS, LshIndex.DEFAULT_SEED);
+            System.out.println(tables + " tables of " + BITS + " bits: built in " +
+                    (System.nanoTime() - buildStartNano) / 1000000 + " ms");
+            LshCosineSimilarity lsh = new LshCosineSimilarity(matrix, index);
+            for (int probes : PROBES) {
+                lsh.setNumProbes(probes);
+                for (int maxScored : MAX_SCORED) {
+                    lsh.setMaxScored(maxScored);
+                    for (int rep = 0; rep < 2; rep++) {
+                        int found = 0, total = 0;
+                        startTimeNano = System.nanoTime();
+                        DocScoreList results[] = new DocScoreList[queries.length];
+                        for (int i = 0; i < queries.length; i++) {
+                            results[i] = lsh.mostSimilar(queries[i], K);
+                        }
+                        long rate = rate(queries.length, startTimeNano);
+                        for (int i = 0; i < queries.length; i++) {
+                            TIntHashSet returned = new TIntHashSet(results[i].getIds());
+                            for (int j = 0; j < truth[i].numDocs(); j++) {
+                                if (truth[i].getScore(j) > 0) {
+                                    total++;
+                                    if (returned.contains(truth[i].getId(j))) {
+                                        found++;
+                                    }
+                                }
+                            }
+                        }
+                        System.out.println("    probes " + probes + ", max scored " + maxScored +
+                                ": recall@" + K + " " + String.format("%.3f", 1.0 * found / total) +
+                                ", queries/sec " + rate);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long rate(int n, long startTimeNano) {
+        return 1000000000L * n / (System.nanoTime() - startTimeNano);
+    }
+}
@@ -0,0 +1,44 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.lucene.MltTermCache;
+import edu.macalester.wpsemsim.utils.TestUtils;
+
+import java.io.File;
+
+/**
+ * Measures TextSimilarity.mostSimilar() on the test index with MoreLikeThis
+ * choosing query terms for every call and with the terms read from a MltTermCache.
+ */
+public class MltTermCacheBenchmark {
+    public static final int NUM_ROUNDS = 200;
+
+    public static void main(String args[]) throws Exception {
+        File indexPath = TestUtils.buildIndex();
+        IndexHelper helper = new IndexHelper(new File(indexPath, "text"), true);
+        TextSimilarity uncached = new TextSimilarity(helper, "text");
+        uncached.setMaxPercentage(100);
+        File path = File.createTempFile("mlt", null);
+        path.deleteOnExit();
+        MltTermCache.getTermsFile(path).deleteOnExit();
+        MltTermCache.build(helper, uncached.getMoreLikeThis(), path, 1);
+        TextSimilarity cached = new TextSimilarity(helper, "text");
+        cached.setMaxPercentage(100);
+        cached.setMltTermCache(new MltTermCache(path, "text"));
+
+        int wpIds[] = helper.getWpIds();
+        for (int rep = 0; rep < 5; rep++) {
+            for (TextSimilarity sim : new TextSimilarity[] { uncached, cached }) {
+                long start = System.nanoTime();
+                for (int i = 0; i < NUM_ROUNDS; i++) {
+                    for (int wpId : wpIds) {
+                        sim.mostSimilar(wpId, 100);
+                    }
+                }
+                long micros = (System.nanoTime() - start) / 1000 / (NUM_ROUNDS * wpIds.length);
+                System.out.println((sim == cached ? "cached" : "uncached") +
+                        ": " + micros + " us per mostSimilar");
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixTransposer;
+import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
+import edu.macalester.wpsemsim.matrix.ValueConf;
+import edu.macalester.wpsemsim.sim.pairwise.PairwiseCosineSimilarity;
+import edu.macalester.wpsemsim.utils.TestUtils;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures PairwiseCosineSimilarity.mostSimilar() for random rows, with and without
+ * a set of valid ids and with and without top-k pruning. Pruning is measured on
+ * uniform random rows, which have no real neighbors, and on tf-idf like topic rows.
+ */
+public class MostSimilarBenchmark {
+    public static final int NUM_ROWS = 20000;
+    public static final int MAX_ROW_LENGTH = 200;
+    public static final int NUM_QUERIES = 2000;
+    public static final int MAX_RESULTS = 100;
+    public static final int NUM_TOPICS = 500;
+    public static final int TOPIC_SIZE = 200;
+    public static final double TOPIC_FRACTION = 0.5;
+
+    public static void main(String args[]) throws IOException {
+        SparseMatrix uniform = TestUtils.createSparseTestMatrix(NUM_ROWS, MAX_ROW_LENGTH, true);
+        SparseMatrix topics = createTopicMatrix();
+        for (SparseMatrix matrix : new SparseMatrix[] { uniform, topics }) {
+            File transposeFile = File.createTempFile("matrix", null);
+            transposeFile.deleteOnExit();
+            new SparseMatrixTransposer(matrix, transposeFile, 100).transpose();
+            SparseMatrix transpose = new SparseMatrix(transposeFile);
+            PairwiseCosineSimilarity exact = new PairwiseCosineSimilarity(matrix, transpose);
+            PairwiseCosineSimilarity pruned = new PairwiseCosineSimilarity(matrix, transpose);
+            pruned.setPruneTopK(true);
+            PairwiseCosineSimilarity thresholded = new PairwiseCosineSimilarity(matrix, transpose);
+            thresholded.setPruneTopK(true);
+            thresholded.setMinSimilarity(0.1);
+
+            int ids[] = matrix.getRowIds();
+            Random random = new Random(0);
+            int queries[] = new int[NUM_QUERIES];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = ids[random.nextInt(ids.length)];
+            }
+            TIntHashSet validIds = new TIntHashSet();
+            for (int i = 0; i < ids.length; i += 2) {
+                validIds.add(ids[i]);
+            }
+
+            System.out.println(matrix == uniform ? "uniform rows:" : "topic rows:");
+            for (int rep = 0; rep < 5; rep++) {
+                System.out.println(
+                        "queries/sec all ids: " + benchmark(exact, queries, null) +
+                        ", valid ids: " + benchmark(exact, queries, validIds) +
+                        ", pruned: " + benchmark(pruned, queries, null) +
+                        ", pruned valid ids: " + benchmark(pruned, queries, validIds) +
+                        ", pruned min 0.1: " + benchmark(thresholded, queries, null));
+            }
+        }
+    }
+
+    /**
+     * Creates tf-idf vectors of random documents about one of a few hundred topics.
+     * Most tokens of a document are drawn from the vocabulary of its topic, the
+     * rest from a Zipf distribution over all words, so common words get a low idf.
+     */
+    static SparseMatrix createTopicMatrix() throws IOException {
+        Random random = new Random(0);
+        int numWords = NUM_ROWS * 2;
+        double cdf[] = new double[numWords];
+        for (int i = 0; i < numWords; i++) {
+            cdf[i] = ((i == 0) ? 0.0 : cdf[i - 1]) + 1.0 / (i + 1);
+        }
+        int topics[][] = new int[NUM_TOPICS][TOPIC_SIZE];
+        for (int t = 0; t < NUM_TOPICS; t++) {
+            for (int i = 0; i < TOPIC_SIZE; i++) {
+                topics[t][i] = random.nextInt(numWords);
+            }
+        }
+        List<TIntIntHashMap> docs = new ArrayList<TIntIntHashMap>();
+        TIntIntHashMap df = new TIntIntHashMap();
+        for (int id = 0; id < NUM_ROWS; id++) {
+            int topic[] = topics[random.nextInt(NUM_TOPICS)];
+            TIntIntHashMap tf = new TIntIntHashMap();
+            int numTokens = 1 + random.nextInt(MAX_ROW_LENGTH * 2);
+            for (int i = 0; i < numTokens; i++) {
+                int word = (random.nextDouble() < TOPIC_FRACTION)
+                        ? topic[random.nextInt(topic.length)]
+                        : pickZipf(random, cdf);
+                tf.adjustOrPutValue(word, 1, 1);
+            }
+            for (int word : tf.keys()) {
+                df.adjustOrPutValue(word, 1, 1);
+            }
+            docs.add(tf);
+        }
+
+        File file = File.createTempFile("matrix", null);
+        file.deleteOnExit();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, new ValueConf());
+        for (int id = 0; id < NUM_ROWS; id++) {
+            LinkedHashMap<Integer, Float> data = new LinkedHashMap<Integer, Float>();
+            TIntIntHashMap tf = docs.get(id);
+            for (int word : tf.keys()) {
+                data.put(word, (float) (tf.get(word) * Math.log(1.0 * NUM_ROWS / df.get(word))));
+            }
+            writer.writeRow(new SparseMatrixRow(new ValueConf(), id, data));
+        }
+        writer.finish();
+        return new SparseMatrix(file);
+    }
+
+    private static int pickZipf(Random random, double cdf[]) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble() * cdf[cdf.length - 1]);
+        return (i >= 0) ? i : -i - 1;
+    }
+
+    private static long benchmark(PairwiseCosineSimilarity sim, int queries[], TIntHashSet validIds) throws IOException {
+        long startTimeNano = System.nanoTime();
+        long n = 0;
+        for (int id : queries) {
+            n += sim.mostSimilar(id, MAX_RESULTS, validIds).numDocs();
+        }
+        long endTimeNano = System.nanoTime();
+        if (n == 42) {
+            System.out.println("unlikely");
+        }
+        return 1000000000L * queries.length / (endTimeNano - startTimeNano);
+    }
+}
@@ -0,0 +1,60 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.matrix.RowNorms;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
+import edu.macalester.wpsemsim.matrix.ValueConf;
+import edu.macalester.wpsemsim.sim.pairwise.PairwiseCosineSimilarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures how long PairwiseCosineSimilarity takes to load its row norms from the
+ * sidecar written with the matrix, and by scanning a matrix without a sidecar.
+ */
+public class PairwiseStartupBenchmark {
+    public static final int NUM_ROWS = 1000000;
+    public static final int MAX_ROW_LENGTH = 100;
+    public static final int MAX_COL_ID = 5000000;
+
+    public static void main(String args[]) throws IOException {
+        File file = File.createTempFile("matrix", null);
+        file.deleteOnExit();
+        RowNorms.getFile(file).deleteOnExit();
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf);
+        Random random = new Random(0);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            int n = 1 + random.nextInt(MAX_ROW_LENGTH);
+            int ids[] = new int[n];
+            float vals[] = new float[n];
+            for (int j = 0; j < n; j++) {
+                ids[j] = random.nextInt(MAX_COL_ID);
+                vals[j] = random.nextFloat();
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, i * 3, ids, vals));
+        }
+        writer.finish();
+        SparseMatrix matrix = new SparseMatrix(file);
+
+        for (int rep = 0; rep < 3; rep++) {
+            long sidecarMillis = benchmark(matrix);
+            File moved = new File(file.getPath() + ".moved");
+            RowNorms.getFile(file).renameTo(moved);
+            long scanMillis = benchmark(matrix);
+            moved.renameTo(RowNorms.getFile(file));
+            System.out.println("millis to load row norms from sidecar: " + sidecarMillis +
+                    ", by scanning the matrix: " + scanMillis);
+        }
+    }
+
+    private static long benchmark(SparseMatrix matrix) throws IOException {
+        long startTimeNano = System.nanoTime();
+        // only the matrix is read at startup, so it can stand in for its transpose
+        new PairwiseCosineSimilarity(matrix, matrix).initIfNeeded();
+        return (System.nanoTime() - startTimeNano) / 1000000;
+    }
+}
@@ -0,0 +1,162 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.matrix.RowNorms;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.sim.esa.ESAMatrixBuilder;
+import edu.macalester.wpsemsim.sim.esa.ESASimilarity;
+import edu.macalester.wpsemsim.sim.utils.SparseVector;
+import edu.macalester.wpsemsim.utils.ConfigurationFile;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.TestUtils;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestESASimilarity {
+    private static File indexPath;
+    private static IndexHelper helper;
+    private static File termPath;
+    private static File conceptPath;
+    private static ESASimilarity searching;
+    private static ESASimilarity precomputed;
+
+    @BeforeClass
+    public static void createMatrices() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
+        indexPath = TestUtils.buildIndex();
+        helper = new IndexHelper(new File(indexPath, "text"), true);
+        searching = new ESASimilarity(helper);
+        searching.setMaxPercentage(100);
+
+        termPath = File.createTempFile("terms", null);
+        conceptPath = File.createTempFile("concepts", null);
+        new ESAMatrixBuilder(searching).writeMatrices(termPath, conceptPath, 2);
+
+        precomputed = new ESASimilarity(helper);
+        precomputed.setMatrices(new SparseMatrix(termPath), new SparseMatrix(conceptPath));
+    }
+
+    @Test
+    public void testSingleTermVectors() throws IOException {
+        // A one term query scores every concept by the term's weight times a constant.
+        for (String phrase : new String[] { "anarchism", "autism", "music", "children" }) {
+            SparseVector byLuceneId = searching.getConceptVector(phrase, null);
+            TIntDoubleHashMap expected = new TIntDoubleHashMap();
+            for (int i = 0; i < byLuceneId.size(); i++) {
+                expected.put(helper.luceneIdToWpId(byLuceneId.getId(i)), byLuceneId.getWeight(i));
+            }
+            SparseVector actual = precomputed.getConceptVector(phrase, null);
+            assertTrue(phrase, expected.size() > 0);
+            assertEquals(phrase, expected.size(), actual.size());
+            double ratio = actual.get(expected.keys()[0]) / expected.get(expected.keys()[0]);
+            for (int wpId : expected.keys()) {
+                assertEquals(phrase, expected.get(wpId) * ratio, actual.get(wpId), 0.0001 * actual.get(wpId));
+            }
+        }
+    }
+
+    @Test
+    public void testPhrases() throws IOException {
+        DocScoreList top = precomputed.mostSimilar("anarchism philosophy", 5);
+        assertTrue(top.numDocs() > 0);
+        assertEquals(12, top.getId(0));     // Anarchism
+        assertEquals(1.0, precomputed.similarity("anarchism", "anarchism"), 0.0001);
+        assertEquals(precomputed.similarity("autism", "music"), precomputed.similarity("music", "autism"), 0.0001);
+    }
+
+    @Test
+    public void testPhraseCache() throws IOException {
+        ESASimilarity metric = new ESASimilarity(helper);
+        metric.setPhraseCacheMb(1);
+        double sim = metric.similarity("anarchism", "autism");
+        assertEquals(2, metric.getPhraseCache().getMisses());
+        assertEquals(sim, metric.similarity("autism", "anarchism"), 0.0);
+        assertEquals(2, metric.getPhraseCache().getHits());
+        assertEquals(2, metric.getPhraseCache().size());
+
+        // vectors restricted to valid ids are not cached
+        metric.mostSimilar("music", 10, new TIntHashSet(new int[] { 12, 25 }));
+        assertEquals(2, metric.getPhraseCache().size());
+    }
+
+    @Test
+    public void testArticles() throws IOException {
+        SparseMatrix concepts = new SparseMatrix(conceptPath);
+        int ids[] = concepts.getRowIds();
+        assertEquals(helper.getReader().numDocs(), ids.length);
+        int numNonEmpty = 0;
+        for (int id1 : ids) {
+            if (concepts.getRow(id1).getNumCols() == 0) {
+                continue;
+            }
+            numNonEmpty++;
+            assertEquals(1.0, precomputed.similarity(id1, id1), 0.0001);
+            DocScoreList top = precomputed.mostSimilar(id1, 10);
+            for (int i = 0; i < top.numDocs(); i++) {
+                assertEquals(concepts.getRow(id1).getValueForId(top.getId(i)), top.getScore(i), 0.0001);
+                if (i > 0) {
+                    assertTrue(top.getScore(i - 1) >= top.getScore(i));
+                }
+            }
+            for (int id2 : ids) {
+                assertEquals(precomputed.similarity(id1, id2), precomputed.similarity(id2, id1), 0.0001);
+            }
+        }
+        assertTrue(numNonEmpty > ids.length / 2);
+    }
+
+    @Test
+    public void testStaleMatrices() throws IOException {
+        assertTrue(new ESAMatrixBuilder(searching).isCurrent(termPath, conceptPath));
+
+        // other settings
+        ESAMatrixBuilder builder = new ESAMatrixBuilder(searching);
+        builder.setMaxConcepts(ESAMatrixBuilder.DEFAULT_MAX_CONCEPTS / 2);
+        assertFalse(builder.isCurrent(termPath, conceptPath));
+        ESASimilarity other = new ESASimilarity(helper);
+        other.getMoreLikeThis().setMaxQueryTerms(searching.getMoreLikeThis().getMaxQueryTerms() + 1);
+        assertFalse(new ESAMatrixBuilder(other).isCurrent(termPath, conceptPath));
+
+        // matrices whose header is missing or that were changed after it was written
+        File header = ESAMatrixBuilder.getHeaderFile(conceptPath);
+        File moved = new File(header.getPath() + ".moved");
+        assertTrue(header.renameTo(moved));
+        assertFalse(new ESAMatrixBuilder(searching).isCurrent(termPath, conceptPath));
+        assertTrue(moved.renameTo(header));
+        File terms2 = File.createTempFile("terms", null);
+        File concepts2 = File.createTempFile("concepts", null);
+        try {
+            builder = new ESAMatrixBuilder(searching);
+            builder.writeMatrices(terms2, concepts2, 1);
+            assertTrue(builder.isCurrent(terms2, concepts2));
+            FileUtils.writeByteArrayToFile(concepts2, new byte[] { 0 }, true);
+            assertFalse(builder.isCurrent(terms2, concepts2));
+        } finally {
+            for (File f : new File[] { terms2, concepts2, ESAMatrixBuilder.getTermsFile(terms2),
+                    ESAMatrixBuilder.getHeaderFile(concepts2) }) {
+                f.delete();
+            }
+        }
+    }
+
+    @AfterClass
+    public static void deleteMatrices() throws IOException {
+        for (File f : new File[] { termPath, conceptPath }) {
+            f.delete();
+            RowNorms.getFile(f).delete();
+        }
+        ESAMatrixBuilder.getTermsFile(termPath).delete();
+        ESAMatrixBuilder.getHeaderFile(conceptPath).delete();
+        FileUtils.deleteDirectory(indexPath);
+    }
+}
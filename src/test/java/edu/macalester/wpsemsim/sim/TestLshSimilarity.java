@@ -0,0 +1,107 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.sim.pairwise.LshCosineSimilarity;
+import edu.macalester.wpsemsim.sim.pairwise.LshIndex;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.TestUtils;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestLshSimilarity {
+    static int NUM_ROWS = 200;
+
+    private static SparseMatrix matrix;
+    private static LshIndex index;
+
+    @BeforeClass
+    public static void createTestData() throws IOException {
+        matrix = TestUtils.createSparseTestMatrix(NUM_ROWS, NUM_ROWS, false);
+        index = LshIndex.build(matrix, 8, 8, LshIndex.DEFAULT_SEED);
+    }
+
+    @Test
+    public void testScoresAreExact() throws IOException {
+        LshCosineSimilarity lsh = new LshCosineSimilarity(matrix, index);
+        LshCosineSimilarity closest = new LshCosineSimilarity(matrix, index);
+        closest.setMaxScored(1);
+        TIntHashSet validIds = new TIntHashSet();
+        int ids[] = matrix.getRowIds();
+        for (int i = 0; i < ids.length; i += 2) {
+            validIds.add(ids[i]);
+        }
+        for (int id : ids) {
+            // a row always collides with itself
+            DocScoreList all = lsh.mostSimilar(id, 10);
+            if (matrix.getRow(id).getNorm() > 0) {
+                assertEquals(id, all.getId(0));
+                assertEquals(1.0, all.getScore(0), 0.0001);
+                // a row's own signature is always the closest
+                assertEquals(id, closest.mostSimilar(id, 1).getId(0));
+            }
+            for (int i = 0; i < all.numDocs(); i++) {
+                assertEquals(matrix.getRow(id).cosine(matrix.getRow(all.getId(i))), all.getScore(i), 0.0001);
+            }
+            DocScoreList valid = lsh.mostSimilar(id, 10, validIds);
+            for (int i = 0; i < valid.numDocs(); i++) {
+                assertTrue(validIds.contains(valid.getId(i)));
+            }
+            assertEquals(0, lsh.mostSimilar(id, 0).numDocs());
+        }
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        File tmp = File.createTempFile("lsh", null);
+        tmp.deleteOnExit();
+        index.write(tmp);
+        LshIndex index2 = LshIndex.read(tmp);
+        assertEquals(index.getNumRows(), index2.getNumRows());
+        assertEquals(index.getNumWords(), index2.getNumWords());
+        for (int i = 0; i < index.getNumRows(); i++) {
+            assertEquals(index.getRowId(i), index2.getRowId(i));
+            assertEquals(index.getNorm(i), index2.getNorm(i), 0.0);
+            for (int w = 0; w < index.getNumWords(); w++) {
+                assertEquals(index.getSignatureWord(i, w), index2.getSignatureWord(i, w));
+            }
+        }
+        LshCosineSimilarity lsh1 = new LshCosineSimilarity(matrix, index);
+        LshCosineSimilarity lsh2 = new LshCosineSimilarity(matrix, index2);
+        for (int id : matrix.getRowIds()) {
+            DocScoreList l1 = lsh1.mostSimilar(id, 10);
+            DocScoreList l2 = lsh2.mostSimilar(id, 10);
+            assertEquals(l1.numDocs(), l2.numDocs());
+            for (int i = 0; i < l1.numDocs(); i++) {
+                assertEquals(l1.getScore(i), l2.getScore(i), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testStaleIndex() throws IOException {
+        File tmp = File.createTempFile("lsh", null);
+        tmp.deleteOnExit();
+        index.write(tmp);
+        assertNotNull(LshIndex.read(tmp, matrix));
+
+        // an index of another matrix is not reused, and its missing rows are skipped
+        SparseMatrix smaller = TestUtils.createSparseTestMatrix(NUM_ROWS / 2, NUM_ROWS, false);
+        assertNull(LshIndex.read(tmp, smaller));
+        LshCosineSimilarity lsh = new LshCosineSimilarity(smaller, index);
+        for (int id : smaller.getRowIds()) {
+            DocScoreList list = lsh.mostSimilar(id, 10);
+            for (int i = 0; i < list.numDocs(); i++) {
+                assertEquals(smaller.getRow(id).cosine(smaller.getRow(list.getId(i))), list.getScore(i), 0.0001);
+            }
+        }
+    }
+}
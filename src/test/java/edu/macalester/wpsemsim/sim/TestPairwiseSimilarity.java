@@ -3,10 +3,13 @@ package edu.macalester.wpsemsim.sim;
 import edu.macalester.wpsemsim.matrix.*;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseCosineSimilarity;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseSimilarityWriter;
+import edu.macalester.wpsemsim.sim.pairwise.RowPartition;
 import edu.macalester.wpsemsim.utils.DocScore;
+import edu.macalester.wpsemsim.utils.DocScoreList;
 import edu.macalester.wpsemsim.utils.TestUtils;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TLongDoubleHashMap;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.collections.CollectionUtils;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -14,10 +17,15 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestPairwiseSimilarity {
     static int NUM_ROWS = 100;
@@ -112,6 +120,173 @@ public class TestPairwiseSimilarity {
         }
     }
 
+    @Test
+    public void testValidIds() throws IOException {
+        PairwiseCosineSimilarity cosine = new PairwiseCosineSimilarity(matrix, transpose);
+        int[] ids = matrix.getRowIds();
+        TIntHashSet validIds = new TIntHashSet();
+        for (int i = 0; i < ids.length; i += 3) {
+            validIds.add(ids[i]);
+        }
+        // alternate between filtered and unfiltered queries to check that the scratch space is reset
+        for (int id : ids) {
+            TIntDoubleHashMap expected = new TIntDoubleHashMap();
+            for (DocScore score : cosine.mostSimilar(id, NUM_ROWS)) {
+                if (validIds.contains(score.getId())) {
+                    expected.put(score.getId(), score.getScore());
+                }
+            }
+            DocScoreList actual = cosine.mostSimilar(id, NUM_ROWS, validIds);
+            assertEquals(expected.size(), actual.numDocs());
+            for (DocScore score : actual) {
+                assertEquals(expected.get(score.getId()), score.getScore(), 0.0001);
+            }
+        }
+    }
+
+    @Test
+    public void testPruned() throws IOException {
+        PairwiseCosineSimilarity exact = new PairwiseCosineSimilarity(matrix, transpose);
+        PairwiseCosineSimilarity pruned = new PairwiseCosineSimilarity(matrix, transpose);
+        pruned.setPruneTopK(true);
+        PairwiseCosineSimilarity thresholded = new PairwiseCosineSimilarity(matrix, transpose);
+        thresholded.setPruneTopK(true);
+        thresholded.setMinSimilarity(0.3);
+
+        int[] ids = matrix.getRowIds();
+        TIntHashSet validIds = new TIntHashSet();
+        for (int i = 0; i < ids.length; i += 2) {
+            validIds.add(ids[i]);
+        }
+        for (int k : new int[] { 1, 5, 20 }) {
+            for (int id : ids) {
+                verifySameScores(exact.mostSimilar(id, k), pruned.mostSimilar(id, k), Double.NEGATIVE_INFINITY);
+                verifySameScores(exact.mostSimilar(id, k, validIds), pruned.mostSimilar(id, k, validIds), Double.NEGATIVE_INFINITY);
+                verifySameScores(exact.mostSimilar(id, k), thresholded.mostSimilar(id, k), 0.3);
+            }
+        }
+    }
+
+    @Test
+    public void testBlocked() throws IOException, InterruptedException {
+        PairwiseCosineSimilarity cosine = new PairwiseCosineSimilarity(matrix, transpose);
+        int[] ids = matrix.getRowIds();
+        TIntHashSet validIds = new TIntHashSet();
+        for (int i = 0; i < ids.length; i += 2) {
+            validIds.add(ids[i]);
+        }
+        for (int blockSize : new int[] { 1, 7, ids.length }) {
+            for (int i = 0; i < ids.length; i += blockSize) {
+                int block[] = Arrays.copyOfRange(ids, i, Math.min(i + blockSize, ids.length));
+                DocScoreList all[] = cosine.mostSimilar(block, 5, null);
+                DocScoreList valid[] = cosine.mostSimilar(block, 5, validIds);
+                for (int j = 0; j < block.length; j++) {
+                    verifySameScores(cosine.mostSimilar(block[j], 5), all[j], Double.NEGATIVE_INFINITY);
+                    verifySameScores(cosine.mostSimilar(block[j], 5, validIds), valid[j], Double.NEGATIVE_INFINITY);
+                }
+            }
+        }
+        assertEquals(0, cosine.mostSimilar(new int[] { -1 }, 5, null)[0].numDocs());
+
+        // the writer produces the same rows one at a time and in blocks
+        File rowPath = File.createTempFile("matrix", null);
+        rowPath.deleteOnExit();
+        new PairwiseSimilarityWriter(cosine, rowPath).writeSims(ids, 2, NUM_ROWS);
+        File blockPath = File.createTempFile("matrix", null);
+        blockPath.deleteOnExit();
+        PairwiseSimilarityWriter writer = new PairwiseSimilarityWriter(cosine, blockPath);
+        writer.setBlockSize(3);
+        writer.writeSims(ids, 2, NUM_ROWS);
+        SparseMatrix rowSims = new SparseMatrix(rowPath);
+        SparseMatrix blockSims = new SparseMatrix(blockPath);
+        assertEquals(rowSims.getNumRows(), blockSims.getNumRows());
+        for (int id : ids) {
+            Map<Integer, Float> expected = rowSims.getRow(id).asMap();
+            Map<Integer, Float> actual = blockSims.getRow(id).asMap();
+            assertEquals(expected.keySet(), actual.keySet());
+            for (int id2 : expected.keySet()) {
+                assertEquals(expected.get(id2), actual.get(id2), 0.001);
+            }
+        }
+    }
+
+    @Test
+    public void testPartitions() throws IOException, InterruptedException {
+        PairwiseCosineSimilarity cosine = new PairwiseCosineSimilarity(matrix, transpose);
+        int ids[] = matrix.getRowIds();
+        double costs[] = cosine.estimateCosts(ids);
+        double maxCost = 0;
+        TIntDoubleHashMap costById = new TIntDoubleHashMap();
+        for (int i = 0; i < ids.length; i++) {
+            maxCost = Math.max(maxCost, costs[i]);
+            costById.put(ids[i], costs[i]);
+        }
+
+        // the parts are disjoint, cover every row, balance cost, and ignore the order of the ids
+        int reversed[] = new int[ids.length];
+        double reversedCosts[] = new double[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            reversed[i] = ids[ids.length - 1 - i];
+            reversedCosts[i] = costs[ids.length - 1 - i];
+        }
+        TIntHashSet seen = new TIntHashSet();
+        double minLoad = Double.MAX_VALUE, maxLoad = 0;
+        for (int p = 0; p < 3; p++) {
+            int part[] = new RowPartition(p, 3).select(ids, costs);
+            int part2[] = new RowPartition(p, 3).select(reversed, reversedCosts);
+            assertArrayEquals(sorted(part), sorted(part2));
+            double load = 0;
+            for (int id : part) {
+                assertTrue(seen.add(id));
+                load += costById.get(id);
+            }
+            minLoad = Math.min(minLoad, load);
+            maxLoad = Math.max(maxLoad, load);
+        }
+        assertEquals(ids.length, seen.size());
+        assertTrue(maxLoad - minLoad <= maxCost);
+
+        // merging the parts gives the same matrix as one build
+        File fullPath = File.createTempFile("matrix", null);
+        fullPath.deleteOnExit();
+        new PairwiseSimilarityWriter(cosine, fullPath).writeSims(ids, 2, NUM_ROWS);
+        List<SparseMatrix> parts = new ArrayList<SparseMatrix>();
+        for (int p = 0; p < 3; p++) {
+            File partPath = File.createTempFile("matrix", null);
+            partPath.deleteOnExit();
+            PairwiseSimilarityWriter writer = new PairwiseSimilarityWriter(cosine, partPath);
+            writer.setPartition(RowPartition.parse(p + "/3"));
+            writer.writeSims(ids, 2, NUM_ROWS);
+            parts.add(new SparseMatrix(partPath));
+        }
+        File mergedPath = File.createTempFile("matrix", null);
+        mergedPath.deleteOnExit();
+        new SparseMatrixMerger(parts, mergedPath).merge();
+        SparseMatrix full = new SparseMatrix(fullPath);
+        SparseMatrix merged = new SparseMatrix(mergedPath);
+        assertEquals(full.getNumRows(), merged.getNumRows());
+        for (int id : ids) {
+            assertEquals(full.getRow(id).asMap(), merged.getRow(id).asMap());
+        }
+    }
+
+    private static int[] sorted(int ids[]) {
+        int copy[] = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    private void verifySameScores(DocScoreList expected, DocScoreList actual, double minScore) {
+        int n = 0;
+        for (DocScore score : expected) {
+            if (score.getScore() >= minScore) {
+                // ties may be broken differently, so compare scores
+                assertEquals(score.getScore(), actual.getScore(n++), 0.0001);
+            }
+        }
+        assertEquals(n, actual.numDocs());
+    }
+
     private long pack(int x, int y) {
         return ByteBuffer.wrap(new byte[8]).putInt(x).putInt(y).getLong(0);
     }
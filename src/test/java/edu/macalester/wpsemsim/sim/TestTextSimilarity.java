@@ -1,13 +1,17 @@
 package edu.macalester.wpsemsim.sim;
 
 import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.lucene.MltTermCache;
+import edu.macalester.wpsemsim.matrix.RowNorms;
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
 import edu.macalester.wpsemsim.utils.DocScore;
+import edu.macalester.wpsemsim.utils.DocScoreList;
 import edu.macalester.wpsemsim.utils.TestUtils;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.queries.mlt.MoreLikeThis;
 import org.apache.lucene.util.Bits;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -18,7 +22,11 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class TestTextSimilarity {
     static File indexPath;
@@ -60,6 +68,54 @@ public class TestTextSimilarity {
         }
     }
 
+    @Test
+    public void testMltTermCache() throws IOException {
+        DirectoryReader reader = helper.getReader();
+        TextSimilarity sim = new TextSimilarity(helper, "text");
+        sim.setMaxPercentage(100);
+        MoreLikeThis mlt = sim.getMoreLikeThis();
+        File path = File.createTempFile("mlt", null);
+        try {
+            assertFalse(MltTermCache.isCurrent(path, helper, mlt));
+            MltTermCache.build(helper, mlt, path, 2);
+            assertTrue(MltTermCache.isCurrent(path, helper, mlt));
+            MoreLikeThis other = new TextSimilarity(helper, "text").getMoreLikeThis();
+            other.setMaxQueryTerms(mlt.getMaxQueryTerms() + 1);
+            assertFalse(MltTermCache.isCurrent(path, helper, other));
+            MltTermCache cache = new MltTermCache(path, "text");
+            TextSimilarity cached = new TextSimilarity(helper, "text");
+            cached.setMaxPercentage(100);
+            cached.setMltTermCache(cache);
+
+            Bits bits = MultiFields.getLiveDocs(reader);
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (bits != null && !bits.get(i)) { continue; }
+                // the test index stores term vectors, so MoreLikeThis need not re-analyze
+                assertNotNull(reader.getTermVector(i, "text"));
+                int wpId = helper.luceneIdToWpId(i);
+                assertEquals(mlt.like(i), cache.like(wpId, mlt));
+                DocScoreList expected = sim.mostSimilar(wpId, 10);
+                DocScoreList actual = cached.mostSimilar(wpId, 10);
+                assertEquals(expected.numDocs(), actual.numDocs());
+                for (int j = 0; j < expected.numDocs(); j++) {
+                    assertEquals(expected.getId(j), actual.getId(j));
+                    assertEquals(expected.getScore(j), actual.getScore(j), 0.0);
+                }
+            }
+            assertNull(cache.like(-1, mlt));
+
+            // boosts do not change which terms are chosen, so the same cache serves both
+            mlt.setBoost(true);
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (bits != null && !bits.get(i)) { continue; }
+                assertEquals(mlt.like(i), cache.like(helper.luceneIdToWpId(i), mlt));
+            }
+        } finally {
+            path.delete();
+            RowNorms.getFile(path).delete();
+            MltTermCache.getTermsFile(path).delete();
+        }
+    }
 
     @AfterClass
     public static void removeIndex() {
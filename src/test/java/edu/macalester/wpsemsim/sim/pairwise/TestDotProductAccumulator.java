@@ -0,0 +1,74 @@
+package edu.macalester.wpsemsim.sim.pairwise;
+
+import edu.macalester.wpsemsim.matrix.RowNorms;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixTransposer;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import edu.macalester.wpsemsim.utils.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDotProductAccumulator {
+    static int NUM_ROWS = 100;
+
+    private static SparseMatrix matrix;
+    private static SparseMatrix transpose;
+
+    @BeforeClass
+    public static void createTestData() throws IOException {
+        matrix = TestUtils.createSparseTestMatrix(NUM_ROWS, NUM_ROWS, false);
+        File tmpFile = File.createTempFile("matrix", null);
+        tmpFile.deleteOnExit();
+        new SparseMatrixTransposer(matrix, tmpFile, 10).transpose();
+        transpose = new SparseMatrix(tmpFile);
+    }
+
+    @Test
+    public void testAbandonedQuery() throws IOException {
+        int cols[] = transpose.getRowIds();
+        SparseMatrixRow col1 = transpose.getRow(cols[0]);
+        SparseMatrixRow col2 = transpose.getRow(cols[1]);
+        Leaderboard expected = new Leaderboard(NUM_ROWS);
+        DotProductAccumulator.Scratch fresh = new DotProductAccumulator(RowNorms.compute(matrix)).getScratch();
+        fresh.begin(null);
+        fresh.add(1.0f, col2);
+        fresh.finish(1.0, Double.NEGATIVE_INFINITY, expected);
+        assertTrue(expected.getTop().numDocs() > 0);
+
+        // a query that fails before finish() must not leak into the thread's next query
+        DotProductAccumulator acc = new DotProductAccumulator(RowNorms.compute(matrix));
+        DotProductAccumulator.Scratch scratch = acc.getScratch();
+        scratch.begin(null);
+        scratch.add(1.0f, col1);
+        scratch.begin(null);
+        scratch.add(1.0f, col2);
+        Leaderboard actual = new Leaderboard(NUM_ROWS);
+        scratch.finish(1.0, Double.NEGATIVE_INFINITY, actual);
+        verifySameScores(expected.getTop(), actual.getTop());
+
+        // likewise for a block of queries, even if the next block is smaller
+        DotProductAccumulator.BlockScratch block = acc.getBlockScratch();
+        block.begin(2);
+        block.add(new int[] {0, 1}, new float[] {1.0f, 1.0f}, 2, col1);
+        block.begin(1);
+        block.add(new int[] {0}, new float[] {1.0f}, 1, col2);
+        Leaderboard blockActual = new Leaderboard(NUM_ROWS);
+        block.finish(new double[] {1.0}, null, Double.NEGATIVE_INFINITY, new Leaderboard[] {blockActual});
+        verifySameScores(expected.getTop(), blockActual.getTop());
+    }
+
+    private void verifySameScores(DocScoreList expected, DocScoreList actual) {
+        assertEquals(expected.numDocs(), actual.numDocs());
+        for (int i = 0; i < expected.numDocs(); i++) {
+            assertEquals(expected.getScore(i), actual.getScoreForId(expected.getId(i)), 0.0001);
+        }
+    }
+}
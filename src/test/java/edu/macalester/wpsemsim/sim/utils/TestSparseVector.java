@@ -0,0 +1,75 @@
+package edu.macalester.wpsemsim.sim.utils;
+
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSparseVector {
+
+    @Test
+    public void testFromUnsorted() {
+        SparseVector v = SparseVector.fromUnsorted(
+                new int[] { 7, 3, 9, 3, 1 },
+                new float[] { 1.0f, 2.0f, -0.5f, 0.25f, 4.0f },
+                5);
+        assertEquals(4, v.size());
+        int ids[] = { 1, 3, 7, 9 };
+        float weights[] = { 4.0f, 2.25f, 1.0f, -0.5f };
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], v.getId(i));
+            assertEquals(weights[i], v.getWeight(i), 0.0);
+            assertEquals(weights[i], v.get(ids[i]), 0.0);
+        }
+        assertEquals(0.0, v.get(5), 0.0);
+        assertEquals(Math.sqrt(16 + 2.25 * 2.25 + 1 + 0.25), v.getNorm(), 0.00001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedIds() {
+        new SparseVector(new int[] { 2, 1 }, new float[] { 1.0f, 1.0f });
+    }
+
+    @Test
+    public void testCosine() {
+        Random random = new Random(0);
+        for (int trial = 0; trial < 100; trial++) {
+            TIntDoubleHashMap map1 = randomMap(random);
+            TIntDoubleHashMap map2 = randomMap(random);
+            SparseVector v1 = SparseVector.fromMap(map1);
+            SparseVector v2 = SparseVector.fromMap(map2);
+            double expected = SimUtils.cosineSimilarity(map1, map2);
+            if (Double.isNaN(expected)) {
+                assertTrue(Double.isNaN(v1.cosine(v2)));
+            } else {
+                assertEquals(expected, v1.cosine(v2), 0.0001);
+                assertEquals(v1.dot(v2), v2.dot(v1), 0.0);
+            }
+        }
+        assertTrue(Double.isNaN(SparseVector.EMPTY.cosine(SparseVector.EMPTY)));
+    }
+
+    @Test
+    public void testTop() {
+        SparseVector v = new SparseVector(new int[] { 1, 2, 3, 4 }, new float[] { 0.5f, 3.0f, 1.0f, 2.0f });
+        DocScoreList top = v.top(3);
+        assertEquals(3, top.numDocs());
+        assertEquals(2, top.getId(0));
+        assertEquals(4, top.getId(1));
+        assertEquals(3, top.getId(2));
+        assertEquals(4, v.top(10).numDocs());
+    }
+
+    private static TIntDoubleHashMap randomMap(Random random) {
+        TIntDoubleHashMap map = new TIntDoubleHashMap();
+        int n = random.nextInt(50);
+        for (int i = 0; i < n; i++) {
+            map.put(random.nextInt(100), random.nextFloat());
+        }
+        return map;
+    }
+}
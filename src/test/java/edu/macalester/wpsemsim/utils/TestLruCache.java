@@ -0,0 +1,118 @@
+package edu.macalester.wpsemsim.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestLruCache {
+
+    @Test
+    public void testEviction() {
+        LruCache<Integer, String> cache = new LruCache<Integer, String>(3, 1);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        assertEquals("a", cache.get(1));    // 2 is now least recently used
+        cache.put(4, "d");
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        assertEquals("d", cache.get(4));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(4, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testBytes() {
+        LruCache<Integer, int[]> cache = new LruCache<Integer, int[]>(100, 1) {
+            @Override
+            protected long sizeOf(Integer key, int[] value) {
+                return 4 * value.length;
+            }
+        };
+        cache.put(1, new int[10]);
+        cache.put(2, new int[10]);
+        assertEquals(80, cache.getSizeInBytes());
+        cache.put(1, new int[5]);       // replacing an entry updates its size
+        assertEquals(60, cache.getSizeInBytes());
+        cache.put(3, new int[20]);      // evicts 2
+        assertEquals(100, cache.getSizeInBytes());
+        assertEquals(2, cache.size());
+        assertNull(cache.get(2));
+        assertEquals(1, cache.getEvictions());
+        cache.put(4, new int[30]);      // too large to cache
+        assertNull(cache.get(4));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        final LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(1000, 4);
+        final AtomicInteger numLoads = new AtomicInteger();
+        final Function<Integer, Integer> loader = new Function<Integer, Integer>() {
+            @Override
+            public Integer call(Integer key) throws Exception {
+                numLoads.incrementAndGet();
+                Thread.sleep(20);
+                return key * 2;
+            }
+        };
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 40; i++) {
+            keys.add(i % 4);
+        }
+        ParallelForEach.loop(keys, 8, new Procedure<Integer>() {
+            @Override
+            public void call(Integer key) throws Exception {
+                assertEquals(key * 2, cache.get(key, loader).intValue());
+            }
+        }, Integer.MAX_VALUE);
+        assertEquals(4, numLoads.get());    // concurrent misses on a key share one load
+        assertEquals(4, cache.size());
+        assertEquals(keys.size(), cache.getHits() + cache.getMisses());
+        assertEquals(cache.getMisses() - 4, cache.getCoalescedLoads());
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadFailure() throws Exception {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(10);
+        cache.get(1, new Function<Integer, Integer>() {
+            @Override
+            public Integer call(Integer key) throws Exception {
+                throw new IOException("failed");
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(1000, 8);
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 20000; i++) {
+            keys.add(i % 2000);
+        }
+        ParallelForEach.loop(keys, 4, new Procedure<Integer>() {
+            @Override
+            public void call(Integer key) throws Exception {
+                Integer value = cache.get(key);
+                if (value == null) {
+                    cache.put(key, key * 2);
+                } else {
+                    assertEquals(key * 2, value.intValue());
+                }
+            }
+        }, Integer.MAX_VALUE);
+        assertTrue(cache.size() <= 1000);
+        assertEquals(cache.size(), cache.getSizeInBytes());
+        assertEquals(keys.size(), cache.getHits() + cache.getMisses());
+    }
+}
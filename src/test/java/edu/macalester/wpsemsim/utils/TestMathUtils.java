@@ -3,10 +3,27 @@ package edu.macalester.wpsemsim.utils;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
 public class TestMathUtils {
+    @Test
+    public void testKthLargest() {
+        Random random = new Random(0);
+        for (int t = 0; t < 100; t++) {
+            int n = 1 + random.nextInt(50);
+            double X[] = new double[n + 5];
+            for (int i = 0; i < X.length; i++) {
+                X[i] = random.nextInt(20);     // plenty of ties
+            }
+            double sorted[] = Arrays.copyOf(X, n);
+            Arrays.sort(sorted);
+            int k = 1 + random.nextInt(n);
+            assertEquals(sorted[n - k], MathUtils.kthLargest(X, n, k), 0.0);
+        }
+    }
+
     @Test
     public void testFindColinearColumns() {
         testMatrix(
@@ -0,0 +1,179 @@
+package edu.macalester.wpsemsim.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestParallelBZip2InputStream {
+
+    @Test
+    public void testManyBlocks() throws IOException {
+        byte data[] = randomText(2000000, 0);
+        byte compressed[] = compress(data, 1);  // 100k blocks
+        for (int threads : new int[] { 1, 2, 4 }) {
+            assertArrayEquals(data, decompress(compressed, threads));
+        }
+    }
+
+    @Test
+    public void testConcatenatedStreams() throws IOException {
+        byte data1[] = randomText(300000, 1);
+        byte data2[] = randomText(10, 2);
+        byte data3[] = randomText(250000, 3);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressed.write(compress(data1, 1));
+        compressed.write(compress(data2, 9));
+        compressed.write(compress(new byte[0], 5));
+        compressed.write(compress(data3, 2));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(data1);
+        expected.write(data2);
+        expected.write(data3);
+        assertArrayEquals(expected.toByteArray(), decompress(compressed.toByteArray(), 3));
+    }
+
+    @Test
+    public void testFalseBlockBoundary() throws IOException {
+        byte data[] = randomText(300000, 4);
+        ParallelBZip2InputStream.Block block = toBlock(compress(data, 9), 9);
+        assertArrayEquals(data, ParallelBZip2InputStream.decompress(block));
+
+        // a block split in two fails on its own, and decompresses once merged
+        ParallelBZip2InputStream.Block first = slice(block, 0, block.numBits / 2);
+        ParallelBZip2InputStream.Block second = slice(block, block.numBits / 2, block.numBits);
+        try {
+            ParallelBZip2InputStream.decompress(first);
+            throw new AssertionError("expected a CRC failure");
+        } catch (IOException e) {
+            // expected
+        }
+        assertArrayEquals(data, ParallelBZip2InputStream.decompress(first.concat(second)));
+    }
+
+    @Test
+    public void testStreamMergesFalseBlockBoundary() throws IOException {
+        byte data1[] = randomText(50000, 5);
+        byte data2[] = randomText(300000, 6);
+        byte data3[] = randomText(70000, 7);
+        ParallelBZip2InputStream.Block block2 = toBlock(compress(data2, 9), 9);
+
+        // the stream sees the second block as two, and must merge them to pass the CRC check
+        List<ParallelBZip2InputStream.Block> blocks = new ArrayList<ParallelBZip2InputStream.Block>();
+        blocks.add(toBlock(compress(data1, 9), 9));
+        long n = block2.numBits;
+        blocks.add(slice(block2, 0, n / 3));
+        blocks.add(slice(block2, n / 3, 2 * n / 3));
+        blocks.add(slice(block2, 2 * n / 3, n));
+        blocks.add(toBlock(compress(data3, 9), 9));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(data1);
+        expected.write(data2);
+        expected.write(data3);
+        for (int threads : new int[] { 1, 3 }) {
+            ParallelBZip2InputStream in = new ParallelBZip2InputStream(blocks, threads);
+            try {
+                assertArrayEquals(expected.toByteArray(), IOUtils.toByteArray(in));
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testCorruptBlockBeforeTruncatedInput() throws IOException {
+        byte compressed[] = compress(randomText(400000, 8), 1);  // 100k blocks
+        compressed[compressed.length / 8] ^= 0x55;
+        compressed = Arrays.copyOf(compressed, 3 * compressed.length / 4);
+
+        // merging the corrupt block reaches the truncated input, whose error must be reported
+        ParallelBZip2InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(compressed), 2);
+        try {
+            IOUtils.toByteArray(in);
+            throw new AssertionError("expected the truncated input to fail");
+        } catch (IOException e) {
+            assertTrue(e.getCause().getMessage().contains("ended inside a stream"));
+        }
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotBzip2() throws IOException {
+        decompress("hello world".getBytes("UTF-8"), 2);
+    }
+
+    /**
+     * @return The only block of a one-block stream.
+     */
+    private static ParallelBZip2InputStream.Block toBlock(byte compressed[], int level) {
+        ParallelBZip2InputStream.Block block = new ParallelBZip2InputStream.Block(level);
+        for (int i = 32; i < compressed.length * 8; i++) {
+            block.append((compressed[i / 8] >>> (7 - i % 8)) & 1);
+        }
+        // drop the end of stream marker, combined CRC and padding
+        block.truncate(findEos(block));
+        return block;
+    }
+
+    private static ParallelBZip2InputStream.Block slice(ParallelBZip2InputStream.Block block, long from, long to) {
+        ParallelBZip2InputStream.Block piece = new ParallelBZip2InputStream.Block(block.level);
+        for (long i = from; i < to; i++) {
+            piece.append(block.getBit(i));
+        }
+        return piece;
+    }
+
+    private static long findEos(ParallelBZip2InputStream.Block block) {
+        long reg = 0;
+        for (long i = 0; i < block.numBits; i++) {
+            reg = (reg << 1) | block.getBit(i);
+            if ((reg & 0xffffffffffffL) == 0x177245385090L) {
+                return i + 1 - 48;
+            }
+        }
+        throw new IllegalStateException("no end of stream marker");
+    }
+
+    private static byte[] decompress(byte compressed[], int threads) throws IOException {
+        ParallelBZip2InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(compressed), threads);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] compress(byte data[], int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(out, level);
+        bz.write(data);
+        bz.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Words drawn from a skewed vocabulary, so the text compresses like prose.
+     */
+    private static byte[] randomText(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            int word = (int) (5000 * Math.pow(random.nextDouble(), 3));
+            sb.append("w").append(word).append(random.nextInt(10) == 0 ? ".\n" : " ");
+        }
+        return sb.substring(0, length).getBytes();
+    }
+}
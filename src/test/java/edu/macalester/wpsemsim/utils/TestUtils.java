@@ -39,19 +39,8 @@ public class TestUtils {
         }
 
         try {
-            AllIndexBuilder builder = new AllIndexBuilder(conf, null) {
-                @Override
-                protected void process(int numThreads) throws InterruptedException {
-                    super.process(numThreads);
-                    for (Page d : additional) {
-                        try {
-                            this.storePage(d);
-                        } catch (IOException e) {
-                            e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-                        }
-                    }
-                }
-            };
+            AllIndexBuilder builder = new AllIndexBuilder(conf, null);
+            builder.addPages(additional);
             builder.write(1, 100);
         } catch (ConfigurationFile.ConfigurationException e) {
             throw new IOException(e);